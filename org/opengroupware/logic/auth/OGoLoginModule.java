@@ -53,6 +53,7 @@ import org.getobjects.foundation.UString;
 import org.getobjects.jaas.EODatabaseLoginModule;
 import org.opengroupware.logic.db.OGoDatabase;
 import org.opengroupware.logic.db.OGoLoginToken;
+import org.opengroupware.logic.db.OGoTeamMembershipIndex;
 import org.apache.commons.codec.digest.UnixCrypt;
 
 /**
@@ -215,8 +216,25 @@ public class OGoLoginModule extends EODatabaseLoginModule {
     principals.add(account);
     
     
-    /* fetch teams and add them */
+    /* lookup teams and add them */
     // TBD: could be nested teams?
+    
+    final OGoTeamMembershipIndex idx = (this.database instanceof OGoDatabase)
+      ? ((OGoDatabase)this.database).teamMembershipIndex() : null;
+    final Number[] teamIds = idx != null ? idx.teamIdsForAccountId(uid) : null;
+    
+    if (teamIds != null) {
+      /* a plain memory lookup, the index is shared by all logins */
+      for (Number teamId: teamIds) {
+        OGoTeamPrincipal teamPrincipal =
+          new OGoTeamPrincipal(teamId, idx.nameForTeamId(teamId));
+        teamPrincipal.addMember(account);
+        principals.add(teamPrincipal);
+      }
+      return true; /* everything went fine */
+    }
+    
+    /* no index available, fetch the teams */
 
     EOAccessDataSource teamsDS = new EOActiveDataSource(this.database, "Teams");
     
@@ -21,7 +21,29 @@
 package org.opengroupware.logic.blobs;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
+/**
+ * IOGoBlobStore
+ * <p>
+ * Maps OGo document objects (notes, documents, etc) to their contents. The
+ * content can be retrieved as a File (for stores which keep the BLOBs in
+ * individual files) or streamed (InputStream or NIO channel). The streaming
+ * methods are preferred, they do not load the content into memory and
+ * support byte ranges, eg:<pre>
+ *   bs.transferBlobToChannel(doc.id(), doc.projectId(), doc.fileext,
+ *     0, -1, socketChannel);</pre>
+ * Most file based stores inherit the streaming methods from
+ * OGoFileBlobStore.
+ * <p>
+ * Changes are done using IOGoBlobTransaction objects, which are coordinated
+ * with the database transaction (see OGoDocumentObjectInsert).
+ *
+ * @author helge
+ */
 public interface IOGoBlobStore {
 
   // TBD: this ties us to a filesystem store, ie we could not store documents
@@ -29,7 +51,8 @@ public interface IOGoBlobStore {
   //      then use a custom scheme for BLOBs?)
   /**
    * Returns a File object which represents the location the OGoDocumentObject
-   * with the given id should be stored.
+   * with the given id is stored at. This is the lookup used for reading, it
+   * does not touch the filesystem (the File might not exist).
    * 
    * Document objects are folders, documents and notes (plus the variants
    * "comments" and "attachments").
@@ -40,5 +63,91 @@ public interface IOGoBlobStore {
    * @param _ext - the file extension, eg "gif" or "txt" (Notes use "txt")
    */
   public File blobFileForId(Number _id, Number _containerId, String _ext);
+  // Note: stores which do not keep BLOBs in individual files return null.
+  
+  /**
+   * Returns a File object which represents the location the OGoDocumentObject
+   * with the given id should be stored at. Contrary to blobFileForId() this
+   * ensures that the directories containing the File exist, it must be used
+   * before writing BLOBs.
+   * 
+   * @param _id - the ID of the note or document
+   * @param _containerId - the ID of the folder which contains the note,
+   *                       can be null
+   * @param _ext - the file extension, eg "gif" or "txt" (Notes use "txt")
+   * @return the File, or null if the directories could not be created
+   */
+  public File blobFileForWritingId
+    (Number _id, Number _containerId, String _ext);
+  
+  
+  /* streaming */
+  
+  /**
+   * Returns the size of the BLOB in bytes.
+   * 
+   * @return the size, or -1 if the BLOB does not exist
+   */
+  public long blobSizeForId(Number _id, Number _containerId, String _ext);
+  
+  /**
+   * Opens a stream which returns the content of the BLOB. The caller must
+   * close the stream.
+   * 
+   * @throws IOException - eg a FileNotFoundException if there is no BLOB
+   */
+  public InputStream openStreamForId
+    (Number _id, Number _containerId, String _ext)
+    throws IOException;
+  
+  /**
+   * Opens a channel which returns the given range of the BLOB. The caller must
+   * close the channel.
+   * 
+   * @param _offset - the offset of the first byte to return
+   * @param _length - the number of bytes to return, -1 for all
+   * @throws IOException - eg a FileNotFoundException if there is no BLOB
+   */
+  public ReadableByteChannel openChannelForId
+    (Number _id, Number _containerId, String _ext, long _offset, long _length)
+    throws IOException;
+  
+  /**
+   * Writes the given range of the BLOB to the channel. This is the preferred
+   * way to deliver BLOBs, file stores use FileChannel.transferTo() which
+   * avoids copying the content through the Java heap.
+   * 
+   * @param _offset - the offset of the first byte to transfer
+   * @param _length - the number of bytes to transfer, -1 for all
+   * @param _out    - the target channel, eg a SocketChannel
+   * @return the number of bytes transferred
+   * @throws IOException - eg a FileNotFoundException if there is no BLOB
+   */
+  public long transferBlobToChannel
+    (Number _id, Number _containerId, String _ext, long _offset, long _length,
+     WritableByteChannel _out)
+    throws IOException;
+  
+  
+  /* changes */
+  
+  /**
+   * Returns a transaction which writes (or replaces) the content of the BLOB.
+   * Supported content objects are String (stored as UTF-8), byte[], File,
+   * URL, InputStream and ReadableByteChannel.
+   * 
+   * @param _content - the content to store
+   * @return the transaction, or null if the BLOB location is not available
+   */
+  public IOGoBlobTransaction blobWriteTransaction
+    (Number _id, Number _containerId, String _ext, Object _content);
+  
+  /**
+   * Returns a transaction which deletes the BLOB.
+   * 
+   * @return the transaction, or null if the BLOB location is not available
+   */
+  public IOGoBlobTransaction blobDeleteTransaction
+    (Number _id, Number _containerId, String _ext);
   
 }
@@ -0,0 +1,58 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.blobs;
+
+/**
+ * IOGoBlobTransaction
+ * <p>
+ * A change to an IOGoBlobStore (write or delete of a BLOB) which is
+ * coordinated with a database transaction. Operations call perform() while
+ * the database transaction is running, and commit() or rollback() after the
+ * database transaction finished.
+ * <p>
+ * Transactions are returned by IOGoBlobStore.blobWriteTransaction() and
+ * IOGoBlobStore.blobDeleteTransaction(). File based stores use
+ * OGoFileWriteTransaction and OGoFileDeleteTransaction.
+ *
+ * @author helge
+ */
+public interface IOGoBlobTransaction {
+
+  /**
+   * Performs the change, but does not make it visible yet (or keeps enough
+   * information to undo it).
+   *
+   * @return null if the change got performed, the error otherwise
+   */
+  public Exception perform();
+
+  /**
+   * Makes the change permanent. Called after the database transaction got
+   * committed.
+   */
+  public Exception commit();
+
+  /**
+   * Reverts the change. Called if the database transaction is rolled back.
+   */
+  public Exception rollback();
+
+}
@@ -0,0 +1,264 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.blobs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.getobjects.foundation.NSObject;
+
+/**
+ * OGoBlobContentCache
+ * <p>
+ * An LRU cache for the contents of notes and documents, as returned by
+ * OGoDocumentObject.contentAsString(). The cache is bounded by the (estimated)
+ * number of bytes of the cached Strings, not by the number of entries.
+ * <p>
+ * Entries are keyed by the document id and a version, which is the
+ * objectVersion or the lastModified timestamp of the object. An object which
+ * got changed by someone else (eg another node) has a new version and hence
+ * misses the cache. Additionally the operations which write or delete BLOBs
+ * invalidate the id when their file transaction got committed, and the
+ * database invalidates ids reported on the OGoChangeBus.
+ * <p>
+ * Only one version per id is kept. Contents larger than a fraction of the
+ * cache size (see setMaxEntrySize()) are not cached, they would just evict
+ * many small entries.
+ *
+ * <p>
+ * THREAD: the cache is thread safe.
+ *
+ * @author helge
+ */
+public class OGoBlobContentCache extends NSObject {
+
+  protected final LinkedHashMap<Long, Entry> entries;
+  protected long maxBytes;
+  protected long maxEntrySize;
+  protected long currentBytes;
+
+  /* statistics, protected by the cache lock */
+  protected long hitCount;
+  protected long missCount;
+  protected long evictionCount;
+  protected long invalidationCount;
+
+  public OGoBlobContentCache(final long _maxBytes) {
+    super();
+    this.maxBytes     = _maxBytes;
+    this.maxEntrySize = _maxBytes / 16;
+    this.entries      =
+      new LinkedHashMap<Long, Entry>(256, 0.75f, true /* access order */);
+  }
+  public OGoBlobContentCache() {
+    this(32 * 1024 * 1024);
+  }
+
+
+  /* accessors */
+
+  /**
+   * Sets the maximum number of bytes the cache keeps. Excess entries are
+   * evicted immediately.
+   */
+  public synchronized void setMaxBytes(final long _bytes) {
+    this.maxBytes = _bytes;
+    this.evictIfNecessary();
+  }
+  public synchronized long maxBytes() {
+    return this.maxBytes;
+  }
+
+  /**
+   * Sets the size of the largest content which gets cached. Defaults to a
+   * 16th of the cache size.
+   */
+  public synchronized void setMaxEntrySize(final long _bytes) {
+    this.maxEntrySize = _bytes;
+  }
+  public synchronized long maxEntrySize() {
+    return this.maxEntrySize;
+  }
+
+  public synchronized long currentBytes() {
+    return this.currentBytes;
+  }
+  public synchronized int count() {
+    return this.entries.size();
+  }
+
+
+  /* cache */
+
+  /**
+   * Returns the cached content for the given id and version.
+   *
+   * @param _id      - the id of the note or document
+   * @param _version - the objectVersion or lastModified of the object
+   * @return the content, or null if it is not cached (in this version)
+   */
+  public synchronized String contentForId(final Number _id, final long _version)
+  {
+    final Entry e = _id != null ? this.entries.get(_id.longValue()) : null;
+    if (e == null || e.version != _version) {
+      this.missCount++;
+      return null;
+    }
+    this.hitCount++;
+    return e.content;
+  }
+
+  /**
+   * Caches the content for the given id and version. Replaces other versions
+   * of the same id.
+   */
+  public synchronized void cacheContent
+    (final Number _id, final long _version, final String _content)
+  {
+    if (_id == null || _content == null)
+      return;
+
+    final long size = sizeOfContent(_content);
+    if (size > this.maxEntrySize)
+      return;
+
+    final Entry old = this.entries.put(_id.longValue(),
+        new Entry(_version, _content, size));
+    if (old != null)
+      this.currentBytes -= old.size;
+    this.currentBytes += size;
+
+    this.evictIfNecessary();
+  }
+
+  /**
+   * Removes the content of the given id from the cache, eg because the BLOB
+   * got written or deleted.
+   */
+  public synchronized void invalidateId(final Number _id) {
+    if (_id == null)
+      return;
+
+    final Entry old = this.entries.remove(_id.longValue());
+    if (old != null) {
+      this.currentBytes -= old.size;
+      this.invalidationCount++;
+    }
+  }
+
+  public synchronized void clear() {
+    this.invalidationCount += this.entries.size();
+    this.entries.clear();
+    this.currentBytes = 0;
+  }
+
+  protected void evictIfNecessary() {
+    if (this.currentBytes <= this.maxBytes)
+      return;
+
+    /* the iteration order of the map is least-recently-used first */
+    final Iterator<Map.Entry<Long, Entry>> it =
+      this.entries.entrySet().iterator();
+    while (this.currentBytes > this.maxBytes && it.hasNext()) {
+      this.currentBytes -= it.next().getValue().size;
+      it.remove();
+      this.evictionCount++;
+    }
+  }
+
+  /**
+   * Estimates the heap size of the String (two bytes per char, plus the
+   * object overhead).
+   */
+  protected static long sizeOfContent(final String _content) {
+    return 2L * _content.length() + 64;
+  }
+
+
+  /* statistics */
+
+  public synchronized long hitCount() {
+    return this.hitCount;
+  }
+  public synchronized long missCount() {
+    return this.missCount;
+  }
+  public synchronized long evictionCount() {
+    return this.evictionCount;
+  }
+  public synchronized long invalidationCount() {
+    return this.invalidationCount;
+  }
+
+  /**
+   * Returns the ratio of lookups which were served from the cache.
+   *
+   * @return the hit rate, 0.0 to 1.0
+   */
+  public synchronized double hitRate() {
+    final long total = this.hitCount + this.missCount;
+    return total > 0 ? ((double)this.hitCount / total) : 0.0;
+  }
+
+  public synchronized void resetStatistics() {
+    this.hitCount          = 0;
+    this.missCount         = 0;
+    this.evictionCount     = 0;
+    this.invalidationCount = 0;
+  }
+
+
+  /* description */
+
+  @Override
+  public synchronized void appendAttributesToDescription(final StringBuilder _d)
+  {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" #entries=");
+    _d.append(this.entries.size());
+    _d.append(" bytes=");
+    _d.append(this.currentBytes);
+    _d.append('/');
+    _d.append(this.maxBytes);
+    _d.append(" hits=");
+    _d.append(this.hitCount);
+    _d.append(" misses=");
+    _d.append(this.missCount);
+  }
+
+
+  /* entries */
+
+  protected static class Entry extends Object {
+    protected final long   version;
+    protected final String content;
+    protected final long   size;
+
+    public Entry(final long _version, final String _content, final long _size)
+    {
+      this.version = _version;
+      this.content = _content;
+      this.size    = _size;
+    }
+  }
+}
@@ -0,0 +1,523 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.blobs;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.foundation.NSException;
+import org.getobjects.foundation.NSObject;
+
+/**
+ * OGoCompressingBlobStore
+ * <p>
+ * A decorator which compresses the BLOBs written to another IOGoBlobStore,
+ * and decompresses them when they are read. This is intended for the notes
+ * store, note contents are plain text which compresses well.
+ * <p>
+ * Compressed BLOBs start with a 0x00 header byte, followed by a gzip stream.
+ * BLOBs which do not start with that header (eg files written by OGo/ObjC or
+ * before the store got enabled) are returned as-is, so existing stores can be
+ * wrapped without a conversion.
+ * <p>
+ * Compression is done while streaming the content to the wrapped store, the
+ * content is never loaded into memory. The uncompressed size is read from the
+ * gzip trailer, so blobSizeForId() just needs two small reads.
+ * <p>
+ * Since the stored files are compressed, blobFileForId() returns null.
+ * <p>
+ * Example:<pre>
+ *   db.setNotesStore(new OGoCompressingBlobStore(db.notesStore()));</pre>
+ *
+ * @author helge
+ */
+public class OGoCompressingBlobStore extends NSObject implements IOGoBlobStore {
+  protected static final Log log = LogFactory.getLog("OGoBlobStore");
+
+  public    static final int     headerByte = 0x00;
+  protected static final Charset utf8       = Charset.forName("utf-8");
+
+  /* a minimal gzip header: magic, deflate, no flags, no mtime, unix */
+  protected static final byte[] gzipHeader = {
+    (byte)headerByte,
+    (byte)0x1F, (byte)0x8B, 8, 0, 0, 0, 0, 0, 0, 3
+  };
+
+  protected final IOGoBlobStore store;
+  protected int level;
+
+  public OGoCompressingBlobStore(final IOGoBlobStore _store, final int _level) {
+    super();
+    this.store = _store;
+    this.level = _level;
+  }
+  public OGoCompressingBlobStore(final IOGoBlobStore _store) {
+    this(_store, Deflater.DEFAULT_COMPRESSION);
+  }
+
+
+  /* accessors */
+
+  public IOGoBlobStore store() {
+    return this.store;
+  }
+
+  /**
+   * Sets the Deflater compression level (0-9, or -1 for the default).
+   */
+  public void setLevel(final int _level) {
+    this.level = _level;
+  }
+  public int level() {
+    return this.level;
+  }
+
+
+  /* lookup */
+
+  public File blobFileForId(Number _id, Number _containerId, String _ext) {
+    return null; /* the stored files are compressed */
+  }
+  public File blobFileForWritingId
+    (Number _id, Number _containerId, String _ext)
+  {
+    return null; /* the stored files are compressed */
+  }
+
+
+  /* reading */
+
+  /**
+   * Checks whether the stored BLOB is compressed, ie starts with the header
+   * byte followed by the gzip magic.
+   */
+  protected boolean isCompressed(Number _id, Number _containerId, String _ext)
+    throws IOException
+  {
+    final ReadableByteChannel ch =
+      this.store.openChannelForId(_id, _containerId, _ext, 0, 3);
+    try {
+      final ByteBuffer buf = ByteBuffer.allocate(3);
+      while (buf.hasRemaining() && ch.read(buf) >= 0)
+        ;
+      return buf.position() == 3 && (buf.get(0) & 0xFF) == headerByte &&
+        buf.get(1) == gzipHeader[1] && buf.get(2) == gzipHeader[2];
+    }
+    finally {
+      ch.close();
+    }
+  }
+
+  public long blobSizeForId(Number _id, Number _containerId, String _ext) {
+    final long size = this.store.blobSizeForId(_id, _containerId, _ext);
+    if (size < gzipHeader.length + 8)
+      return size; /* missing, or too small to be compressed */
+
+    try {
+      if (!this.isCompressed(_id, _containerId, _ext))
+        return size;
+
+      /* the last 4 bytes of a gzip stream are the uncompressed size */
+      final ReadableByteChannel ch =
+        this.store.openChannelForId(_id, _containerId, _ext, size - 4, 4);
+      try {
+        final ByteBuffer buf = ByteBuffer.allocate(4);
+        while (buf.hasRemaining() && ch.read(buf) >= 0)
+          ;
+        buf.flip();
+        return Integer.reverseBytes(buf.getInt()) & 0xFFFFFFFFL;
+      }
+      finally {
+        ch.close();
+      }
+    }
+    catch (final IOException e) {
+      log.warn("could not determine size of BLOB " + _id + ": " + e);
+      return -1;
+    }
+  }
+
+  public InputStream openStreamForId
+    (Number _id, Number _containerId, String _ext)
+    throws IOException
+  {
+    final PushbackInputStream in = new PushbackInputStream(
+        this.store.openStreamForId(_id, _containerId, _ext), 3);
+
+    final byte[] header = new byte[3];
+    int len = 0, count;
+    while (len < 3 && (count = in.read(header, len, 3 - len)) > 0)
+      len += count;
+
+    if (len == 3 && (header[0] & 0xFF) == headerByte &&
+        header[1] == gzipHeader[1] && header[2] == gzipHeader[2])
+    {
+      in.unread(header, 1, 2); /* GZIPInputStream wants the magic */
+      try {
+        return new GZIPInputStream(in, 8192);
+      }
+      catch (final IOException e) {
+        in.close();
+        throw e;
+      }
+    }
+
+    /* an uncompressed (legacy) BLOB */
+    if (len > 0)
+      in.unread(header, 0, len);
+    return in;
+  }
+
+  public ReadableByteChannel openChannelForId
+    (Number _id, Number _containerId, String _ext, long _offset, long _length)
+    throws IOException
+  {
+    final InputStream in = this.openStreamForId(_id, _containerId, _ext);
+    try {
+      skipFully(in, _offset);
+    }
+    catch (final IOException e) {
+      in.close();
+      throw e;
+    }
+    return Channels.newChannel(
+        _length >= 0 ? new BoundedInputStream(in, _length) : in);
+  }
+
+  public long transferBlobToChannel
+    (Number _id, Number _containerId, String _ext, long _offset, long _length,
+     WritableByteChannel _out)
+    throws IOException
+  {
+    if (!this.isCompressed(_id, _containerId, _ext)) {
+      /* legacy BLOB, let the store use its zero-copy transfer */
+      return this.store.transferBlobToChannel(_id, _containerId, _ext,
+          _offset, _length, _out);
+    }
+
+    final ReadableByteChannel in =
+      this.openChannelForId(_id, _containerId, _ext, _offset, _length);
+    try {
+      final ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+      long total = 0;
+      while (in.read(buf) >= 0 || buf.position() > 0) {
+        buf.flip();
+        while (buf.hasRemaining())
+          total += _out.write(buf);
+        buf.clear();
+      }
+      return total;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  protected static void skipFully(final InputStream _in, long _count)
+    throws IOException
+  {
+    while (_count > 0) {
+      final long skipped = _in.skip(_count);
+      if (skipped > 0)
+        _count -= skipped;
+      else if (_in.read() < 0)
+        break; /* EOF */
+      else
+        _count--;
+    }
+  }
+
+
+  /* changes */
+
+  public IOGoBlobTransaction blobWriteTransaction
+    (Number _id, Number _containerId, String _ext, Object _content)
+  {
+    if (_id == null)
+      return null;
+    return new CompressingWriteTransaction(_id, _containerId, _ext, _content);
+  }
+
+  public IOGoBlobTransaction blobDeleteTransaction
+    (Number _id, Number _containerId, String _ext)
+  {
+    return this.store.blobDeleteTransaction(_id, _containerId, _ext);
+  }
+
+  protected static InputStream streamForContent(final Object _c)
+    throws IOException
+  {
+    if (_c instanceof InputStream)
+      return (InputStream)_c;
+    if (_c instanceof String)
+      return new ByteArrayInputStream(((String)_c).getBytes(utf8));
+    if (_c instanceof byte[])
+      return new ByteArrayInputStream((byte[])_c);
+    if (_c instanceof File)
+      return Files.newInputStream(((File)_c).toPath());
+    if (_c instanceof URL)
+      return ((URL)_c).openStream();
+    if (_c instanceof ReadableByteChannel)
+      return Channels.newInputStream((ReadableByteChannel)_c);
+    if (_c == null)
+      throw new IOException("Got no content for document object!");
+    throw new IOException("Unexpected content object for document!");
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" level=");
+    _d.append(this.level);
+    _d.append(" store=");
+    _d.append(this.store);
+  }
+
+
+  /* transactions */
+
+  /**
+   * Opens the content and the compressor in perform() and hands them to a
+   * write transaction of the wrapped store. The compressor holds a native
+   * Deflater, it is closed in commit() and rollback(), so a transaction
+   * which never gets performed does not leak it.
+   */
+  protected class CompressingWriteTransaction extends Object
+    implements IOGoBlobTransaction
+  {
+    protected final Number id;
+    protected final Number containerId;
+    protected final String ext;
+    protected Object              content;
+    protected InputStream         compressed;
+    protected IOGoBlobTransaction tx;
+
+    public CompressingWriteTransaction
+      (final Number _id, final Number _containerId, final String _ext,
+       final Object _content)
+    {
+      this.id          = _id;
+      this.containerId = _containerId;
+      this.ext         = _ext;
+      this.content     = _content;
+    }
+
+    public Exception perform() {
+      if (this.tx != null)
+        return new NSException("BLOB transaction was already performed!");
+
+      final OGoCompressingBlobStore bs = OGoCompressingBlobStore.this;
+      try {
+        this.compressed = new CompressingInputStream(
+            streamForContent(this.content), bs.level);
+      }
+      catch (final IOException e) {
+        log.error("could not open content for BLOB " + this.id, e);
+        return e;
+      }
+
+      this.tx = bs.store.blobWriteTransaction(this.id, this.containerId,
+          this.ext, this.compressed);
+      if (this.tx == null) {
+        this.closeStream();
+        return new NSException("could not create BLOB transaction for id: " +
+            this.id);
+      }
+      return this.tx.perform();
+    }
+
+    public Exception commit() {
+      try {
+        return this.tx != null ? this.tx.commit() : null;
+      }
+      finally {
+        this.closeStream();
+      }
+    }
+
+    public Exception rollback() {
+      try {
+        return this.tx != null ? this.tx.rollback() : null;
+      }
+      finally {
+        this.closeStream();
+      }
+    }
+
+    protected void closeStream() {
+      if (this.compressed == null)
+        return;
+      try {
+        this.compressed.close();
+      }
+      catch (final IOException e) {
+        log.warn("could not close BLOB content stream: " + this.id, e);
+      }
+      this.compressed = null;
+    }
+  }
+
+
+  /* streams */
+
+  /**
+   * Returns the header byte plus a gzip stream of the source, compressing
+   * while being read.
+   */
+  protected static class CompressingInputStream extends InputStream {
+    protected final CheckedInputStream  source;
+    protected final Deflater            deflater;
+    protected final DeflaterInputStream deflated;
+    protected InputStream current;
+    protected int         state; /* 0=header, 1=data, 2=trailer, 3=EOF */
+    protected long        sourceCount;
+
+    public CompressingInputStream(final InputStream _source, final int _level) {
+      this.source   = new CheckedInputStream(new FilterInputStream(_source) {
+        @Override
+        public int read() throws IOException {
+          final int c = super.read();
+          if (c >= 0) CompressingInputStream.this.sourceCount++;
+          return c;
+        }
+        @Override
+        public int read(byte[] _b, int _off, int _len) throws IOException {
+          final int c = super.read(_b, _off, _len);
+          if (c > 0) CompressingInputStream.this.sourceCount += c;
+          return c;
+        }
+      }, new CRC32());
+      this.deflater = new Deflater(_level, true /* raw, gzip framing */);
+      this.deflated = new DeflaterInputStream(this.source, this.deflater,
+          8192);
+      this.current  = new ByteArrayInputStream(gzipHeader);
+    }
+
+    protected boolean advance() {
+      if (this.state == 0) {
+        this.state   = 1;
+        this.current = this.deflated;
+        return true;
+      }
+      if (this.state == 1) {
+        /* trailer: CRC32 and size, little endian */
+        final ByteBuffer trailer = ByteBuffer.allocate(8);
+        trailer.putInt(Integer.reverseBytes(
+            (int)this.source.getChecksum().getValue()));
+        trailer.putInt(Integer.reverseBytes((int)this.sourceCount));
+        this.state   = 2;
+        this.current = new ByteArrayInputStream(trailer.array());
+        return true;
+      }
+      this.state = 3;
+      return false;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] b = new byte[1];
+      return this.read(b, 0, 1) > 0 ? (b[0] & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(final byte[] _b, final int _off, final int _len)
+      throws IOException
+    {
+      if (_len == 0)
+        return 0;
+      while (this.state < 3) {
+        final int count = this.current.read(_b, _off, _len);
+        if (count > 0)
+          return count;
+        if (count < 0 && !this.advance())
+          break;
+      }
+      return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        this.deflated.close(); /* closes the source */
+      }
+      finally {
+        this.deflater.end();
+        this.state = 3;
+      }
+    }
+  }
+
+  /**
+   * Returns at most the given number of bytes of the source.
+   */
+  protected static class BoundedInputStream extends FilterInputStream {
+    protected long remaining;
+
+    public BoundedInputStream(final InputStream _in, final long _length) {
+      super(_in);
+      this.remaining = _length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (this.remaining <= 0)
+        return -1;
+      final int c = super.read();
+      if (c >= 0) this.remaining--;
+      return c;
+    }
+
+    @Override
+    public int read(final byte[] _b, final int _off, int _len)
+      throws IOException
+    {
+      if (this.remaining <= 0)
+        return -1;
+      if (_len > this.remaining)
+        _len = (int)this.remaining;
+      final int c = super.read(_b, _off, _len);
+      if (c > 0) this.remaining -= c;
+      return c;
+    }
+  }
+}
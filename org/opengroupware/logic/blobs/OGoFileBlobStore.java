@@ -0,0 +1,233 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.blobs;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.getobjects.foundation.NSObject;
+import org.opengroupware.logic.ops.OGoFileDeleteTransaction;
+import org.opengroupware.logic.ops.OGoFileWriteTransaction;
+
+/**
+ * OGoFileBlobStore
+ * <p>
+ * Abstract superclass for stores which keep each BLOB in a separate file.
+ * Subclasses implement blobFileForId() and blobFileForWritingId(), this class
+ * implements the streaming API of IOGoBlobStore on top of the File using
+ * FileChannel objects.
+ * <p>
+ * transferBlobToChannel() uses FileChannel.transferTo(), which lets the kernel
+ * copy the data to the target (eg sendfile() to a socket). The content is
+ * never copied into the Java heap.
+ * <p>
+ * Changes are done using OGoFileWriteTransaction and OGoFileDeleteTransaction.
+ *
+ * @author helge
+ */
+public abstract class OGoFileBlobStore extends NSObject
+  implements IOGoBlobStore
+{
+
+  /* streaming */
+
+  public long blobSizeForId(Number _id, Number _containerId, String _ext) {
+    final File f = this.blobFileForId(_id, _containerId, _ext);
+    if (f == null)
+      return -1;
+
+    /* length() returns 0 for missing files, we want to report those */
+    final long len = f.length();
+    return (len > 0 || f.isFile()) ? len : -1;
+  }
+
+  public InputStream openStreamForId
+    (Number _id, Number _containerId, String _ext)
+    throws IOException
+  {
+    return Channels.newInputStream(
+        this.openChannelForId(_id, _containerId, _ext, 0, -1));
+  }
+
+  public ReadableByteChannel openChannelForId
+    (Number _id, Number _containerId, String _ext, long _offset, long _length)
+    throws IOException
+  {
+    final FileChannel fc = this.openFileChannel(_id, _containerId, _ext);
+    if (_offset <= 0 && _length < 0)
+      return fc; /* the full file */
+
+    try {
+      return new FileRangeChannel(fc, _offset, _length);
+    }
+    catch (final IOException e) {
+      fc.close();
+      throw e;
+    }
+  }
+
+  public long transferBlobToChannel
+    (Number _id, Number _containerId, String _ext, long _offset, long _length,
+     WritableByteChannel _out)
+    throws IOException
+  {
+    final FileChannel fc = this.openFileChannel(_id, _containerId, _ext);
+    try {
+      return transferFileChannel(fc, _offset, _length, _out);
+    }
+    finally {
+      fc.close();
+    }
+  }
+
+  protected FileChannel openFileChannel
+    (final Number _id, final Number _containerId, final String _ext)
+    throws IOException
+  {
+    final File f = this.blobFileForId(_id, _containerId, _ext);
+    if (f == null)
+      throw new FileNotFoundException("no BLOB location for id: " + _id);
+
+    return FileChannel.open(f.toPath(), StandardOpenOption.READ);
+  }
+
+  /**
+   * Transfers a range of the FileChannel to the target channel. The method
+   * loops, because FileChannel.transferTo() may transfer less bytes than
+   * requested (eg if the OS limits the call). A non-blocking target which
+   * does not accept more bytes stops the transfer, the caller must continue
+   * at the returned offset.
+   *
+   * @param _fc      - the FileChannel to read from
+   * @param _offset  - the position of the first byte to transfer
+   * @param _length  - the number of bytes, or -1 to transfer up to the end
+   * @param _out     - the channel to write to
+   * @return the number of bytes which got transferred
+   */
+  public static long transferFileChannel
+    (final FileChannel _fc, long _offset, long _length,
+     final WritableByteChannel _out)
+    throws IOException
+  {
+    final long size = _fc.size();
+    if (_offset < 0) _offset = 0;
+    if (_offset >= size)
+      return 0;
+
+    long remaining = size - _offset;
+    if (_length >= 0 && _length < remaining)
+      remaining = _length;
+
+    long pos = _offset;
+    while (remaining > 0) {
+      final long count = _fc.transferTo(pos, remaining, _out);
+      if (count <= 0)
+        break; /* a non-blocking target which is full, or a truncated file */
+      pos       += count;
+      remaining -= count;
+    }
+    return pos - _offset;
+  }
+
+
+  /* changes */
+  
+  public IOGoBlobTransaction blobWriteTransaction
+    (Number _id, Number _containerId, String _ext, Object _content)
+  {
+    final File f = this.blobFileForWritingId(_id, _containerId, _ext);
+    return f != null ? new OGoFileWriteTransaction(f, _content) : null;
+  }
+  
+  public IOGoBlobTransaction blobDeleteTransaction
+    (Number _id, Number _containerId, String _ext)
+  {
+    final File f = this.blobFileForId(_id, _containerId, _ext);
+    return f != null ? new OGoFileDeleteTransaction(f) : null;
+  }
+
+
+  /* range channel */
+
+  /**
+   * A ReadableByteChannel which returns a range of a FileChannel. Used for
+   * partial downloads (eg HTTP Range requests).
+   */
+  public static class FileRangeChannel extends Object
+    implements ReadableByteChannel
+  {
+    protected final FileChannel fc;
+    protected long position;
+    protected long remaining;
+
+    public FileRangeChannel(final FileChannel _fc, long _offset, long _length)
+      throws IOException
+    {
+      this.fc       = _fc;
+      this.position = _offset > 0 ? _offset : 0;
+
+      final long available = this.fc.size() - this.position;
+      this.remaining = available > 0 ? available : 0;
+      if (_length >= 0 && _length < this.remaining)
+        this.remaining = _length;
+    }
+
+    public int read(final ByteBuffer _dst) throws IOException {
+      if (this.remaining <= 0)
+        return -1;
+
+      final int oldLimit = _dst.limit();
+      if (_dst.remaining() > this.remaining)
+        _dst.limit(_dst.position() + (int)this.remaining);
+
+      final int count;
+      try {
+        count = this.fc.read(_dst, this.position);
+      }
+      finally {
+        _dst.limit(oldLimit);
+      }
+      if (count < 0) {
+        this.remaining = 0;
+        return -1;
+      }
+      this.position  += count;
+      this.remaining -= count;
+      return count;
+    }
+
+    public boolean isOpen() {
+      return this.fc.isOpen();
+    }
+
+    public void close() throws IOException {
+      this.fc.close();
+    }
+  }
+}
@@ -24,9 +24,8 @@ import java.io.File;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.getobjects.foundation.NSObject;
 
-public class OGoFlatDirBlobStore extends NSObject implements IOGoBlobStore {
+public class OGoFlatDirBlobStore extends OGoFileBlobStore {
   protected static final Log log = LogFactory.getLog("OGoBlobStore");
   
   protected File   root;
@@ -62,4 +61,10 @@ public class OGoFlatDirBlobStore extends NSObject implements IOGoBlobStore {
     
     return new File(this.root, sb.toString());
   }
+  
+  public File blobFileForWritingId(Number _id, Number _containerId, String _ext)
+  {
+    /* the root is expected to exist, we do not create directories */
+    return this.blobFileForId(_id, _containerId, _ext);
+  }
 }
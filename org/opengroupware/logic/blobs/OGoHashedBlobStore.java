@@ -0,0 +1,713 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.blobs;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.foundation.NSException;
+
+/**
+ * OGoHashedBlobStore
+ * <p>
+ * A content addressed store, the contents are stored once per SHA-256 hash
+ * and shared by all document ids which have the same content (eg the same
+ * PDF attached to many contacts).
+ * <p>
+ * Layout of the store directory:<pre>
+ *   objects/3f/3fa2...c9        - the content, named by its SHA-256
+ *   objects/3f/3fa2...c9.refs   - the reference count of the content
+ *   refs/287000/287310.pdf      - symlink to ../../objects/3f/3fa2...c9
+ *   locks/03f.lock              - lock files, never deleted
+ *   tmp/                        - contents being written</pre>
+ * The refs map the OGo ids to the hashes. Since they are symlinks,
+ * blobFileForId() returns a File which can be read like in the other file
+ * stores (including zero-copy transfers). Like the flat stores, the container
+ * id is ignored, document ids are unique.
+ * <p>
+ * Writes stream the content into a temporary file and calculate the hash in
+ * the same pass. On commit the content is moved into 'objects', or dropped if
+ * the same content exists already (a metadata-only operation). Reference
+ * counts are incremented before a ref is created and decremented after it is
+ * removed, so that a crash can leak contents, but never drop a referenced one
+ * (see rebuildReferenceCounts()).
+ * <p>
+ * Reference counts and refs are changed while holding a stripe lock, which
+ * is a lock in the process plus a FileChannel lock on a lock file. The
+ * latter serializes the changes of several OGo nodes sharing the store
+ * directory (the filesystem must support fcntl() locks, eg NFSv4). Contents
+ * are locked by the first byte of the hash, refs by the id.
+ * <p>
+ * BLOBs must not be modified in place, blobFileForWritingId() returns null.
+ * Changes are done using blobWriteTransaction().
+ *
+ * <p>
+ * THREAD: the store is thread safe.
+ *
+ * @author helge
+ */
+public class OGoHashedBlobStore extends OGoFileBlobStore {
+  protected static final Log log = LogFactory.getLog("OGoBlobStore");
+
+  protected static final Charset utf8 = Charset.forName("utf-8");
+  protected static final int     bufferSize = 1024 * 1024;
+
+  protected final File root;
+  protected final Path objectsPath;
+  protected final Path refsPath;
+  protected final Path tmpPath;
+  protected int        rangeSize;
+
+  protected final Path locksPath;
+
+  protected final Set<Path> knownDirectories;
+
+  /* stripes 0-255 are content hashes, 256-511 are refs */
+  protected static final int stripeCount = 512;
+  protected final ReentrantLock[] stripeLocks;
+  protected final FileChannel[]   stripeChannels; /* protected by the lock */
+
+  /* statistics */
+  protected final AtomicLong writeCount = new AtomicLong(0);
+  protected final AtomicLong dedupCount = new AtomicLong(0);
+
+  public OGoHashedBlobStore(final File _root) {
+    super();
+    this.root        = _root;
+    this.objectsPath = _root.toPath().resolve("objects");
+    this.refsPath    = _root.toPath().resolve("refs");
+    this.tmpPath     = _root.toPath().resolve("tmp");
+    this.locksPath   = _root.toPath().resolve("locks");
+    this.rangeSize   = 1000;
+
+    this.knownDirectories =
+      Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>(128));
+    this.stripeLocks    = new ReentrantLock[stripeCount];
+    this.stripeChannels = new FileChannel[stripeCount];
+    for (int i = 0; i < stripeCount; i++)
+      this.stripeLocks[i] = new ReentrantLock();
+  }
+
+
+  /* accessors */
+
+  public File root() {
+    return this.root;
+  }
+
+  /**
+   * Returns the number of committed writes which found the content in the
+   * store already.
+   */
+  public long dedupCount() {
+    return this.dedupCount.get();
+  }
+  public long writeCount() {
+    return this.writeCount.get();
+  }
+
+
+  /* paths */
+
+  protected Path refPathForId(final Number _id, final String _ext) {
+    long rangeId = _id.longValue();
+    rangeId = rangeId - (rangeId % this.rangeSize);
+
+    final StringBuilder sb = new StringBuilder(32);
+    sb.append(_id);
+    if (_ext != null && _ext.length() > 0) {
+      sb.append('.');
+      sb.append(_ext);
+    }
+    return this.refsPath.resolve(Long.toString(rangeId))
+      .resolve(sb.toString());
+  }
+
+  protected Path objectPathForHash(final String _hash) {
+    return this.objectsPath.resolve(_hash.substring(0, 2)).resolve(_hash);
+  }
+  protected Path refCountPathForHash(final String _hash) {
+    return this.objectsPath.resolve(_hash.substring(0, 2))
+      .resolve(_hash + ".refs");
+  }
+
+  protected void ensureDirectory(final Path _dir) throws IOException {
+    if (this.knownDirectories.contains(_dir))
+      return;
+    Files.createDirectories(_dir);
+    this.knownDirectories.add(_dir);
+  }
+
+
+  /* locking */
+
+  protected static int stripeForHash(final String _hash) {
+    return Character.digit(_hash.charAt(0), 16) * 16 +
+           Character.digit(_hash.charAt(1), 16);
+  }
+  protected static int stripeForRef(final Path _ref) {
+    return 256 + (_ref.getFileName().toString().hashCode() & 0xFF);
+  }
+
+  /**
+   * Locks the stripe against other threads and against other processes
+   * using the same store directory. The returned lock must be passed to
+   * unlockStripe(), in a finally block.
+   * A thread must not lock the same stripe twice.
+   *
+   * @return the FileLock
+   */
+  protected FileLock lockStripe(final int _stripe) throws IOException {
+    final ReentrantLock lock = this.stripeLocks[_stripe];
+    lock.lock();
+    try {
+      FileChannel fc = this.stripeChannels[_stripe];
+      if (fc == null || !fc.isOpen()) {
+        this.ensureDirectory(this.locksPath);
+        fc = FileChannel.open(this.locksPath.resolve(
+            String.format("%03x.lock", _stripe)),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.stripeChannels[_stripe] = fc;
+      }
+      return fc.lock();
+    }
+    catch (final IOException e) {
+      lock.unlock();
+      throw e;
+    }
+    catch (final RuntimeException e) {
+      lock.unlock();
+      throw e;
+    }
+  }
+
+  protected void unlockStripe(final int _stripe, final FileLock _lock) {
+    try {
+      _lock.release();
+    }
+    catch (final IOException e) {
+      /* closing the channel drops the lock for sure */
+      log.warn("could not release BLOB lock, closing channel: " + _stripe, e);
+      try { _lock.channel().close(); } catch (final IOException ce) {}
+    }
+    finally {
+      this.stripeLocks[_stripe].unlock();
+    }
+  }
+
+
+  /* lookup */
+
+  public File blobFileForId(Number _id, Number _containerId, String _ext) {
+    return _id != null ? this.refPathForId(_id, _ext).toFile() : null;
+  }
+
+  public File blobFileForWritingId
+    (Number _id, Number _containerId, String _ext)
+  {
+    return null; /* contents are shared, they must not be written in place */
+  }
+
+  /**
+   * Returns the SHA-256 (hex) of the content of the given document id.
+   *
+   * @return the hash, or null if the id has no content
+   */
+  public String hashForId(final Number _id, final String _ext) {
+    if (_id == null)
+      return null;
+    try {
+      return hashForRef(this.refPathForId(_id, _ext));
+    }
+    catch (final IOException e) {
+      return null;
+    }
+  }
+
+  protected static String hashForRef(final Path _ref) throws IOException {
+    return Files.readSymbolicLink(_ref).getFileName().toString();
+  }
+
+
+  /* reference counts */
+
+  /**
+   * Returns the reference count of the given content, 0 if unknown.
+   */
+  public int referenceCountForHash(final String _hash) {
+    final int stripe = stripeForHash(_hash);
+    final FileLock lock;
+    try {
+      lock = this.lockStripe(stripe);
+    }
+    catch (final IOException e) {
+      log.error("could not lock reference count of: " + _hash, e);
+      return 0;
+    }
+    try {
+      return this.readRefCount(_hash);
+    }
+    finally {
+      this.unlockStripe(stripe, lock);
+    }
+  }
+
+  protected int readRefCount(final String _hash) {
+    try {
+      final byte[] data = Files.readAllBytes(this.refCountPathForHash(_hash));
+      return Integer.parseInt(new String(data, utf8).trim());
+    }
+    catch (final NoSuchFileException e) {
+      return 0;
+    }
+    catch (final Exception e) {
+      log.error("could not read reference count of: " + _hash, e);
+      return 0;
+    }
+  }
+
+  protected void writeRefCount(final String _hash, final int _count)
+    throws IOException
+  {
+    /* the fixed tmp name is fine, the caller holds the stripe lock */
+    final Path p = this.refCountPathForHash(_hash);
+    final Path tmp = p.resolveSibling(p.getFileName() + "-tx");
+    Files.write(tmp, Integer.toString(_count).getBytes(utf8));
+    moveAtomically(tmp, p);
+  }
+
+  /**
+   * Adds a reference to the content. If the content is not in the store yet,
+   * the given temporary file is moved into place, otherwise it is deleted.
+   * Must be called before the ref is created.
+   */
+  protected void retainContent(final String _hash, final Path _tmp)
+    throws IOException
+  {
+    final Path obj = this.objectPathForHash(_hash);
+
+    final int stripe = stripeForHash(_hash);
+    final FileLock lock = this.lockStripe(stripe);
+    try {
+      this.ensureDirectory(obj.getParent());
+
+      if (Files.exists(obj)) {
+        Files.deleteIfExists(_tmp);
+        this.dedupCount.incrementAndGet();
+      }
+      else
+        moveAtomically(_tmp, obj);
+
+      this.writeRefCount(_hash, this.readRefCount(_hash) + 1);
+    }
+    finally {
+      this.unlockStripe(stripe, lock);
+    }
+    this.writeCount.incrementAndGet();
+  }
+
+  /**
+   * Drops a reference to the content, and deletes the content when the last
+   * reference is gone. Must be called after the ref got removed.
+   */
+  protected void releaseContent(final String _hash) throws IOException {
+    final int stripe = stripeForHash(_hash);
+    final FileLock lock = this.lockStripe(stripe);
+    try {
+      final int count = this.readRefCount(_hash) - 1;
+      if (count > 0) {
+        this.writeRefCount(_hash, count);
+        return;
+      }
+
+      Files.deleteIfExists(this.objectPathForHash(_hash));
+      Files.deleteIfExists(this.refCountPathForHash(_hash));
+    }
+    finally {
+      this.unlockStripe(stripe, lock);
+    }
+  }
+
+  /**
+   * Recalculates the reference counts by scanning all refs, and deletes
+   * contents which are not referenced anymore. This repairs the counts after
+   * a crash. It should run while the store is not written to.
+   *
+   * @return the number of deleted (unreferenced) contents, or -1 on error
+   */
+  public int rebuildReferenceCounts() {
+    final Map<String, Integer> counts = new HashMap<String, Integer>(1024);
+    int deleted = 0;
+    try {
+      if (Files.isDirectory(this.refsPath)) {
+        for (final File range: this.refsPath.toFile().listFiles()) {
+          final File[] refs = range.listFiles();
+          if (refs == null) continue;
+          for (final File ref: refs) {
+            if (!Files.isSymbolicLink(ref.toPath()))
+              continue;
+            final String hash = hashForRef(ref.toPath());
+            final Integer c = counts.get(hash);
+            counts.put(hash, c != null ? c + 1 : 1);
+          }
+        }
+      }
+
+      final File[] prefixes = this.objectsPath.toFile().listFiles();
+      for (final File prefix: prefixes != null ? prefixes : new File[0]) {
+        final File[] objects = prefix.listFiles();
+        if (objects == null) continue;
+        for (final File obj: objects) {
+          final String hash = obj.getName();
+          if (hash.indexOf('.') >= 0 || hash.indexOf('-') >= 0)
+            continue; /* .refs files */
+
+          final int stripe = stripeForHash(hash);
+          final FileLock lock = this.lockStripe(stripe);
+          try {
+            final Integer c = counts.get(hash);
+            if (c == null) {
+              Files.deleteIfExists(obj.toPath());
+              Files.deleteIfExists(this.refCountPathForHash(hash));
+              deleted++;
+            }
+            else if (c != this.readRefCount(hash))
+              this.writeRefCount(hash, c);
+          }
+          finally {
+            this.unlockStripe(stripe, lock);
+          }
+        }
+      }
+    }
+    catch (final IOException e) {
+      log.error("could not rebuild reference counts: " + this.root, e);
+      return -1;
+    }
+    return deleted;
+  }
+
+
+  /* changes */
+
+  public IOGoBlobTransaction blobWriteTransaction
+    (Number _id, Number _containerId, String _ext, Object _content)
+  {
+    if (_id == null)
+      return null;
+    return new HashedWriteTransaction(this.refPathForId(_id, _ext), _content);
+  }
+
+  public IOGoBlobTransaction blobDeleteTransaction
+    (Number _id, Number _containerId, String _ext)
+  {
+    if (_id == null)
+      return null;
+    return new HashedDeleteTransaction(this.refPathForId(_id, _ext));
+  }
+
+  /**
+   * Points the ref to the given content, replacing an old ref. Returns the
+   * hash of the old content, or null.
+   * The old hash is read and replaced under the lock of the ref, so that
+   * concurrent commits for the same id each get a different old hash (and
+   * never release the same content twice).
+   */
+  protected String linkRef(final Path _ref, final String _hash)
+    throws IOException
+  {
+    this.ensureDirectory(_ref.getParent());
+
+    final Path target = _ref.getParent().relativize(
+        this.objectPathForHash(_hash));
+    final Path tmp = _ref.resolveSibling(_ref.getFileName() + "-" +
+        Long.toHexString(ThreadLocalRandom.current().nextLong()) + "-txwrite");
+    Files.createSymbolicLink(tmp, target);
+
+    final int stripe = stripeForRef(_ref);
+    final FileLock lock;
+    try {
+      lock = this.lockStripe(stripe);
+    }
+    catch (final IOException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+    try {
+      final String oldHash =
+        Files.isSymbolicLink(_ref) ? hashForRef(_ref) : null;
+      moveAtomically(tmp, _ref);
+      return oldHash;
+    }
+    catch (final IOException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+    finally {
+      this.unlockStripe(stripe, lock);
+    }
+  }
+
+  /**
+   * Removes the ref and returns the hash it pointed to, or null if there was
+   * no ref. Like linkRef() this runs under the lock of the ref.
+   */
+  protected String unlinkRef(final Path _ref) throws IOException {
+    final int stripe = stripeForRef(_ref);
+    final FileLock lock = this.lockStripe(stripe);
+    try {
+      if (!Files.isSymbolicLink(_ref))
+        return null;
+      final String hash = hashForRef(_ref);
+      Files.delete(_ref);
+      return hash;
+    }
+    finally {
+      this.unlockStripe(stripe, lock);
+    }
+  }
+
+  /**
+   * Streams the content into the file and returns the SHA-256 of the
+   * content (hex encoded).
+   */
+  protected static String writeAndHashContent
+    (final Object _content, final Path _file)
+    throws IOException
+  {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    }
+    catch (final NoSuchAlgorithmException e) {
+      throw new IOException("SHA-256 is not available", e);
+    }
+
+    final ReadableByteChannel in = channelForContent(_content);
+    final FileChannel out = FileChannel.open(_file,
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    try {
+      final ByteBuffer buf = ByteBuffer.allocate(bufferSize);
+      while (in.read(buf) >= 0 || buf.position() > 0) {
+        buf.flip();
+        digest.update(buf.duplicate());
+        while (buf.hasRemaining())
+          out.write(buf);
+        buf.clear();
+      }
+      out.force(false);
+    }
+    finally {
+      try { in.close(); } catch (final IOException e) {}
+      out.close();
+    }
+
+    final byte[] hash = digest.digest();
+    final StringBuilder sb = new StringBuilder(hash.length * 2);
+    for (final byte b: hash) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+      sb.append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  protected static ReadableByteChannel channelForContent(final Object _c)
+    throws IOException
+  {
+    if (_c instanceof ReadableByteChannel)
+      return (ReadableByteChannel)_c;
+    if (_c instanceof File)
+      return FileChannel.open(((File)_c).toPath(), StandardOpenOption.READ);
+    if (_c instanceof InputStream)
+      return Channels.newChannel((InputStream)_c);
+    if (_c instanceof URL)
+      return Channels.newChannel(((URL)_c).openStream());
+    if (_c instanceof byte[])
+      return Channels.newChannel(new ByteArrayInputStream((byte[])_c));
+    if (_c instanceof String) {
+      return Channels.newChannel(new ByteArrayInputStream(
+          ((String)_c).getBytes(utf8)));
+    }
+    if (_c == null)
+      throw new IOException("Got no content for document object!");
+    throw new IOException("Unexpected content object for document!");
+  }
+
+  protected static void moveAtomically(final Path _from, final Path _to)
+    throws IOException
+  {
+    try {
+      Files.move(_from, _to, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+    catch (final AtomicMoveNotSupportedException e) {
+      Files.move(_from, _to, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" root=");
+    _d.append(this.root);
+    _d.append(" #writes=");
+    _d.append(this.writeCount.get());
+    _d.append(" #dedup=");
+    _d.append(this.dedupCount.get());
+  }
+
+
+  /* transactions */
+
+  protected class HashedWriteTransaction extends Object
+    implements IOGoBlobTransaction
+  {
+    protected final Path ref;
+    protected Object content;
+    protected Path   tmpFile;
+    protected String hash;
+
+    public HashedWriteTransaction(final Path _ref, final Object _content) {
+      this.ref     = _ref;
+      this.content = _content;
+    }
+
+    public Exception perform() {
+      if (this.tmpFile != null)
+        return new NSException("BLOB transaction was already performed!");
+
+      final OGoHashedBlobStore store = OGoHashedBlobStore.this;
+      try {
+        store.ensureDirectory(store.tmpPath);
+        this.tmpFile = store.tmpPath.resolve(
+            Long.toHexString(ThreadLocalRandom.current().nextLong()) +
+            "-txwrite");
+        this.hash = writeAndHashContent(this.content, this.tmpFile);
+        this.content = null;
+      }
+      catch (final IOException e) {
+        log.error("could not write BLOB: " + this.ref, e);
+        this.rollback();
+        return e;
+      }
+      return null;
+    }
+
+    public Exception commit() {
+      if (this.hash == null)
+        return null; /* nothing was written */
+
+      final OGoHashedBlobStore store = OGoHashedBlobStore.this;
+      try {
+        store.retainContent(this.hash, this.tmpFile);
+        this.tmpFile = null;
+
+        final String oldHash = store.linkRef(this.ref, this.hash);
+        if (oldHash != null)
+          store.releaseContent(oldHash);
+      }
+      catch (final IOException e) {
+        log.error("could not commit BLOB: " + this.ref, e);
+        return e;
+      }
+      this.hash = null;
+      return null;
+    }
+
+    public Exception rollback() {
+      this.hash = null;
+      if (this.tmpFile == null)
+        return null;
+      try {
+        Files.deleteIfExists(this.tmpFile);
+      }
+      catch (final IOException e) {
+        log.error("could not delete temporary BLOB: " + this.tmpFile, e);
+        return e;
+      }
+      this.tmpFile = null;
+      return null;
+    }
+  }
+
+  protected class HashedDeleteTransaction extends Object
+    implements IOGoBlobTransaction
+  {
+    protected final Path ref;
+
+    public HashedDeleteTransaction(final Path _ref) {
+      this.ref = _ref;
+    }
+
+    public Exception perform() {
+      /* the ref stays until the commit, nothing to be done */
+      return null;
+    }
+
+    public Exception commit() {
+      try {
+        final String hash = OGoHashedBlobStore.this.unlinkRef(this.ref);
+        if (hash != null)
+          OGoHashedBlobStore.this.releaseContent(hash);
+      }
+      catch (final IOException e) {
+        log.error("could not delete BLOB: " + this.ref, e);
+        return e;
+      }
+      return null;
+    }
+
+    public Exception rollback() {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,1142 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.blobs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.foundation.NSException;
+import org.getobjects.foundation.NSObject;
+
+/**
+ * OGoPackBlobStore
+ * <p>
+ * Stores small BLOBs (eg the contents of notes) by appending them to large
+ * segment files, instead of keeping one file per BLOB. This avoids huge
+ * directories and saves inodes and backup time when there are millions of
+ * notes.
+ * <p>
+ * Layout of the store directory:<pre>
+ *   segment-00000001.pack  - the BLOB contents, appended
+ *   segment-00000002.pack
+ *   index.log              - the offset index (append-only log)
+ *   store.lock             - locked while a process has the store open</pre>
+ * Each BLOB is stored as a header (magic, key, length) followed by the
+ * content. The index log contains 'put' and 'delete' records with a CRC, it is
+ * replayed into memory when the store is opened (a torn record at the end, eg
+ * after a crash, is cut off). The log is rewritten as a snapshot once it
+ * contains too many obsolete records.
+ * <p>
+ * Only one process may open a store. open() takes an exclusive lock on the
+ * lock file (not on the index, which gets replaced by snapshots) and fails if
+ * another process holds it.
+ * <p>
+ * Reads use memory mapped segments, they do not block writers. Completed
+ * segments are mapped once, reads of the segment being appended to use
+ * positional reads. Segments are limited to 2GB (the size of a mapping).
+ * The header in front of each BLOB is checked against the index entry on
+ * every read, a mismatch is reported as an IOException.
+ * <p>
+ * Changes are done in two steps, like in the file stores: perform() of the
+ * IOGoBlobTransaction appends the content to the active segment, commit()
+ * adds the index record which makes it visible. Content appended by a
+ * transaction which gets rolled back is dead space. Dead space (replaced,
+ * deleted or rolled back BLOBs) is reclaimed by compact(), which copies the
+ * live BLOBs of mostly dead segments into the active segment and removes the
+ * old segments. It can run in the background, see startBackgroundCompaction().
+ * <p>
+ * Like OGoFlatDirBlobStore this store ignores the container id, BLOBs are
+ * keyed by id and extension. To move an existing flat notes directory into a
+ * pack store, use OGoPackBlobStoreMigrator.
+ *
+ * <p>
+ * THREAD: the store is thread safe.
+ *
+ * @author helge
+ */
+public class OGoPackBlobStore extends NSObject implements IOGoBlobStore {
+  protected static final Log log = LogFactory.getLog("OGoBlobStore");
+
+  protected static final int     entryMagic    = 0x4F476F42; /* OGoB */
+  protected static final String  indexName     = "index.log";
+  protected static final String  lockName      = "store.lock";
+  protected static final long    maxSegmentLimit = Integer.MAX_VALUE;
+  protected static final String  segmentPrefix = "segment-";
+  protected static final String  segmentSuffix = ".pack";
+  protected static final Charset utf8          = Charset.forName("utf-8");
+
+  /* the roots opened in this process, file locks are per process */
+  protected static final Set<String> lockedRoots =
+    Collections.synchronizedSet(new HashSet<String>(4));
+
+  protected static final byte PUT    = 'P';
+  protected static final byte DELETE = 'D';
+
+  protected final File root;
+  protected final Path rootPath;
+  protected long    maxSegmentSize      = 64 * 1024 * 1024;
+  protected double  compactionThreshold = 0.5;
+  protected boolean sync;
+
+  /* state, changes are protected by the store lock */
+  protected volatile boolean isOpen;
+  protected final Map<String, Entry>    index;
+  protected final Map<Integer, Segment> segments;
+  protected Segment     activeSegment;
+  protected FileChannel indexLog;
+  protected long        indexRecordCount;
+  protected String      lockedRoot;
+  protected FileChannel lockChannel;
+  protected FileLock    lock;
+
+  protected ScheduledExecutorService compactor;
+
+  public OGoPackBlobStore(final File _root) {
+    super();
+    this.root     = _root;
+    this.rootPath = _root.toPath();
+    this.index    = new ConcurrentHashMap<String, Entry>(16 * 1024);
+    this.segments = new ConcurrentHashMap<Integer, Segment>(64);
+  }
+
+
+  /* accessors */
+
+  public File root() {
+    return this.root;
+  }
+
+  /**
+   * Sets the size at which a new segment is started. Defaults to 64MB, the
+   * size is limited to 2GB.
+   */
+  public void setMaxSegmentSize(final long _size) {
+    this.maxSegmentSize = Math.min(_size, maxSegmentLimit);
+  }
+  public long maxSegmentSize() {
+    return this.maxSegmentSize;
+  }
+
+  /**
+   * Sets the ratio of dead bytes at which compact() rewrites a segment.
+   * Defaults to 0.5 (half of the segment is unused).
+   */
+  public void setCompactionThreshold(final double _ratio) {
+    this.compactionThreshold = _ratio;
+  }
+  public double compactionThreshold() {
+    return this.compactionThreshold;
+  }
+
+  /**
+   * Enables fsync() of segments and the index on each commit.
+   */
+  public void setSync(final boolean _flag) {
+    this.sync = _flag;
+  }
+  public boolean sync() {
+    return this.sync;
+  }
+
+  public int count() {
+    this.ensureOpen();
+    return this.index.size();
+  }
+
+
+  /* open/close */
+
+  /**
+   * Opens the store, ie loads the index and opens the segments. This is
+   * done automatically on first access.
+   *
+   * @return null if the store got opened, the error otherwise
+   */
+  public synchronized Exception open() {
+    if (this.isOpen)
+      return null;
+
+    try {
+      Files.createDirectories(this.rootPath);
+      this.lockStore();
+
+      /* segments */
+      final File[] files = this.root.listFiles();
+      int maxId = 0;
+      if (files != null) {
+        for (final File f: files) {
+          final int segId = segmentIdForName(f.getName());
+          if (segId < 1)
+            continue;
+          final Segment seg = new Segment(segId, f.toPath());
+          this.segments.put(segId, seg);
+          if (segId > maxId) maxId = segId;
+        }
+      }
+
+      /* index */
+      this.loadIndex();
+
+      this.activeSegment = maxId > 0
+        ? this.segments.get(maxId) : this.createSegment(1);
+      this.activeSegment.openForWriting();
+    }
+    catch (final IOException e) {
+      log.error("could not open pack store: " + this.root, e);
+      this.closeChannels();
+      return e;
+    }
+
+    this.isOpen = true;
+    return null;
+  }
+
+  protected void ensureOpen() {
+    if (!this.isOpen)
+      this.open(); /* errors are logged, calls fail later */
+  }
+
+  public synchronized void close() {
+    this.stopBackgroundCompaction();
+    this.closeChannels();
+    this.isOpen = false;
+  }
+
+  protected void closeChannels() {
+    for (final Segment seg: this.segments.values())
+      seg.close();
+    this.segments.clear();
+    this.index.clear();
+    this.activeSegment = null;
+
+    if (this.indexLog != null) {
+      try { this.indexLog.close(); } catch (final IOException e) {}
+      this.indexLog = null;
+    }
+
+    /* last, the store is consistent on disk */
+    if (this.lockChannel != null) {
+      try { this.lockChannel.close(); } catch (final IOException e) {}
+      this.lockChannel = null;
+      this.lock        = null; /* released by closing the channel */
+    }
+    if (this.lockedRoot != null) {
+      lockedRoots.remove(this.lockedRoot);
+      this.lockedRoot = null;
+    }
+  }
+
+  /**
+   * Takes the exclusive lock on the store, so that no other process (or
+   * other store object in this process) appends to or compacts the same
+   * segments.
+   * File locks are held by the process, and closing any channel of the file
+   * releases them. Hence other store objects of this process are rejected
+   * before they touch the lock file.
+   */
+  protected void lockStore() throws IOException {
+    final String canonicalRoot = this.root.getCanonicalPath();
+    if (!lockedRoots.add(canonicalRoot))
+      throw new IOException("pack store is already open: " + this.root);
+    this.lockedRoot = canonicalRoot;
+
+    final Path p = this.rootPath.resolve(lockName);
+    this.lockChannel = FileChannel.open(p, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    this.lock = this.lockChannel.tryLock();
+    if (this.lock == null)
+      throw new IOException("pack store is in use by another process: " + p);
+  }
+
+  protected static int segmentIdForName(final String _name) {
+    if (!_name.startsWith(segmentPrefix) || !_name.endsWith(segmentSuffix))
+      return -1;
+    try {
+      return Integer.parseInt(_name.substring(segmentPrefix.length(),
+          _name.length() - segmentSuffix.length()));
+    }
+    catch (final NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  protected Segment createSegment(final int _id) throws IOException {
+    final Path p = this.rootPath.resolve(
+        String.format("%s%08d%s", segmentPrefix, _id, segmentSuffix));
+    Files.createFile(p);
+    final Segment seg = new Segment(_id, p);
+    this.segments.put(_id, seg);
+    return seg;
+  }
+
+
+  /* index */
+
+  /**
+   * Replays the index log into memory. A broken record at the end (a crash
+   * during an append) is truncated.
+   */
+  protected void loadIndex() throws IOException {
+    final Path p = this.rootPath.resolve(indexName);
+    this.indexLog = FileChannel.open(p, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+    final long size = this.indexLog.size();
+    final ByteBuffer buf = this.indexLog.map(FileChannel.MapMode.READ_ONLY,
+        0, size);
+    final CRC32 crc = new CRC32();
+    long validLength = 0;
+
+    while (buf.remaining() >= 8) {
+      final int len      = buf.getInt();
+      final int checksum = buf.getInt();
+      if (len < 3 || len > buf.remaining())
+        break;
+
+      final ByteBuffer record = buf.slice();
+      record.limit(len);
+      crc.reset();
+      crc.update(record.duplicate());
+      if ((int)crc.getValue() != checksum)
+        break;
+      buf.position(buf.position() + len);
+
+      this.applyIndexRecord(record);
+      this.indexRecordCount++;
+      validLength = buf.position();
+    }
+
+    if (validLength < size) {
+      log.warn("truncating broken index log record at " + validLength +
+          ": " + p);
+      this.indexLog.truncate(validLength);
+    }
+
+    /* drop entries pointing to missing segments, calculate live bytes */
+    for (final Map.Entry<String, Entry> e: this.index.entrySet()) {
+      final Segment seg = this.segments.get(e.getValue().segmentId);
+      if (seg == null) {
+        log.warn("index entry points to missing segment: " + e.getKey());
+        this.index.remove(e.getKey());
+        continue;
+      }
+      seg.liveBytes += recordSize(e.getKey(), e.getValue().length);
+    }
+  }
+
+  protected void applyIndexRecord(final ByteBuffer _record) {
+    final byte kind = _record.get();
+    final byte[] keyBytes = new byte[_record.getShort() & 0xFFFF];
+    _record.get(keyBytes);
+    final String key = new String(keyBytes, utf8);
+
+    if (kind == PUT) {
+      this.index.put(key, new Entry(_record.getInt(), _record.getLong(),
+          _record.getInt()));
+    }
+    else if (kind == DELETE)
+      this.index.remove(key);
+  }
+
+  /**
+   * Appends a record to the index log. Must be called with the store lock.
+   */
+  protected void appendIndexRecord
+    (final byte _kind, final String _key, final Entry _entry)
+    throws IOException
+  {
+    final byte[] keyBytes = _key.getBytes(utf8);
+    final int len = 1 + 2 + keyBytes.length + (_entry != null ? 16 : 0);
+
+    final ByteBuffer buf = ByteBuffer.allocate(8 + len);
+    buf.position(8);
+    buf.put(_kind);
+    buf.putShort((short)keyBytes.length);
+    buf.put(keyBytes);
+    if (_entry != null) {
+      buf.putInt(_entry.segmentId);
+      buf.putLong(_entry.offset);
+      buf.putInt(_entry.length);
+    }
+    buf.flip();
+    buf.position(8);
+
+    final CRC32 crc = new CRC32();
+    crc.update(buf.duplicate());
+    buf.putInt(0, len);
+    buf.putInt(4, (int)crc.getValue());
+    buf.position(0);
+
+    long pos = this.indexLog.size();
+    while (buf.hasRemaining())
+      pos += this.indexLog.write(buf, pos);
+    if (this.sync)
+      this.indexLog.force(false);
+
+    this.indexRecordCount++;
+  }
+
+  /**
+   * Rewrites the index log as a snapshot of the live entries. Must be called
+   * with the store lock.
+   */
+  protected void rewriteIndex() throws IOException {
+    final Path p   = this.rootPath.resolve(indexName);
+    final Path tmp = this.rootPath.resolve(indexName + ".new");
+
+    final FileChannel oldLog = this.indexLog;
+    this.indexLog = FileChannel.open(tmp, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    this.indexRecordCount = 0;
+    try {
+      for (final Map.Entry<String, Entry> e: this.index.entrySet())
+        this.appendIndexRecord(PUT, e.getKey(), e.getValue());
+      this.indexLog.force(true);
+      Files.move(tmp, p, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+    catch (final IOException e) {
+      try { this.indexLog.close(); } catch (final IOException ce) {}
+      this.indexLog = oldLog;
+      throw e;
+    }
+    oldLog.close();
+  }
+
+  protected void rewriteIndexIfNecessary() throws IOException {
+    if (this.indexRecordCount > 10000 &&
+        this.indexRecordCount > 2L * this.index.size())
+      this.rewriteIndex();
+  }
+
+  protected static String keyForId(final Number _id, final String _ext) {
+    if (_id == null)
+      return null;
+    return (_ext != null && _ext.length() > 0)
+      ? _id.toString() + "." + _ext : _id.toString();
+  }
+
+  protected static int headerSize(final byte[] _keyBytes) {
+    return 4 /* magic */ + 2 + _keyBytes.length + 4 /* length */;
+  }
+  protected static long recordSize(final String _key, final int _length) {
+    return headerSize(_key.getBytes(utf8)) + _length;
+  }
+
+
+  /* appending */
+
+  /**
+   * Appends a record to the active segment. The record is not visible until
+   * commitEntry() is called.
+   */
+  protected synchronized Entry appendEntry(String _key, final byte[] _data)
+    throws IOException
+  {
+    this.ensureOpen();
+    if (!this.isOpen)
+      throw new IOException("pack store is not open: " + this.root);
+
+    final byte[] keyBytes = _key.getBytes(utf8);
+    final int hsize = headerSize(keyBytes);
+    if (hsize + (long)_data.length > maxSegmentLimit)
+      throw new IOException("BLOB is too large for a pack store: " + _key);
+
+    Segment seg = this.activeSegment;
+    if (seg.size > 0 && seg.size + hsize + _data.length > this.maxSegmentSize){
+      /* start a new segment */
+      seg.closeForWriting(true /* sync */);
+      seg = this.createSegment(seg.id + 1);
+      seg.openForWriting();
+      this.activeSegment = seg;
+    }
+
+    final ByteBuffer header = ByteBuffer.allocate(hsize);
+    header.putInt(entryMagic);
+    header.putShort((short)keyBytes.length);
+    header.put(keyBytes);
+    header.putInt(_data.length);
+    header.flip();
+
+    final long start = seg.size;
+    seg.append(new ByteBuffer[] { header, ByteBuffer.wrap(_data) });
+    if (this.sync)
+      seg.writer.force(false);
+
+    /* the segment must not be compacted until the entry is committed */
+    seg.pendingAppends++;
+    return new Entry(seg.id, start + hsize, _data.length);
+  }
+
+  /**
+   * Makes a record appended by appendEntry() visible, replacing an old
+   * version of the BLOB. The entry is not pending anymore, even if the
+   * commit fails.
+   */
+  protected synchronized void commitEntry(final String _key, final Entry _e)
+    throws IOException
+  {
+    final Segment seg = this.segments.get(_e.segmentId);
+    try {
+      this.appendIndexRecord(PUT, _key, _e);
+
+      final long size = recordSize(_key, _e.length);
+      final Entry old = this.index.put(_key, _e);
+      if (seg != null) seg.liveBytes += size;
+      this.noteDeadEntry(_key, old);
+    }
+    finally {
+      if (seg != null) seg.pendingAppends--;
+    }
+
+    this.rewriteIndexIfNecessary();
+  }
+
+  /**
+   * Drops a record appended by appendEntry() which is not going to be
+   * committed, its bytes are dead space.
+   */
+  protected synchronized void abortEntry(final Entry _e) {
+    final Segment seg = this.segments.get(_e.segmentId);
+    if (seg != null) seg.pendingAppends--;
+  }
+
+  protected synchronized boolean commitDelete(final String _key)
+    throws IOException
+  {
+    final Entry old = this.index.get(_key);
+    if (old == null)
+      return false;
+
+    this.appendIndexRecord(DELETE, _key, null);
+    this.index.remove(_key);
+    this.noteDeadEntry(_key, old);
+    return true;
+  }
+
+  protected void noteDeadEntry(final String _key, final Entry _old) {
+    if (_old == null)
+      return;
+    final Segment seg = this.segments.get(_old.segmentId);
+    if (seg != null)
+      seg.liveBytes -= recordSize(_key, _old.length);
+  }
+
+
+  /* reading */
+
+  /**
+   * Returns a read-only buffer containing the BLOB. The buffer is a slice of
+   * the memory mapped segment.
+   */
+  protected ByteBuffer bufferForKey(final String _key) throws IOException {
+    this.ensureOpen();
+
+    /* retry once, compaction might have moved the BLOB in the meantime */
+    for (int i = 0; i < 2; i++) {
+      final Entry e = _key != null ? this.index.get(_key) : null;
+      if (e == null)
+        throw new FileNotFoundException("no such BLOB: " + _key);
+
+      final Segment seg = this.segments.get(e.segmentId);
+      if (seg == null)
+        continue;
+      try {
+        return readEntry(seg, _key, e);
+      }
+      catch (final ClosedChannelException ce) {
+        /* segment got removed by compaction */
+      }
+    }
+    throw new IOException("could not read BLOB: " + _key);
+  }
+
+  /**
+   * Reads the BLOB of an index entry and checks the header stored in front
+   * of it (magic, key and length), so that a broken index entry does not
+   * return arbitrary segment bytes.
+   *
+   * @return a buffer containing the content of the BLOB
+   */
+  protected static ByteBuffer readEntry
+    (final Segment _seg, final String _key, final Entry _e)
+    throws IOException
+  {
+    final byte[] keyBytes = _key.getBytes(utf8);
+    final int hsize = headerSize(keyBytes);
+    if (_e.length < 0 || _e.offset < hsize ||
+        _e.offset + _e.length > _seg.size)
+    {
+      throw new IOException("index entry of BLOB " + _key +
+          " is outside of segment: " + _seg);
+    }
+
+    final ByteBuffer buf = _seg.slice(_e.offset - hsize, hsize + _e.length);
+    boolean isValid = buf.getInt() == entryMagic &&
+      (buf.getShort() & 0xFFFF) == keyBytes.length;
+    if (isValid) {
+      final byte[] storedKey = new byte[keyBytes.length];
+      buf.get(storedKey);
+      isValid = Arrays.equals(storedKey, keyBytes) &&
+        buf.getInt() == _e.length;
+    }
+    if (!isValid) {
+      throw new IOException("index entry of BLOB " + _key +
+          " does not match the segment data: " + _seg);
+    }
+    return buf.slice();
+  }
+
+  public File blobFileForId(Number _id, Number _containerId, String _ext) {
+    return null; /* BLOBs are not stored as individual files */
+  }
+  public File blobFileForWritingId
+    (Number _id, Number _containerId, String _ext)
+  {
+    return null; /* BLOBs are not stored as individual files */
+  }
+
+  public long blobSizeForId(Number _id, Number _containerId, String _ext) {
+    this.ensureOpen();
+    final String key = keyForId(_id, _ext);
+    final Entry e = key != null ? this.index.get(key) : null;
+    return e != null ? e.length : -1;
+  }
+
+  public InputStream openStreamForId
+    (Number _id, Number _containerId, String _ext)
+    throws IOException
+  {
+    return Channels.newInputStream(
+        new BufferChannel(this.bufferForKey(keyForId(_id, _ext))));
+  }
+
+  public ReadableByteChannel openChannelForId
+    (Number _id, Number _containerId, String _ext, long _offset, long _length)
+    throws IOException
+  {
+    return new BufferChannel(rangeOfBuffer(
+        this.bufferForKey(keyForId(_id, _ext)), _offset, _length));
+  }
+
+  public long transferBlobToChannel
+    (Number _id, Number _containerId, String _ext, long _offset, long _length,
+     WritableByteChannel _out)
+    throws IOException
+  {
+    final ByteBuffer buf = rangeOfBuffer(
+        this.bufferForKey(keyForId(_id, _ext)), _offset, _length);
+    final int total = buf.remaining();
+    while (buf.hasRemaining()) {
+      if (_out.write(buf) <= 0)
+        break; /* a non-blocking target which is full */
+    }
+    return total - buf.remaining();
+  }
+
+  protected static ByteBuffer rangeOfBuffer
+    (final ByteBuffer _buf, final long _offset, final long _length)
+  {
+    final int start = (int)Math.min(Math.max(_offset, 0), _buf.limit());
+    int end = _buf.limit();
+    if (_length >= 0 && start + _length < end)
+      end = start + (int)_length;
+
+    _buf.position(start);
+    _buf.limit(end);
+    return _buf.slice();
+  }
+
+
+  /* changes */
+
+  public IOGoBlobTransaction blobWriteTransaction
+    (Number _id, Number _containerId, String _ext, Object _content)
+  {
+    final String key = keyForId(_id, _ext);
+    return key != null ? new PackWriteTransaction(key, _content) : null;
+  }
+
+  public IOGoBlobTransaction blobDeleteTransaction
+    (Number _id, Number _containerId, String _ext)
+  {
+    final String key = keyForId(_id, _ext);
+    return key != null ? new PackDeleteTransaction(key) : null;
+  }
+
+  /**
+   * Loads the content object into a byte array. Pack stores are intended for
+   * small BLOBs, so this is fine.
+   */
+  protected static byte[] bytesForContent(final Object _content)
+    throws IOException
+  {
+    if (_content instanceof byte[])
+      return (byte[])_content;
+    if (_content instanceof String)
+      return ((String)_content).getBytes(utf8);
+    if (_content instanceof File)
+      return Files.readAllBytes(((File)_content).toPath());
+
+    final InputStream in;
+    if (_content instanceof URL)
+      in = ((URL)_content).openStream();
+    else if (_content instanceof InputStream)
+      in = (InputStream)_content;
+    else if (_content instanceof ReadableByteChannel)
+      in = Channels.newInputStream((ReadableByteChannel)_content);
+    else if (_content == null)
+      throw new IOException("Got no content for document object!");
+    else
+      throw new IOException("Unexpected content object for document!");
+
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+      final byte[] buf = new byte[8192];
+      int len;
+      while ((len = in.read(buf)) > 0)
+        bytes.write(buf, 0, len);
+      return bytes.toByteArray();
+    }
+    finally {
+      in.close();
+    }
+  }
+
+
+  /* compaction */
+
+  /**
+   * Rewrites segments which contain more dead bytes than the
+   * compactionThreshold. The live BLOBs are appended to the active segment
+   * and the old segment files are deleted.
+   *
+   * @return null if the compaction succeeded, the error otherwise
+   */
+  public Exception compact() {
+    this.ensureOpen();
+
+    final List<Segment> candidates = new ArrayList<Segment>(4);
+    synchronized (this) {
+      for (final Segment seg: this.segments.values()) {
+        if (seg == this.activeSegment || seg.size == 0)
+          continue;
+        if (seg.pendingAppends > 0)
+          continue; /* a transaction still has to commit into it */
+        final double deadRatio = 1.0 - ((double)seg.liveBytes / seg.size);
+        if (deadRatio >= this.compactionThreshold)
+          candidates.add(seg);
+      }
+    }
+
+    for (final Segment seg: candidates) {
+      final Exception error = this.compactSegment(seg);
+      if (error != null)
+        return error;
+    }
+    return null;
+  }
+
+  protected Exception compactSegment(final Segment _seg) {
+    long moved = 0;
+    try {
+      for (final Map.Entry<String, Entry> e: this.index.entrySet()) {
+        final Entry old = e.getValue();
+        if (old.segmentId != _seg.id)
+          continue;
+
+        /* copy outside of the lock, readers and writers continue */
+        final ByteBuffer src = readEntry(_seg, e.getKey(), old);
+        final byte[] data = new byte[src.remaining()];
+        src.get(data);
+        final Entry copy = this.appendEntry(e.getKey(), data);
+
+        synchronized (this) {
+          if (this.index.get(e.getKey()) == old) {
+            this.commitEntry(e.getKey(), copy);
+            moved++;
+          }
+          else /* changed in the meantime, the copy is dead */
+            this.abortEntry(copy);
+        }
+      }
+
+      synchronized (this) {
+        if (_seg.liveBytes > 0) {
+          log.warn("segment still has live entries after compaction: " + _seg);
+          return null;
+        }
+        if (_seg.pendingAppends > 0) {
+          log.info("segment has uncommitted entries, not deleting: " + _seg);
+          return null;
+        }
+
+        /* the new index records must be on disk before we drop the data */
+        this.indexLog.force(true);
+        this.activeSegment.writer.force(true);
+        this.segments.remove(_seg.id);
+        _seg.close();
+        Files.deleteIfExists(_seg.path);
+        this.rewriteIndexIfNecessary();
+      }
+    }
+    catch (final IOException e) {
+      log.error("could not compact segment: " + _seg, e);
+      return e;
+    }
+
+    if (log.isInfoEnabled())
+      log.info("compacted segment " + _seg.id + ", moved " + moved + " BLOBs");
+    return null;
+  }
+
+  /**
+   * Starts a daemon thread which calls compact() in the given interval.
+   */
+  public synchronized void startBackgroundCompaction(final long _seconds) {
+    if (this.compactor != null)
+      return;
+
+    this.compactor = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactory() {
+        public Thread newThread(final Runnable _r) {
+          final Thread t = new Thread(_r, "OGoPackBlobStore-compactor");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    this.compactor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        OGoPackBlobStore.this.compact();
+      }
+    }, _seconds, _seconds, TimeUnit.SECONDS);
+  }
+
+  public synchronized void stopBackgroundCompaction() {
+    if (this.compactor == null)
+      return;
+    this.compactor.shutdown();
+    this.compactor = null;
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" root=");
+    _d.append(this.root);
+    if (this.isOpen) {
+      _d.append(" #blobs=");
+      _d.append(this.index.size());
+      _d.append(" #segments=");
+      _d.append(this.segments.size());
+    }
+    else
+      _d.append(" closed");
+  }
+
+
+  /* index entries and segments */
+
+  protected static class Entry extends Object {
+    protected final int  segmentId;
+    protected final long offset; /* of the content, after the header */
+    protected final int  length;
+
+    public Entry(final int _segmentId, final long _offset, final int _length) {
+      this.segmentId = _segmentId;
+      this.offset    = _offset;
+      this.length    = _length;
+    }
+  }
+
+  /**
+   * A segment file. The size, liveBytes and pendingAppends are protected by
+   * the store lock, the mapping by the segment itself.
+   */
+  protected static class Segment extends Object {
+    protected final int  id;
+    protected final Path path;
+    protected volatile long size;
+    protected long          liveBytes;
+    protected int           pendingAppends; /* appended, but not committed */
+    protected FileChannel   reader;
+    protected FileChannel   writer;
+    protected MappedByteBuffer map;
+
+    public Segment(final int _id, final Path _path) throws IOException {
+      this.id     = _id;
+      this.path   = _path;
+      this.reader = FileChannel.open(_path, StandardOpenOption.READ);
+      this.size   = this.reader.size();
+      if (this.size > maxSegmentLimit) {
+        this.reader.close();
+        throw new IOException("segment is larger than 2GB: " + _path);
+      }
+    }
+
+    public void openForWriting() throws IOException {
+      if (this.writer == null)
+        this.writer = FileChannel.open(this.path, StandardOpenOption.WRITE);
+    }
+    public void closeForWriting(final boolean _sync) throws IOException {
+      if (this.writer == null)
+        return;
+      if (_sync) this.writer.force(true);
+      this.writer.close();
+      this.writer = null;
+    }
+
+    public void append(final ByteBuffer[] _buffers) throws IOException {
+      long pos = this.size;
+      for (final ByteBuffer buf: _buffers) {
+        while (buf.hasRemaining())
+          pos += this.writer.write(buf, pos);
+      }
+      this.size = pos;
+    }
+
+    /**
+     * Returns the given range of the segment. Completed segments are mapped
+     * once, ranges of a segment which is still being appended to (and is not
+     * covered by its mapping) are read into a heap buffer instead of
+     * remapping the file on each new BLOB.
+     */
+    public ByteBuffer slice(final long _offset, final int _length)
+      throws IOException
+    {
+      if (_offset < 0 || _length < 0 || _offset + _length > maxSegmentLimit)
+        throw new IOException("invalid range in segment: " + this);
+
+      final MappedByteBuffer m;
+      synchronized (this) {
+        if (!this.reader.isOpen())
+          throw new ClosedChannelException();
+
+        if (this.map != null && this.map.capacity() >= _offset + _length)
+          m = this.map;
+        else if (this.writer != null)
+          m = null; /* still growing, read the range */
+        else {
+          this.map = this.reader.map(FileChannel.MapMode.READ_ONLY, 0,
+              this.reader.size());
+          if (this.map.capacity() < _offset + _length)
+            throw new IOException("range is beyond end of segment: " + this);
+          m = this.map;
+        }
+      }
+      if (m == null)
+        return this.read(_offset, _length);
+
+      final ByteBuffer buf = m.duplicate();
+      buf.position((int)_offset);
+      buf.limit((int)_offset + _length);
+      return buf.slice();
+    }
+
+    protected ByteBuffer read(final long _offset, final int _length)
+      throws IOException
+    {
+      final ByteBuffer buf = ByteBuffer.allocate(_length);
+      long pos = _offset;
+      while (buf.hasRemaining()) {
+        final int len = this.reader.read(buf, pos);
+        if (len < 0)
+          throw new IOException("range is beyond end of segment: " + this);
+        pos += len;
+      }
+      buf.flip();
+      return buf.asReadOnlyBuffer();
+    }
+
+    public synchronized void close() {
+      try {
+        this.closeForWriting(false);
+      }
+      catch (final IOException e) {
+        log.warn("could not close segment: " + this.path, e);
+      }
+      try { this.reader.close(); } catch (final IOException e) {}
+      this.map = null; /* the mapping is released by the GC */
+    }
+
+    @Override
+    public String toString() {
+      return "<Segment " + this.id + " size=" + this.size +
+        " live=" + this.liveBytes + ">";
+    }
+  }
+
+  /**
+   * A ReadableByteChannel on a ByteBuffer.
+   */
+  protected static class BufferChannel extends Object
+    implements ReadableByteChannel
+  {
+    protected ByteBuffer buffer;
+
+    public BufferChannel(final ByteBuffer _buffer) {
+      this.buffer = _buffer;
+    }
+
+    public int read(final ByteBuffer _dst) throws IOException {
+      if (this.buffer == null)
+        throw new ClosedChannelException();
+      if (!this.buffer.hasRemaining())
+        return -1;
+
+      final int count = Math.min(_dst.remaining(), this.buffer.remaining());
+      final ByteBuffer src = this.buffer.duplicate();
+      src.limit(src.position() + count);
+      _dst.put(src);
+      this.buffer.position(this.buffer.position() + count);
+      return count;
+    }
+
+    public boolean isOpen() {
+      return this.buffer != null;
+    }
+    public void close() {
+      this.buffer = null;
+    }
+  }
+
+
+  /* transactions */
+
+  protected class PackWriteTransaction extends Object
+    implements IOGoBlobTransaction
+  {
+    protected final String key;
+    protected Object content;
+    protected Entry  entry;
+
+    public PackWriteTransaction(final String _key, final Object _content) {
+      this.key     = _key;
+      this.content = _content;
+    }
+
+    public Exception perform() {
+      if (this.entry != null)
+        return new NSException("BLOB transaction was already performed!");
+      try {
+        final byte[] data = bytesForContent(this.content);
+        this.content = null;
+        this.entry = OGoPackBlobStore.this.appendEntry(this.key, data);
+      }
+      catch (final IOException e) {
+        log.error("could not append BLOB to pack store: " + this.key, e);
+        return e;
+      }
+      return null;
+    }
+
+    public Exception commit() {
+      if (this.entry == null)
+        return null; /* nothing was written */
+      final Entry e = this.entry;
+      this.entry = null; /* no longer pending, even if the commit fails */
+      try {
+        OGoPackBlobStore.this.commitEntry(this.key, e);
+      }
+      catch (final IOException ex) {
+        log.error("could not commit BLOB in pack store: " + this.key, ex);
+        return ex;
+      }
+      return null;
+    }
+
+    public Exception rollback() {
+      if (this.entry != null) {
+        /* the appended bytes are dead space */
+        OGoPackBlobStore.this.abortEntry(this.entry);
+        this.entry = null;
+      }
+      return null;
+    }
+  }
+
+  protected class PackDeleteTransaction extends Object
+    implements IOGoBlobTransaction
+  {
+    protected final String key;
+
+    public PackDeleteTransaction(final String _key) {
+      this.key = _key;
+    }
+
+    public Exception perform() {
+      /* the BLOB stays visible until the commit, nothing to be done */
+      return null;
+    }
+
+    public Exception commit() {
+      try {
+        OGoPackBlobStore.this.commitDelete(this.key);
+      }
+      catch (final IOException e) {
+        log.error("could not delete BLOB in pack store: " + this.key, e);
+        return e;
+      }
+      return null;
+    }
+
+    public Exception rollback() {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,241 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.blobs;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.foundation.NSObject;
+
+/**
+ * OGoPackBlobStoreMigrator
+ * <p>
+ * Copies the BLOBs of a flat directory (the OGoFlatDirBlobStore layout, eg
+ * '10000.txt') into an OGoPackBlobStore. Only files named
+ * '&lt;id&gt;.&lt;ext&gt;' are copied, so the defaults and pictures which live
+ * in the same directory are left alone.
+ * <p>
+ * The migration can be repeated, BLOBs which already exist in the pack store
+ * with the same content are skipped. It should run while no OGo instance
+ * writes notes. A source file is only deleted after its content got verified
+ * to be identical to the one in the pack store.
+ * <p>
+ * Usage:<pre>
+ *   java org.opengroupware.logic.blobs.OGoPackBlobStoreMigrator \
+ *     /var/lib/opengroupware.org/documents /var/lib/ogo-notes txt [-delete]
+ * </pre>
+ *
+ * @author helge
+ */
+public class OGoPackBlobStoreMigrator extends NSObject {
+  protected static final Log log = LogFactory.getLog("OGoBlobStore");
+
+  protected final File             source;
+  protected final OGoPackBlobStore target;
+  protected final String           ext;
+  protected boolean deleteSources;
+
+  /* results */
+  protected int migratedCount;
+  protected int skippedCount;
+  protected int errorCount;
+
+  public OGoPackBlobStoreMigrator
+    (final File _source, final OGoPackBlobStore _target, final String _ext)
+  {
+    super();
+    this.source = _source;
+    this.target = _target;
+    this.ext    = _ext != null ? _ext : "txt";
+  }
+
+
+  /* accessors */
+
+  /**
+   * If enabled, the source files are deleted after they got copied.
+   */
+  public void setDeleteSources(final boolean _flag) {
+    this.deleteSources = _flag;
+  }
+  public boolean deleteSources() {
+    return this.deleteSources;
+  }
+
+  public int migratedCount() {
+    return this.migratedCount;
+  }
+  public int skippedCount() {
+    return this.skippedCount;
+  }
+  public int errorCount() {
+    return this.errorCount;
+  }
+
+
+  /* migration */
+
+  /**
+   * Copies all matching files. Errors on individual files are logged and
+   * counted, the migration continues.
+   *
+   * @return null if the directory could be processed, the error otherwise
+   */
+  public Exception migrate() {
+    final Exception error = this.target.open();
+    if (error != null)
+      return error;
+
+    /* a DirectoryStream, so that we never hold millions of names */
+    DirectoryStream<Path> dir = null;
+    try {
+      dir = Files.newDirectoryStream(this.source.toPath(), "*." + this.ext);
+      for (final Path p: dir)
+        this.migrateFile(p);
+    }
+    catch (final IOException e) {
+      log.error("could not scan source directory: " + this.source, e);
+      return e;
+    }
+    finally {
+      if (dir != null) {
+        try { dir.close(); } catch (final IOException e) {}
+      }
+    }
+
+    log.info("migrated " + this.migratedCount + " BLOBs, skipped " +
+        this.skippedCount + ", errors " + this.errorCount + ": " + this.target);
+    return null;
+  }
+
+  protected void migrateFile(final Path _p) {
+    final String name = _p.getFileName().toString();
+    final Number id = idForFilename(name, this.ext);
+    if (id == null)
+      return; /* not one of ours */
+
+    final File f = _p.toFile();
+    if (this.target.blobSizeForId(id, null, this.ext) == f.length() &&
+        this.isMigrated(f, id))
+    {
+      this.skippedCount++;
+      this.deleteSource(f);
+      return;
+    }
+
+    final IOGoBlobTransaction tx =
+      this.target.blobWriteTransaction(id, null, this.ext, f);
+    Exception error = tx.perform();
+    if (error == null)
+      error = tx.commit();
+    else
+      tx.rollback();
+
+    if (error != null) {
+      log.error("could not migrate BLOB: " + f, error);
+      this.errorCount++;
+      return;
+    }
+    this.migratedCount++;
+
+    if (this.deleteSources && !this.isMigrated(f, id)) {
+      log.warn("not deleting BLOB, it changed during the migration: " + f);
+      return;
+    }
+    this.deleteSource(f);
+  }
+
+  /**
+   * Checks whether the pack store contains the same content as the file.
+   */
+  protected boolean isMigrated(final File _f, final Number _id) {
+    try {
+      final ByteBuffer packed = this.target.bufferForKey(
+          OGoPackBlobStore.keyForId(_id, this.ext));
+      return packed.equals(ByteBuffer.wrap(Files.readAllBytes(_f.toPath())));
+    }
+    catch (final FileNotFoundException e) {
+      return false;
+    }
+    catch (final IOException e) {
+      log.warn("could not compare migrated BLOB: " + _f, e);
+      return false;
+    }
+  }
+
+  protected void deleteSource(final File _f) {
+    if (this.deleteSources && !_f.delete())
+      log.warn("could not delete migrated BLOB: " + _f);
+  }
+
+  /**
+   * Returns the id for a name like '10000.txt', or null if the name does not
+   * match.
+   */
+  protected static Number idForFilename(final String _name, final String _ext) {
+    final int len = _name.length() - _ext.length() - 1;
+    if (len < 1 || len > 18)
+      return null;
+    for (int i = 0; i < len; i++) {
+      if (!Character.isDigit(_name.charAt(i)))
+        return null;
+    }
+    return Long.valueOf(_name.substring(0, len));
+  }
+
+
+  /* tool */
+
+  public static void main(final String[] _args) {
+    if (_args.length < 2) {
+      System.err.println("usage: OGoPackBlobStoreMigrator " +
+          "<flat-dir> <pack-dir> [ext] [-delete]");
+      System.exit(1);
+    }
+
+    final OGoPackBlobStore store = new OGoPackBlobStore(new File(_args[1]));
+    final OGoPackBlobStoreMigrator migrator = new OGoPackBlobStoreMigrator(
+        new File(_args[0]), store,
+        _args.length > 2 && !_args[2].startsWith("-") ? _args[2] : null);
+    for (final String arg: _args) {
+      if ("-delete".equals(arg))
+        migrator.setDeleteSources(true);
+    }
+
+    final Exception error = migrator.migrate();
+    store.close();
+    if (error != null) {
+      System.err.println("migration failed: " + error);
+      System.exit(2);
+    }
+    System.out.println("migrated: " + migrator.migratedCount() +
+        ", skipped: " + migrator.skippedCount() +
+        ", errors: " + migrator.errorCount());
+    System.exit(migrator.errorCount() > 0 ? 3 : 0);
+  }
+}
@@ -21,22 +21,54 @@
 package org.opengroupware.logic.blobs;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.getobjects.foundation.NSObject;
 
-public class OGoRangeDirBlobStore extends NSObject implements IOGoBlobStore {
+/**
+ * OGoRangeDirBlobStore
+ * <p>
+ * Stores BLOBs in a directory per container (project), which is further
+ * split into directories for id ranges, eg:<pre>
+ *   /var/lib/opengroupware.org/documents/10010/287000/287310.pdf</pre>
+ * <p>
+ * Reads (blobFileForId()) just calculate the path. Writes
+ * (blobFileForWritingId()) create the directories as required. Directories
+ * which are known to exist are remembered, so that they are only checked
+ * once per process (each check is a stat() call, which is a roundtrip on
+ * NFS).
+ * If directories get removed by external means, forgetKnownDirectories()
+ * must be called.
+ * 
+ * <p>
+ * THREAD: the store is thread safe.
+ * 
+ * @author helge
+ */
+public class OGoRangeDirBlobStore extends OGoFileBlobStore {
   protected static final Log log = LogFactory.getLog("OGoBlobStore");
 
   protected static final boolean UseFoldersForIDRanges = true;
   protected File root;
+  protected Path rootPath;
   protected int  rangeSize;
   
+  /* directories which got created or found to exist */
+  protected final Set<Path> knownDirectories;
+  
   public OGoRangeDirBlobStore(final File _root) {
     super();
     this.root      = _root;
+    this.rootPath  = _root.toPath();
     this.rangeSize = 1000; /* default OGo range size */
+    this.knownDirectories =
+      Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>(128));
   }
 
   /* accessors */
@@ -45,56 +77,91 @@ public class OGoRangeDirBlobStore extends NSObject implements IOGoBlobStore {
     return this.root;
   }
   
-  public File blobFileForId(Number _id, Number _containerId, String _ext) {
-    if (_id == null)
-      return null;
+  /**
+   * Clears the set of directories known to exist. Call this if directories
+   * of the store got removed by other means (eg an admin script).
+   */
+  public void forgetKnownDirectories() {
+    this.knownDirectories.clear();
+  }
+  
+  
+  /* paths */
+  
+  /**
+   * Returns the Path of the directory which contains the BLOB with the given
+   * id. This only calculates the Path, it does not access the filesystem.
+   */
+  protected Path directoryPathForId(final Number _id, final Number _containerId)
+  {
+    Path container = this.rootPath;
     
-    File container = null;
-
     /* container */
     
-    if (_containerId != null) {
-      container = new File(this.root, _containerId.toString());
-      if (!container.exists()) {
-        if (!container.mkdir()) {
-          /* probably a permission setup issue */
-          log.error("could not create BLOB directory for container '" +
-              _containerId + "': " + container + 
-              " (check filesystem permissions!)");
-          return null;
-        }
-      }
-    }
-    else
-      container = this.root;
+    if (_containerId != null)
+      container = container.resolve(_containerId.toString());
     
     /* folder ranges */
     
     if (UseFoldersForIDRanges) {
       long rangeId = _id.longValue();
       rangeId = rangeId - (rangeId % this.rangeSize);
-      
-      container = new File(container, Long.toString(rangeId));
-      if (!container.exists()) {
-        if (!container.mkdir()) {
-          /* probably a permission setup issue */
-          log.error("could not create BLOB directory for id-range '" +
-              rangeId + "': " + container + 
-              " (check filesystem permissions!)");
-          return null;
-        }
-      }
+      container = container.resolve(Long.toString(rangeId));
     }
-    
-    /* filename */
-
+    return container;
+  }
+  
+  protected static String filenameForId(final Number _id, final String _ext) {
     final StringBuilder sb = new StringBuilder(128);
     sb.append(_id);
     if (_ext != null && _ext.length() > 0) {
       sb.append('.');
       sb.append(_ext);
     }
+    return sb.toString();
+  }
+  
+  public File blobFileForId(Number _id, Number _containerId, String _ext) {
+    if (_id == null)
+      return null;
+    
+    return this.directoryPathForId(_id, _containerId)
+      .resolve(filenameForId(_id, _ext)).toFile();
+  }
+  
+  public File blobFileForWritingId(Number _id, Number _containerId, String _ext)
+  {
+    if (_id == null)
+      return null;
+    
+    final Path dir = this.directoryPathForId(_id, _containerId);
+    if (!this.knownDirectories.contains(dir)) {
+      try {
+        Files.createDirectories(dir);
+      }
+      catch (final IOException e) {
+        /* probably a permission setup issue */
+        log.error("could not create BLOB directory for id " + _id + 
+            " (container " + _containerId + "): " + dir +
+            " (check filesystem permissions!)", e);
+        return null;
+      }
+      this.knownDirectories.add(dir);
+    }
+    
+    return dir.resolve(filenameForId(_id, _ext)).toFile();
+  }
+  
+  
+  /* description */
+  
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
     
-    return new File(container, sb.toString());
+    _d.append(" root=");
+    _d.append(this.root);
+    _d.append(" #known-dirs=");
+    _d.append(this.knownDirectories.size());
   }
 }
@@ -0,0 +1,355 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.blobs;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.foundation.NSException;
+import org.opengroupware.logic.ops.OGoFileDeleteTransaction;
+
+/**
+ * OGoShardedDirBlobStore
+ * <p>
+ * Stores BLOBs in a two level directory hierarchy derived from the id, eg
+ * note 287310 is stored as:<pre>
+ *   notes/4e/62/287310.txt</pre>
+ * (the low byte and the next byte of the id, in hex). With 3M notes this
+ * results in ~50 files per directory, instead of a single huge directory.
+ * <p>
+ * During the migration from a flat directory (OGoFlatDirBlobStore, see
+ * OGoShardedDirMigrator) a legacy store can be set. Reads check the sharded
+ * location first and fall back to the legacy location. Writes go to the
+ * sharded location, deletes remove both. Once the migration completed, the
+ * legacy store should be removed (setLegacyStore(null)) to avoid the extra
+ * stat() for missing BLOBs.
+ * <p>
+ * OGo/ObjC instances only know the flat directory. As long as they are
+ * running, the store must be used with setPreferLegacy(true): the flat
+ * location stays authoritative for reads and writes, the migrator only
+ * hard-links the files into the sharded tree (no copying, no extra space).
+ * Once the ObjC instances are gone, preferLegacy gets switched off and the
+ * migrator moves the remaining files.
+ * <p>
+ * A rewrite of a flat file (by ObjC, or by Java in preferLegacy mode)
+ * replaces it by rename, which breaks the link, ie the sharded copy keeps the
+ * old content until the next migrator pass. Hence, as long as a legacy store
+ * is set, reads compare the modification dates of both files and return the
+ * newer one, so that switching off preferLegacy never exposes a stale copy.
+ * The final migrator pass (keepLegacy off) should still run to completion
+ * before the legacy store is removed.
+ * That pass deletes legacy files right after linking them, so a legacy file
+ * returned by blobFileForId() can vanish before it is opened. The streaming
+ * methods of this store then retry with the sharded location.
+ * <p>
+ * Example:<pre>
+ *   OGoFlatDirBlobStore flat = (OGoFlatDirBlobStore)db.notesStore();
+ *   OGoShardedDirBlobStore bs =
+ *     new OGoShardedDirBlobStore(new File(flat.root(), "notes"), flat);
+ *   bs.setPreferLegacy(!objcRetired);
+ *   db.setNotesStore(bs);
+ *
+ *   OGoShardedDirMigrator m = new OGoShardedDirMigrator(bs, "txt");
+ *   m.setKeepLegacy(bs.preferLegacy());
+ *   m.start();
+ *   ...
+ *   // once the final pass (keepLegacy off) isFinished():
+ *   bs.setLegacyStore(null);</pre>
+ *
+ * <p>
+ * THREAD: the store is thread safe.
+ *
+ * @author helge
+ */
+public class OGoShardedDirBlobStore extends OGoFileBlobStore {
+  protected static final Log log = LogFactory.getLog("OGoBlobStore");
+
+  protected final File root;
+  protected final Path rootPath;
+  protected volatile OGoFlatDirBlobStore legacyStore;
+  protected volatile boolean preferLegacy;
+
+  protected final Set<Path> knownDirectories;
+
+  public OGoShardedDirBlobStore
+    (final File _root, final OGoFlatDirBlobStore _legacyStore)
+  {
+    super();
+    this.root        = _root;
+    this.rootPath    = _root.toPath();
+    this.legacyStore = _legacyStore;
+    this.knownDirectories =
+      Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>(1024));
+  }
+  public OGoShardedDirBlobStore(final File _root) {
+    this(_root, null /* no legacy store */);
+  }
+
+
+  /* accessors */
+
+  public File root() {
+    return this.root;
+  }
+
+  /**
+   * Sets the store which is used as a fallback for reads, ie the flat store
+   * which is being migrated. Pass null once the migration is done.
+   */
+  public void setLegacyStore(final OGoFlatDirBlobStore _store) {
+    this.legacyStore = _store;
+  }
+  public OGoFlatDirBlobStore legacyStore() {
+    return this.legacyStore;
+  }
+
+  /**
+   * Enables the compatibility mode for deployments which still run OGo/ObjC
+   * instances. Reads check the legacy location first and writes go to the
+   * legacy location, ie the flat directory stays authoritative.
+   */
+  public void setPreferLegacy(final boolean _flag) {
+    this.preferLegacy = _flag;
+  }
+  public boolean preferLegacy() {
+    return this.preferLegacy;
+  }
+
+
+  /* paths */
+
+  /**
+   * Returns the sharded location of the BLOB, without checking the legacy
+   * store.
+   */
+  public Path shardedPathForId(final Number _id, final String _ext) {
+    final long id = _id.longValue();
+    final StringBuilder sb = new StringBuilder(32);
+    sb.append(_id);
+    if (_ext != null && _ext.length() > 0) {
+      sb.append('.');
+      sb.append(_ext);
+    }
+    return this.rootPath
+      .resolve(hexByte((int)(id & 0xFF)))
+      .resolve(hexByte((int)((id >> 8) & 0xFF)))
+      .resolve(sb.toString());
+  }
+
+  protected static String hexByte(final int _v) {
+    return new String(new char[] {
+      Character.forDigit((_v >> 4) & 0xF, 16), Character.forDigit(_v & 0xF, 16)
+    });
+  }
+
+  /**
+   * Ensures that the directory of the given sharded path exists.
+   *
+   * @return null if the directory exists, the error otherwise
+   */
+  public Exception ensureDirectoryOfPath(final Path _path) {
+    final Path dir = _path.getParent();
+    if (this.knownDirectories.contains(dir))
+      return null;
+    try {
+      Files.createDirectories(dir);
+    }
+    catch (final IOException e) {
+      /* probably a permission setup issue */
+      log.error("could not create BLOB directory: " + dir +
+          " (check filesystem permissions!)", e);
+      return e;
+    }
+    this.knownDirectories.add(dir);
+    return null;
+  }
+
+  public File blobFileForId(Number _id, Number _containerId, String _ext) {
+    if (_id == null)
+      return null;
+
+    final File f = this.shardedPathForId(_id, _ext).toFile();
+    final OGoFlatDirBlobStore legacy = this.legacyStore;
+    if (legacy == null)
+      return f;
+
+    final File lf = legacy.blobFileForId(_id, _containerId, _ext);
+    if (lf == null)
+      return f;
+
+    /* Not migrated yet, or the flat file got rewritten which broke the link
+     * (eg by the ObjC instances). Linked files share the date. lastModified()
+     * returns 0 for missing files. */
+    final long mtime  = f.lastModified();
+    final long lmtime = lf.lastModified();
+    if (lmtime > mtime)
+      return lf;
+    if (mtime > lmtime)
+      return f;
+    return this.preferLegacy && lmtime != 0 ? lf : f;
+  }
+
+  public File blobFileForWritingId
+    (Number _id, Number _containerId, String _ext)
+  {
+    if (_id == null)
+      return null;
+
+    final OGoFlatDirBlobStore legacy = this.legacyStore;
+    if (legacy != null && this.preferLegacy)
+      return legacy.blobFileForWritingId(_id, _containerId, _ext);
+
+    final Path p = this.shardedPathForId(_id, _ext);
+    return this.ensureDirectoryOfPath(p) == null ? p.toFile() : null;
+  }
+
+
+  /* streaming */
+
+  @Override
+  public long blobSizeForId(Number _id, Number _containerId, String _ext) {
+    final long size = super.blobSizeForId(_id, _containerId, _ext);
+    if (size >= 0 || _id == null || this.legacyStore == null)
+      return size;
+
+    /* the legacy file might have been moved by the migrator in between */
+    final File f = this.shardedPathForId(_id, _ext).toFile();
+    final long len = f.length();
+    return (len > 0 || f.isFile()) ? len : -1;
+  }
+
+  @Override
+  protected FileChannel openFileChannel
+    (final Number _id, final Number _containerId, final String _ext)
+    throws IOException
+  {
+    final File f = this.blobFileForId(_id, _containerId, _ext);
+    if (f == null)
+      throw new FileNotFoundException("no BLOB location for id: " + _id);
+
+    try {
+      return FileChannel.open(f.toPath(), StandardOpenOption.READ);
+    }
+    catch (final NoSuchFileException e) {
+      final Path p = this.shardedPathForId(_id, _ext);
+      if (this.legacyStore == null || p.equals(f.toPath()))
+        throw e;
+
+      /* the migrator linked the legacy file and removed it in between */
+      return FileChannel.open(p, StandardOpenOption.READ);
+    }
+  }
+
+
+  /* changes */
+
+  @Override
+  public IOGoBlobTransaction blobDeleteTransaction
+    (Number _id, Number _containerId, String _ext)
+  {
+    if (_id == null)
+      return null;
+
+    final IOGoBlobTransaction tx = new OGoFileDeleteTransaction(
+        this.shardedPathForId(_id, _ext).toFile());
+    final OGoFlatDirBlobStore legacy = this.legacyStore;
+    if (legacy == null)
+      return tx;
+
+    /* remove a not yet migrated (or linked) legacy file as well */
+    final IOGoBlobTransaction ltx =
+      legacy.blobDeleteTransaction(_id, _containerId, _ext);
+    return ltx != null ? new DeleteBothTransaction(tx, ltx) : tx;
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" root=");
+    _d.append(this.root);
+    if (this.legacyStore != null) {
+      _d.append(" legacy=");
+      _d.append(this.legacyStore.root());
+      if (this.preferLegacy)
+        _d.append(" prefer-legacy");
+    }
+  }
+
+
+  /* transactions */
+
+  /**
+   * Deletes the sharded and the legacy file.
+   */
+  protected static class DeleteBothTransaction extends Object
+    implements IOGoBlobTransaction
+  {
+    protected final IOGoBlobTransaction sharded;
+    protected final IOGoBlobTransaction legacy;
+
+    public DeleteBothTransaction
+      (final IOGoBlobTransaction _sharded, final IOGoBlobTransaction _legacy)
+    {
+      this.sharded = _sharded;
+      this.legacy  = _legacy;
+    }
+
+    public Exception perform() {
+      Exception error = this.sharded.perform();
+      if (error != null)
+        return error;
+      if ((error = this.legacy.perform()) != null) {
+        this.sharded.rollback();
+        return error;
+      }
+      return null;
+    }
+
+    public Exception commit() {
+      final Exception e1 = this.sharded.commit();
+      final Exception e2 = this.legacy.commit();
+      return e1 != null ? e1 : e2;
+    }
+
+    public Exception rollback() {
+      final Exception e1 = this.sharded.rollback();
+      final Exception e2 = this.legacy.rollback();
+      if (e1 != null || e2 != null)
+        return new NSException("could not rollback BLOB delete");
+      return null;
+    }
+  }
+}
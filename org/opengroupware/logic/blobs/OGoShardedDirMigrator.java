@@ -0,0 +1,353 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.blobs;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.foundation.NSException;
+import org.getobjects.foundation.NSObject;
+import org.opengroupware.logic.ops.OGoFileWriteTransaction;
+
+/**
+ * OGoShardedDirMigrator
+ * <p>
+ * Moves the BLOBs of the flat legacy directory of an OGoShardedDirBlobStore
+ * into the sharded layout, while the store is in use. Only files named
+ * '&lt;id&gt;.&lt;ext&gt;' are processed, so the defaults and pictures which
+ * live in the same directory, and the leftovers of file transactions, are
+ * left alone.
+ * <p>
+ * Files are never copied, they are hard-linked into the sharded tree. In the
+ * default mode the legacy name is removed afterwards (ie a rename which
+ * creates the target directory). With setKeepLegacy(true), used while
+ * OGo/ObjC instances still run, the legacy name stays and links which got
+ * broken by a rewrite of the legacy file are renewed.
+ * <p>
+ * If both files exist but are different (eg a note changed after it got
+ * linked), the legacy one wins in keepLegacy mode, otherwise the newer one
+ * (the store applies the same rule to reads while the legacy store is set).
+ * The migration can be repeated at any time. The legacy store must only be
+ * removed from the OGoShardedDirBlobStore after a pass with keepLegacy off
+ * completed (see isFinished()).
+ * <p>
+ * The migration is throttled (see setMaxFilesPerSecond()) so that it does not
+ * saturate the disk of a live system. It runs in a background daemon thread
+ * (start()) or in the calling thread (migrate()).
+ *
+ * <p>
+ * THREAD: start()/stop() and the counters are thread safe, migrate() must
+ * not be called concurrently.
+ *
+ * @author helge
+ */
+public class OGoShardedDirMigrator extends NSObject implements Runnable {
+  protected static final Log log = LogFactory.getLog("OGoBlobStore");
+
+  protected final OGoShardedDirBlobStore store;
+  protected final String ext;
+  protected volatile boolean keepLegacy;
+  protected volatile int     maxFilesPerSecond;
+
+  protected volatile Thread  thread;
+  protected volatile boolean stopRequested;
+  protected volatile boolean finished;
+
+  /* results */
+  protected volatile long migratedCount;
+  protected volatile long skippedCount;
+  protected volatile long errorCount;
+
+  public OGoShardedDirMigrator
+    (final OGoShardedDirBlobStore _store, final String _ext)
+  {
+    super();
+    this.store = _store;
+    this.ext   = _ext != null ? _ext : "txt";
+    this.maxFilesPerSecond = 200;
+  }
+
+
+  /* accessors */
+
+  /**
+   * If enabled, the legacy files are kept (for OGo/ObjC instances), only
+   * links are created in the sharded tree.
+   */
+  public void setKeepLegacy(final boolean _flag) {
+    this.keepLegacy = _flag;
+  }
+  public boolean keepLegacy() {
+    return this.keepLegacy;
+  }
+
+  /**
+   * Limits the number of files processed per second, 0 disables the limit.
+   * Can be changed while the migration runs.
+   */
+  public void setMaxFilesPerSecond(final int _count) {
+    this.maxFilesPerSecond = _count;
+  }
+  public int maxFilesPerSecond() {
+    return this.maxFilesPerSecond;
+  }
+
+  public long migratedCount() {
+    return this.migratedCount;
+  }
+  public long skippedCount() {
+    return this.skippedCount;
+  }
+  public long errorCount() {
+    return this.errorCount;
+  }
+
+  public boolean isRunning() {
+    return this.thread != null;
+  }
+  /**
+   * Returns true if the last pass processed the whole legacy directory.
+   */
+  public boolean isFinished() {
+    return this.finished;
+  }
+
+
+  /* background thread */
+
+  /**
+   * Starts a migration pass in a background daemon thread. Does nothing if
+   * the migration is already running.
+   */
+  public synchronized void start() {
+    if (this.thread != null)
+      return;
+
+    this.stopRequested = false;
+    this.thread = new Thread(this, "OGoShardedDirMigrator");
+    this.thread.setDaemon(true);
+    this.thread.setPriority(Thread.MIN_PRIORITY);
+    this.thread.start();
+  }
+
+  /**
+   * Asks the background thread to stop after the current file. A stopped
+   * migration can be restarted, it starts over (already migrated files are
+   * skipped quickly).
+   */
+  public void stop() {
+    this.stopRequested = true;
+    final Thread t = this.thread;
+    if (t != null)
+      t.interrupt();
+  }
+
+  public void run() {
+    try {
+      final Exception error = this.migrate();
+      if (error != null)
+        log.error("migration of legacy BLOBs failed: " + this.store, error);
+    }
+    finally {
+      synchronized (this) {
+        this.thread = null;
+      }
+    }
+  }
+
+
+  /* migration */
+
+  /**
+   * Processes all matching files of the legacy directory. Errors on
+   * individual files are logged and counted, the migration continues.
+   *
+   * @return null if the directory could be processed, the error otherwise
+   */
+  public Exception migrate() {
+    final OGoFlatDirBlobStore legacy = this.store.legacyStore();
+    if (legacy == null)
+      return new NSException("store has no legacy directory: " + this.store);
+
+    this.finished = false;
+    final long startTime = System.currentTimeMillis();
+    long count = 0;
+
+    /* a DirectoryStream, so that we never hold millions of names */
+    DirectoryStream<Path> dir = null;
+    try {
+      dir = Files.newDirectoryStream(legacy.root().toPath(), "*." + this.ext);
+      for (final Path p: dir) {
+        if (this.stopRequested) {
+          log.info("stopped migration of legacy BLOBs: " + this);
+          return null;
+        }
+        if (this.migrateFile(p))
+          count++;
+        if (!this.throttle(startTime, count))
+          return null; /* interrupted */
+      }
+    }
+    catch (final IOException e) {
+      log.error("could not scan legacy directory: " + legacy.root(), e);
+      return e;
+    }
+    finally {
+      if (dir != null) {
+        try { dir.close(); } catch (final IOException e) {}
+      }
+    }
+
+    this.finished = true;
+    log.info("migrated legacy BLOBs: " + this);
+    return null;
+  }
+
+  /**
+   * Sleeps if the pass is ahead of the configured rate.
+   *
+   * @return false if the thread got interrupted
+   */
+  protected boolean throttle(final long _startTime, final long _count) {
+    final int rate = this.maxFilesPerSecond;
+    if (rate <= 0)
+      return true;
+
+    final long ahead =
+      (_count * 1000 / rate) - (System.currentTimeMillis() - _startTime);
+    if (ahead < 10) /* avoid lots of tiny sleeps */
+      return true;
+    try {
+      Thread.sleep(ahead);
+    }
+    catch (final InterruptedException e) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Moves (or links) a single legacy file.
+   *
+   * @return true if the file was one of ours and got processed
+   */
+  protected boolean migrateFile(final Path _legacy) {
+    final String name = _legacy.getFileName().toString();
+    final Number id = OGoPackBlobStoreMigrator.idForFilename(name, this.ext);
+    if (id == null)
+      return false; /* not one of ours */
+
+    final Path target = this.store.shardedPathForId(id, this.ext);
+    try {
+      final Exception error = this.store.ensureDirectoryOfPath(target);
+      if (error != null)
+        throw error;
+
+      try {
+        Files.createLink(target, _legacy);
+        this.migratedCount++;
+      }
+      catch (final FileAlreadyExistsException e) {
+        /* already linked, or written to the sharded location */
+        if (Files.isSameFile(target, _legacy)) {
+          this.skippedCount++;
+        }
+        else if (this.keepLegacy ||
+                 Files.getLastModifiedTime(_legacy).compareTo(
+                   Files.getLastModifiedTime(target)) > 0)
+        {
+          /* the legacy file got rewritten (and is authoritative while the
+           * legacy files are kept), renew the link */
+          this.replaceWithLink(target, _legacy);
+          this.migratedCount++;
+        }
+        else
+          this.skippedCount++; /* the sharded one is newer */
+      }
+
+      if (!this.keepLegacy)
+        Files.deleteIfExists(_legacy);
+    }
+    catch (final NoSuchFileException e) {
+      /* deleted while we were looking at it */
+      this.skippedCount++;
+    }
+    catch (final Exception e) {
+      log.error("could not migrate legacy BLOB: " + _legacy, e);
+      this.errorCount++;
+    }
+    return true;
+  }
+
+  /**
+   * Atomically replaces the target with a link to the legacy file, by
+   * renaming a temporary link over it.
+   */
+  protected void replaceWithLink(final Path _target, final Path _legacy)
+    throws IOException
+  {
+    final Path tmp = _target.resolveSibling(_target.getFileName() + "-" +
+        Long.toHexString(ThreadLocalRandom.current().nextLong()) +
+        OGoFileWriteTransaction.tempFileSuffix);
+    Files.createLink(tmp, _legacy);
+    try {
+      Files.move(tmp, _target, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+    catch (final IOException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" store=");
+    _d.append(this.store.root());
+    _d.append(" ext=");
+    _d.append(this.ext);
+    if (this.keepLegacy)
+      _d.append(" keep-legacy");
+    if (this.thread != null)
+      _d.append(" running");
+    if (this.finished)
+      _d.append(" finished");
+    _d.append(" migrated=");
+    _d.append(this.migratedCount);
+    _d.append(" skipped=");
+    _d.append(this.skippedCount);
+    _d.append(" errors=");
+    _d.append(this.errorCount);
+  }
+}
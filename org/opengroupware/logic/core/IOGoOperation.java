@@ -66,6 +66,10 @@ public interface IOGoOperation
    *   <code>OGoOperationTransaction.requestPermissionOnId()</code>
    * or
    *   <code>OGoOperationTransaction.requestPermissionOnGlobalID()</code>
+   * <p>
+   * If the transaction gets retried (see OGoTransactionRetryPolicy), this is
+   * called again. Hence the method must not consume the requests of the
+   * operation and must reset the state it derives from them.
    * 
    * @param _tx  - the OGoObjectTransaction
    * @param _ctx - the OGoObjectContext
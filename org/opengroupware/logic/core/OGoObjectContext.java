@@ -22,10 +22,14 @@ package org.opengroupware.logic.core;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.security.auth.Subject;
 import javax.security.auth.login.LoginContext;
@@ -43,6 +47,7 @@ import org.getobjects.eocontrol.EOAndQualifier;
 import org.getobjects.eocontrol.EOEditingContext;
 import org.getobjects.eocontrol.EOFetchSpecification;
 import org.getobjects.eocontrol.EOGlobalID;
+import org.getobjects.eocontrol.EOKeyGlobalID;
 import org.getobjects.eocontrol.EOKeyValueQualifier;
 import org.getobjects.eocontrol.EONotQualifier;
 import org.getobjects.eocontrol.EOObjectStore;
@@ -78,6 +83,7 @@ import org.opengroupware.logic.db.OGoSessionLogs;
 import org.opengroupware.logic.db.OGoTasks;
 import org.opengroupware.logic.db.OGoTeams;
 import org.opengroupware.logic.ops.OGoOperationTransaction;
+import org.opengroupware.logic.ops.OGoTransactionRetryPolicy;
 
 /**
  * OGoObjectContext
@@ -131,9 +137,15 @@ public class OGoObjectContext extends EOEditingContext {
   protected Map<EOGlobalID,String> gidToPermission;
   protected boolean                autoFetchPermissions;
   protected boolean                autoApplyPermissions;
+  protected int                    lockTimeoutInMS = -1;
+  protected OGoTransactionRetryPolicy retryPolicy;
 
   protected Number   actorID;
   protected Number[] authenticatedIDs;
+  
+  /* reuse (OGoObjectContextPool) */
+  protected long     permissionsJournalPosition;
+  protected int      permissionsTeamsVersion;
 
   public OGoObjectContext(EOObjectStore _parentStore, LoginContext _login) {
     super(_parentStore);
@@ -153,6 +165,125 @@ public class OGoObjectContext extends EOEditingContext {
     this.gidToPermission = new HashMap<EOGlobalID, String>(128);
     this.autoFetchPermissions = true;
     this.autoApplyPermissions = true;
+    
+    this.rememberPermissionsPosition();
+  }
+  
+  
+  /* reuse */
+  
+  /**
+   * Prepares the context for another unit of work, this is called by the
+   * OGoObjectContextPool when a context gets checked out again.
+   * <p>
+   * The context is reset, that is, all registered objects are dropped. The
+   * cached actor and authenticated IDs are kept (the LoginContext is the same).
+   * <p>
+   * Cached permissions are kept, except for the objects which got ACL
+   * changes or got deleted since the context was last used (by any context or
+   * node, see OGoACLChangeJournal). All permissions are dropped if the team
+   * memberships changed, or if a transaction did not report its changes.
+   */
+  public void prepareForReuse() {
+    this.reset();
+    
+    final OGoDatabase db = this.oDatabase();
+    if (db == null) {
+      this.invalidatePermissions();
+      return;
+    }
+    
+    /* grab the position first, records added meanwhile are seen next time */
+    final long position     = db.aclChangeJournal().position();
+    final int  teamsVersion = db.teamMembershipIndex().version();
+    if (teamsVersion != this.permissionsTeamsVersion)
+      this.invalidatePermissions();
+    else if (position != this.permissionsJournalPosition) {
+      final Set<EOGlobalID> gids = db.aclChangeJournal()
+        .globalIDsChangedSince(this.permissionsJournalPosition);
+      if (gids == null)
+        this.invalidatePermissions();
+      else
+        this.invalidateGlobalIDs(null, gids);
+    }
+    this.permissionsJournalPosition = position;
+    this.permissionsTeamsVersion    = teamsVersion;
+  }
+  
+  protected void rememberPermissionsPosition() {
+    final OGoDatabase db = this.oDatabase();
+    if (db == null)
+      return;
+    this.permissionsJournalPosition = db.aclChangeJournal().position();
+    this.permissionsTeamsVersion    = db.teamMembershipIndex().version();
+  }
+  
+  /**
+   * Drops the cached permissions of the context. Called after operations got
+   * committed, the changes might have affected ACLs.
+   */
+  public void invalidatePermissions() {
+    if (this.gidToPermission != null)
+      this.gidToPermission.clear();
+  }
+  
+  /**
+   * The entities other objects derive their permissions from (eg the
+   * permissions of a phone number depend on the contact, the ones of a note
+   * on the project).
+   */
+  protected static final Set<String> permissionRootEntityNames =
+    new HashSet<String>(Arrays.asList(new String[] {
+      "Persons", "Companies", "Teams", "Accounts", "Projects"
+    }));
+  
+  /**
+   * Called after a transaction got committed, to drop the changed objects
+   * from the context. The objects are forgotten, that is, the next fetch will
+   * register a fresh copy. Other objects stay registered.
+   * <p>
+   * The cached permissions of the ACL-changed objects are dropped. If one of
+   * those is a permission root (a contact or a project), the permissions of
+   * all objects which are not roots are dropped as well (because they might
+   * derive their permissions from the changed object).
+   * 
+   * @param _gids    - the global-ids of the changed objects
+   * @param _aclGIDs - the global-ids of objects whose permissions changed
+   */
+  public void invalidateGlobalIDs
+    (final Collection<EOGlobalID> _gids, final Collection<EOGlobalID> _aclGIDs)
+  {
+    if (_gids != null) {
+      for (final EOGlobalID gid: _gids) {
+        final Object eo = this.objectForGlobalID(gid);
+        if (eo != null)
+          this.forgetObject(eo);
+      }
+    }
+    
+    if (_aclGIDs == null || _aclGIDs.size() == 0 ||
+        this.gidToPermission == null || this.gidToPermission.size() == 0)
+      return;
+    
+    boolean dropDerived = false;
+    for (final EOGlobalID gid: _aclGIDs) {
+      this.gidToPermission.remove(gid);
+      if (!dropDerived && isPermissionRoot(gid))
+        dropDerived = true;
+    }
+    
+    if (dropDerived) {
+      final Iterator<EOGlobalID> it = this.gidToPermission.keySet().iterator();
+      while (it.hasNext()) {
+        if (!isPermissionRoot(it.next()))
+          it.remove();
+      }
+    }
+  }
+  
+  protected static boolean isPermissionRoot(final EOGlobalID _gid) {
+    return _gid instanceof EOKeyGlobalID &&
+      permissionRootEntityNames.contains(((EOKeyGlobalID)_gid).entityName());
   }
   
   /* authentication */
@@ -249,6 +380,35 @@ public class OGoObjectContext extends EOEditingContext {
   }
   
   
+  /* locking */
+  
+  /**
+   * Sets the lock timeout used by the transactions of performOperations(),
+   * see OGoOperationTransaction.setLockTimeout() for the possible values.
+   * 
+   * @param _ms - -1 to wait for locks, 0 for NOWAIT, otherwise a timeout
+   */
+  public void setLockTimeout(final int _ms) {
+    this.lockTimeoutInMS = _ms;
+  }
+  public int lockTimeout() {
+    return this.lockTimeoutInMS;
+  }
+  
+  /**
+   * Sets the policy used to retry transactions which failed due to
+   * deadlocks or serialization failures. Per default no retries are done.
+   * 
+   * @param _policy - the retry policy, or null to disable retries
+   */
+  public void setRetryPolicy(final OGoTransactionRetryPolicy _policy) {
+    this.retryPolicy = _policy;
+  }
+  public OGoTransactionRetryPolicy retryPolicy() {
+    return this.retryPolicy;
+  }
+  
+  
   /* access to underlying database */
   
   public EODatabase database() {
@@ -417,7 +577,14 @@ public class OGoObjectContext extends EOEditingContext {
    * OGoOperationTransaction to maintain the process, check that class for
    * details.
    * <p>
-   * After the operation the permission cache is cleared.
+   * After the commit, the objects and permissions reported by the operations
+   * are dropped from the context (see invalidateGlobalIDs()).
+   * <p>
+   * If a retry policy is set, transactions which failed due to deadlocks or
+   * serialization failures are run again (see OGoTransactionRetryPolicy).
+   * The context is reset before each retry and the operations are prepared
+   * again, hence prepareForTransactionInContext() must not consume the
+   * requests of an operation.
    * 
    * @param _ops - an array of operations to be performed
    * @return an Exception on error, or null if everything went fine
@@ -426,13 +593,24 @@ public class OGoObjectContext extends EOEditingContext {
     if (_ops == null || _ops.length == 0)
       return null; /* nothing to be done */
     
-    final OGoOperationTransaction tx = new OGoOperationTransaction(this, _ops);
-    final Exception error = tx.run();
-    
-    if (this.gidToPermission != null) {
-      /* we assume that changes might change permissions ... */
-      this.gidToPermission.clear();
+    final OGoTransactionRetryPolicy policy = this.retryPolicy;
+    Exception error;
+    int attempt = 0;
+    do {
+      /* each attempt prepares the ops and checks the permissions again */
+      if (attempt > 0) {
+        /* drop the objects and permissions fetched by the rolled back
+         * attempt, the operations fetch fresh copies */
+        this.reset();
+        this.invalidatePermissions();
+      }
+      attempt++;
+      final OGoOperationTransaction tx =
+        new OGoOperationTransaction(this, _ops);
+      tx.setLockTimeout(this.lockTimeoutInMS);
+      error = tx.run();
     }
+    while (policy != null && policy.shouldRetry(error, attempt, _ops));
     
     return error;
   }
@@ -440,8 +618,6 @@ public class OGoObjectContext extends EOEditingContext {
    * This applies operations to the OGo database. It uses the
    * OGoOperationTransaction to maintain the process, check that class for
    * details.
-   * <p>
-   * After the operation the permission cache is cleared.
    * 
    * @param _ops - the operations to be performed
    * @return an Exception on error, or null if everything went fine
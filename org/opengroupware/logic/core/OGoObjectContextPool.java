@@ -0,0 +1,276 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.login.LoginContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.eoaccess.EODatabaseContext;
+import org.getobjects.foundation.NSObject;
+import org.opengroupware.logic.db.OGoDatabase;
+
+/**
+ * OGoObjectContextPool
+ * <p>
+ * A small pool of OGoObjectContext objects which belong to the same
+ * LoginContext, usually the one of a web session.
+ * Instead of creating a fresh EODatabaseContext and OGoObjectContext for each
+ * request, a context is checked out at the beginning of the request and
+ * checked in at the end of it.
+ * <p>
+ * Checked in contexts are reset (the object graph is dropped), but they keep
+ * their resolved authentication IDs and their cached permissions, minus the
+ * ones affected by transactions committed in the meantime.
+ * See OGoObjectContext.prepareForReuse().
+ * <p>
+ * The pool tracks the contexts which are checked out. Contexts which are not
+ * returned within the leak timeout are reported (with the stack of the
+ * checkout if debug logging is enabled) and forgotten.
+ *
+ * <p>
+ * Example:<pre>
+ *   OGoObjectContext oc = pool.checkout(db, lc);
+ *   try {
+ *     ...
+ *   }
+ *   finally {
+ *     pool.checkin(oc);
+ *   }</pre>
+ *
+ * <p>
+ * THREAD: the pool itself is thread safe, the contexts are not.
+ *
+ * @author helge
+ */
+public class OGoObjectContextPool extends NSObject {
+  protected static final Log log = LogFactory.getLog("OGoObjectContextPool");
+
+  protected final int  maxIdleContexts;
+  protected final long leakTimeoutInMS;
+
+  protected final ArrayDeque<OGoObjectContext>        idleContexts;
+  protected final Map<OGoObjectContext, CheckoutInfo> checkedOutContexts;
+
+  /* statistics */
+  protected int createCount;
+  protected int reuseCount;
+  protected int leakCount;
+
+  public OGoObjectContextPool(final int _maxIdle, final long _leakTimeoutInMS) {
+    super();
+    this.maxIdleContexts    = _maxIdle;
+    this.leakTimeoutInMS    = _leakTimeoutInMS;
+    this.idleContexts       = new ArrayDeque<OGoObjectContext>(_maxIdle);
+    this.checkedOutContexts =
+      new IdentityHashMap<OGoObjectContext, CheckoutInfo>(4);
+  }
+  public OGoObjectContextPool() {
+    this(2 /* idle contexts */, 10 * 60 * 1000 /* 10 minutes */);
+  }
+
+
+  /* accessors */
+
+  public int maxIdleContexts() {
+    return this.maxIdleContexts;
+  }
+  public long leakTimeoutInMS() {
+    return this.leakTimeoutInMS;
+  }
+
+  public synchronized int idleCount() {
+    return this.idleContexts.size();
+  }
+  public synchronized int checkedOutCount() {
+    return this.checkedOutContexts.size();
+  }
+
+
+  /* checkout / checkin */
+
+  /**
+   * Returns an OGoObjectContext for the given database and LoginContext. If
+   * the pool has an idle context for the same combination, that is prepared
+   * for reuse and returned. Otherwise a new context is created.
+   * <p>
+   * The caller must return the context using checkin().
+   *
+   * @param _db - the OGoDatabase
+   * @param _lc - the JAAS LoginContext of the user
+   * @return an OGoObjectContext, or null if _db is null
+   */
+  public OGoObjectContext checkout
+    (final OGoDatabase _db, final LoginContext _lc)
+  {
+    if (_db == null)
+      return null;
+
+    this.checkForLeaks();
+
+    OGoObjectContext oc = null;
+    synchronized (this) {
+      /* Note: idle contexts for other logins are just dropped */
+      while (oc == null && !this.idleContexts.isEmpty()) {
+        final OGoObjectContext idle = this.idleContexts.pop();
+        if (idle.loginContext() == _lc && idle.oDatabase() == _db)
+          oc = idle;
+      }
+      if (oc != null)
+        this.reuseCount++;
+      else
+        this.createCount++;
+    }
+
+    if (oc != null)
+      oc.prepareForReuse();
+    else
+      oc = new OGoObjectContext(new EODatabaseContext(_db), _lc);
+
+    synchronized (this) {
+      this.checkedOutContexts.put(oc, new CheckoutInfo(log.isDebugEnabled()));
+    }
+    return oc;
+  }
+
+  /**
+   * Returns a context to the pool. The context is reset (its objects are
+   * dropped) and kept for reuse if the pool is not full yet.
+   *
+   * @param _oc - the OGoObjectContext which got returned by checkout()
+   * @return true if the context was known to the pool, false otherwise
+   */
+  public boolean checkin(final OGoObjectContext _oc) {
+    if (_oc == null)
+      return false;
+
+    synchronized (this) {
+      if (this.checkedOutContexts.remove(_oc) == null) {
+        log.warn("attempt to checkin a context which is not checked out: " +
+            _oc);
+        return false;
+      }
+    }
+
+    _oc.reset(); /* release the objects early, permissions are kept */
+
+    synchronized (this) {
+      if (this.idleContexts.size() < this.maxIdleContexts)
+        this.idleContexts.push(_oc);
+    }
+    return true;
+  }
+
+  /**
+   * Removes all idle contexts from the pool.
+   */
+  public synchronized void clear() {
+    this.idleContexts.clear();
+  }
+
+
+  /* leak detection */
+
+  /**
+   * Scans the checked out contexts for ones which have been checked out for
+   * longer than the leak timeout. Those are logged and removed from the
+   * tracking table (so that they can be collected).
+   *
+   * @return the number of leaked contexts which got detected
+   */
+  public int checkForLeaks() {
+    if (this.leakTimeoutInMS <= 0)
+      return 0;
+
+    final long now = System.currentTimeMillis();
+    List<CheckoutInfo> leaks = null;
+
+    synchronized (this) {
+      final Iterator<Map.Entry<OGoObjectContext, CheckoutInfo>> it =
+        this.checkedOutContexts.entrySet().iterator();
+      while (it.hasNext()) {
+        final CheckoutInfo info = it.next().getValue();
+        if ((now - info.checkoutTime) < this.leakTimeoutInMS)
+          continue;
+
+        if (leaks == null) leaks = new ArrayList<CheckoutInfo>(2);
+        leaks.add(info);
+        it.remove();
+      }
+      if (leaks != null)
+        this.leakCount += leaks.size();
+    }
+
+    if (leaks == null)
+      return 0;
+
+    for (final CheckoutInfo info: leaks) {
+      log.warn("OGoObjectContext was not returned to the pool, checked out " +
+          "at: " + new Date(info.checkoutTime), info.checkoutStack);
+    }
+    return leaks.size();
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    synchronized (this) {
+      _d.append(" idle=");
+      _d.append(this.idleContexts.size());
+      _d.append(" out=");
+      _d.append(this.checkedOutContexts.size());
+      _d.append(" created=");
+      _d.append(this.createCount);
+      _d.append(" reused=");
+      _d.append(this.reuseCount);
+      if (this.leakCount > 0) {
+        _d.append(" leaked=");
+        _d.append(this.leakCount);
+      }
+    }
+  }
+
+
+  /* checkout record */
+
+  protected static class CheckoutInfo extends Object {
+    protected final long      checkoutTime;
+    protected final Throwable checkoutStack; /* only if debugging is on */
+
+    public CheckoutInfo(final boolean _recordStack) {
+      this.checkoutTime  = System.currentTimeMillis();
+      this.checkoutStack = _recordStack
+        ? new Throwable("OGoObjectContext checkout") : null;
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.db;
+
+import java.util.List;
+
+/**
+ * IOGoChangeBusTransport
+ * <p>
+ * Distributes the change records of an OGoChangeBus to the buses of other
+ * nodes (other JVMs using the same OGo database). Received records are passed
+ * to OGoChangeBus.receiveRemoteChanges().
+ * <p>
+ * Implementations:
+ * <ul>
+ *   <li>OGoPostgreSQLChangeTransport - uses LISTEN/NOTIFY (the default)
+ *   <li>OGoLoopbackChangeTransport   - in-memory, for tests
+ * </ul>
+ *
+ * @author helge
+ */
+public interface IOGoChangeBusTransport {
+
+  /**
+   * Starts the transport, eg opens the connection and starts listening.
+   *
+   * @param _bus - the bus which receives the remote records
+   * @return null if the transport got started, the error otherwise
+   */
+  public Exception start(OGoChangeBus _bus);
+
+  /**
+   * Stops the transport for the given bus and releases its resources.
+   */
+  public void stop(OGoChangeBus _bus);
+
+  /**
+   * Sends the change records of a committed transaction to the other nodes.
+   *
+   * @param _nodeId  - the id of the sending bus
+   * @param _changes - the change records
+   * @return null if the records got sent, the error otherwise
+   */
+  public Exception send(String _nodeId, List<OGoChangeRecord> _changes);
+
+}
@@ -0,0 +1,52 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.db;
+
+import java.util.List;
+
+/**
+ * IOGoChangeListener
+ * <p>
+ * Subscribers of the OGoChangeBus implement this interface, usually to
+ * invalidate cached objects or permissions.
+ *
+ * <p>
+ * THREAD: the listener is called from the thread which committed the
+ * transaction (local changes), or from the receiver thread of the transport
+ * (remote changes). Implementations must be thread safe and should return
+ * quickly.
+ *
+ * @author helge
+ */
+public interface IOGoChangeListener {
+
+  /**
+   * Called after a transaction got committed, in this process or on another
+   * node.
+   *
+   * @param _bus      - the OGoChangeBus
+   * @param _changes  - the change records of the transaction
+   * @param _isRemote - true if the transaction was committed by another node
+   */
+  public void objectsDidChange
+    (OGoChangeBus _bus, List<OGoChangeRecord> _changes, boolean _isRemote);
+
+}
@@ -0,0 +1,140 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.db;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.getobjects.eocontrol.EOGlobalID;
+import org.getobjects.foundation.NSObject;
+
+/**
+ * OGoACLChangeJournal
+ * <p>
+ * Remembers the most recent OGoChangeRecord's which might have changed
+ * permissions (ACL changes, deletes and unknown changes), local and remote
+ * ones. The records are numbered, caches remember the position() they were
+ * filled at and later ask for the objects changed since then.
+ * <p>
+ * This is used by pooled OGoObjectContext's to drop only the affected cached
+ * permissions when they get reused, instead of all of them.
+ * <p>
+ * The journal is a fixed size ring. If a cache is so old that the records
+ * it needs got overwritten, it must drop everything.
+ *
+ * <p>
+ * THREAD: the journal is thread safe.
+ *
+ * @author helge
+ */
+public class OGoACLChangeJournal extends NSObject
+  implements IOGoChangeListener
+{
+  protected final OGoChangeRecord[] records;
+  protected long position; /* number of records added so far */
+
+  public OGoACLChangeJournal(final int _capacity) {
+    super();
+    this.records = new OGoChangeRecord[_capacity > 0 ? _capacity : 1];
+  }
+
+
+  /* accessors */
+
+  public int capacity() {
+    return this.records.length;
+  }
+
+  /**
+   * Returns the position after the last record of the journal. Pass it to
+   * globalIDsChangedSince() later on.
+   */
+  public synchronized long position() {
+    return this.position;
+  }
+
+
+  /* IOGoChangeListener */
+
+  public void objectsDidChange
+    (final OGoChangeBus _bus, final List<OGoChangeRecord> _changes,
+     final boolean _isRemote)
+  {
+    synchronized (this) {
+      for (final OGoChangeRecord change: _changes) {
+        if (!affectsPermissions(change))
+          continue;
+        this.records[(int)(this.position % this.records.length)] = change;
+        this.position++;
+      }
+    }
+  }
+
+  protected static boolean affectsPermissions(final OGoChangeRecord _change) {
+    final char kind = _change.kind();
+    return kind == OGoChangeRecord.ACL || kind == OGoChangeRecord.DELETE ||
+           kind == OGoChangeRecord.UNKNOWN;
+  }
+
+
+  /* queries */
+
+  /**
+   * Returns the global-ids of the objects whose permissions might have
+   * changed since the given position.
+   *
+   * @param _pos - the position() the caller got earlier
+   * @return the global-ids, or null if everything must be dropped (unknown
+   *   changes, or the records got overwritten)
+   */
+  public synchronized Set<EOGlobalID> globalIDsChangedSince(final long _pos) {
+    if (_pos < 0 || _pos > this.position)
+      return null;
+    if (this.position - _pos > this.records.length)
+      return null; /* overwritten */
+
+    final Set<EOGlobalID> gids =
+      new HashSet<EOGlobalID>((int)(this.position - _pos) + 1);
+    for (long i = _pos; i < this.position; i++) {
+      final OGoChangeRecord change =
+        this.records[(int)(i % this.records.length)];
+      final EOGlobalID gid = change.globalID();
+      if (gid == null)
+        return null; /* unknown changes */
+      gids.add(gid);
+    }
+    return gids;
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" position=");
+    _d.append(this.position);
+    _d.append(" capacity=");
+    _d.append(this.records.length);
+  }
+}
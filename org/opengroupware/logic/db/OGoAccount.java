@@ -21,6 +21,8 @@
 package org.opengroupware.logic.db;
 
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
@@ -28,6 +30,8 @@ import org.apache.commons.logging.LogFactory;
 import org.getobjects.eoaccess.EOEntity;
 import org.getobjects.eocontrol.EODataSource;
 import org.getobjects.eocontrol.EOFetchSpecification;
+import org.getobjects.eocontrol.EOKeyValueQualifier;
+import org.getobjects.eocontrol.EOQualifier.ComparisonOperation;
 import org.getobjects.foundation.UString;
 
 /**
@@ -56,6 +60,7 @@ public class OGoAccount extends OGoContact
   protected List<OGoTeam> teams;
   protected Number[]      teamIDs;
   protected Number[]      authIDs;
+  protected int           teamsVersion; /* OGoTeamMembershipIndex version */
   
   /* ctor */
 
@@ -93,43 +98,101 @@ public class OGoAccount extends OGoContact
     return teamsDS;
   }
   
+  /**
+   * Returns the shared membership index of the database, or null if the
+   * account is not attached to an OGoDatabase.
+   */
+  protected OGoTeamMembershipIndex teamMembershipIndex() {
+    final OGoDatabase db = this.oDatabase();
+    return db != null ? db.teamMembershipIndex() : null;
+  }
+  
+  /**
+   * Checks whether the cached team information was derived from the current
+   * version of the membership index, and resets the caches if not.
+   */
+  protected void expireTeamCachesIfNecessary(OGoTeamMembershipIndex _idx) {
+    if (_idx == null || _idx.version() == this.teamsVersion)
+      return;
+    
+    this.teams   = null;
+    this.teamIDs = null;
+    this.authIDs = null;
+  }
+  
   // TODO: if we want to support recursive teams, we need to do some work here
   
   @SuppressWarnings("unchecked")
   public List<OGoTeam> teams() {
     if (log.isDebugEnabled()) log.debug("fetch teams for: " + this.id);
     
+    final OGoTeamMembershipIndex idx = this.teamMembershipIndex();
+    this.expireTeamCachesIfNecessary(idx);
+    
     if (this.teams == null) {
-      // TBD: expire caches
-      this.teams = this.qualifiedTeamDataSource().fetchObjects();
-      this.teamIDs = null; /* keep those consistent */
+      final Number[] lTeamIDs = this.teamIDs();
+      if (lTeamIDs == null)
+        this.teams = this.qualifiedTeamDataSource().fetchObjects();
+      else if (lTeamIDs.length == 0)
+        this.teams = new ArrayList<OGoTeam>(0);
+      else {
+        /* we know the IDs, just fetch the team records by primary key */
+        final OGoTeams teamsDS = this.oDatabase().teams();
+        teamsDS.setFetchSpecification(new EOFetchSpecification(
+            teamsDS.entity().name(),
+            new EOKeyValueQualifier("id", ComparisonOperation.CONTAINS,
+                                    Arrays.asList(lTeamIDs)),
+            null /* orderings */));
+        this.teams = teamsDS.fetchObjects();
+      }
     }
     return this.teams;
   }
   
+  /**
+   * Returns the IDs of the teams the account is a member of. The IDs are
+   * retrieved from the OGoTeamMembershipIndex of the database, that is, this
+   * is a plain memory lookup.
+   * 
+   * @return the IDs of the teams of the account
+   */
   @SuppressWarnings("unchecked")
   public Number[] teamIDs() {
-    // TBD: expire caches
+    final OGoTeamMembershipIndex idx = this.teamMembershipIndex();
+    this.expireTeamCachesIfNecessary(idx);
+    
     if (this.teamIDs != null)
       return this.teamIDs;
     
+    /* grab the version first, an invalidation during the lookup wins */
+    final int version = idx != null ? idx.version() : 0;
+    if (idx != null) {
+      final Number[] ids = idx.teamIdsForAccountId(this.id());
+      if (ids != null) {
+        this.teamIDs      = ids.clone(); /* index arrays are shared */
+        this.teamsVersion = version;
+        return this.teamIDs;
+      }
+    }
+    
+    /* no index, or the account is missing in it: fallback to a fetch */
+    
     if (log.isDebugEnabled()) log.debug("fetch team ids for: " + this.id);
     
-    // TODO: if we have the teams, extract the IDs from that
-    List<OGoTeam> lTeams = this.teams;
-    if (lTeams == null) {
-      EODataSource         ds = this.qualifiedTeamDataSource();
-      EOFetchSpecification fs = ds.fetchSpecification();
-      fs.setFetchAttributeNames(new String[] { "id" });
+    EODataSource         ds = this.qualifiedTeamDataSource();
+    EOFetchSpecification fs = ds.fetchSpecification();
+    fs.setFetchAttributeNames(new String[] { "id" });
     
-      lTeams = ds.fetchObjects();
-    }
+    final List<OGoTeam> lTeams = ds.fetchObjects();
     
     /* extract IDs (if List supports KVC this is a simple vFK("id") ... */
     if (lTeams != null) {
       this.teamIDs = new Integer[lTeams.size()];
       for (int i = 0; i < lTeams.size(); i++)
         this.teamIDs[i] = lTeams.get(i).id();
+      
+      /* expire the fetched IDs along with the index */
+      if (idx != null) this.teamsVersion = version;
     }
     return this.teamIDs;
   }
@@ -142,6 +205,8 @@ public class OGoAccount extends OGoContact
    * may access an object. 
    */
   public Number[] authIDs() {
+    this.expireTeamCachesIfNecessary(this.teamMembershipIndex());
+    
     if (this.authIDs != null)
       return this.authIDs;
     
@@ -151,7 +216,8 @@ public class OGoAccount extends OGoContact
       new Integer[(lTeamIDs != null) ? (lTeamIDs.length + 1) : 1];
     
     this.authIDs[0] = this.id();
-    System.arraycopy(lTeamIDs, 0, this.authIDs, 1, lTeamIDs.length);
+    if (lTeamIDs != null)
+      System.arraycopy(lTeamIDs, 0, this.authIDs, 1, lTeamIDs.length);
     
     return this.authIDs;
   }
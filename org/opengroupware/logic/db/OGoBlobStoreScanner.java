@@ -0,0 +1,1117 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.eoaccess.EOAdaptor;
+import org.getobjects.eoaccess.EOAdaptorChannel;
+import org.getobjects.eoaccess.EOAttribute;
+import org.getobjects.eoaccess.EOEntity;
+import org.getobjects.eoaccess.EOSQLExpression;
+import org.getobjects.foundation.NSException;
+import org.getobjects.foundation.NSObject;
+import org.opengroupware.logic.blobs.IOGoBlobStore;
+import org.opengroupware.logic.blobs.OGoFlatDirBlobStore;
+import org.opengroupware.logic.blobs.OGoRangeDirBlobStore;
+import org.opengroupware.logic.blobs.OGoShardedDirBlobStore;
+import org.opengroupware.logic.ops.OGoFileWriteTransaction;
+
+/**
+ * OGoBlobStoreScanner
+ * <p>
+ * Checks a directory based BLOB store against the database and reports (or
+ * repairs) the inconsistencies:
+ * <ul>
+ *   <li>leftovers of crashed file transactions ('-txwrite', '-txdel' files)
+ *   <li>orphans, ie files of objects which do not exist in the database
+ *   <li>misplaced files, ie files of existing objects which are not where
+ *       the store expects them (eg a different project or extension)
+ *   <li>dangling rows, ie objects whose BLOB is missing
+ * </ul>
+ * <p>
+ * The scan runs in two phases. First the directories of the store are walked
+ * in parallel (a ForkJoinPool task per directory), the ids of the BLOB files
+ * are collected per directory and sorted. Then the ids of the database
+ * objects are fetched in primary key order (in pages, each page is a short
+ * statement, no long running transaction) and merge-joined with the files
+ * (a k-way merge over the sorted directories). Memory is bounded by the
+ * number of files (one long per file), not by the names.
+ * <p>
+ * The walk only stat()s directory entries above the level of the BLOB
+ * files, and it is throttled (see setMaxEntriesPerSecond() and
+ * setParallelism()) so that it can run against a live store.
+ * <p>
+ * Files younger than the grace period (default: one hour) are never
+ * repaired, they might belong to a transaction which is still running.
+ * Repairs:
+ * <ul>
+ *   <li>'-txwrite' files are deleted
+ *   <li>'-txdel' files are renamed back if the object still exists and the
+ *       file is missing, or deleted if the object does not exist anymore
+ *   <li>orphans are renamed to '&lt;name&gt;-orphan', so that an admin can
+ *       review (and then remove) them
+ *   <li>misplaced files are only reported, the object still exists
+ *   <li>dangling rows are only reported, the content is gone
+ * </ul>
+ * <p>
+ * Usage:<pre>
+ *   java org.opengroupware.logic.db.OGoBlobStoreScanner \
+ *     jdbc:postgresql://localhost/OGo /var/lib/opengroupware.org/documents \
+ *     notes|documents [-repair]</pre>
+ *
+ * <p>
+ * THREAD: a scanner is not thread safe, run one scan at a time.
+ *
+ * @author helge
+ */
+public class OGoBlobStoreScanner extends NSObject {
+  protected static final Log log = LogFactory.getLog("OGoBlobStore");
+
+  public static final String orphanSuffix = "-orphan";
+  protected static final String txdelSuffix = "-txdel";
+  protected static final int maxReportedItems = 10000;
+
+  protected final OGoDatabase   db;
+  protected final IOGoBlobStore store;
+  protected final File          root;
+  protected final String[]      entityNames;
+
+  /* layout of the store */
+  protected int     minDepth;
+  protected int     maxDepth;
+  protected String  extension; /* only files with this ext, null for all */
+  protected boolean numericDirectoriesOnly;
+
+  /* options */
+  protected boolean repair;
+  protected long    graceMillis;
+  protected int     parallelism;
+  protected int     pageSize;
+  protected volatile int maxEntriesPerSecond;
+
+  /* walk state */
+  protected ConcurrentLinkedQueue<DirectoryResult> directories;
+  protected ConcurrentLinkedQueue<Leftover> leftovers;
+  protected final ConcurrentHashMap<String, Integer> extToIndex;
+  protected final List<String> indexToExt;
+  protected final Object throttleLock = new Object();
+  protected long nextThrottleSlot;
+  protected volatile boolean interrupted;
+
+  /* results */
+  protected long fileCount;
+  protected long rowCount;
+  protected long orphanCount;
+  protected long misplacedCount;
+  protected long danglingCount;
+  protected long leftoverCount;
+  protected long repairCount;
+  protected long errorCount;
+  protected final List<File>   orphanFiles;
+  protected final List<File>   misplacedFiles;
+  protected final List<Number> danglingIds;
+  protected final List<File>   leftoverFiles;
+
+  /**
+   * Creates a scanner for the given store layout.
+   *
+   * @param _db       - the database containing the objects
+   * @param _store    - the store, used to check dangling rows
+   * @param _root     - the root directory of the store
+   * @param _minDepth - the minimum directory depth of a BLOB (1 = in root)
+   * @param _maxDepth - the maximum directory depth of a BLOB
+   * @param _entityNames - the entities whose objects are stored
+   */
+  public OGoBlobStoreScanner
+    (final OGoDatabase _db, final IOGoBlobStore _store, final File _root,
+     final int _minDepth, final int _maxDepth, final String... _entityNames)
+  {
+    super();
+    this.db          = _db;
+    this.store       = _store;
+    this.root        = _root;
+    this.minDepth    = _minDepth;
+    this.maxDepth    = _maxDepth;
+    this.entityNames = _entityNames;
+
+    this.graceMillis         = 60 * 60 * 1000;
+    this.parallelism         = 4;
+    this.pageSize            = 10000;
+    this.maxEntriesPerSecond = 20000;
+
+    this.extToIndex = new ConcurrentHashMap<String, Integer>(64);
+    this.indexToExt = new ArrayList<String>(64);
+
+    this.orphanFiles    = new ArrayList<File>(16);
+    this.misplacedFiles = new ArrayList<File>(16);
+    this.danglingIds   = new ArrayList<Number>(16);
+    this.leftoverFiles = new ArrayList<File>(16);
+  }
+
+  /**
+   * Returns a scanner for the notes store of the database, or null if the
+   * store is not directory based (eg an OGoPackBlobStore).
+   * Note: for an OGoShardedDirBlobStore only the sharded files are checked,
+   * the migration should be complete.
+   */
+  public static OGoBlobStoreScanner notesScanner(final OGoDatabase _db) {
+    final IOGoBlobStore bs = _db.notesStore();
+    OGoBlobStoreScanner scanner = null;
+
+    if (bs instanceof OGoFlatDirBlobStore) {
+      scanner = new OGoBlobStoreScanner(_db, bs,
+          ((OGoFlatDirBlobStore)bs).root(), 1, 1, "Notes");
+    }
+    else if (bs instanceof OGoShardedDirBlobStore) {
+      scanner = new OGoBlobStoreScanner(_db, bs,
+          ((OGoShardedDirBlobStore)bs).root(), 3, 3, "Notes");
+    }
+    else {
+      log.warn("cannot scan notes store, not directory based: " + bs);
+      return null;
+    }
+
+    /* the flat directory also contains defaults and pictures */
+    scanner.setExtension("txt");
+    return scanner;
+  }
+
+  /**
+   * Returns a scanner for the documents store of the database, or null if
+   * the store is not an OGoRangeDirBlobStore.
+   * <p>
+   * Documents are stored as 'project/range/id.ext' (or 'range/id.ext' if they
+   * are not part of a project), only numeric directories are walked. This
+   * skips other stores living in the same root.
+   */
+  public static OGoBlobStoreScanner documentsScanner(final OGoDatabase _db) {
+    final IOGoBlobStore bs = _db.docsStore();
+    if (!(bs instanceof OGoRangeDirBlobStore)) {
+      log.warn("cannot scan documents store, not range based: " + bs);
+      return null;
+    }
+
+    final OGoBlobStoreScanner scanner = new OGoBlobStoreScanner(_db, bs,
+        ((OGoRangeDirBlobStore)bs).root(), 2, 3,
+        "Documents", "DocumentVersions", "DocumentEditings");
+    scanner.setNumericDirectoriesOnly(true);
+    return scanner;
+  }
+
+
+  /* accessors */
+
+  /**
+   * Only files with the given extension are considered BLOBs of the store,
+   * eg 'txt' for notes. Pass null to accept all extensions.
+   */
+  public void setExtension(final String _ext) {
+    this.extension = _ext;
+  }
+  public String extension() {
+    return this.extension;
+  }
+
+  /**
+   * If set, only directories with numeric names are walked (eg project and
+   * range directories).
+   */
+  public void setNumericDirectoriesOnly(final boolean _flag) {
+    this.numericDirectoriesOnly = _flag;
+  }
+  public boolean numericDirectoriesOnly() {
+    return this.numericDirectoriesOnly;
+  }
+
+  /**
+   * Enables repairs, by default the scanner only reports.
+   */
+  public void setRepair(final boolean _flag) {
+    this.repair = _flag;
+  }
+  public boolean repair() {
+    return this.repair;
+  }
+
+  /**
+   * Files modified within the grace period are not repaired.
+   */
+  public void setGraceMillis(final long _ms) {
+    this.graceMillis = _ms;
+  }
+  public long graceMillis() {
+    return this.graceMillis;
+  }
+
+  /**
+   * The number of directories walked in parallel.
+   */
+  public void setParallelism(final int _threads) {
+    this.parallelism = _threads > 0 ? _threads : 1;
+  }
+  public int parallelism() {
+    return this.parallelism;
+  }
+
+  /**
+   * Limits the number of directory entries read per second (for all
+   * threads), 0 disables the limit. Can be changed while the scan runs.
+   */
+  public void setMaxEntriesPerSecond(final int _count) {
+    this.maxEntriesPerSecond = _count;
+  }
+  public int maxEntriesPerSecond() {
+    return this.maxEntriesPerSecond;
+  }
+
+  /**
+   * The number of ids fetched per SQL statement.
+   */
+  public void setPageSize(final int _size) {
+    this.pageSize = _size > 0 ? _size : 1000;
+  }
+  public int pageSize() {
+    return this.pageSize;
+  }
+
+
+  /* results */
+
+  public long fileCount() {
+    return this.fileCount;
+  }
+  public long rowCount() {
+    return this.rowCount;
+  }
+  public long orphanCount() {
+    return this.orphanCount;
+  }
+  public long misplacedCount() {
+    return this.misplacedCount;
+  }
+  public long danglingCount() {
+    return this.danglingCount;
+  }
+  public long leftoverCount() {
+    return this.leftoverCount;
+  }
+  public long repairCount() {
+    return this.repairCount;
+  }
+  public long errorCount() {
+    return this.errorCount;
+  }
+
+  /**
+   * Returns the orphan files found by the last scan (the first 10000).
+   */
+  public List<File> orphanFiles() {
+    return this.orphanFiles;
+  }
+  /**
+   * Returns the files whose id belongs to an existing object, but which are
+   * stored in a different location or with a different extension (the first
+   * 10000). Those are never repaired.
+   */
+  public List<File> misplacedFiles() {
+    return this.misplacedFiles;
+  }
+  /**
+   * Returns the ids of the objects whose BLOB is missing (the first 10000).
+   */
+  public List<Number> danglingIds() {
+    return this.danglingIds;
+  }
+  /**
+   * Returns the transaction leftovers found by the last scan (the first
+   * 10000).
+   */
+  public List<File> leftoverFiles() {
+    return this.leftoverFiles;
+  }
+
+
+  /* scan */
+
+  /**
+   * Walks the store, merges it with the database and reports (or repairs)
+   * the inconsistencies.
+   *
+   * @return null if the scan completed, the error otherwise
+   */
+  public Exception scan() {
+    this.resetResults();
+
+    final long startTime = System.currentTimeMillis();
+    Exception error = this.walk();
+    if (error != null)
+      return error;
+    if (this.interrupted)
+      return new NSException("BLOB store scan got interrupted: " + this.root);
+
+    final long walkTime = System.currentTimeMillis() - startTime;
+    if ((error = this.merge()) != null)
+      return error;
+
+    log.info("scanned BLOB store " + this.root + " in " +
+        (System.currentTimeMillis() - startTime) + "ms (walk " + walkTime +
+        "ms): " + this.fileCount + " files, " + this.rowCount + " rows, " +
+        this.orphanCount + " orphans, " + this.misplacedCount +
+        " misplaced, " + this.danglingCount + " dangling, " +
+        this.leftoverCount + " leftovers, " + this.repairCount + " repaired, " +
+        this.errorCount + " errors");
+    return null;
+  }
+
+  protected void resetResults() {
+    this.directories = new ConcurrentLinkedQueue<DirectoryResult>();
+    this.leftovers   = new ConcurrentLinkedQueue<Leftover>();
+    this.interrupted = false;
+    this.fileCount = this.rowCount = this.orphanCount = this.danglingCount = 0;
+    this.misplacedCount = 0;
+    this.leftoverCount = this.repairCount = this.errorCount = 0;
+    this.orphanFiles.clear();
+    this.misplacedFiles.clear();
+    this.danglingIds.clear();
+    this.leftoverFiles.clear();
+  }
+
+
+  /* walking the store */
+
+  protected Exception walk() {
+    if (this.root == null || !this.root.isDirectory())
+      return new NSException("BLOB store root is not a directory: "+this.root);
+
+    final ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+    try {
+      pool.invoke(new DirectoryScan(this.root.toPath(), 1));
+    }
+    catch (final RuntimeException e) {
+      log.error("could not walk BLOB store: " + this.root, e);
+      return e;
+    }
+    finally {
+      pool.shutdown();
+    }
+
+    for (final DirectoryResult d: this.directories)
+      this.fileCount += d.count;
+    return null;
+  }
+
+  /**
+   * Scans one directory, forks tasks for the subdirectories.
+   */
+  protected class DirectoryScan extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    protected final Path dir;
+    protected final int  depth; /* depth of the entries of the directory */
+
+    public DirectoryScan(final Path _dir, final int _depth) {
+      this.dir   = _dir;
+      this.depth = _depth;
+    }
+
+    @Override
+    protected void compute() {
+      final OGoBlobStoreScanner scanner = OGoBlobStoreScanner.this;
+      final List<DirectoryScan> subdirs = new ArrayList<DirectoryScan>(16);
+      long[] keys = new long[256];
+      int    count = 0;
+      int    entryCount = 0;
+
+      DirectoryStream<Path> ds = null;
+      try {
+        ds = Files.newDirectoryStream(this.dir);
+        for (final Path p: ds) {
+          if (scanner.interrupted)
+            return;
+          if (++entryCount % 256 == 0)
+            scanner.throttle(256);
+
+          final String name = p.getFileName().toString();
+          if (this.depth < scanner.maxDepth) {
+            /* only stat() above the level of the BLOB files */
+            final BasicFileAttributes attrs = Files.readAttributes(p,
+                BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attrs.isDirectory()) {
+              if (!scanner.numericDirectoriesOnly || isNumeric(name))
+                subdirs.add(new DirectoryScan(p, this.depth + 1));
+              continue;
+            }
+            if (!attrs.isRegularFile())
+              continue;
+          }
+          if (this.depth < scanner.minDepth)
+            continue;
+
+          if (name.endsWith(OGoFileWriteTransaction.tempFileSuffix) ||
+              name.endsWith(txdelSuffix))
+          {
+            scanner.leftovers.add(new Leftover(p, idForFilename(name)));
+            continue;
+          }
+
+          final long key = scanner.keyForFilename(name);
+          if (key < 0)
+            continue; /* not one of ours */
+
+          if (count == keys.length)
+            keys = Arrays.copyOf(keys, count * 2);
+          keys[count++] = key;
+        }
+      }
+      catch (final IOException e) {
+        log.error("could not scan BLOB directory: " + this.dir, e);
+        synchronized (scanner) {
+          scanner.errorCount++;
+        }
+      }
+      finally {
+        if (ds != null) {
+          try { ds.close(); } catch (final IOException e) {}
+        }
+      }
+
+      if (count > 0) {
+        Arrays.sort(keys, 0, count);
+        scanner.directories.add(new DirectoryResult(this.dir, keys, count));
+      }
+
+      /* fork after the stream got closed, to limit the open directories */
+      if (subdirs.size() > 0)
+        invokeAll(subdirs);
+    }
+  }
+
+  /**
+   * Sleeps if the walk is ahead of the configured rate.
+   */
+  protected void throttle(final int _count) {
+    final int rate = this.maxEntriesPerSecond;
+    if (rate <= 0)
+      return;
+
+    long wait;
+    synchronized (this.throttleLock) {
+      final long now = System.nanoTime();
+      if (this.nextThrottleSlot < now)
+        this.nextThrottleSlot = now;
+      wait = this.nextThrottleSlot - now;
+      this.nextThrottleSlot += _count * 1000000000L / rate;
+    }
+    if (wait < 10000000L) /* avoid lots of tiny sleeps */
+      return;
+    try {
+      Thread.sleep(wait / 1000000L);
+    }
+    catch (final InterruptedException e) {
+      this.interrupted = true;
+    }
+  }
+
+
+  /* names */
+
+  /**
+   * Returns the merge key for a name like '10000.txt', or -1 if the name is
+   * not a BLOB of the store. The key is the id in the upper bits and the
+   * index of the extension in the lower 16 bits, so that sorting the keys
+   * sorts by id.
+   */
+  protected long keyForFilename(final String _name) {
+    final int len = _name.length();
+    int idx = 0;
+    while (idx < len && Character.isDigit(_name.charAt(idx)))
+      idx++;
+    if (idx == 0 || idx > 12)
+      return -1;
+
+    final String ext;
+    if (idx == len)
+      ext = "";
+    else if (_name.charAt(idx) != '.')
+      return -1;
+    else
+      ext = _name.substring(idx + 1);
+
+    if (this.extension != null && !this.extension.equals(ext))
+      return -1;
+
+    final int extIdx = this.indexForExtension(ext);
+    if (extIdx < 0)
+      return -1;
+    return (Long.parseLong(_name.substring(0, idx)) << 16) | extIdx;
+  }
+
+  protected int indexForExtension(final String _ext) {
+    final Integer idx = this.extToIndex.get(_ext);
+    if (idx != null)
+      return idx.intValue();
+
+    synchronized (this.indexToExt) {
+      final Integer other = this.extToIndex.get(_ext);
+      if (other != null)
+        return other.intValue();
+      if (this.indexToExt.size() > 0xFFFF)
+        return -1; /* too many different extensions */
+      this.indexToExt.add(_ext);
+      this.extToIndex.put(_ext, this.indexToExt.size() - 1);
+      return this.indexToExt.size() - 1;
+    }
+  }
+
+  protected String filenameForKey(final long _key) {
+    final String ext;
+    synchronized (this.indexToExt) {
+      ext = this.indexToExt.get((int)(_key & 0xFFFF));
+    }
+    final long id = _key >>> 16;
+    return ext.length() > 0 ? (id + "." + ext) : Long.toString(id);
+  }
+
+  /**
+   * Returns the id of a leftover like '10000.txt-8a7b-txwrite', or -1.
+   */
+  protected static long idForFilename(final String _name) {
+    int idx = 0;
+    while (idx < _name.length() && Character.isDigit(_name.charAt(idx)))
+      idx++;
+    return (idx > 0 && idx < 13) ? Long.parseLong(_name.substring(0, idx)) : -1;
+  }
+
+  protected static boolean isNumeric(final String _name) {
+    for (int i = _name.length() - 1; i >= 0; i--) {
+      if (!Character.isDigit(_name.charAt(i)))
+        return false;
+    }
+    return _name.length() > 0;
+  }
+
+
+  /* merging with the database */
+
+  protected Exception merge() {
+    final FileCursor files = new FileCursor(this.directories);
+    final List<Leftover> pending = new ArrayList<Leftover>(this.leftovers);
+    Collections.sort(pending, new Comparator<Leftover>() {
+      public int compare(final Leftover _a, final Leftover _b) {
+        return _a.id < _b.id ? -1 : (_a.id > _b.id ? 1 : 0);
+      }
+    });
+    int leftoverIdx = 0;
+
+    final String sql = this.sqlForPagedFetch();
+    if (sql == null)
+      return new NSException("could not build SQL for: " +
+          Arrays.asList(this.entityNames));
+
+    final EOAdaptor adaptor = this.db.adaptor();
+    final EOAdaptorChannel ch = adaptor.openChannelFromPool();
+    if (ch == null)
+      return new NSException("got no channel from adaptor: " + adaptor);
+
+    try {
+      final Connection c = ch.connection();
+      final PreparedStatement stmt = c.prepareStatement(sql);
+      try {
+        long lastId = -1;
+        boolean morePages = true;
+        while (morePages) {
+          stmt.setLong(1, lastId);
+          stmt.setInt(2, this.pageSize);
+
+          int pageCount = 0;
+          final ResultSet rs = stmt.executeQuery();
+          try {
+            while (rs.next()) {
+              pageCount++;
+              this.rowCount++;
+
+              final long   id  = rs.getLong(1);
+              final String ext = rs.getString(2);
+              final Number cid = (Number)rs.getObject(3);
+              lastId = id;
+
+              /* leftovers of objects which do not exist */
+              while (leftoverIdx < pending.size() &&
+                     pending.get(leftoverIdx).id <= id)
+              {
+                final Leftover lo = pending.get(leftoverIdx++);
+                this.processLeftover(lo, lo.id == id);
+              }
+
+              this.mergeRow(files, id, ext != null ? ext : "", cid);
+            }
+          }
+          finally {
+            rs.close();
+          }
+          morePages = pageCount >= this.pageSize;
+        }
+      }
+      finally {
+        stmt.close();
+      }
+    }
+    catch (final SQLException e) {
+      log.error("could not fetch ids of BLOB objects", e);
+      adaptor.releaseAfterError(ch, e);
+      return e;
+    }
+    adaptor.releaseChannel(ch);
+
+    /* everything after the last row does not exist in the database */
+    while (files.hasNext())
+      this.processOrphan(files.next());
+    while (leftoverIdx < pending.size())
+      this.processLeftover(pending.get(leftoverIdx++), false);
+    return null;
+  }
+
+  /**
+   * Merges one database row with the files having the same id. Files with a
+   * lower id are orphans.
+   */
+  protected void mergeRow
+    (final FileCursor _files, final long _id, final String _ext,
+     final Number _containerId)
+  {
+    while (_files.hasNext() && _files.peekId() < _id)
+      this.processOrphan(_files.next());
+
+    final Path expected = this.expectedPath(_id, _ext, _containerId);
+    boolean found = false;
+    while (_files.hasNext() && _files.peekId() == _id) {
+      final FileEntry f = _files.next();
+      if (!found && _ext.equals(f.ext()) &&
+          (expected == null || expected.equals(f.path())))
+        found = true;
+      else
+        this.processMisplaced(f); /* eg a file left in a previous project */
+    }
+
+    if (!found) {
+      /* recheck, the object might have been created after the walk */
+      if (this.store.blobSizeForId(_id, _containerId, _ext) < 0) {
+        this.danglingCount++;
+        if (this.danglingIds.size() < maxReportedItems)
+          this.danglingIds.add(_id);
+        log.warn("missing BLOB of object: " + _id + " (" + _ext + ")");
+      }
+    }
+  }
+
+  protected Path expectedPath
+    (final long _id, final String _ext, final Number _containerId)
+  {
+    final File f = this.store.blobFileForId(_id, _containerId, _ext);
+    return f != null ? f.toPath() : null;
+  }
+
+  protected void processOrphan(final FileEntry _f) {
+    final Path p = _f.path();
+    final long age = this.ageOfFile(p);
+    if (age < 0)
+      return; /* got deleted meanwhile */
+    if (age < this.graceMillis)
+      return; /* might be written by a running transaction */
+
+    this.orphanCount++;
+    if (this.orphanFiles.size() < maxReportedItems)
+      this.orphanFiles.add(p.toFile());
+    log.warn("orphan BLOB: " + p);
+
+    if (this.repair) {
+      this.repairByMove(p,
+          p.resolveSibling(p.getFileName().toString() + orphanSuffix));
+    }
+  }
+
+  /**
+   * Reports a file whose id matches an existing object, but which is not the
+   * file the store resolves for it. Such files are never renamed, the row
+   * (or the store configuration) might be the part which is wrong.
+   */
+  protected void processMisplaced(final FileEntry _f) {
+    final Path p = _f.path();
+    final long age = this.ageOfFile(p);
+    if (age < 0 || age < this.graceMillis)
+      return; /* gone, or the object might be moving */
+
+    this.misplacedCount++;
+    if (this.misplacedFiles.size() < maxReportedItems)
+      this.misplacedFiles.add(p.toFile());
+    log.warn("misplaced BLOB of existing object: " + p);
+  }
+
+  protected void processLeftover(final Leftover _lo, final boolean _inDB) {
+    final long age = this.ageOfFile(_lo.path);
+    if (age < 0 || age < this.graceMillis)
+      return; /* gone, or the transaction might still be running */
+
+    this.leftoverCount++;
+    if (this.leftoverFiles.size() < maxReportedItems)
+      this.leftoverFiles.add(_lo.path.toFile());
+    log.warn("leftover of a BLOB transaction: " + _lo.path);
+
+    if (!this.repair)
+      return;
+
+    final String name = _lo.path.getFileName().toString();
+    if (!name.endsWith(txdelSuffix)) {
+      /* an incomplete write */
+      this.repairByDelete(_lo.path);
+      return;
+    }
+
+    final Path original = _lo.path.resolveSibling(
+        name.substring(0, name.length() - txdelSuffix.length()));
+    if (!_inDB)
+      this.repairByDelete(_lo.path); /* the delete got committed */
+    else if (!Files.exists(original))
+      this.repairByMove(_lo.path, original); /* the delete got rolled back */
+    else
+      log.warn("  not repaired, object and file exist: " + original);
+  }
+
+  /**
+   * Returns the time since the last modification of the file, or -1 if the
+   * file does not exist (anymore).
+   */
+  protected long ageOfFile(final Path _p) {
+    try {
+      return System.currentTimeMillis() -
+        Files.getLastModifiedTime(_p, LinkOption.NOFOLLOW_LINKS).toMillis();
+    }
+    catch (final NoSuchFileException e) {
+      return -1;
+    }
+    catch (final IOException e) {
+      log.error("could not stat BLOB file: " + _p, e);
+      this.errorCount++;
+      return -1;
+    }
+  }
+
+  protected void repairByDelete(final Path _p) {
+    try {
+      Files.deleteIfExists(_p);
+      this.repairCount++;
+    }
+    catch (final IOException e) {
+      log.error("could not delete BLOB file: " + _p, e);
+      this.errorCount++;
+    }
+  }
+
+  protected void repairByMove(final Path _from, final Path _to) {
+    try {
+      Files.move(_from, _to);
+      this.repairCount++;
+    }
+    catch (final IOException e) {
+      log.error("could not rename BLOB file: " + _from + " to " + _to, e);
+      this.errorCount++;
+    }
+  }
+
+
+  /* SQL */
+
+  /**
+   * Builds a statement which returns the next page of (id, ext, container)
+   * rows of all entities, in id order. Eg:<pre>
+   *   SELECT id, ext, cid FROM (
+   *     SELECT b.document_id AS id, b.file_type AS ext, b.project_id AS cid
+   *     FROM doc b WHERE COALESCE(b.is_folder, 0) = 0 ...
+   *     UNION ALL
+   *     SELECT b.document_version_id AS id, b.file_type AS ext,
+   *            p.project_id AS cid
+   *     FROM document_version b
+   *     LEFT JOIN doc p ON p.document_id = b.document_id
+   *     UNION ALL ...) AS blobs
+   *   WHERE id &gt; ? ORDER BY id LIMIT ?</pre>
+   * Versions and editings have no project of their own, their BLOBs are
+   * stored in the project of the document, hence the join.
+   * <p>
+   * The primary key index keeps each page cheap, and no transaction is held
+   * open between the pages.
+   */
+  protected String sqlForPagedFetch() {
+    final StringBuilder sql = new StringBuilder(512);
+    sql.append("SELECT id, ext, cid FROM (");
+
+    boolean isFirst = true;
+    for (final String ename: this.entityNames) {
+      final EOEntity entity = this.db.entityNamed(ename);
+      if (entity == null) {
+        log.error("did not find entity of BLOB objects: " + ename);
+        return null;
+      }
+      final EOSQLExpression e =
+        this.db.adaptor().expressionFactory().createExpression(entity);
+
+      if (isFirst) isFirst = false;
+      else sql.append(" UNION ALL ");
+
+      /* the container of versions and editings is that of the document */
+      final boolean hasProject = entity.attributeNamed("projectId") != null;
+      final EOEntity parent = hasProject ? null
+        : (entity.attributeNamed("documentId") != null
+           ? this.db.entityNamed("Documents") : null);
+      final EOSQLExpression pe = parent != null
+        ? this.db.adaptor().expressionFactory().createExpression(parent)
+        : null;
+
+      sql.append("SELECT ");
+      sql.append(this.columnForAttribute(e, entity, "b", "id", "NULL"));
+      sql.append(" AS id, ");
+      sql.append(this.columnForAttribute(e, entity, "b", "fileext", "NULL"));
+      sql.append(" AS ext, ");
+      if (hasProject)
+        sql.append(this.columnForAttribute(e, entity, "b", "projectId", null));
+      else if (parent != null)
+        sql.append(this.columnForAttribute(pe, parent, "p", "projectId",null));
+      else
+        sql.append("CAST(NULL AS INT)");
+      sql.append(" AS cid FROM ");
+      sql.append(e.sqlStringForSchemaObjectName(entity.externalName()));
+      sql.append(" b");
+      if (parent != null) {
+        sql.append(" LEFT JOIN ");
+        sql.append(pe.sqlStringForSchemaObjectName(parent.externalName()));
+        sql.append(" p ON ");
+        sql.append(this.columnForAttribute(pe, parent, "p", "id", null));
+        sql.append(" = ");
+        sql.append(this.columnForAttribute(e, entity, "b", "documentId",null));
+      }
+
+      /* folders and links have no content */
+      sql.append(" WHERE 1 = 1");
+      for (final String flag: new String[] { "isFolder", "isLink" }) {
+        if (entity.attributeNamed(flag) == null)
+          continue;
+        sql.append(" AND COALESCE(");
+        sql.append(this.columnForAttribute(e, entity, "b", flag, null));
+        sql.append(", 0) = 0");
+      }
+    }
+
+    sql.append(") AS blobs WHERE id > ? ORDER BY id LIMIT ?");
+    return sql.toString();
+  }
+
+  protected String columnForAttribute
+    (final EOSQLExpression _e, final EOEntity _entity, final String _alias,
+     final String _name, final String _default)
+  {
+    final EOAttribute a = _entity.attributeNamed(_name);
+    return a != null
+      ? (_alias + "." + _e.sqlStringForSchemaObjectName(a.columnName()))
+      : _default;
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" root=");
+    _d.append(this.root);
+    _d.append(" entities=");
+    _d.append(Arrays.asList(this.entityNames));
+    if (this.repair)
+      _d.append(" repair");
+    _d.append(" files=");
+    _d.append(this.fileCount);
+    _d.append(" rows=");
+    _d.append(this.rowCount);
+    _d.append(" orphans=");
+    _d.append(this.orphanCount);
+    _d.append(" misplaced=");
+    _d.append(this.misplacedCount);
+    _d.append(" dangling=");
+    _d.append(this.danglingCount);
+    _d.append(" leftovers=");
+    _d.append(this.leftoverCount);
+  }
+
+
+  /* walk results */
+
+  /**
+   * The sorted BLOB keys of one directory.
+   */
+  protected static class DirectoryResult extends Object {
+    protected final Path   dir;
+    protected final long[] keys;
+    protected final int    count;
+    protected int pos;
+
+    public DirectoryResult(final Path _dir, final long[] _keys, final int _c) {
+      this.dir   = _dir;
+      this.keys  = _keys;
+      this.count = _c;
+    }
+
+    public long currentKey() {
+      return this.keys[this.pos];
+    }
+  }
+
+  protected static class Leftover extends Object {
+    protected final Path path;
+    protected final long id;
+
+    public Leftover(final Path _path, final long _id) {
+      this.path = _path;
+      this.id   = _id;
+    }
+  }
+
+  protected class FileEntry extends Object {
+    protected final Path dir;
+    protected final long key;
+
+    public FileEntry(final Path _dir, final long _key) {
+      this.dir = _dir;
+      this.key = _key;
+    }
+
+    public String ext() {
+      final List<String> exts = OGoBlobStoreScanner.this.indexToExt;
+      synchronized (exts) {
+        return exts.get((int)(this.key & 0xFFFF));
+      }
+    }
+    public Path path() {
+      return this.dir.resolve(filenameForKey(this.key));
+    }
+  }
+
+  /**
+   * Merges the sorted keys of all directories, in id order.
+   */
+  protected class FileCursor extends Object {
+    protected final PriorityQueue<DirectoryResult> queue;
+
+    public FileCursor(final Iterable<DirectoryResult> _dirs) {
+      this.queue = new PriorityQueue<DirectoryResult>(64,
+          new Comparator<DirectoryResult>() {
+            public int compare(final DirectoryResult _a,
+                               final DirectoryResult _b)
+            {
+              final long a = _a.currentKey(), b = _b.currentKey();
+              return a < b ? -1 : (a > b ? 1 : 0);
+            }
+          });
+      for (final DirectoryResult d: _dirs)
+        this.queue.add(d);
+    }
+
+    public boolean hasNext() {
+      return !this.queue.isEmpty();
+    }
+    public long peekId() {
+      return this.queue.peek().currentKey() >>> 16;
+    }
+    public FileEntry next() {
+      final DirectoryResult d = this.queue.poll();
+      final FileEntry f = new FileEntry(d.dir, d.currentKey());
+      d.pos++;
+      if (d.pos < d.count)
+        this.queue.add(d);
+      return f;
+    }
+  }
+
+
+  /* tool */
+
+  public static void main(final String[] _args) {
+    if (_args.length < 3) {
+      System.err.println("usage: OGoBlobStoreScanner " +
+          "<db-url> <doc-path> notes|documents [-repair]");
+      System.exit(1);
+    }
+
+    final OGoDatabase db = OGoDatabase.databaseForURL(_args[0], _args[1]);
+    if (db == null) {
+      System.err.println("could not connect database: " + _args[0]);
+      System.exit(2);
+    }
+
+    final OGoBlobStoreScanner scanner = "notes".equals(_args[2])
+      ? notesScanner(db) : documentsScanner(db);
+    if (scanner == null) {
+      System.err.println("store cannot be scanned: " + _args[2]);
+      System.exit(2);
+    }
+    for (final String arg: _args) {
+      if ("-repair".equals(arg))
+        scanner.setRepair(true);
+    }
+
+    final Exception error = scanner.scan();
+    if (error != null) {
+      System.err.println("scan failed: " + error);
+      System.exit(2);
+    }
+    System.out.println("files: " + scanner.fileCount() +
+        ", rows: " + scanner.rowCount() +
+        ", orphans: " + scanner.orphanCount() +
+        ", misplaced: " + scanner.misplacedCount() +
+        ", dangling: " + scanner.danglingCount() +
+        ", leftovers: " + scanner.leftoverCount() +
+        ", repaired: " + scanner.repairCount() +
+        ", errors: " + scanner.errorCount());
+    System.exit(scanner.errorCount() > 0 ? 3 : 0);
+  }
+}
@@ -0,0 +1,266 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.db;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.foundation.NSObject;
+
+/**
+ * OGoChangeBus
+ * <p>
+ * Distributes the changes of committed transactions to caches which live
+ * outside of the writing OGoObjectContext, that is, other contexts of the
+ * same process and other nodes using the same database.
+ * <p>
+ * The bus is fed by OGoOperationTransaction.transactionDidCommit() with
+ * OGoChangeRecord objects (entity, id, new objectVersion, kind of change).
+ * The records are delivered synchronously to the local subscribers and sent
+ * to the other nodes using the transport. Records received from other nodes
+ * are delivered to the local subscribers with the 'isRemote' flag set.
+ * <p>
+ * Each OGoDatabase has a bus. Local delivery always works, the transport is
+ * only used after start() got called. The default transport uses the
+ * PostgreSQL LISTEN/NOTIFY facility (OGoPostgreSQLChangeTransport).
+ * <p>
+ * Example:<pre>
+ *   db.changeBus().addListener(new IOGoChangeListener() {
+ *     public void objectsDidChange(OGoChangeBus _bus,
+ *       List&lt;OGoChangeRecord&gt; _changes, boolean _isRemote)
+ *     {
+ *       for (OGoChangeRecord change: _changes)
+ *         myCache.remove(change.globalID());
+ *     }
+ *   });
+ *   db.changeBus().start(); // connect to other nodes</pre>
+ *
+ * <p>
+ * THREAD: the bus is thread safe.
+ *
+ * @author helge
+ */
+public class OGoChangeBus extends NSObject {
+  protected static final Log log = LogFactory.getLog("OGoChangeBus");
+
+  protected final OGoDatabase db;
+  protected final String      nodeId;
+  protected final List<IOGoChangeListener> listeners;
+  protected IOGoChangeBusTransport transport;
+  protected volatile boolean       isStarted;
+
+  /* statistics */
+  protected final AtomicLong publishedCount = new AtomicLong(0);
+  protected final AtomicLong receivedCount  = new AtomicLong(0);
+  protected final AtomicLong sendErrorCount = new AtomicLong(0);
+
+  public OGoChangeBus(final OGoDatabase _db) {
+    super();
+    this.db        = _db;
+    this.nodeId    = UUID.randomUUID().toString();
+    this.listeners = new CopyOnWriteArrayList<IOGoChangeListener>();
+  }
+
+
+  /* accessors */
+
+  public OGoDatabase database() {
+    return this.db;
+  }
+
+  /**
+   * Returns the id of this bus. The id is sent along with the records, so
+   * that a bus can ignore its own records if the transport echoes them.
+   */
+  public String nodeId() {
+    return this.nodeId;
+  }
+
+  /**
+   * Sets the transport used to exchange records with other nodes. Must be
+   * called before start().
+   */
+  public synchronized void setTransport(final IOGoChangeBusTransport _t) {
+    if (this.isStarted) {
+      log.error("cannot change the transport of a running bus: " + this);
+      return;
+    }
+    this.transport = _t;
+  }
+  public synchronized IOGoChangeBusTransport transport() {
+    return this.transport;
+  }
+
+  public boolean isStarted() {
+    return this.isStarted;
+  }
+
+
+  /* subscribers */
+
+  public void addListener(final IOGoChangeListener _listener) {
+    if (_listener != null)
+      this.listeners.add(_listener);
+  }
+  public void removeListener(final IOGoChangeListener _listener) {
+    if (_listener != null)
+      this.listeners.remove(_listener);
+  }
+
+  /**
+   * Returns true if the bus has subscribers or a running transport, that is,
+   * if publishing records makes sense.
+   */
+  public boolean hasReceivers() {
+    return this.isStarted || !this.listeners.isEmpty();
+  }
+
+
+  /* start/stop */
+
+  /**
+   * Starts the transport. If no transport was set, an
+   * OGoPostgreSQLChangeTransport is used.
+   *
+   * @return null if the transport got started, the error otherwise
+   */
+  public synchronized Exception start() {
+    if (this.isStarted)
+      return null;
+
+    if (this.transport == null)
+      this.transport = new OGoPostgreSQLChangeTransport(this.db.adaptor());
+
+    final Exception error = this.transport.start(this);
+    if (error != null) {
+      log.error("could not start change bus transport: " + this.transport,
+          error);
+      return error;
+    }
+    this.isStarted = true;
+    return null;
+  }
+
+  public synchronized void stop() {
+    if (!this.isStarted)
+      return;
+
+    this.isStarted = false;
+    this.transport.stop(this);
+  }
+
+
+  /* publishing */
+
+  /**
+   * Called after a transaction got committed. Delivers the records to the
+   * local subscribers and sends them to the other nodes.
+   *
+   * @param _changes - the change records of the transaction
+   */
+  public void publish(final List<OGoChangeRecord> _changes) {
+    if (_changes == null || _changes.size() == 0)
+      return;
+
+    this.publishedCount.addAndGet(_changes.size());
+
+    final List<OGoChangeRecord> changes =
+      Collections.unmodifiableList(_changes);
+    this.deliver(changes, false /* local */);
+
+    final IOGoChangeBusTransport t = this.isStarted ? this.transport : null;
+    if (t != null) {
+      final Exception error = t.send(this.nodeId, changes);
+      if (error != null) {
+        this.sendErrorCount.incrementAndGet();
+        log.warn("could not send changes to other nodes: " + error);
+      }
+    }
+  }
+
+  /**
+   * Called by the transport if records of another node got received.
+   *
+   * @param _nodeId  - the id of the sending bus
+   * @param _changes - the received records
+   */
+  public void receiveRemoteChanges
+    (final String _nodeId, final List<OGoChangeRecord> _changes)
+  {
+    if (this.nodeId.equals(_nodeId))
+      return; /* our own records, already delivered */
+    if (_changes == null || _changes.size() == 0)
+      return;
+
+    this.receivedCount.addAndGet(_changes.size());
+    this.deliver(Collections.unmodifiableList(_changes), true /* remote */);
+  }
+
+  protected void deliver
+    (final List<OGoChangeRecord> _changes, final boolean _isRemote)
+  {
+    for (final IOGoChangeListener listener: this.listeners) {
+      try {
+        listener.objectsDidChange(this, _changes, _isRemote);
+      }
+      catch (final RuntimeException e) {
+        /* one broken subscriber must not affect the others */
+        log.error("change listener failed: " + listener, e);
+      }
+    }
+  }
+
+
+  /* statistics */
+
+  public long publishedCount() {
+    return this.publishedCount.get();
+  }
+  public long receivedCount() {
+    return this.receivedCount.get();
+  }
+  public long sendErrorCount() {
+    return this.sendErrorCount.get();
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" node=");
+    _d.append(this.nodeId);
+    _d.append(this.isStarted ? " started" : " local");
+    _d.append(" #listeners=");
+    _d.append(this.listeners.size());
+    _d.append(" #published=");
+    _d.append(this.publishedCount.get());
+    _d.append(" #received=");
+    _d.append(this.receivedCount.get());
+  }
+}
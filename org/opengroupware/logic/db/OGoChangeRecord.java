@@ -0,0 +1,197 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.getobjects.eocontrol.EOGlobalID;
+import org.getobjects.eocontrol.EOKeyGlobalID;
+import org.getobjects.foundation.NSObject;
+
+/**
+ * OGoChangeRecord
+ * <p>
+ * A compact description of a committed change, distributed by the
+ * OGoChangeBus. A record contains the entity and the primary key of the
+ * changed object, the objectVersion the object has after the change (if
+ * known) and the kind of change:
+ * <ul>
+ *   <li>I - the object got inserted
+ *   <li>U - the object got updated
+ *   <li>D - the object got deleted
+ *   <li>A - the permissions of the object might have changed (eg the owner
+ *       or the ACL got modified)
+ *   <li>* - unknown changes, the transaction did not report what it changed.
+ *       The entity and id are null, receivers should flush everything.
+ * </ul>
+ * Records are immutable.
+ * <p>
+ * The external (wire) representation is<pre>
+ *   kind,entity,id,version</pre>
+ * eg 'U,Persons,10000,4' or 'D,Tasks,43010,'.
+ *
+ * @author helge
+ */
+public class OGoChangeRecord extends NSObject {
+
+  public static final char INSERT  = 'I';
+  public static final char UPDATE  = 'U';
+  public static final char DELETE  = 'D';
+  public static final char ACL     = 'A';
+  public static final char UNKNOWN = '*';
+
+  public static final OGoChangeRecord unknownChanges =
+    new OGoChangeRecord(UNKNOWN, null, null, null);
+
+  protected final char   kind;
+  protected final String entityName;
+  protected final Number id;
+  protected final Number objectVersion;
+
+  public OGoChangeRecord
+    (final char _kind, final String _entity, final Number _id,
+     final Number _version)
+  {
+    super();
+    this.kind          = _kind;
+    this.entityName    = _entity;
+    this.id            = _id;
+    this.objectVersion = _version;
+  }
+
+
+  /* accessors */
+
+  public char kind() {
+    return this.kind;
+  }
+  public String entityName() {
+    return this.entityName;
+  }
+  public Number id() {
+    return this.id;
+  }
+  /**
+   * Returns the objectVersion of the object after the change, or null if the
+   * version is not known (or the object got deleted).
+   */
+  public Number objectVersion() {
+    return this.objectVersion;
+  }
+
+  public boolean isUnknownChange() {
+    return this.kind == UNKNOWN;
+  }
+
+  /**
+   * Returns the EOKeyGlobalID of the changed object, or null for unknown
+   * changes.
+   */
+  public EOGlobalID globalID() {
+    if (this.entityName == null || this.id == null)
+      return null;
+    return EOKeyGlobalID.globalIDWithEntityName(this.entityName,
+        Integer.valueOf(this.id.intValue()));
+  }
+
+
+  /* external representation */
+
+  public void appendExternalRepresentation(final StringBuilder _sb) {
+    _sb.append(this.kind);
+    _sb.append(',');
+    if (this.entityName != null) _sb.append(this.entityName);
+    _sb.append(',');
+    if (this.id != null) _sb.append(this.id);
+    _sb.append(',');
+    if (this.objectVersion != null) _sb.append(this.objectVersion);
+  }
+
+  /**
+   * Parses a record in the external representation (see class docs).
+   *
+   * @param _s - the string to parse, eg 'U,Persons,10000,4'
+   * @return the record, or null if the string could not be parsed
+   */
+  public static OGoChangeRecord parseExternalRepresentation(final String _s) {
+    if (_s == null || _s.length() < 4 || _s.charAt(1) != ',')
+      return null;
+
+    final char kind = _s.charAt(0);
+    if (kind == UNKNOWN)
+      return unknownChanges;
+
+    final int idx1 = _s.indexOf(',', 2);
+    final int idx2 = idx1 > 0 ? _s.indexOf(',', idx1 + 1) : -1;
+    if (idx2 < 0)
+      return null;
+
+    try {
+      final String entity  = _s.substring(2, idx1);
+      final String id      = _s.substring(idx1 + 1, idx2);
+      final String version = _s.substring(idx2 + 1);
+      return new OGoChangeRecord(kind,
+          entity.length() > 0 ? entity : null,
+          id.length() > 0 ? Integer.valueOf(id) : null,
+          version.length() > 0 ? Integer.valueOf(version) : null);
+    }
+    catch (final NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Parses a list of records separated by semicolons.
+   *
+   * @param _s - the string to parse
+   * @return the records, invalid entries are skipped
+   */
+  public static List<OGoChangeRecord> parseRecords(final String _s) {
+    final List<OGoChangeRecord> records = new ArrayList<OGoChangeRecord>(16);
+    if (_s == null || _s.length() == 0)
+      return records;
+
+    int start = 0;
+    while (start < _s.length()) {
+      int end = _s.indexOf(';', start);
+      if (end < 0) end = _s.length();
+
+      final OGoChangeRecord record =
+        parseExternalRepresentation(_s.substring(start, end));
+      if (record != null)
+        records.add(record);
+      start = end + 1;
+    }
+    return records;
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" ");
+    this.appendExternalRepresentation(_d);
+  }
+}
@@ -22,7 +22,6 @@ package org.opengroupware.logic.db;
 
 import java.io.File;
 import java.util.List;
-import java.util.Map;
 
 import javax.security.auth.login.LoginContext;
 
@@ -33,6 +32,7 @@ import org.getobjects.eoaccess.EODatabase;
 import org.getobjects.foundation.NSClassLookupContext;
 import org.opengroupware.logic.auth.OGoLoginModule;
 import org.opengroupware.logic.blobs.IOGoBlobStore;
+import org.opengroupware.logic.blobs.OGoBlobContentCache;
 import org.opengroupware.logic.blobs.OGoFlatDirBlobStore;
 import org.opengroupware.logic.blobs.OGoRangeDirBlobStore;
 
@@ -70,12 +70,52 @@ public class OGoDatabase extends EODatabase
   protected IOGoBlobStore     notesStore;
   protected IOGoBlobStore     defaultsStore;
   protected IOGoBlobStore     iconStore;
+  protected OGoBlobContentCache contentCache;
+  protected OGoDocumentContentLoader contentLoader;
+  
+  /* shared caches */
+  protected OGoTeamMembershipIndex teamMembershipIndex;
+  protected OGoPrimaryKeyAllocator pkeyAllocator;
+  protected OGoChangeBus           changeBus;
+  protected OGoACLChangeJournal    aclChangeJournal;
   
   /* construct */
   
   public OGoDatabase(final EOAdaptor _adaptor, final File LSAttachmentPath) {
     super(_adaptor, null /* class lookup */);
     
+    this.teamMembershipIndex = new OGoTeamMembershipIndex(this);
+    
+    this.changeBus = new OGoChangeBus(this);
+    this.changeBus.addListener(this.teamMembershipIndex);
+    this.aclChangeJournal = new OGoACLChangeJournal(4096);
+    this.changeBus.addListener(this.aclChangeJournal);
+    
+    this.contentCache  = new OGoBlobContentCache();
+    this.contentLoader = new OGoDocumentContentLoader();
+    this.changeBus.addListener(new IOGoChangeListener() {
+      public void objectsDidChange(final OGoChangeBus _bus,
+          final List<OGoChangeRecord> _changes, final boolean _isRemote)
+      {
+        /* drop cached note/document contents changed by others */
+        final OGoBlobContentCache cache = OGoDatabase.this.contentCache;
+        for (final OGoChangeRecord change: _changes) {
+          if (change.isUnknownChange()) {
+            cache.clear();
+            return;
+          }
+          final String ename = change.entityName();
+          if ("Notes".equals(ename) || "Documents".equals(ename))
+            cache.invalidateId(change.id());
+        }
+      }
+    });
+    
+    this.pkeyAllocator = new OGoPrimaryKeyAllocator(_adaptor,
+        "key_generator",
+        10,   /* specified in CREATE SEQUENCE of OGo Schema */
+        100); /* keys per SQL roundtrip */
+    
     //File LSAttachmentPath = ;
     if (LSAttachmentPath == null || !LSAttachmentPath.exists()) {
       log.error("blob storage does not exist: " + LSAttachmentPath);
@@ -114,9 +154,27 @@ public class OGoDatabase extends EODatabase
   public IOGoBlobStore docsStore() {
     return this.docsStore;
   }
+  /**
+   * Replaces the store used for document contents, eg with an
+   * OGoHashedBlobStore. Must be called before the database is used.
+   * 
+   * @param _store - the IOGoBlobStore to be used for documents
+   */
+  public void setDocsStore(final IOGoBlobStore _store) {
+    this.docsStore = _store;
+  }
   public IOGoBlobStore notesStore() {
     return this.notesStore;
   }
+  /**
+   * Replaces the store used for note contents, eg with an OGoPackBlobStore.
+   * Must be called before the database is used.
+   * 
+   * @param _store - the IOGoBlobStore to be used for notes
+   */
+  public void setNotesStore(final IOGoBlobStore _store) {
+    this.notesStore = _store;
+  }
   public IOGoBlobStore defaultsStore() {
     return this.defaultsStore;
   }
@@ -124,79 +182,110 @@ public class OGoDatabase extends EODatabase
     return this.iconStore;
   }
   
+  /**
+   * Returns the cache for note and document contents, used by
+   * OGoDocumentObject.contentAsString().
+   * 
+   * @return the OGoBlobContentCache of the database
+   */
+  public OGoBlobContentCache contentCache() {
+    return this.contentCache;
+  }
+  
+  /**
+   * Returns the loader which reads the contents of many notes or documents
+   * concurrently.
+   * 
+   * @return the OGoDocumentContentLoader of the database
+   */
+  public OGoDocumentContentLoader contentLoader() {
+    return this.contentLoader;
+  }
+  
+  
+  /* shared caches */
+  
+  /**
+   * Returns the account&lt;=&gt;team membership index of this database. The
+   * index is loaded in bulk on first access and shared by all contexts.
+   * 
+   * @return the OGoTeamMembershipIndex
+   */
+  public OGoTeamMembershipIndex teamMembershipIndex() {
+    return this.teamMembershipIndex;
+  }
+  
+  /**
+   * Returns the journal of the recent changes which might have affected
+   * permissions (local and remote ones). Pooled contexts use it to drop only
+   * the affected cached permissions.
+   * 
+   * @return the OGoACLChangeJournal
+   */
+  public OGoACLChangeJournal aclChangeJournal() {
+    return this.aclChangeJournal;
+  }
+  
+  /**
+   * Returns the bus which distributes the changes of committed transactions
+   * to caches of this process and, once started, to other nodes.
+   * 
+   * @return the OGoChangeBus of the database
+   */
+  public OGoChangeBus changeBus() {
+    return this.changeBus;
+  }
+  
   
   /* primary keys */
   
-  protected int keyCount; // Note: nextPrimaryKey is synchronized
-  protected int nextKey;
+  /**
+   * Returns the object which hands out primary keys from the global OGo
+   * primary key sequence ('key_generator'). The allocator reserves keys in
+   * blocks, the size of the block can be configured using
+   * setPrimaryKeyBlockSize().
+   * 
+   * @return the OGoPrimaryKeyAllocator of the database
+   */
+  public OGoPrimaryKeyAllocator primaryKeyAllocator() {
+    return this.pkeyAllocator;
+  }
   
   /**
-   * Generates a new primary key, from the global OGo primary key sequence. The
-   * sequence generates keys in batches of 10, so calling this for a set of
-   * objects is reasonably cheap.
+   * Sets the number of primary keys which are reserved from the sequence in
+   * a single SQL statement. Larger values are useful for bulk imports. The
+   * value is rounded up to a multiple of the sequence increment (10).
+   * 
+   * @param _size - the number of keys reserved per roundtrip
+   */
+  public void setPrimaryKeyBlockSize(final int _size) {
+    this.pkeyAllocator.setBlockSize(_size);
+  }
+  public int primaryKeyBlockSize() {
+    return this.pkeyAllocator.blockSize();
+  }
+  
+  /**
+   * Generates a new primary key, from the global OGo primary key sequence.
+   * Keys are reserved in blocks and handed out w/o locking, so calling this
+   * for a set of objects is cheap.
    * 
    * @return a new, unqiue, primary key
    */
   public Number nextPrimaryKey() {
     // TBD: move to EOAccess/EOModel
-    // TBD: this is a bit confusing! Actually we would need to count in the
-    //      reverse. Eg if we called nextval('key_generator') and it returned
-    //        37
-    //      we actually consumed the values 28...37.
-    // TBD: what we can't easily change this w/o compat issues?
-    final int sequenceCount = 10; // specified in CREATE SEQUENCE of OGo Schema
-    final String keySQL = "SELECT nextval('key_generator');";
-    
-    final EOAdaptor ad = this.adaptor();
-    if (ad == null) {
-      log.error("database has no adaptor?");
-      return null;
-    }
-
-    Number key = null;
-    
-    synchronized (this) {
-      if (this.keyCount > 0) { /* key available in cache */
-        int ikey = this.nextKey;
-        this.keyCount--;
-        this.nextKey++;
-        return Integer.valueOf(ikey);
-      }
-      
-      // hola, SQL inside synchronized, not too good ...
-      final List<Map<String, Object>> results = ad.performSQL(keySQL);
-      if (results == null || results.size() != 1) {
-        log.error("could not fetch new primary key: " + results);
-        return null;
-      }
-      
-      // TBD: wow, what a crap :-)
-      if ((key = (Number)(results.get(0).values().iterator().next())) != null) {
-        this.keyCount = (sequenceCount - 1 /* we consume one */);
-        this.nextKey  = key.intValue() + 1;
-      }
-    }
-    return key;
+    return this.pkeyAllocator.nextPrimaryKey();
   }
   
   /**
    * This method is for grabbing a large number of primary keys in bulk
-   * INSERTs.
+   * INSERTs. The keys are served as a contiguous range if possible.
    * 
    * @param _count - number of primary keys to grab
    * @return an array of primary keys, or null if _count smaller than 0
    */
-  public Number[] grabPrimaryKeys(int _count) {
-    if (_count < 0)
-      return null;
-    
-    // TBD: optimize for bulk-grabs
-    final Number[] pkeys = new Number[_count];
-    for (_count--; _count >= 0; _count--) {
-      if ((pkeys[_count] = this.nextPrimaryKey()) == null)
-        return null; /* abort on a single failure */
-    }
-    return pkeys;
+  public Number[] grabPrimaryKeys(final int _count) {
+    return this.pkeyAllocator.grabPrimaryKeys(_count);
   }
   
   /* login */
@@ -0,0 +1,193 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.foundation.NSObject;
+
+/**
+ * OGoDocumentContentLoader
+ * <p>
+ * Loads the contents of many notes or documents concurrently, eg when a view
+ * lists 200 notes with their bodies. Each content is loaded using
+ * OGoDocumentObject.contentAsString() (hence served from the content cache if
+ * possible) on a bounded pool of daemon threads. The total latency is bounded
+ * by the slowest read instead of the sum of all reads.
+ * <p>
+ * Each OGoDatabase has a loader, see OGoDatabase.contentLoader() and
+ * OGoNotes.fetchContentsOfNotes().
+ * <p>
+ * Example:<pre>
+ *   List&lt;String&gt; bodies = db.contentLoader().contentsAsStrings(notes);
+ * </pre>
+ *
+ * <p>
+ * THREAD: the loader is thread safe. The document objects are only read by
+ * the pool threads, the calling thread waits for the results.
+ *
+ * @author helge
+ */
+public class OGoDocumentContentLoader extends NSObject {
+  protected static final Log log = LogFactory.getLog("OGoDocumentObject");
+
+  protected final ThreadPoolExecutor executor;
+
+  public OGoDocumentContentLoader(final int _maxThreads) {
+    super();
+
+    final int threads = _maxThreads > 0 ? _maxThreads : 1;
+    this.executor = new ThreadPoolExecutor(threads, threads,
+        60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger(0);
+          public Thread newThread(final Runnable _r) {
+            final Thread t = new Thread(_r,
+                "OGoContentLoader-" + this.count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+  public OGoDocumentContentLoader() {
+    this(8);
+  }
+
+
+  /* accessors */
+
+  /**
+   * Sets the maximum number of concurrent reads.
+   */
+  public void setMaxThreads(final int _count) {
+    if (_count < 1)
+      return;
+    if (_count > this.executor.getMaximumPoolSize()) {
+      this.executor.setMaximumPoolSize(_count);
+      this.executor.setCorePoolSize(_count);
+    }
+    else {
+      this.executor.setCorePoolSize(_count);
+      this.executor.setMaximumPoolSize(_count);
+    }
+  }
+  public int maxThreads() {
+    return this.executor.getMaximumPoolSize();
+  }
+
+
+  /* loading */
+
+  /**
+   * Loads the contents of the given objects concurrently.
+   *
+   * @param _docs - a List of OGoNote or OGoDocument objects
+   * @return the contents in the order of the objects, with null entries for
+   *         contents which could not be loaded
+   */
+  public List<String> contentsAsStrings
+    (final List<? extends OGoDocumentObject> _docs)
+  {
+    if (_docs == null)
+      return null;
+
+    final int count = _docs.size();
+    final List<String> results = new ArrayList<String>(count);
+    if (count < 2 || this.executor.isShutdown()) {
+      /* not worth the thread hop */
+      for (final OGoDocumentObject doc: _docs)
+        results.add(doc != null ? doc.contentAsString() : null);
+      return results;
+    }
+
+    final List<Future<String>> futures = new ArrayList<Future<String>>(count);
+    for (final OGoDocumentObject doc: _docs) {
+      if (doc == null) {
+        futures.add(null);
+        continue;
+      }
+      futures.add(this.executor.submit(new Callable<String>() {
+        public String call() {
+          return doc.contentAsString();
+        }
+      }));
+    }
+
+    boolean interrupted = false;
+    for (int i = 0; i < count; i++) {
+      final Future<String> f = futures.get(i);
+      String content = null;
+      if (f != null && !interrupted) {
+        try {
+          content = f.get();
+        }
+        catch (final InterruptedException e) {
+          interrupted = true;
+        }
+        catch (final ExecutionException e) {
+          log.error("could not load content of: " + _docs.get(i),
+              e.getCause());
+        }
+      }
+      if (interrupted && f != null)
+        f.cancel(false);
+      results.add(content);
+    }
+
+    if (interrupted)
+      Thread.currentThread().interrupt();
+    return results;
+  }
+
+  /**
+   * Stops the pool threads. Subsequent loads are done in the calling thread.
+   */
+  public void shutdown() {
+    this.executor.shutdown();
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" threads=");
+    _d.append(this.executor.getPoolSize());
+    _d.append('/');
+    _d.append(this.executor.getMaximumPoolSize());
+    _d.append(" active=");
+    _d.append(this.executor.getActiveCount());
+  }
+}
@@ -20,12 +20,18 @@
 */
 package org.opengroupware.logic.db;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Date;
 
 import org.getobjects.eoaccess.EOEntity;
-import org.getobjects.foundation.UString;
 import org.opengroupware.logic.blobs.IOGoBlobStore;
+import org.opengroupware.logic.blobs.OGoBlobContentCache;
 
 /**
  * OGoDocumentObject
@@ -141,8 +147,135 @@ public abstract class OGoDocumentObject extends OGoObject {
   public String contentEncoding() {
     return "utf-8"; // TBD: make configurable
   }
+  
+  /**
+   * Loads the full content into a String. Do not use this for large
+   * documents, prefer openContentStream() or transferContentToChannel().
+   * <p>
+   * Contents are cached in the OGoBlobContentCache of the database, keyed by
+   * id and contentVersion().
+   * 
+   * @return the content, or null if it could not be loaded
+   */
   public String contentAsString() {
-    return UString.loadFromFile(this.blobFile(), this.contentEncoding());
+    final OGoDatabase db = this.oDatabase();
+    final OGoBlobContentCache cache = db != null ? db.contentCache() : null;
+    final long version = this.contentVersion();
+    if (cache == null || version < 0)
+      return this.loadContentAsString();
+    
+    String s = cache.contentForId(this.id, version);
+    if (s == null) {
+      if ((s = this.loadContentAsString()) != null)
+        cache.cacheContent(this.id, version, s);
+    }
+    return s;
+  }
+  
+  /**
+   * Returns the version used to detect stale cached contents. This is the
+   * objectVersion of the object, or its lastModified timestamp.
+   * 
+   * @return the version, or -1 if the object has neither
+   */
+  public long contentVersion() {
+    final Number ov = this.baseVersion();
+    if (ov != null)
+      return ov.longValue();
+    return this.lastModified != null ? this.lastModified.getTime() : -1;
+  }
+  
+  protected String loadContentAsString() {
+    final InputStream in;
+    try {
+      in = this.openContentStream();
+    }
+    catch (final IOException e) {
+      log.error("could not open content of document object: " + this, e);
+      return null;
+    }
+    
+    try {
+      final long size = this.contentSize();
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+          size > 0 && size < Integer.MAX_VALUE ? (int)size : 4096);
+      final byte[] buf = new byte[8192];
+      int len;
+      while ((len = in.read(buf)) > 0)
+        bytes.write(buf, 0, len);
+      
+      return bytes.toString(this.contentEncoding());
+    }
+    catch (final IOException e) {
+      log.error("could not read content of document object: " + this, e);
+      return null;
+    }
+    finally {
+      try { in.close(); } catch (final IOException e) {}
+    }
+  }
+  
+  /**
+   * Returns the size of the content in bytes, as reported by the blob store.
+   * 
+   * @return the size in bytes, or -1 if the content does not exist
+   */
+  public long contentSize() {
+    final IOGoBlobStore bs = this.blobStore();
+    return bs != null
+      ? bs.blobSizeForId(this.id, this.projectId, this.fileext) : -1;
+  }
+  
+  /**
+   * Opens a stream on the content of the document. The caller is responsible
+   * for closing the stream.
+   * 
+   * @return an InputStream
+   */
+  public InputStream openContentStream() throws IOException {
+    return this.blobStoreForContent()
+      .openStreamForId(this.id, this.projectId, this.fileext);
+  }
+  
+  /**
+   * Opens a channel on a range of the content, eg for partial downloads. The
+   * caller is responsible for closing the channel.
+   * 
+   * @param _offset - the first byte to return
+   * @param _length - the number of bytes to return, or -1 for the rest
+   * @return a ReadableByteChannel
+   */
+  public ReadableByteChannel openContentChannel(long _offset, long _length)
+    throws IOException
+  {
+    return this.blobStoreForContent()
+      .openChannelForId(this.id, this.projectId, this.fileext,
+          _offset, _length);
+  }
+  
+  /**
+   * Writes a range of the content to the given channel. For files this uses
+   * zero-copy transfer (sendfile() if the target is a socket).
+   * 
+   * @param _out    - the channel to write to
+   * @param _offset - the first byte to transfer
+   * @param _length - the number of bytes to transfer, or -1 for the rest
+   * @return the number of bytes written
+   */
+  public long transferContentToChannel
+    (final WritableByteChannel _out, long _offset, long _length)
+    throws IOException
+  {
+    return this.blobStoreForContent()
+      .transferBlobToChannel(this.id, this.projectId, this.fileext,
+          _offset, _length, _out);
+  }
+  
+  protected IOGoBlobStore blobStoreForContent() throws IOException {
+    final IOGoBlobStore bs = this.blobStore();
+    if (bs == null)
+      throw new FileNotFoundException("missing IOGoBlobStore for: " + this);
+    return bs;
   }
   
   /**
@@ -159,6 +292,8 @@ public abstract class OGoDocumentObject extends OGoObject {
    * Returns a File object which points to the file containing the BLOB
    * associated with this document. The File is located by asking the
    * {@link IOGoBlobStore}t.
+   * Stores which do not keep individual files (eg OGoPackBlobStore) return
+   * null, use the streaming methods (eg openContentStream()) instead.
    * 
    * @return a File object pointing to the proper BLOB
    */
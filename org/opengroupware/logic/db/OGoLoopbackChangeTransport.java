@@ -0,0 +1,76 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.db;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.getobjects.foundation.NSObject;
+
+/**
+ * OGoLoopbackChangeTransport
+ * <p>
+ * An in-memory IOGoChangeBusTransport. All buses started with the same
+ * transport object receive the records sent by the others. This simulates
+ * multiple nodes in one process, eg in tests:<pre>
+ *   OGoLoopbackChangeTransport t = new OGoLoopbackChangeTransport();
+ *   db1.changeBus().setTransport(t);
+ *   db2.changeBus().setTransport(t);
+ *   db1.changeBus().start();
+ *   db2.changeBus().start();</pre>
+ * The records are delivered synchronously in the sending thread.
+ *
+ * @author helge
+ */
+public class OGoLoopbackChangeTransport extends NSObject
+  implements IOGoChangeBusTransport
+{
+
+  protected final List<OGoChangeBus> buses =
+    new CopyOnWriteArrayList<OGoChangeBus>();
+
+  public Exception start(final OGoChangeBus _bus) {
+    if (_bus != null)
+      this.buses.add(_bus);
+    return null;
+  }
+
+  public void stop(final OGoChangeBus _bus) {
+    this.buses.remove(_bus);
+  }
+
+  public Exception send(final String _nodeId, List<OGoChangeRecord> _changes) {
+    for (final OGoChangeBus bus: this.buses)
+      bus.receiveRemoteChanges(_nodeId, _changes);
+    return null;
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" #buses=");
+    _d.append(this.buses.size());
+  }
+}
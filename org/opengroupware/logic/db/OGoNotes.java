@@ -129,4 +129,19 @@ public class OGoNotes extends OGoDataSource {
       ? new OGoResultSet(error)
       : new OGoResultSet(results, _limit, hitLimit, true /* did check */);
   }
+  
+  
+  /* contents */
+  
+  /**
+   * Loads the contents of the given notes concurrently, see
+   * OGoDocumentContentLoader.
+   * 
+   * @param _notes - the notes, eg the result of a fetch
+   * @return the contents, in the order of the notes
+   */
+  public List<String> fetchContentsOfNotes(final List<OGoNote> _notes) {
+    return this.objectContext().oDatabase().contentLoader()
+      .contentsAsStrings(_notes);
+  }
 }
@@ -0,0 +1,383 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.db;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.eoaccess.EOAdaptor;
+import org.getobjects.eoaccess.EOAdaptorChannel;
+import org.getobjects.foundation.NSException;
+import org.getobjects.foundation.NSObject;
+
+/**
+ * OGoPostgreSQLChangeTransport
+ * <p>
+ * Exchanges change records between nodes using the PostgreSQL LISTEN/NOTIFY
+ * facility. Records are sent using
+ * <pre>
+ *   SELECT pg_notify('ogo_changes', 'nodeid|U,Persons,10000,4;...')</pre>
+ * The payload of a notification is limited (8000 bytes), larger sets of
+ * records are split into multiple notifications.
+ * <p>
+ * A receiver thread keeps a dedicated connection which LISTENs on the
+ * channel. If the connection breaks, the thread reconnects and delivers an
+ * 'unknown changes' record, because notifications sent in the meantime are
+ * lost (subscribers then flush their caches).
+ * <p>
+ * The PostgreSQL JDBC driver is accessed using reflection, so that OGo does
+ * not depend on it at compile time.
+ *
+ * @author helge
+ */
+public class OGoPostgreSQLChangeTransport extends NSObject
+  implements IOGoChangeBusTransport
+{
+  protected static final Log log = LogFactory.getLog("OGoChangeBus");
+
+  public static final String defaultChannelName = "ogo_changes";
+  protected static final int maxPayloadLength   = 7900; /* PG limit is 8000 */
+
+  protected final EOAdaptor adaptor;
+  protected final String    channelName;
+  protected int             pollIntervalInMS = 500;
+  protected int             reconnectDelayInMS = 5000;
+
+  protected OGoChangeBus     bus;
+  protected Receiver         receiver;
+  protected Thread           receiverThread;
+
+  public OGoPostgreSQLChangeTransport(final EOAdaptor _adaptor, String _name) {
+    super();
+    this.adaptor     = _adaptor;
+    this.channelName = _name != null ? _name : defaultChannelName;
+  }
+  public OGoPostgreSQLChangeTransport(final EOAdaptor _adaptor) {
+    this(_adaptor, null /* default channel */);
+  }
+
+
+  /* accessors */
+
+  public String channelName() {
+    return this.channelName;
+  }
+
+  /**
+   * Sets how long the receiver waits for notifications in one poll.
+   */
+  public void setPollInterval(final int _ms) {
+    this.pollIntervalInMS = _ms > 10 ? _ms : 10;
+  }
+  public int pollInterval() {
+    return this.pollIntervalInMS;
+  }
+
+
+  /* start/stop */
+
+  public synchronized Exception start(final OGoChangeBus _bus) {
+    if (this.receiverThread != null)
+      return new NSException("change transport is already running: " + this);
+    if (this.adaptor == null)
+      return new NSException("change transport has no adaptor");
+
+    this.bus      = _bus;
+    this.receiver = new Receiver();
+
+    /* connect synchronously, so that configuration errors are reported */
+    final Exception error = this.receiver.connect();
+    if (error != null) {
+      this.receiver = null;
+      return error;
+    }
+
+    this.receiverThread =
+      new Thread(this.receiver, "OGoChangeBus-" + this.channelName);
+    this.receiverThread.setDaemon(true);
+    this.receiverThread.start();
+    return null;
+  }
+
+  public void stop(final OGoChangeBus _bus) {
+    final Thread t;
+    synchronized (this) {
+      if (this.receiver != null)
+        this.receiver.stop = true;
+      t = this.receiverThread;
+      this.receiverThread = null;
+    }
+    if (t == null)
+      return;
+
+    try { /* the receiver polls, it notices the flag after one interval */
+      t.join(this.pollIntervalInMS * 4L);
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+
+  /* sending */
+
+  public Exception send(final String _nodeId, List<OGoChangeRecord> _changes) {
+    if (_changes == null || _changes.size() == 0)
+      return null;
+
+    final List<String> payloads = payloadsForRecords(_nodeId, _changes);
+
+    final EOAdaptorChannel ch = this.adaptor.openChannelFromPool();
+    if (ch == null)
+      return new NSException("could not open channel to send changes");
+
+    PreparedStatement stmt = null;
+    try {
+      stmt = ch.connection().prepareStatement("SELECT pg_notify(?, ?)");
+      for (final String payload: payloads) {
+        stmt.setString(1, this.channelName);
+        stmt.setString(2, payload);
+        stmt.execute();
+      }
+      stmt.close(); stmt = null;
+    }
+    catch (final SQLException e) {
+      if (stmt != null) {
+        try { stmt.close(); } catch (final SQLException ce) {}
+      }
+      this.adaptor.releaseAfterError(ch, e);
+      return e;
+    }
+
+    this.adaptor.releaseChannel(ch);
+    return null;
+  }
+
+  /**
+   * Encodes the records as notification payloads of the form
+   * 'nodeid|record;record;...'. A payload is kept below the PostgreSQL limit.
+   */
+  public static List<String> payloadsForRecords
+    (final String _nodeId, final List<OGoChangeRecord> _changes)
+  {
+    final List<String> payloads = new ArrayList<String>(1);
+    final StringBuilder sb     = new StringBuilder(256);
+    final StringBuilder record = new StringBuilder(64);
+    final int prefixLength = _nodeId.length() + 1;
+
+    for (final OGoChangeRecord change: _changes) {
+      record.setLength(0);
+      change.appendExternalRepresentation(record);
+
+      if (sb.length() > prefixLength &&
+          sb.length() + 1 + record.length() > maxPayloadLength)
+      {
+        payloads.add(sb.toString());
+        sb.setLength(0);
+      }
+      if (sb.length() == 0) {
+        sb.append(_nodeId);
+        sb.append('|');
+      }
+      else
+        sb.append(';');
+      sb.append(record);
+    }
+    if (sb.length() > prefixLength)
+      payloads.add(sb.toString());
+    return payloads;
+  }
+
+  protected void processPayload(final String _payload) {
+    final int idx = _payload != null ? _payload.indexOf('|') : -1;
+    if (idx < 1) {
+      log.warn("got invalid change notification: " + _payload);
+      return;
+    }
+
+    this.bus.receiveRemoteChanges(_payload.substring(0, idx),
+        OGoChangeRecord.parseRecords(_payload.substring(idx + 1)));
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" channel=");
+    _d.append(this.channelName);
+    if (this.receiverThread != null)
+      _d.append(" listening");
+  }
+
+
+  /* receiver */
+
+  /**
+   * The receiver thread. It keeps a channel of the pool open, which LISTENs
+   * on the notification channel, and polls it for notifications.
+   */
+  protected class Receiver extends Object implements Runnable {
+    protected volatile boolean stop;
+    protected EOAdaptorChannel channel;
+    protected Object           pgConnection;
+    protected Method           getNotificationsWithTimeout;
+    protected Method           getNotifications;
+    protected Method           getParameter;
+
+    protected Exception connect() {
+      final EOAdaptor ad = OGoPostgreSQLChangeTransport.this.adaptor;
+      if ((this.channel = ad.openChannelFromPool()) == null)
+        return new NSException("could not open channel for LISTEN");
+
+      try {
+        final Connection c = this.channel.connection();
+        final Class<?> pgConClass = Class.forName("org.postgresql.PGConnection");
+        if (!c.isWrapperFor(pgConClass)) {
+          this.disconnect(null);
+          return new NSException("JDBC connection does not support NOTIFY");
+        }
+        this.pgConnection = c.unwrap(pgConClass);
+
+        try { /* pgjdbc 42.2.0+ can block waiting for notifications */
+          this.getNotificationsWithTimeout =
+            pgConClass.getMethod("getNotifications", int.class);
+        }
+        catch (final NoSuchMethodException e) {
+          this.getNotificationsWithTimeout = null;
+        }
+        this.getNotifications = pgConClass.getMethod("getNotifications");
+        this.getParameter = Class.forName("org.postgresql.PGNotification")
+          .getMethod("getParameter");
+
+        if (!c.getAutoCommit())
+          c.setAutoCommit(true);
+        this.executeSQL(c, "LISTEN " + OGoPostgreSQLChangeTransport.this
+            .channelName);
+      }
+      catch (final Exception e) {
+        this.disconnect(e);
+        return e;
+      }
+      return null;
+    }
+
+    protected void disconnect(final Exception _error) {
+      if (this.channel == null)
+        return;
+
+      final EOAdaptor ad = OGoPostgreSQLChangeTransport.this.adaptor;
+      if (_error != null)
+        ad.releaseAfterError(this.channel, _error);
+      else {
+        try {
+          this.executeSQL(this.channel.connection(), "UNLISTEN *");
+          ad.releaseChannel(this.channel);
+        }
+        catch (final SQLException e) {
+          ad.releaseAfterError(this.channel, e);
+        }
+      }
+      this.channel      = null;
+      this.pgConnection = null;
+    }
+
+    protected void executeSQL(final Connection _c, final String _sql)
+      throws SQLException
+    {
+      final Statement stmt = _c.createStatement();
+      try {
+        stmt.execute(_sql);
+      }
+      finally {
+        stmt.close();
+      }
+    }
+
+    /**
+     * Waits for notifications and returns their payloads.
+     */
+    protected Object[] poll() throws Exception {
+      final int interval = OGoPostgreSQLChangeTransport.this.pollIntervalInMS;
+      if (this.getNotificationsWithTimeout != null) {
+        return (Object[])this.getNotificationsWithTimeout
+          .invoke(this.pgConnection, interval);
+      }
+
+      /* old drivers only read notifications when a statement is run */
+      Thread.sleep(interval);
+      this.executeSQL(this.channel.connection(), "SELECT 1");
+      return (Object[])this.getNotifications.invoke(this.pgConnection);
+    }
+
+    public void run() {
+      final OGoPostgreSQLChangeTransport t = OGoPostgreSQLChangeTransport.this;
+
+      while (!this.stop) {
+        if (this.channel == null) {
+          /* reconnect */
+          try {
+            Thread.sleep(t.reconnectDelayInMS);
+          }
+          catch (final InterruptedException e) {
+            break;
+          }
+          if (this.connect() != null)
+            continue;
+
+          /* we might have missed notifications while being disconnected */
+          t.bus.receiveRemoteChanges("", Collections.singletonList(
+              OGoChangeRecord.unknownChanges));
+        }
+
+        try {
+          final Object[] notifications = this.poll();
+          if (notifications == null)
+            continue;
+
+          for (final Object notification: notifications) {
+            t.processPayload(
+                (String)this.getParameter.invoke(notification));
+          }
+        }
+        catch (final InterruptedException e) {
+          break;
+        }
+        catch (final Exception e) {
+          log.warn("LISTEN connection failed, reconnecting: " + e);
+          this.disconnect(e);
+        }
+      }
+
+      this.disconnect(null);
+    }
+  }
+}
@@ -0,0 +1,347 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.eoaccess.EOAdaptor;
+import org.getobjects.foundation.NSObject;
+
+/**
+ * OGoPrimaryKeyAllocator
+ * <p>
+ * Hands out primary keys from the global OGo 'key_generator' sequence.
+ * <p>
+ * The OGo schema creates the sequence with an increment of 10, that is, each
+ * nextval() call reserves 10 keys. The allocator reserves a whole block of
+ * keys in a single SQL statement, eg for a block size of 100:<pre>
+ *   SELECT nextval('key_generator') FROM generate_series(1, 10)</pre>
+ * The returned sequence values are merged into contiguous ranges (usually a
+ * single one, unless other processes grabbed keys at the same time).
+ * <p>
+ * Keys are then handed out from the current range using an AtomicLong, that
+ * is, without any locking. Only refilling a consumed block is synchronized.
+ * grabPrimaryKeys() tries to serve the requested number of keys as one
+ * contiguous range.
+ * <p>
+ * If the adaptor does not support generate_series(), the allocator falls back
+ * to one nextval() call per sequence increment.
+ *
+ * @author helge
+ */
+public class OGoPrimaryKeyAllocator extends NSObject {
+  protected static final Log log = LogFactory.getLog("OGoDatabase");
+
+  protected final EOAdaptor adaptor;
+  protected final String    sequenceName;
+  protected final int       sequenceIncrement;
+  protected volatile int    blockSize;
+  protected volatile boolean supportsSeries = true;
+
+  protected volatile KeyRange currentRange;
+  protected final Object      refillLock = new Object();
+
+  /* statistics */
+  protected final AtomicLong sequenceCalls = new AtomicLong(0);
+
+  /**
+   * Creates a new allocator.
+   *
+   * @param _adaptor   - the adaptor used to access the sequence
+   * @param _seqName   - the name of the sequence, eg 'key_generator'
+   * @param _increment - the INCREMENT of the sequence (10 in OGo)
+   * @param _blockSize - the number of keys to reserve in one statement
+   */
+  public OGoPrimaryKeyAllocator(final EOAdaptor _adaptor, final String _seqName,
+                                final int _increment, final int _blockSize)
+  {
+    super();
+    this.adaptor           = _adaptor;
+    this.sequenceName      = _seqName;
+    this.sequenceIncrement = _increment > 0 ? _increment : 1;
+    this.setBlockSize(_blockSize);
+  }
+
+
+  /* accessors */
+
+  /**
+   * Sets the number of keys which are reserved in one SQL statement. The
+   * value is rounded up to a multiple of the sequence increment.
+   *
+   * @param _size - the number of keys to reserve per SQL roundtrip
+   */
+  public void setBlockSize(final int _size) {
+    final int inc = this.sequenceIncrement;
+    this.blockSize = _size < inc ? inc : (((_size + inc - 1) / inc) * inc);
+  }
+  public int blockSize() {
+    return this.blockSize;
+  }
+
+  public int sequenceIncrement() {
+    return this.sequenceIncrement;
+  }
+
+  /**
+   * Returns the number of SQL statements issued to reserve keys.
+   */
+  public long sequenceCallCount() {
+    return this.sequenceCalls.get();
+  }
+
+
+  /* allocation */
+
+  /**
+   * Returns a new, unique, primary key.
+   *
+   * @return a new primary key, or null if none could be reserved
+   */
+  public Number nextPrimaryKey() {
+    for (;;) {
+      final KeyRange range = this.currentRange;
+      if (range != null) {
+        final long key = range.next.getAndIncrement();
+        if (key < range.end)
+          return Integer.valueOf((int)key);
+      }
+
+      if (!this.refill(range))
+        return null;
+    }
+  }
+
+  /**
+   * Returns _count primary keys. If possible the keys are taken as one
+   * contiguous range from the current block. Larger requests reserve a
+   * dedicated block in a single SQL statement.
+   *
+   * @param _count - number of primary keys to grab
+   * @return an array of primary keys, or null on error
+   */
+  public Number[] grabPrimaryKeys(final int _count) {
+    if (_count < 0)
+      return null;
+
+    final Number[] pkeys = new Number[_count];
+    if (_count == 0)
+      return pkeys;
+    if (_count == 1)
+      return (pkeys[0] = this.nextPrimaryKey()) != null ? pkeys : null;
+
+    /* first try to serve the keys from the current block */
+
+    if (_count <= this.blockSize) {
+      for (;;) {
+        final KeyRange range = this.currentRange;
+        if (range != null) {
+          final long start = range.next.getAndAdd(_count);
+          if (start + _count <= range.end) {
+            for (int i = 0; i < _count; i++)
+              pkeys[i] = Integer.valueOf((int)(start + i));
+            return pkeys;
+          }
+          /* Note: the rest of the block is skipped, the next one is fresh */
+        }
+        if (!this.refill(range))
+          return null;
+        if (this.currentRange.size() < _count)
+          break; /* block got split up (concurrent grabs), reserve own keys */
+      }
+    }
+
+    /* reserve a dedicated set of keys for the request */
+
+    final List<KeyRange> ranges = this.reserveRanges(_count);
+    if (ranges == null)
+      return null;
+
+    int i = 0;
+    for (final KeyRange range: ranges) {
+      for (long key = range.next.get(); key < range.end && i < _count; key++)
+        pkeys[i++] = Integer.valueOf((int)key);
+    }
+    if (i < _count) {
+      log.error("could not reserve enough primary keys: " + i + "/" + _count);
+      return null;
+    }
+    return pkeys;
+  }
+
+
+  /* refill */
+
+  /**
+   * Replaces the given, consumed, range with a fresh block of keys. If
+   * another thread already did the refill, this returns immediately.
+   *
+   * @param _consumed - the range which was found to be consumed
+   * @return true if a new range is available, false on error
+   */
+  protected boolean refill(final KeyRange _consumed) {
+    synchronized (this.refillLock) {
+      if (this.currentRange != _consumed)
+        return true; /* someone else was faster */
+
+      final List<KeyRange> ranges = this.reserveRanges(this.blockSize);
+      if (ranges == null || ranges.size() == 0)
+        return false;
+
+      /* Use the largest contiguous range, usually there is just one. We drop
+       * the other ones, the sequence has gaps anyways. */
+      KeyRange best = ranges.get(0);
+      for (final KeyRange r: ranges) {
+        if (r.size() > best.size())
+          best = r;
+      }
+      this.currentRange = best;
+      return true;
+    }
+  }
+
+  /**
+   * Reserves at least _count keys from the sequence in one SQL statement
+   * and returns them as a sorted list of contiguous ranges.
+   *
+   * @param _count - number of keys to reserve
+   * @return the reserved key ranges, or null on error
+   */
+  protected List<KeyRange> reserveRanges(final int _count) {
+    if (this.adaptor == null) {
+      log.error("database has no adaptor?");
+      return null;
+    }
+
+    final int inc   = this.sequenceIncrement;
+    final int calls = (_count + inc - 1) / inc;
+
+    long[] values = null;
+    if (this.supportsSeries && calls > 1) {
+      values = this.fetchSequenceValues(
+          "SELECT nextval('" + this.sequenceName + "') AS key " +
+          "FROM generate_series(1, " + calls + ")", calls);
+      if (values == null) {
+        log.warn("could not reserve keys using generate_series, " +
+            "falling back to single nextval calls.");
+        this.supportsSeries = false;
+      }
+    }
+    if (values == null) {
+      values = new long[calls];
+      final String sql = "SELECT nextval('" + this.sequenceName + "') AS key";
+      for (int i = 0; i < calls; i++) {
+        final long[] v = this.fetchSequenceValues(sql, 1);
+        if (v == null)
+          return null;
+        values[i] = v[0];
+      }
+    }
+
+    /* merge adjacent sequence values into contiguous ranges */
+
+    Arrays.sort(values);
+    final List<KeyRange> ranges = new ArrayList<KeyRange>(1);
+    long start = values[0], end = values[0] + inc;
+    for (int i = 1; i < values.length; i++) {
+      if (values[i] == end)
+        end += inc;
+      else {
+        ranges.add(new KeyRange(start, end));
+        start = values[i];
+        end   = start + inc;
+      }
+    }
+    ranges.add(new KeyRange(start, end));
+    return ranges;
+  }
+
+  protected long[] fetchSequenceValues(final String _sql, final int _count) {
+    this.sequenceCalls.incrementAndGet();
+
+    final List<Map<String, Object>> results = this.adaptor.performSQL(_sql);
+    if (results == null || results.size() != _count) {
+      log.error("could not fetch new primary keys: " + results);
+      return null;
+    }
+
+    final long[] values = new long[_count];
+    for (int i = 0; i < _count; i++) {
+      final Object v = results.get(i).values().iterator().next();
+      if (!(v instanceof Number)) {
+        log.error("unexpected sequence value: " + v);
+        return null;
+      }
+      values[i] = ((Number)v).longValue();
+    }
+    return values;
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" seq=");
+    _d.append(this.sequenceName);
+    _d.append(" block=");
+    _d.append(this.blockSize);
+    _d.append(" #sql=");
+    _d.append(this.sequenceCalls.get());
+
+    final KeyRange r = this.currentRange;
+    if (r != null) {
+      _d.append(" range=");
+      _d.append(r.next.get());
+      _d.append("-");
+      _d.append(r.end);
+    }
+  }
+
+
+  /* key range */
+
+  /**
+   * A contiguous range of reserved keys, 'next' is the next key to hand out,
+   * 'end' is exclusive.
+   */
+  protected static class KeyRange extends Object {
+    protected final AtomicLong next;
+    protected final long       end;
+
+    public KeyRange(final long _start, final long _end) {
+      this.next = new AtomicLong(_start);
+      this.end  = _end;
+    }
+
+    public long size() {
+      return this.end - this.next.get();
+    }
+  }
+}
@@ -20,10 +20,14 @@
 */
 package org.opengroupware.logic.db;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.getobjects.eoaccess.EOEntity;
 import org.getobjects.eocontrol.EOFetchSpecification;
+import org.getobjects.eocontrol.EOKeyValueQualifier;
+import org.getobjects.eocontrol.EOQualifier.ComparisonOperation;
 
 /**
  * OGoTeam
@@ -46,6 +50,7 @@ public class OGoTeam extends OGoContact implements Comparable<OGoTeam> {
 
   /* cached relationships */
   protected List<OGoAccount> accounts;
+  protected int              accountsVersion; /* membership index version */
   
   /* ctor */
   
@@ -80,12 +85,51 @@ public class OGoTeam extends OGoContact implements Comparable<OGoTeam> {
   
   // TODO: if we want to support recursive teams, we need to do some work here
   
+  /**
+   * Returns the IDs of the members of this team. The IDs are retrieved from
+   * the OGoTeamMembershipIndex of the database (a plain memory lookup).
+   * 
+   * @return the IDs of the team members, or null if the index is unavailable
+   */
+  public Number[] accountIDs() {
+    final OGoDatabase db = this.oDatabase();
+    if (db == null)
+      return null;
+    
+    return db.teamMembershipIndex().accountIdsForTeamId(this.id());
+  }
+  
   @SuppressWarnings("unchecked")
   public List<OGoAccount> accounts() {
-    if (log.isDebugEnabled()) log.debug("fetch accounts for: " + this.id);
+    final OGoDatabase db = this.oDatabase();
+    final OGoTeamMembershipIndex idx =
+      db != null ? db.teamMembershipIndex() : null;
+    
+    if (idx != null && idx.version() != this.accountsVersion)
+      this.accounts = null; /* memberships changed */
     
-    if (this.accounts == null)
-      this.accounts = this.qualifiedAccountDataSource().fetchObjects();
+    if (this.accounts == null) {
+      if (log.isDebugEnabled()) log.debug("fetch accounts for: " + this.id);
+      
+      final int      version = idx != null ? idx.version() : 0;
+      final Number[] ids     = this.accountIDs();
+      
+      if (ids == null)
+        this.accounts = this.qualifiedAccountDataSource().fetchObjects();
+      else if (ids.length == 0)
+        this.accounts = new ArrayList<OGoAccount>(0);
+      else {
+        /* we know the IDs, just fetch the account records by primary key */
+        final OGoAccounts ds = db.accounts();
+        ds.setFetchSpecification(new EOFetchSpecification(
+            ds.entity().name(),
+            new EOKeyValueQualifier("id", ComparisonOperation.CONTAINS,
+                                    Arrays.asList(ids)),
+            null /* orderings */));
+        this.accounts = ds.fetchObjects();
+      }
+      this.accountsVersion = version;
+    }
     return this.accounts;
   }
 
@@ -0,0 +1,345 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.eoaccess.EOAdaptor;
+import org.getobjects.foundation.NSObject;
+
+/**
+ * OGoTeamMembershipIndex
+ * <p>
+ * A bidirectional, in-memory index of the account&lt;=&gt;team assignments
+ * stored in the 'team_membership' view. The index is loaded in a single bulk
+ * fetch and shared by all users of an OGoDatabase, that is, the JAAS login
+ * module, OGoAccount.teamIDs()/authIDs() and OGoTeam.accounts().
+ * <p>
+ * The index is guarded by a version counter. Operations which modify team
+ * memberships call invalidate() after their transaction committed, this
+ * bumps the counter and the next lookup reloads the index.
+ * Objects which cache membership information (eg OGoAccount) can compare the
+ * version() they derived their cache from with the current one.
+ * <p>
+ * Lookups are pure memory lookups on an immutable snapshot, hence they do not
+ * need any locking.
+ * <p>
+ * The index subscribes to the OGoChangeBus of the database. Every committed
+ * change to an entity stored in 'company_assignment' (eg a delete or update
+ * of TeamMemberships, including direct mode updates) invalidates it, as do
+ * changes to teams or accounts committed by this or other nodes.
+ *
+ * @author helge
+ */
+public class OGoTeamMembershipIndex extends NSObject
+  implements IOGoChangeListener
+{
+  protected static final Log log = LogFactory.getLog("OGoTeamMembershipIndex");
+
+  protected static final String loadSQL =
+    "SELECT TM.team_id, TM.person_id, T.description " +
+    "FROM team_membership TM, team T " +
+    "WHERE T.company_id = TM.team_id AND T.is_team = 1";
+
+  protected static final Number[] emptyIds = new Number[0];
+
+  /* the entities which are mapped to the company_assignment table */
+  protected static final String[] assignmentEntityNames = {
+    "TeamMemberships", "Employments", "CompanyRelationships"
+  };
+
+  protected final OGoDatabase   db;
+  protected final AtomicInteger version;
+  protected volatile Snapshot   snapshot;
+
+  public OGoTeamMembershipIndex(final OGoDatabase _db) {
+    super();
+    this.db      = _db;
+    this.version = new AtomicInteger(1);
+  }
+
+
+  /* versioning */
+
+  /**
+   * Returns the current version of the index. The version is bumped each time
+   * the index gets invalidated.
+   *
+   * @return the version of the membership information
+   */
+  public int version() {
+    return this.version.get();
+  }
+
+  /**
+   * Marks the index as stale. The next lookup will reload the memberships
+   * from the database.
+   * This is called by operations which change team memberships after their
+   * transaction committed.
+   */
+  public void invalidate() {
+    final int newVersion = this.version.incrementAndGet();
+    if (log.isDebugEnabled())
+      log.debug("invalidated team membership index, version: " + newVersion);
+  }
+
+
+  /* IOGoChangeListener */
+
+  /**
+   * Invalidates the index if a committed transaction changed teams, accounts
+   * or rows of the company_assignment table.
+   * Unknown changes only invalidate the index if they come from another node,
+   * local operations which do not report their changes (eg contact deletes)
+   * invalidate the index themselves.
+   */
+  public void objectsDidChange
+    (final OGoChangeBus _bus, final List<OGoChangeRecord> _changes,
+     final boolean _isRemote)
+  {
+    for (final OGoChangeRecord change: _changes) {
+      if (change.isUnknownChange() ? _isRemote
+          : this.isMembershipEntity(change.entityName()))
+      {
+        this.invalidate();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns true if changes to objects of the given entity can affect the
+   * index.
+   */
+  protected boolean isMembershipEntity(final String _ename) {
+    if (_ename == null)
+      return false;
+    if ("Teams".equals(_ename) || "Accounts".equals(_ename))
+      return true;
+    for (final String ename: assignmentEntityNames) {
+      if (ename.equals(_ename))
+        return true;
+    }
+    return false;
+  }
+
+
+  /* lookups */
+
+  /**
+   * Returns the IDs of the teams the given account is a member of. The IDs are
+   * sorted in ascending order.
+   *
+   * @param _accountId - the primary key of the account
+   * @return the team IDs, an empty array if there are none, null on error
+   */
+  public Number[] teamIdsForAccountId(final Number _accountId) {
+    final Snapshot s = this.currentSnapshot();
+    if (s == null)
+      return null;
+    if (_accountId == null)
+      return emptyIds;
+
+    final Number[] ids = s.accountToTeams.get(_accountId.intValue());
+    return ids != null ? ids : emptyIds;
+  }
+
+  /**
+   * Returns the IDs of the accounts (persons) which are member of the given
+   * team. The IDs are sorted in ascending order.
+   *
+   * @param _teamId - the primary key of the team
+   * @return the member IDs, an empty array if there are none, null on error
+   */
+  public Number[] accountIdsForTeamId(final Number _teamId) {
+    final Snapshot s = this.currentSnapshot();
+    if (s == null)
+      return null;
+    if (_teamId == null)
+      return emptyIds;
+
+    final Number[] ids = s.teamToAccounts.get(_teamId.intValue());
+    return ids != null ? ids : emptyIds;
+  }
+
+  /**
+   * Returns the name ('description' column) of the given team. Only teams
+   * which have members are tracked by the index.
+   *
+   * @param _teamId - the primary key of the team
+   * @return the name of the team, or null if it is not tracked
+   */
+  public String nameForTeamId(final Number _teamId) {
+    final Snapshot s = this.currentSnapshot();
+    if (s == null || _teamId == null)
+      return null;
+
+    return s.teamNames.get(_teamId.intValue());
+  }
+
+
+  /* loading */
+
+  /**
+   * Returns the snapshot matching the current version, reloads the index if
+   * it got invalidated.
+   *
+   * @return the current Snapshot, or null if it could not be loaded
+   */
+  protected Snapshot currentSnapshot() {
+    Snapshot s = this.snapshot;
+    if (s != null && s.version == this.version.get())
+      return s;
+
+    synchronized (this) {
+      /* check again, another thread might have loaded it in the meantime */
+      s = this.snapshot;
+      final int v = this.version.get();
+      if (s != null && s.version == v)
+        return s;
+
+      final Snapshot newSnapshot = this.load(v);
+      if (newSnapshot == null)
+        return s; /* keep the old one (if any) on errors */
+
+      this.snapshot = newSnapshot;
+      return newSnapshot;
+    }
+  }
+
+  /**
+   * Fetches all team memberships in one SQL statement and builds the index.
+   *
+   * @param _version - the version the snapshot represents
+   * @return a new Snapshot, or null on error
+   */
+  protected Snapshot load(final int _version) {
+    final EOAdaptor ad = this.db != null ? this.db.adaptor() : null;
+    if (ad == null) {
+      log.error("index has no adaptor to load memberships: " + this);
+      return null;
+    }
+
+    final List<Map<String, Object>> rows = ad.performSQL(loadSQL);
+    if (rows == null) {
+      log.error("could not fetch team memberships: " + this);
+      return null;
+    }
+
+    final Map<Integer, List<Number>> accountToTeams =
+      new HashMap<Integer, List<Number>>(256);
+    final Map<Integer, List<Number>> teamToAccounts =
+      new HashMap<Integer, List<Number>>(64);
+    final Map<Integer, String> teamNames = new HashMap<Integer, String>(64);
+
+    for (final Map<String, Object> row: rows) {
+      final Number teamId   = (Number)row.get("team_id");
+      final Number personId = (Number)row.get("person_id");
+      if (teamId == null || personId == null)
+        continue;
+
+      final Integer tid = teamId.intValue();
+      final Integer pid = personId.intValue();
+
+      List<Number> l = accountToTeams.get(pid);
+      if (l == null) accountToTeams.put(pid, l = new ArrayList<Number>(8));
+      l.add(tid);
+
+      if ((l = teamToAccounts.get(tid)) == null)
+        teamToAccounts.put(tid, l = new ArrayList<Number>(16));
+      l.add(pid);
+
+      if (!teamNames.containsKey(tid))
+        teamNames.put(tid, (String)row.get("description"));
+    }
+
+    if (log.isInfoEnabled()) {
+      log.info("loaded team membership index: " + rows.size() +
+          " assignments, version " + _version);
+    }
+    return new Snapshot(_version,
+        sortedIdArrays(accountToTeams), sortedIdArrays(teamToAccounts),
+        teamNames);
+  }
+
+  protected static Map<Integer, Number[]> sortedIdArrays
+    (final Map<Integer, List<Number>> _map)
+  {
+    final Map<Integer, Number[]> result =
+      new HashMap<Integer, Number[]>(_map.size());
+
+    for (final Map.Entry<Integer, List<Number>> entry: _map.entrySet()) {
+      final Integer[] ids = entry.getValue().toArray(new Integer[0]);
+      Arrays.sort(ids);
+      result.put(entry.getKey(), ids);
+    }
+    return result;
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" version=");
+    _d.append(this.version.get());
+
+    final Snapshot s = this.snapshot;
+    if (s == null)
+      _d.append(" not-loaded");
+    else if (s.version != this.version.get())
+      _d.append(" stale");
+  }
+
+
+  /* snapshot */
+
+  /**
+   * The immutable state of the index for a given version. Callers must not
+   * modify the returned arrays.
+   */
+  protected static class Snapshot extends Object {
+    protected final int version;
+    protected final Map<Integer, Number[]> accountToTeams;
+    protected final Map<Integer, Number[]> teamToAccounts;
+    protected final Map<Integer, String>   teamNames;
+
+    public Snapshot(final int _version,
+        final Map<Integer, Number[]> _accountToTeams,
+        final Map<Integer, Number[]> _teamToAccounts,
+        final Map<Integer, String>   _teamNames)
+    {
+      this.version        = _version;
+      this.accountToTeams = _accountToTeams;
+      this.teamToAccounts = _teamToAccounts;
+      this.teamNames      = _teamNames;
+    }
+  }
+}
@@ -0,0 +1,58 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.ops;
+
+import java.util.Map;
+
+/**
+ * IOGoContactImportSource
+ * <p>
+ * The parser stage of an OGoContactImport. A source streams the records of
+ * an import file (eg a CSV file), one record at a time. The records are
+ * Maps which can be passed to OGoContactInsert.add(), eg:<pre>
+ *   { firstname = Donald; lastname = Duck;
+ *     phones = ( { type = "01_tel"; number = "+49-391-6623-0"; } ) }</pre>
+ *
+ * <p>
+ * THREAD: sources are only accessed by the reader thread of the import.
+ *
+ * @author helge
+ */
+public interface IOGoContactImportSource {
+
+  /**
+   * Returns the next record of the source.
+   *
+   * A record which cannot be parsed is reported by throwing an
+   * OGoMalformedRecordException, the following call must continue with the
+   * next record. Other exceptions abort the import.
+   *
+   * @return the next record, or null if the source is exhausted
+   * @throws Exception if the source could not be read or parsed
+   */
+  public Map<String, Object> nextRecord() throws Exception;
+
+  /**
+   * Releases the resources associated with the source (eg the file).
+   */
+  public void close();
+
+}
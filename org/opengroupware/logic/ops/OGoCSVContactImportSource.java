@@ -0,0 +1,271 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.ops;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.foundation.NSObject;
+
+/**
+ * OGoCSVContactImportSource
+ * <p>
+ * Streams records from a CSV file. The first line of the file contains the
+ * column names, each following line is one record. Quoted values (which may
+ * contain separators, doubled quotes and newlines) are supported.
+ * <p>
+ * Malformed lines (more values than columns, an unterminated quote) are
+ * reported as OGoMalformedRecordException's, ie the import records them as
+ * errors and continues with the next line. An unterminated quote consumes
+ * the rest of the file, so it ends the source.
+ * <p>
+ * The column names can be mapped to OGo keys using a column mapping, eg
+ * 'Last Name' to 'lastname'. Columns which are not mapped are used as-is,
+ * columns mapped to null are ignored.
+ * <p>
+ * Keys of the form 'relationship.key' are collected into a to-many child
+ * record, eg the columns 'phones.type' and 'phones.number' produce:<pre>
+ *   phones = ( { type = "01_tel"; number = "+49-391-6623-0"; } )</pre>
+ *
+ * <p>
+ * Example:<pre>
+ *   IOGoContactImportSource src = new OGoCSVContactImportSource(
+ *     new InputStreamReader(new FileInputStream(f), "UTF-8"), ',');</pre>
+ *
+ * @author helge
+ */
+public class OGoCSVContactImportSource extends NSObject
+  implements IOGoContactImportSource
+{
+  protected static final Log log = LogFactory.getLog("OGoContactImport");
+
+  protected final BufferedReader reader;
+  protected final char           separator;
+  protected Map<String, String>  columnMapping;
+  protected String[]             keys;
+  protected long                 lineNumber;
+  protected long                 recordLineNumber;
+  protected boolean              atEOF;
+
+  public OGoCSVContactImportSource(final Reader _reader, final char _sep) {
+    super();
+    this.reader = _reader instanceof BufferedReader
+      ? (BufferedReader)_reader : new BufferedReader(_reader, 64 * 1024);
+    this.separator = _sep;
+  }
+
+
+  /* accessors */
+
+  /**
+   * Sets a Map which maps CSV column names to OGo keys. A column which maps
+   * to null is skipped.
+   *
+   * @param _mapping - the column name =&gt; key mapping
+   */
+  public void setColumnMapping(final Map<String, String> _mapping) {
+    this.columnMapping = _mapping;
+  }
+  public Map<String, String> columnMapping() {
+    return this.columnMapping;
+  }
+
+  /**
+   * Returns the line the parser is at (1-based). Useful for error messages.
+   */
+  public long lineNumber() {
+    return this.lineNumber;
+  }
+
+
+  /* reading records */
+
+  public Map<String, Object> nextRecord() throws Exception {
+    if (this.keys == null) {
+      final List<String> header = this.nextLine();
+      if (header == null)
+        return null; /* empty file */
+      this.keys = this.keysForHeader(header);
+    }
+
+    List<String> values;
+    do {
+      if ((values = this.nextLine()) == null)
+        return null; /* EOF */
+    }
+    while (values.size() == 1 && values.get(0).length() == 0); /* empty */
+
+    if (values.size() > this.keys.length) {
+      throw new OGoMalformedRecordException("CSV line " +
+          this.recordLineNumber + " has " + values.size() +
+          " columns, header has " + this.keys.length,
+          this.recordLineNumber, this.recordForMalformedLine(values));
+    }
+
+    final Map<String, Object> record =
+      new HashMap<String, Object>(this.keys.length);
+    Map<String, Map<String, Object>> children = null;
+
+    for (int i = 0; i < values.size(); i++) {
+      final String key = this.keys[i];
+      final String v   = values.get(i);
+      if (key == null || v == null || v.length() == 0)
+        continue;
+
+      final int dotIdx = key.indexOf('.');
+      if (dotIdx < 1) {
+        record.put(key, v);
+        continue;
+      }
+
+      /* child record, eg phones.number */
+      if (children == null)
+        children = new HashMap<String, Map<String, Object>>(4);
+      final String relship = key.substring(0, dotIdx);
+      Map<String, Object> child = children.get(relship);
+      if (child == null) {
+        children.put(relship, child = new HashMap<String, Object>(4));
+        final List<Object> childList = new ArrayList<Object>(1);
+        childList.add(child);
+        record.put(relship, childList);
+      }
+      child.put(key.substring(dotIdx + 1), v);
+    }
+    return record;
+  }
+
+  protected String[] keysForHeader(final List<String> _header) {
+    final String[] k = new String[_header.size()];
+    for (int i = 0; i < k.length; i++) {
+      final String column = _header.get(i).trim();
+      if (this.columnMapping != null && this.columnMapping.containsKey(column))
+        k[i] = this.columnMapping.get(column);
+      else
+        k[i] = column.length() > 0 ? column : null;
+    }
+    return k;
+  }
+
+  /**
+   * Returns the record which is reported for a line which could not be
+   * parsed, it contains the line number and the raw values.
+   */
+  protected Map<String, Object> recordForMalformedLine(final List<String> _v) {
+    final Map<String, Object> record = new HashMap<String, Object>(2);
+    record.put("line", this.recordLineNumber);
+    record.put("values", _v);
+    return record;
+  }
+
+  /**
+   * Parses the next CSV line into its values. A line can span multiple
+   * physical lines if a quoted value contains newlines.
+   *
+   * @return the values of the line, or null on EOF
+   * @throws OGoMalformedRecordException if a quote is not terminated
+   */
+  protected List<String> nextLine() throws IOException {
+    if (this.atEOF)
+      return null; /* ended by an unterminated quote */
+
+    String line = this.reader.readLine();
+    if (line == null)
+      return null;
+    this.lineNumber++;
+    this.recordLineNumber = this.lineNumber;
+
+    final List<String> values = new ArrayList<String>(16);
+    final StringBuilder sb = new StringBuilder(64);
+    boolean inQuotes = false;
+
+    for (;;) {
+      final int len = line.length();
+      for (int i = 0; i < len; i++) {
+        final char c = line.charAt(i);
+        if (inQuotes) {
+          if (c != '"')
+            sb.append(c);
+          else if (i + 1 < len && line.charAt(i + 1) == '"') {
+            sb.append('"');
+            i++;
+          }
+          else
+            inQuotes = false;
+        }
+        else if (c == '"')
+          inQuotes = true;
+        else if (c == this.separator) {
+          values.add(sb.toString());
+          sb.setLength(0);
+        }
+        else
+          sb.append(c);
+      }
+
+      if (!inQuotes)
+        break;
+
+      /* quoted value continues on the next line */
+      if ((line = this.reader.readLine()) == null) {
+        this.atEOF = true;
+        values.add(sb.toString());
+        throw new OGoMalformedRecordException("CSV line " +
+            this.recordLineNumber + " has an unterminated quote",
+            this.recordLineNumber, this.recordForMalformedLine(values));
+      }
+      this.lineNumber++;
+      sb.append('\n');
+    }
+    values.add(sb.toString());
+    return values;
+  }
+
+  public void close() {
+    try {
+      this.reader.close();
+    }
+    catch (final IOException e) {
+      log.warn("could not close CSV reader", e);
+    }
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" line=");
+    _d.append(this.lineNumber);
+    if (this.keys != null) {
+      _d.append(" #columns=");
+      _d.append(this.keys.length);
+    }
+  }
+}
@@ -63,6 +63,24 @@ public abstract class OGoCompoundOperation extends OGoOperation {
   }
   
   
+  /* change tracking */
+  
+  /**
+   * Returns true if all child operations report their changes. Subclasses
+   * which report their own changes use this in reportsChanges().
+   */
+  public boolean childOperationsReportChanges() {
+    if (this.childOperations == null)
+      return true;
+    
+    for (IOGoOperation op: this.childOperations) {
+      if (!operationReportsChanges(op))
+        return false;
+    }
+    return true;
+  }
+  
+  
   /* default implementations */
   
   public Exception prepareForTransactionInContext
@@ -45,6 +45,7 @@ import org.getobjects.foundation.UObject;
 import org.getobjects.foundation.UString;
 import org.opengroupware.logic.core.OGoObjectContext;
 import org.opengroupware.logic.db.IOGoContactChildObject;
+import org.opengroupware.logic.db.OGoChangeRecord;
 import org.opengroupware.logic.db.OGoObject;
 
 /**
@@ -278,6 +279,15 @@ public abstract class OGoContactChildChange extends OGoOperation
     this.now     = _tx.startDate();
     this.actorId = _oc.actorID();
     
+    /* The transaction might be a retry, start over. The change requests are
+     * left alone, we work on a copy. */
+    this.contactIdToNewObjects.clear();
+    this.contactIdToUpdatedObjects.clear();
+    final Map<Number, Map<String, Object>> pendingUpdates =
+      new TreeMap<Number,Map<String,Object>>
+        (PrimaryKeyComparator.sharedComparator);
+    pendingUpdates.putAll(this.idToUpdates);
+    
     
     /* Fetch child objects (emails,phones,addresses) for all requested contacts
      * by the companyId.
@@ -322,7 +332,7 @@ public abstract class OGoContactChildChange extends OGoOperation
         /* remove from update requests */
 
         final Number pkey = child.id();
-        final Map<String, Object> changes = this.idToUpdates.remove(pkey);
+        final Map<String, Object> changes = pendingUpdates.remove(pkey);
         if (changes != null) {
           /* apply update */
           child.takeValuesFromDictionary(changes);
@@ -332,12 +342,12 @@ public abstract class OGoContactChildChange extends OGoOperation
     
     /* check whether all updates could be satisfied (fetched) */
     
-    if (this.idToUpdates != null && this.idToUpdates.size() > 0) {
+    if (pendingUpdates.size() > 0) {
       /* Note: we intentionally do not track delete ids, if they are gone,
        * they are gone ...
        */
       log.warn("could not fetch all requested child objects: " + 
-          this.idToUpdates);
+          pendingUpdates);
       return new NSException("404 - did not find all update objects"); // TBD
     }
     
@@ -357,7 +367,7 @@ public abstract class OGoContactChildChange extends OGoOperation
     /* create new objects (for INSERTs) */
     
     if ((error = this.createNewObjects(_tx)) != null)
-      return null;
+      return error;
     
     /* rework key sequences, this might change otherwise unchanged records! */
     
@@ -416,8 +426,9 @@ public abstract class OGoContactChildChange extends OGoOperation
       return null; /* nothing to be done */
     
     for (final Number contactId: this.contactIdToInserts.keySet()) {
+      /* Note: the requests are kept, prepare can run again on a retry */
       final List<Map<String, Object>> changes =
-        this.contactIdToInserts.remove(contactId);
+        this.contactIdToInserts.get(contactId);
       if (changes == null || changes.size() == 0)
         continue;
 
@@ -508,9 +519,26 @@ public abstract class OGoContactChildChange extends OGoOperation
     final Exception error = _ch.performAdaptorOperations(ops);
     if (error != null) return error;
     
+    /* report changed children, the contacts are reported by the parent op */
+    final String ename = this.baseEntity.name();
+    for (final Number id: this.deletedIds)
+      _tx.noteChange(OGoChangeRecord.DELETE, ename, id, null);
+    for (final List<IOGoContactChildObject> children:
+         this.contactIdToUpdatedObjects.values())
+    {
+      for (final IOGoContactChildObject child: children)
+        _tx.noteChangedId(ename, child.id());
+    }
+    
     return null /* everything is fine */;
   }
   
+  @Override
+  public boolean reportsChanges() {
+    /* eg the 'acl' of a contact, grants permissions on the contact */
+    return !isGrantEntity(this.baseEntity);
+  }
+  
   
   /* support */
   
@@ -152,6 +152,11 @@ public class OGoContactCommentChange extends OGoOperation implements
 
     Exception error = null;
 
+    /* the transaction might be a retry, work on a copy of the requests */
+    this.contactIdToValueObject.clear();
+    final Map<Number, String> pendingValues =
+      new HashMap<Number, String>(this.contactIdToValue);
+
     /* fetch comments */
 
     EOFetchSpecification fs = new EOFetchSpecification(this.baseEntity.name(),
@@ -169,11 +174,11 @@ public class OGoContactCommentChange extends OGoOperation implements
 
     for (final OGoContactComment child : children) {
       final Number contactId = child.companyId();
-      if (!this.contactIdToValue.containsKey(contactId))
+      if (!pendingValues.containsKey(contactId))
         continue; /* should never happen */
 
       /* Note: this can be null! (if the user reset the comment) */
-      final String newComment = this.contactIdToValue.remove(contactId);
+      final String newComment = pendingValues.remove(contactId);
       child.setValue(newComment);
       if (child.hasChanges()) {
         this.contactIdToValueObject.put(contactId, child);
@@ -183,12 +188,12 @@ public class OGoContactCommentChange extends OGoOperation implements
 
     /* check whether all comments could be found */
 
-    if (this.contactIdToValue.size() > 0) {
+    if (pendingValues.size() > 0) {
       /* be tolerant, create new comments when necessary */
-      for (final Number contactId : this.contactIdToValue.keySet()) {
+      for (final Number contactId : pendingValues.keySet()) {
         final OGoContactComment child = new OGoContactComment(this.baseEntity);
         child.setCompanyId(contactId.intValue());
-        child.setValue(this.contactIdToValue.get(contactId));
+        child.setValue(pendingValues.get(contactId));
 
         this.contactIdToValueObject.put(contactId, child);
 
@@ -224,7 +229,15 @@ public class OGoContactCommentChange extends OGoOperation implements
     if (error != null)
       return error;
 
+    for (OGoContactComment child : this.contactIdToValueObject.values())
+      _tx.noteChangedId(this.baseEntity.name(), child.id());
+
     return null /* everything is fine */;
   }
 
+  @Override
+  public boolean reportsChanges() {
+    return true;
+  }
+
 }
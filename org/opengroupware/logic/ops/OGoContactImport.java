@@ -0,0 +1,765 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.ops;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.foundation.NSException;
+import org.getobjects.foundation.NSObject;
+import org.opengroupware.logic.core.OGoObjectContext;
+
+/**
+ * OGoContactImport
+ * <p>
+ * A pipeline to import large numbers of contacts (eg from CSV files). It
+ * consists of three stages:
+ * <ol>
+ *   <li>a reader thread which streams the records from an
+ *       IOGoContactImportSource and groups them into chunks
+ *   <li>a pool of worker threads which validate and normalize the records
+ *       of a chunk (see validateRecord())
+ *   <li>the calling thread, which inserts each chunk using one
+ *       OGoContactInsert operation in its own transaction
+ * </ol>
+ * The stages are connected by a small bounded queue, that is, the next chunks
+ * get parsed and validated while the current one is inserted. When run()
+ * returns, the reader thread has been stopped (interrupted and joined),
+ * also if the import got aborted.
+ * <p>
+ * Records which fail validation are reported as ErrorRecord's and skipped.
+ * If the transaction of a chunk fails, the records of the chunk are inserted
+ * one-by-one to find the failing ones. Records the source cannot parse (see
+ * OGoMalformedRecordException) are reported the same way. The job is only
+ * aborted if the source cannot be read.
+ * <p>
+ * If a checkpoint file is set, the number of committed records is written
+ * to it after each chunk. A restarted import with the same source and
+ * checkpoint file skips the records which have already been processed.
+ *
+ * <p>
+ * Example:<pre>
+ *   OGoContactImport imp = new OGoContactImport(oc, "Persons");
+ *   imp.setChunkSize(500);
+ *   imp.setCheckpointFile(new File("/tmp/import.checkpoint"));
+ *   Exception error = imp.run(new OGoCSVContactImportSource(reader, ','));
+ *   log.info("imported: " + imp.importedCount() +
+ *            ", failed: " + imp.failedCount() +
+ *            ", records/s: " + imp.recordsPerSecond());</pre>
+ *
+ * <p>
+ * THREAD: an import object can only be run once, by one thread.
+ *
+ * @author helge
+ */
+public class OGoContactImport extends NSObject {
+  protected static final Log log = LogFactory.getLog("OGoContactImport");
+
+  protected static final String checkpointKey = "committedRecords";
+  protected static final long   readerStopTimeout = 10000; /* ms */
+
+  protected final OGoObjectContext oc;
+  protected final String           entityName;
+
+  protected int      chunkSize      = 500;
+  protected int      workerCount    = 4;
+  protected int      queueDepth     = 2;
+  protected int      maxErrorRecords = 1000;
+  protected File     checkpointFile;
+  protected String[] requiredKeys;
+  protected boolean  bulkMode;
+
+  /* results */
+  protected long startTime;
+  protected long endTime;
+  protected long readCount;
+  protected long skippedCount;
+  protected long importedCount;
+  protected long failedCount;
+  protected long chunkCount;
+  protected final List<ErrorRecord> errorRecords;
+
+  public OGoContactImport(final OGoObjectContext _oc, final String _ename) {
+    super();
+    this.oc           = _oc;
+    this.entityName   = _ename;
+    this.errorRecords = new ArrayList<ErrorRecord>(16);
+
+    if ("Persons".equals(_ename))
+      this.requiredKeys = new String[] { "lastname" };
+    else if ("Companies".equals(_ename) || "Teams".equals(_ename))
+      this.requiredKeys = new String[] { "name" };
+  }
+
+
+  /* accessors */
+
+  /**
+   * Sets the number of records which are inserted in one transaction.
+   */
+  public void setChunkSize(final int _size) {
+    this.chunkSize = _size > 0 ? _size : 1;
+  }
+  public int chunkSize() {
+    return this.chunkSize;
+  }
+
+  /**
+   * Sets the number of threads used for validating records.
+   */
+  public void setWorkerCount(final int _count) {
+    this.workerCount = _count > 0 ? _count : 1;
+  }
+  public int workerCount() {
+    return this.workerCount;
+  }
+
+  /**
+   * Sets the number of chunks which can be read ahead of the insert stage.
+   */
+  public void setQueueDepth(final int _depth) {
+    this.queueDepth = _depth > 0 ? _depth : 1;
+  }
+  public int queueDepth() {
+    return this.queueDepth;
+  }
+
+  /**
+   * Sets the maximum number of ErrorRecord's which are kept in memory. Errors
+   * beyond that are only counted and logged.
+   */
+  public void setMaxErrorRecords(final int _max) {
+    this.maxErrorRecords = _max;
+  }
+  public int maxErrorRecords() {
+    return this.maxErrorRecords;
+  }
+
+  /**
+   * Sets the file used to track the import progress. If the file exists
+   * when the import is started, the already committed records are skipped.
+   */
+  public void setCheckpointFile(final File _file) {
+    this.checkpointFile = _file;
+  }
+  public File checkpointFile() {
+    return this.checkpointFile;
+  }
+
+  /**
+   * Sets the keys which must have a value in each record.
+   */
+  public void setRequiredKeys(final String[] _keys) {
+    this.requiredKeys = _keys;
+  }
+  public String[] requiredKeys() {
+    return this.requiredKeys;
+  }
+
+
+  /**
+   * Enables the bulk load mode of the insert operations, that is, the chunks
+   * are streamed using PostgreSQL COPY (see OGoEOInsertOperation).
+   */
+  public void setBulkMode(final boolean _flag) {
+    this.bulkMode = _flag;
+  }
+  public boolean isBulkMode() {
+    return this.bulkMode;
+  }
+
+
+  /* results */
+
+  public long readCount() {
+    return this.readCount;
+  }
+  /**
+   * Returns the number of records which got skipped because the checkpoint
+   * said that they were processed by a previous run.
+   */
+  public long skippedCount() {
+    return this.skippedCount;
+  }
+  public long importedCount() {
+    return this.importedCount;
+  }
+  public long failedCount() {
+    return this.failedCount;
+  }
+  public long chunkCount() {
+    return this.chunkCount;
+  }
+  public List<ErrorRecord> errorRecords() {
+    return this.errorRecords;
+  }
+
+  /**
+   * Returns the time the import ran (or is running) in milliseconds.
+   */
+  public long duration() {
+    if (this.startTime == 0)
+      return 0;
+    return (this.endTime > 0 ? this.endTime : System.currentTimeMillis()) -
+      this.startTime;
+  }
+
+  /**
+   * Returns the number of imported records per second.
+   */
+  public double recordsPerSecond() {
+    final long ms = this.duration();
+    return ms > 0 ? (this.importedCount * 1000.0 / ms) : 0.0;
+  }
+
+
+  /* running the import */
+
+  /**
+   * Runs the import. This method returns after all records of the source
+   * got processed, or if the source failed.
+   * Records which could not be imported do not abort the import, check
+   * failedCount() and errorRecords() for those.
+   *
+   * @param _source - the source of the records, it is closed by the method
+   * @return null if the source got processed, the error otherwise
+   */
+  public Exception run(final IOGoContactImportSource _source) {
+    if (_source == null)
+      return new NSException("missing import source");
+    if (this.oc == null)
+      return new NSException("missing object context");
+
+    this.startTime = System.currentTimeMillis();
+
+    final long resumePosition = this.loadCheckpoint();
+    if (resumePosition > 0)
+      log.info("resuming import after record " + resumePosition);
+
+    final ExecutorService workers =
+      Executors.newFixedThreadPool(this.workerCount);
+    final BlockingQueue<Chunk> queue =
+      new ArrayBlockingQueue<Chunk>(this.queueDepth);
+    final ChunkReader reader =
+      new ChunkReader(_source, workers, queue, resumePosition);
+    final Thread readerThread = new Thread(reader, "OGoContactImport-reader");
+
+    Exception error = null;
+    readerThread.start();
+    try {
+      for (;;) {
+        final Chunk chunk = queue.take();
+        if (chunk.isEnd())
+          break;
+        this.importChunk(chunk);
+      }
+      error = reader.error;
+    }
+    catch (final InterruptedException e) {
+      log.warn("import got interrupted: " + this);
+      error = e;
+      readerThread.interrupt();
+    }
+    finally {
+      this.stopReader(reader, readerThread, queue, _source); /* closes src */
+      workers.shutdownNow();
+      this.endTime = System.currentTimeMillis();
+    }
+
+    this.skippedCount = reader.skippedCount;
+    if (log.isInfoEnabled())
+      log.info("finished import: " + this);
+    return error;
+  }
+
+  /**
+   * Stops the reader thread and waits for it to finish, so that no thread is
+   * left blocked on the queue (or reading the source) after an abort.
+   * The source gets closed, before the join if the thread does not react to
+   * the interrupt (eg a blocking read on a stream).
+   */
+  protected void stopReader
+    (final ChunkReader _reader, final Thread _thread,
+     final BlockingQueue<Chunk> _queue, final IOGoContactImportSource _source)
+  {
+    _reader.stop = true;
+    _thread.interrupt();
+    _queue.clear(); /* drop chunks which are not going to be imported */
+
+    boolean didClose = false;
+    try {
+      _thread.join(readerStopTimeout);
+      if (_thread.isAlive()) {
+        _source.close();
+        didClose = true;
+        _thread.join(readerStopTimeout);
+      }
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt(); /* keep the state for the caller */
+    }
+
+    if (_thread.isAlive())
+      log.warn("import reader thread did not stop: " + _thread.getName());
+    if (!didClose)
+      _source.close();
+  }
+
+  /**
+   * Collects the validation results of the chunk and inserts the valid
+   * records in one transaction. If that fails, the records are inserted
+   * one-by-one so that only the broken records are rejected.
+   */
+  protected void importChunk(final Chunk _chunk) throws InterruptedException {
+    final int count = _chunk.records.size();
+    final List<Map<String, Object>> valid =
+      new ArrayList<Map<String, Object>>(count);
+    final List<Long> validNumbers = new ArrayList<Long>(count);
+
+    for (int i = 0; i < count; i++) {
+      final long recordNumber = _chunk.firstRecordNumber + i;
+      Exception error;
+      try {
+        error = _chunk.validations.get(i).get();
+      }
+      catch (final ExecutionException e) {
+        error = e.getCause() instanceof Exception
+          ? (Exception)e.getCause() : e;
+      }
+
+      if (error != null)
+        this.recordError(recordNumber, _chunk.records.get(i), error);
+      else {
+        valid.add(_chunk.records.get(i));
+        validNumbers.add(recordNumber);
+      }
+    }
+
+    this.readCount += count;
+    this.chunkCount++;
+
+    if (valid.size() > 0) {
+      final Exception error = this.insertRecords(valid);
+      if (error == null)
+        this.importedCount += valid.size();
+      else {
+        if (log.isInfoEnabled()) {
+          log.info("chunk at record " + _chunk.firstRecordNumber +
+              " failed, inserting records one-by-one: " + error);
+        }
+        for (int i = 0; i < valid.size(); i++) {
+          final Map<String, Object> record = valid.get(i);
+          final Exception rerror =
+            this.insertRecords(Collections.singletonList(record));
+          if (rerror != null)
+            this.recordError(validNumbers.get(i), record, rerror);
+          else
+            this.importedCount++;
+        }
+      }
+    }
+
+    this.saveCheckpoint(_chunk.firstRecordNumber + count);
+
+    if (log.isDebugEnabled())
+      log.debug("processed chunk: " + this);
+  }
+
+  /**
+   * Inserts the given records in one transaction.
+   *
+   * @param _records - the records to be inserted
+   * @return null on success, the error otherwise
+   */
+  protected Exception insertRecords(final List<Map<String, Object>> _records) {
+    final OGoContactInsert op = this.newInsertOperation();
+    if (this.bulkMode)
+      op.setBulkMode(true); /* before add(), so that child ops inherit it */
+    for (final Map<String, Object> record: _records) {
+      /* add() might modify the records, hence we pass in a copy */
+      if (op.add(new HashMap<String, Object>(record)) < 0)
+        return new NSException("could not add record to insert operation");
+    }
+    return this.oc.performOperations(op);
+  }
+
+  /**
+   * Returns a new OGoContactInsert operation for a chunk. Subclasses can
+   * override this to configure the operation (eg to set a delegate).
+   */
+  protected OGoContactInsert newInsertOperation() {
+    return new OGoContactInsert(this.oc, this.entityName);
+  }
+
+  protected void recordError
+    (final long _recordNumber, final Map<String, Object> _record,
+     final Exception _error)
+  {
+    this.failedCount++;
+
+    if (log.isInfoEnabled())
+      log.info("could not import record " + _recordNumber + ": " + _error);
+
+    if (this.errorRecords.size() < this.maxErrorRecords)
+      this.errorRecords.add(new ErrorRecord(_recordNumber, _record, _error));
+  }
+
+
+  /* validation */
+
+  /**
+   * Validates and normalizes a single record. This is called on a worker
+   * thread, hence it must not access the object context.
+   * <p>
+   * The default implementation trims String values, removes empty values and
+   * checks whether the requiredKeys are set. Subclasses can override this to
+   * add custom checks or mappings.
+   *
+   * @param _record - the record to validate, can be modified in place
+   * @return null if the record is fine, the error otherwise
+   */
+  public Exception validateRecord(final Map<String, Object> _record) {
+    if (_record == null || _record.size() == 0)
+      return new NSException("empty record");
+
+    final List<String> emptyKeys = new ArrayList<String>(4);
+    for (final Map.Entry<String, Object> entry: _record.entrySet()) {
+      final Object v = entry.getValue();
+      if (v instanceof String) {
+        final String s = ((String)v).trim();
+        if (s.length() == 0)
+          emptyKeys.add(entry.getKey());
+        else if (s != v)
+          entry.setValue(s);
+      }
+    }
+    for (final String key: emptyKeys)
+      _record.remove(key);
+
+    if (this.requiredKeys != null) {
+      for (final String key: this.requiredKeys) {
+        if (_record.get(key) == null)
+          return new NSException("record misses required key: " + key);
+      }
+    }
+    return null;
+  }
+
+
+  /* checkpoints */
+
+  /**
+   * Returns the number of records which got processed by a previous run, as
+   * recorded in the checkpoint file.
+   */
+  protected long loadCheckpoint() {
+    if (this.checkpointFile == null || !this.checkpointFile.exists())
+      return 0;
+
+    final Properties props = new Properties();
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(this.checkpointFile);
+      props.load(in);
+      final String v = props.getProperty(checkpointKey);
+      return v != null ? Long.parseLong(v.trim()) : 0;
+    }
+    catch (final IOException e) {
+      log.error("could not read checkpoint: " + this.checkpointFile, e);
+      return 0;
+    }
+    catch (final NumberFormatException e) {
+      log.error("invalid checkpoint: " + this.checkpointFile, e);
+      return 0;
+    }
+    finally {
+      if (in != null) {
+        try { in.close(); } catch (final IOException e) {}
+      }
+    }
+  }
+
+  /**
+   * Records the number of processed records in the checkpoint file. The
+   * file is written to a temporary file first, which is then renamed.
+   *
+   * @param _position - the number of records which are done
+   */
+  protected void saveCheckpoint(final long _position) {
+    if (this.checkpointFile == null)
+      return;
+
+    final File tmp = new File(this.checkpointFile.getPath() + ".tmp");
+    final Properties props = new Properties();
+    props.setProperty(checkpointKey, String.valueOf(_position));
+    props.setProperty("importedRecords", String.valueOf(this.importedCount));
+    props.setProperty("failedRecords",   String.valueOf(this.failedCount));
+
+    FileOutputStream out = null;
+    try {
+      out = new FileOutputStream(tmp);
+      props.store(out, "OGoContactImport checkpoint");
+      out.getFD().sync();
+      out.close();
+      out = null;
+
+      if (!tmp.renameTo(this.checkpointFile)) {
+        /* eg Windows does not replace existing files */
+        this.checkpointFile.delete();
+        if (!tmp.renameTo(this.checkpointFile))
+          log.error("could not write checkpoint: " + this.checkpointFile);
+      }
+    }
+    catch (final IOException e) {
+      log.error("could not write checkpoint: " + this.checkpointFile, e);
+    }
+    finally {
+      if (out != null) {
+        try { out.close(); } catch (final IOException e) {}
+      }
+    }
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" entity=");
+    _d.append(this.entityName);
+    _d.append(" chunk=");
+    _d.append(this.chunkSize);
+    _d.append(" #read=");
+    _d.append(this.readCount);
+    if (this.skippedCount > 0) {
+      _d.append(" #skipped=");
+      _d.append(this.skippedCount);
+    }
+    _d.append(" #imported=");
+    _d.append(this.importedCount);
+    _d.append(" #failed=");
+    _d.append(this.failedCount);
+    _d.append(" rate=");
+    _d.append((long)this.recordsPerSecond());
+    _d.append("/s");
+  }
+
+
+  /* error record */
+
+  /**
+   * A record which could not be imported, along with the reason.
+   */
+  public static class ErrorRecord extends NSObject {
+    protected final long                recordNumber;
+    protected final Map<String, Object> record;
+    protected final Exception           error;
+
+    public ErrorRecord(final long _recordNumber,
+                       final Map<String, Object> _record, final Exception _e)
+    {
+      this.recordNumber = _recordNumber;
+      this.record       = _record;
+      this.error        = _e;
+    }
+
+    /**
+     * Returns the 0-based position of the record in the source.
+     */
+    public long recordNumber() {
+      return this.recordNumber;
+    }
+    public Map<String, Object> record() {
+      return this.record;
+    }
+    public Exception error() {
+      return this.error;
+    }
+
+    @Override
+    public void appendAttributesToDescription(final StringBuilder _d) {
+      super.appendAttributesToDescription(_d);
+      _d.append(" #");
+      _d.append(this.recordNumber);
+      _d.append(" error=");
+      _d.append(this.error);
+    }
+  }
+
+
+  /* pipeline */
+
+  /**
+   * A set of records read from the source, along with the pending results of
+   * their validation.
+   */
+  protected static class Chunk extends Object {
+    protected final long firstRecordNumber;
+    protected final List<Map<String, Object>> records;
+    protected final List<Future<Exception>>   validations;
+
+    public Chunk(final long _first, final int _capacity) {
+      this.firstRecordNumber = _first;
+      this.records     = new ArrayList<Map<String, Object>>(_capacity);
+      this.validations = new ArrayList<Future<Exception>>(_capacity);
+    }
+
+    public boolean isEnd() {
+      return this.firstRecordNumber < 0;
+    }
+  }
+  protected static final Chunk endMarker = new Chunk(-1, 0);
+
+  /**
+   * The reader stage, runs in its own thread. It pulls records from the
+   * source, submits them for validation and passes the chunks on to the
+   * insert stage.
+   */
+  protected class ChunkReader extends Object implements Runnable {
+    protected final IOGoContactImportSource source;
+    protected final ExecutorService         workers;
+    protected final BlockingQueue<Chunk>    queue;
+    protected final long                    resumePosition;
+    protected volatile boolean   stop;
+    protected volatile Exception error;
+    protected volatile long      skippedCount;
+
+    public ChunkReader(final IOGoContactImportSource _source,
+                       final ExecutorService _workers,
+                       final BlockingQueue<Chunk> _queue, final long _resume)
+    {
+      this.source         = _source;
+      this.workers        = _workers;
+      this.queue          = _queue;
+      this.resumePosition = _resume;
+    }
+
+    public void run() {
+      final int size = OGoContactImport.this.chunkSize;
+      long recordNumber = 0;
+      try {
+        Chunk chunk = null;
+        while (!this.stop) {
+          Map<String, Object> record;
+          Exception parseError = null;
+          try {
+            if ((record = this.source.nextRecord()) == null)
+              break; /* EOF */
+          }
+          catch (final OGoMalformedRecordException e) {
+            /* a broken line, reported like a validation failure */
+            record     = e.record();
+            parseError = e;
+          }
+
+          if (recordNumber < this.resumePosition) {
+            recordNumber++;
+            this.skippedCount++;
+            continue; /* processed by a previous run */
+          }
+
+          if (chunk == null)
+            chunk = new Chunk(recordNumber, size);
+          chunk.records.add(record);
+          chunk.validations.add(parseError != null
+            ? this.failedValidation(parseError)
+            : this.submitValidation(record));
+          recordNumber++;
+
+          if (chunk.records.size() >= size) {
+            this.queue.put(chunk);
+            chunk = null;
+          }
+        }
+        if (chunk != null && !this.stop)
+          this.queue.put(chunk);
+      }
+      catch (final InterruptedException e) {
+        if (!this.stop) {
+          log.warn("import reader got interrupted");
+          this.error = e;
+        }
+      }
+      catch (final Exception e) {
+        if (!this.stop) { /* else the source got closed by stopReader() */
+          log.error("could not read import record " + recordNumber, e);
+          this.error = e;
+        }
+      }
+      finally {
+        /* always signal the end, so that the insert stage stops */
+        if (!this.stop) {
+          try {
+            this.queue.put(endMarker);
+          }
+          catch (final InterruptedException e) {
+            log.warn("could not signal end of import");
+          }
+        }
+      }
+    }
+
+    protected Future<Exception> submitValidation
+      (final Map<String, Object> _record)
+    {
+      return this.workers.submit(new Callable<Exception>() {
+        public Exception call() {
+          return OGoContactImport.this.validateRecord(_record);
+        }
+      });
+    }
+
+    /**
+     * Returns an already completed validation which reports the given error,
+     * used for records the source could not parse.
+     */
+    protected Future<Exception> failedValidation(final Exception _error) {
+      final FutureTask<Exception> f =
+        new FutureTask<Exception>(new Callable<Exception>() {
+          public Exception call() {
+            return _error;
+          }
+        });
+      f.run();
+      return f;
+    }
+  }
+}
@@ -41,6 +41,10 @@ import org.opengroupware.logic.core.OGoObjectContext;
  *   op.add("companyId", 28373, "personId", 10000, "function", "Ruler");
  *   
  *   Exception error = oc.performOperations(operation);</pre>
+ * 
+ * <p>
+ * Inserts of TeamMemberships invalidate the OGoTeamMembershipIndex of the
+ * database once the transaction committed.
  */
 public class OGoContactRelationshipInsert extends OGoEOInsertOperation {
 
@@ -51,5 +55,40 @@ public class OGoContactRelationshipInsert extends OGoEOInsertOperation {
   public OGoContactRelationshipInsert(OGoObjectContext _oc, String _ename) {
     super(_oc, _ename);
   }
+  
+  
+  /* change tracking */
+  
+  /**
+   * The assignments change the relationships (and possibly the permissions)
+   * of existing contacts, hence the context is reset after the commit.
+   */
+  @Override
+  public boolean reportsChanges() {
+    return false;
+  }
+  
+  
+  /* team membership index */
+  
+  /**
+   * Returns true if the operation changes account/team assignments, that is,
+   * if it inserts TeamMemberships.
+   */
+  public boolean affectsTeamMemberships() {
+    return this.baseEntity != null &&
+      "TeamMemberships".equals(this.baseEntity.name()) &&
+      this.objects != null && this.objects.size() > 0;
+  }
+  
+  @Override
+  public Exception transactionDidCommitInContext
+    (final OGoOperationTransaction _tx, final OGoObjectContext _ctx)
+  {
+    if (this.affectsTeamMemberships() && _ctx != null)
+      _ctx.oDatabase().teamMembershipIndex().invalidate();
+    
+    return super.transactionDidCommitInContext(_tx, _ctx);
+  }
 
 }
@@ -20,7 +20,6 @@
 */
 package org.opengroupware.logic.ops;
 
-import java.io.File;
 import java.util.Date;
 import java.util.Map;
 
@@ -31,6 +30,7 @@ import org.getobjects.eocontrol.EOKeyGlobalID;
 import org.getobjects.foundation.NSException;
 import org.getobjects.foundation.UMap;
 import org.opengroupware.logic.blobs.IOGoBlobStore;
+import org.opengroupware.logic.blobs.IOGoBlobTransaction;
 import org.opengroupware.logic.core.OGoObjectContext;
 
 
@@ -70,7 +70,7 @@ public class OGoDocumentObjectInsert extends OGoOperation {
   public Number id;
   
   /* file, transaction state */
-  protected OGoFileWriteTransaction fileTx;
+  protected IOGoBlobTransaction fileTx;
   
 
   public OGoDocumentObjectInsert(final OGoObjectContext _oc, String _ename) {
@@ -281,10 +281,10 @@ public class OGoDocumentObjectInsert extends OGoOperation {
       return new NSException("Notes store is not setup!");
     
     final Object fe = this.record.get("fileext");
-    File f = bs.blobFileForId(pkey, null, (String)fe);
-    
-    this.fileTx = new OGoFileWriteTransaction(f);
-    if ((error = this.fileTx.performAtomicWrite(this.content)) != null)
+    this.fileTx = bs.blobWriteTransaction(pkey, null, (String)fe, this.content);
+    if (this.fileTx == null)
+      return new NSException("could not locate BLOB of note: " + pkey);
+    if ((error = this.fileTx.perform()) != null)
       return error;
     
     /* store results */
@@ -313,6 +313,7 @@ public class OGoDocumentObjectInsert extends OGoOperation {
   {
     if (this.fileTx != null) {
       final Exception error = this.fileTx.commit();
+      _ctx.oDatabase().contentCache().invalidateId(this.id);
       if (error != null) return error;
     }
     
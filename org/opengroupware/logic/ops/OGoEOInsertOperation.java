@@ -44,6 +44,7 @@ import org.getobjects.foundation.UObject;
 import org.opengroupware.logic.core.IOGoOperation;
 import org.opengroupware.logic.core.OGoObjectContext;
 import org.opengroupware.logic.db.IOGoObject;
+import org.opengroupware.logic.db.OGoChangeRecord;
 import org.opengroupware.logic.db.OGoDatabase;
 
 /**
@@ -66,6 +67,7 @@ public class OGoEOInsertOperation extends OGoCompoundOperation
   protected Date   now;
   protected Number actorId;
   protected Map<String, IOGoInsertOperation> childOpGrouper;
+  protected boolean bulkMode;
   
   public OGoEOInsertOperation(OGoObjectContext _oc, final EOEntity _entity) {
     super(_oc);
@@ -88,6 +90,30 @@ public class OGoEOInsertOperation extends OGoCompoundOperation
     return this.objects;
   }
 
+  /**
+   * Enables the bulk load mode. In bulk mode the rows are streamed into the
+   * database using PostgreSQL COPY FROM STDIN instead of INSERT statements.
+   * The primary keys are still reserved as one block (grabPrimaryKeys()).
+   * If the database does not support COPY, batched INSERTs are used.
+   * <p>
+   * The flag is passed on to the child insert operations.
+   * 
+   * @param _flag - whether to use the bulk load mode
+   */
+  public void setBulkMode(final boolean _flag) {
+    this.bulkMode = _flag;
+    
+    if (this.childOpGrouper != null) {
+      for (final IOGoInsertOperation op: this.childOpGrouper.values()) {
+        if (op instanceof OGoEOInsertOperation)
+          ((OGoEOInsertOperation)op).setBulkMode(_flag);
+      }
+    }
+  }
+  public boolean isBulkMode() {
+    return this.bulkMode;
+  }
+
   public Date now() {
     return this.now;
   }
@@ -262,6 +288,8 @@ public class OGoEOInsertOperation extends OGoCompoundOperation
     IOGoInsertOperation op = this.childOpGrouper.get(_relship.name());
     if (op == null) {
       op = this.newOperationForRelationship(_relship);
+      if (this.bulkMode && op instanceof OGoEOInsertOperation)
+        ((OGoEOInsertOperation)op).setBulkMode(true);
       this.childOpGrouper.put(_relship.name(), op);
     }
     if (op != null) {
@@ -294,6 +322,11 @@ public class OGoEOInsertOperation extends OGoCompoundOperation
     if (ename.equals("Projects"))
       return new OGoProjectInsert(this.oc);
     
+    if (ename.equals("TeamMemberships") ||
+        ename.equals("Employments")     ||
+        ename.equals("CompanyRelationships"))
+      return new OGoContactRelationshipInsert(this.oc, e);
+    
     return new OGoEOInsertOperation(this.oc, e);
   }
   
@@ -542,23 +575,35 @@ public class OGoEOInsertOperation extends OGoCompoundOperation
     // TBD: what about permission requests?
     // TBD: send this?: this.transactionDidBeginInContext(_tx, _ch, _ctx)
     
+    /* now we can perform the adaptor ops for the base objects ...
+     *
+     * The batcher groups the INSERTs by entity and column set and sends them
+     * as multi-row INSERTs (instead of one roundtrip per row).
+     */
     
-    /* now we can perform the adaptor ops for the base objects ... */
+    final OGoInsertBatcher batcher = this.insertBatcherForChannel(_ch);
     
     EOAdaptorOperation[] ops =
       buildAdaptorOperations(this.baseEntity, this.objects);
     if (ops == null)
       return new NSException("could not create adaptor operations");
     
-    if ((error = _ch.performAdaptorOperations(ops)) != null)
+    if ((error = batcher.performAdaptorOperations(ops)) != null)
       return error;
     
+    final Number version =
+      this.baseEntity.attributeNamed("objectVersion") != null ? one : null;
+    for (final EOEnterpriseObject eo: this.objects) {
+      _tx.noteChange(OGoChangeRecord.INSERT, this.baseEntity.name(),
+          (Number)eo.valueForKey(pkeyName), version);
+    }
+    
     
     /* next we need to fill in the obj_info table */
     
     ops = buildObjInfoInsertOps(_oc.oDatabase(), this.baseEntity,this.objects);
     if (ops != null) {
-      if ((error = _ch.performAdaptorOperations(ops)) != null) {
+      if ((error = batcher.performAdaptorOperations(ops)) != null) {
         log.error("could not insert obj_info ops", error);
         return error;
       }
@@ -566,7 +611,9 @@ public class OGoEOInsertOperation extends OGoCompoundOperation
     
     
     /* And finally we trigger the suboperations. They already got the primary
-     * keys patched in.
+     * keys patched in. Child insert operations are OGoEOInsertOperation's
+     * too, hence their rows (eg all phones of all inserted contacts) get
+     * batched as well.
      */
     if ((error = super.runChildOpsInContext(_tx, _ch, _oc)) != null)
       return error;
@@ -576,6 +623,35 @@ public class OGoEOInsertOperation extends OGoCompoundOperation
     return null; /* everything went fine!! */
   }
   
+  /**
+   * Inserts report the primary keys of the new objects, the child operations
+   * (eg the phones of new contacts) need to report their changes too.
+   * Inserts of ACL entries or project assignments grant permissions on other
+   * objects and are not reported.
+   */
+  @Override
+  public boolean reportsChanges() {
+    if (isGrantEntity(this.baseEntity))
+      return false;
+    return this.childOperationsReportChanges();
+  }
+  
+  /**
+   * Returns the object which is used to execute the INSERT adaptor operations.
+   * Subclasses can override this to configure the batching (eg to use JDBC
+   * batches instead of multi-row INSERTs). In bulk mode the batcher is
+   * configured to use COPY.
+   * 
+   * @param _ch - the channel the operations are run in
+   * @return an OGoInsertBatcher
+   */
+  public OGoInsertBatcher insertBatcherForChannel(final EOAdaptorChannel _ch) {
+    final OGoInsertBatcher batcher = new OGoInsertBatcher(_ch);
+    if (this.bulkMode)
+      batcher.setUseCopy(true);
+    return batcher;
+  }
+  
   /**
    * Derives EOAdaptorOperation objects from the source objects.
    * 
@@ -26,6 +26,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.getobjects.foundation.NSException;
 import org.getobjects.foundation.NSObject;
+import org.opengroupware.logic.blobs.IOGoBlobTransaction;
 
 /**
  * OGoFileDeleteTransaction
@@ -37,7 +38,9 @@ import org.getobjects.foundation.NSObject;
  * <p>
  * @author helge
  */
-public class OGoFileDeleteTransaction extends NSObject {
+public class OGoFileDeleteTransaction extends NSObject
+  implements IOGoBlobTransaction
+{
   protected static final Log log = LogFactory.getLog("OGoOperation");
 
   protected File fileMoved;   // temporary name
@@ -50,6 +53,10 @@ public class OGoFileDeleteTransaction extends NSObject {
   
   /* top level */
   
+  public Exception perform() {
+    return this.performAtomicDelete();
+  }
+  
   public Exception performAtomicDelete() {
     if (!this.fileWritten.exists())
       return null; // nothing to be done
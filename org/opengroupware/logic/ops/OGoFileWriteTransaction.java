@@ -21,18 +21,26 @@
 package org.opengroupware.logic.ops;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.getobjects.foundation.NSException;
 import org.getobjects.foundation.NSObject;
-import org.getobjects.foundation.UData;
-import org.getobjects.foundation.UString;
+import org.opengroupware.logic.blobs.IOGoBlobTransaction;
 
 /**
  * OGoFileWriteTransaction
@@ -40,36 +48,96 @@ import org.getobjects.foundation.UString;
  * Wraps the work required to update filesystem files (eg document contents)
  * during a database operation. If the database operation rolls back, we need
  * to revert the files.
+ * <p>
+ * The content is written to a temporary file in the same directory as the
+ * target, eg '287310.txt-4f3a9c01e2-txwrite'. On commit the temporary file is
+ * moved into place using an atomic rename, so readers (and a crash) either
+ * see the old or the new file, never a partially written one. A rollback just
+ * deletes the temporary file.
+ * <p>
+ * If 'sync' is enabled, the file is flushed to disk (fsync) before it gets
+ * renamed, and the directory is flushed after the rename. This makes the
+ * write durable, at the expense of latency.
  * 
  * <p>
  * @author helge
  */
-public class OGoFileWriteTransaction extends NSObject {
+public class OGoFileWriteTransaction extends NSObject
+  implements IOGoBlobTransaction
+{
   protected static final Log log = LogFactory.getLog("OGoOperation");
+  
+  public static final String tempFileSuffix = "-txwrite";
+  
+  /* the default for new transactions, see setSync() */
+  public static boolean defaultSync = false;
+  protected static final Charset utf8 = Charset.forName("utf-8");
 
-  protected File fileWritten;
-  protected File fileMoved;
+  protected File    fileWritten; // the target
+  protected Path    tempFile;    // the content written, until commit
+  protected boolean sync;
+  protected Object  content;     // content for perform()
   
   public OGoFileWriteTransaction(final File _f) {
     this.fileWritten = _f;
+    this.sync        = defaultSync;
+  }
+  public OGoFileWriteTransaction(final File _f, final Object _content) {
+    this(_f);
+    this.content = _content;
+  }
+  
+  
+  /* accessors */
+  
+  /**
+   * Enables fsync() of the written file and its directory. Without it, the
+   * rename is still atomic, but the content might not be on disk after a
+   * power failure.
+   */
+  public void setSync(final boolean _flag) {
+    this.sync = _flag;
+  }
+  public boolean sync() {
+    return this.sync;
+  }
+  
+  public File file() {
+    return this.fileWritten;
   }
   
   
   /* top level */
   
+  /**
+   * Writes the content passed to the constructor, see performAtomicWrite().
+   */
+  public Exception perform() {
+    final Object c = this.content;
+    this.content = null; /* do not keep large objects around */
+    return this.performAtomicWrite(c);
+  }
+  
   public Exception performAtomicWrite(Object _content) {
-    if (this.fileWritten != null && this.fileWritten.exists()) {
-      /* move away old file for rollback */
-      File f = this.fileWritten;
-      File oldFile = new File(f.getAbsolutePath() + "-txwrite");
-      if (!f.renameTo(oldFile)) {
-        log.error("could not move old Note file: " + f + " to " + oldFile);
-        return new NSException("could not move away old file!");
-      }
-      this.fileMoved = oldFile;
+    if (this.fileWritten == null)
+      return new NSException("got no file to write to!");
+    if (this.tempFile != null)
+      return new NSException("file transaction was already performed!");
+    
+    /* Note: we do not use Files.createTempFile(), it creates files with
+     *       mode 0600 which would then be moved into place. */
+    final Path target = this.fileWritten.toPath().toAbsolutePath();
+    this.tempFile = target.resolveSibling(target.getFileName().toString() +
+        "-" + Long.toHexString(ThreadLocalRandom.current().nextLong()) +
+        tempFileSuffix);
+    
+    final Exception error = this.writeContentToFile(_content,
+        this.tempFile.toFile());
+    if (error != null) {
+      this.deleteTempFile();
+      return error;
     }
-
-    return this.writeContent(_content);
+    return null;
   }
   
   /* writing */
@@ -78,109 +146,204 @@ public class OGoFileWriteTransaction extends NSObject {
     return this.writeContentToFile(_content, this.fileWritten);
   }
   
+  /**
+   * Writes the content to the given File. Supported content objects are
+   * String (stored as UTF-8), byte[], File, URL, InputStream and
+   * ReadableByteChannel. Streams and channels are closed.
+   * 
+   * @param _content - the content to write
+   * @param f        - the File to write to
+   * @return null if the content got written, the error otherwise
+   */
   public Exception writeContentToFile(final Object _content, final File f) {
-    Exception error = null;
+    if (_content == null)
+      return new NSException("Got no content for document object!");
     
-    if (_content instanceof String)
-      error = UString.writeToFile((String)_content, "utf-8", f, false);
-    else if (_content instanceof byte[])
-      error = UData.writeToFile((byte[])_content, f, false);
-    else if (_content instanceof File) {
-      File sourceFile = (File)_content;
-      
+    if (_content instanceof File) {
+      final File sourceFile = (File)_content;
       if (!sourceFile.exists()) {
-        error = new NSException
+        return new NSException
           ("Content source file does not exist: " + sourceFile);
       }
-      else
-        error = copyfile(sourceFile, f);
-    }
-    else if (_content instanceof URL)
-      error = copyurl((URL)_content, f);
-    else if (_content != null)
-      error = new NSException("Unexpected content object for document!");
-    else
-      error = new NSException("Got no content for document object!");
+    }
     
-    return error;
+    FileChannel out = null;
+    try {
+      out = FileChannel.open(f.toPath(), StandardOpenOption.WRITE,
+          StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+      
+      if (_content instanceof String)
+        writeBuffer(utf8.encode((String)_content), out);
+      else if (_content instanceof byte[])
+        writeBuffer(ByteBuffer.wrap((byte[])_content), out);
+      else if (_content instanceof File)
+        transferFile((File)_content, out);
+      else if (_content instanceof URL)
+        transferStream(((URL)_content).openStream(), out);
+      else if (_content instanceof InputStream)
+        transferStream((InputStream)_content, out);
+      else if (_content instanceof ReadableByteChannel)
+        transferChannel((ReadableByteChannel)_content, out);
+      else
+        return new NSException("Unexpected content object for document!");
+      
+      if (this.sync)
+        out.force(true);
+      
+      final FileChannel c = out;
+      out = null;
+      c.close();
+    }
+    catch (final IOException e) {
+      return e;
+    }
+    finally {
+      if (out != null) {
+        try { out.close(); } catch (final IOException e) {}
+      }
+    }
+    return null;
   }
   
   
   /* transaction ops */
 
   public Exception rollback() {
-    if (this.fileWritten != null) {
-      /* a record was created */
-      if (!this.fileWritten.delete()) {
-        log.error("could not delete file written: " + this.fileWritten);
-        return new NSException("could not delete Note file before rollback");
-      }
-    }
-    
-    if (this.fileMoved != null) {
-      if (!this.fileMoved.renameTo(this.fileWritten)) {
-        log.error("could not restored old Note file: " + this.fileMoved +
-            " to " + this.fileWritten);
-        return new NSException("could not restore Note file before rollback");
-      }
-    }
+    if (this.tempFile == null)
+      return null; /* nothing was written */
     
+    if (!this.deleteTempFile())
+      return new NSException("could not delete Note file before rollback");
     return null;
   }
   
   public Exception commit() {
-    if (this.fileMoved != null) {
-      if (!this.fileMoved.delete()) {
-        log.error("could not delete old Note file: " + this.fileMoved +
-            " to " + this.fileWritten);
-        return new NSException("could not delete old Note file in commit");
+    if (this.tempFile == null)
+      return null; /* nothing was written */
+    
+    final Path target = this.fileWritten.toPath();
+    try {
+      try {
+        Files.move(this.tempFile, target, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      }
+      catch (final AtomicMoveNotSupportedException e) {
+        /* should not happen, the temp file lives in the same directory */
+        log.warn("filesystem does not support atomic renames: " + target);
+        Files.move(this.tempFile, target, StandardCopyOption.REPLACE_EXISTING);
       }
     }
+    catch (final IOException e) {
+      log.error("could not move Note file: " + this.tempFile + " to " +
+          target, e);
+      this.deleteTempFile();
+      return new NSException("could not move Note file into place in commit");
+    }
+    this.tempFile = null;
+    
+    if (this.sync)
+      syncDirectory(target.toAbsolutePath().getParent());
     return null;
   }
+  
+  protected boolean deleteTempFile() {
+    try {
+      Files.deleteIfExists(this.tempFile);
+    }
+    catch (final IOException e) {
+      log.error("could not delete temporary file: " + this.tempFile, e);
+      return false;
+    }
+    this.tempFile = null;
+    return true;
+  }
 
 
   /* helper methods */
-
-  public static Exception copyfile(final File _in, final File _out) {
-    // TBD: rewrite to use NIO
+  
+  /**
+   * Flushes the directory entry changes (eg a rename) to disk. This is not
+   * supported on all platforms (eg Windows), errors are just logged.
+   */
+  public static void syncDirectory(final Path _dir) {
+    if (_dir == null)
+      return;
+    
     try {
-      final InputStream  in  = new FileInputStream(_in);
-      final OutputStream out = new FileOutputStream(_out);
-      
-      final byte buf[] = new byte[4096];
-      int len;
-
-      while ((len = in.read(buf)) > 0)
-        out.write(buf, 0, len);
-      
-      out.close();
-      in.close();
+      final FileChannel dc = FileChannel.open(_dir, StandardOpenOption.READ);
+      try {
+        dc.force(true);
+      }
+      finally {
+        dc.close();
+      }
     }
-    catch (Exception e) {
-      return e;
+    catch (final IOException e) {
+      log.debug("could not sync directory: " + _dir, e);
     }
-    return null;
   }
-  public static Exception copyurl(final URL _in, final File _out) {
-    // TBD: rewrite to use NIO
+  
+  protected static void writeBuffer(final ByteBuffer _buf, FileChannel _out)
+    throws IOException
+  {
+    while (_buf.hasRemaining())
+      _out.write(_buf);
+  }
+  
+  protected static void transferFile(final File _in, final FileChannel _out)
+    throws IOException
+  {
+    final FileChannel in = FileChannel.open(_in.toPath(),
+        StandardOpenOption.READ);
     try {
-      final InputStream  in  = _in.openStream();
-      final OutputStream out = new FileOutputStream(_out);
-      
-      final byte buf[] = new byte[4096];
-      int len;
-
-      while ((len = in.read(buf)) > 0)
-        out.write(buf, 0, len);
-      
-      out.close();
+      final long size = in.size();
+      long pos = 0;
+      while (pos < size) {
+        final long count = _out.transferFrom(in, pos, size - pos);
+        if (count <= 0) break; /* source got truncated */
+        pos += count;
+      }
+    }
+    finally {
       in.close();
     }
-    catch (Exception e) {
-      return e;
+  }
+  
+  protected static void transferStream(InputStream _in, FileChannel _out)
+    throws IOException
+  {
+    try {
+      transferChannel(Channels.newChannel(_in), _out);
     }
-    return null;
+    finally {
+      _in.close();
+    }
+  }
+  
+  protected static void transferChannel
+    (final ReadableByteChannel _in, final FileChannel _out)
+    throws IOException
+  {
+    try {
+      /* The count is just the maximum number of bytes per call, the JDK
+       * copies from non-file channels using its own small buffer. Returns 0
+       * at EOF of the (blocking) source. */
+      final long chunkSize = 1024 * 1024;
+      long pos = 0;
+      long count;
+      while ((count = _out.transferFrom(_in, pos, chunkSize)) > 0)
+        pos += count;
+    }
+    finally {
+      _in.close();
+    }
+  }
+
+  public static Exception copyfile(final File _in, final File _out) {
+    return new OGoFileWriteTransaction(_out).writeContent(_in);
+  }
+  public static Exception copyurl(final URL _in, final File _out) {
+    return new OGoFileWriteTransaction(_out).writeContent(_in);
   }
 
 }
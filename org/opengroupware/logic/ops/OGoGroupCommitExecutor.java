@@ -0,0 +1,475 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.ops;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.foundation.NSException;
+import org.getobjects.foundation.NSObject;
+import org.opengroupware.logic.core.IOGoOperation;
+import org.opengroupware.logic.core.OGoObjectContext;
+
+/**
+ * OGoGroupCommitExecutor
+ * <p>
+ * Runs small, independent operation batches of many callers in one database
+ * transaction. Each batch submitted using submit() gets queued, a single
+ * worker thread collects the queued batches and runs them in an
+ * OGoMasterTransaction. Each caller gets an own savepoint, if its operations
+ * fail, only its changes are rolled back and the other callers are not
+ * affected.
+ * <p>
+ * This reduces the number of commits (fsyncs) and of channels taken from the
+ * pool if many tiny changes arrive at the same time (eg task state changes
+ * or note inserts sent by an API).
+ * <p>
+ * Example:<pre>
+ *   OGoGroupCommitExecutor gc = new OGoGroupCommitExecutor(64, 5);
+ *   gc.start();
+ *   ...
+ *   Future&lt;Exception&gt; f = gc.submit(oc, new OGoTasksStateChange(...));
+ *   Exception error = f.get();</pre>
+ * The result of the Future is the error of the caller, or null if its
+ * operations got committed.
+ * <p>
+ * Notes:
+ * <ul>
+ *   <li>The operations of one caller are checked against the permissions of
+ *       the caller's OGoObjectContext, just like in performOperations().
+ *   <li>The submitted batches must be independent. Permissions are fetched
+ *       outside of the group transaction, so a batch can't depend on the
+ *       uncommitted changes of another batch in the same group.
+ *   <li>Row locks acquired by a caller are held until the group commits.
+ *   <li>If the final commit fails, all callers of the group receive the
+ *       commit error.
+ *   <li>Retry policies of the contexts are not applied.
+ * </ul>
+ *
+ * <p>
+ * THREAD: submit() can be called from any thread. The OGoObjectContext of a
+ * caller is used by the worker thread, the caller must not touch it until
+ * the Future completed.
+ *
+ * @author helge
+ */
+public class OGoGroupCommitExecutor extends NSObject implements Runnable {
+  protected static final Log log = LogFactory.getLog("OGoOperationTransaction");
+
+  protected final int  maxBatchSize;
+  protected final long maxWaitInMS;
+  protected final BlockingQueue<Request> queue;
+  protected volatile boolean isRunning;
+  protected Thread worker;
+
+  /* statistics */
+  protected final AtomicLong groupCount      = new AtomicLong(0);
+  protected final AtomicLong requestCount    = new AtomicLong(0);
+  protected final AtomicLong rolledBackCount = new AtomicLong(0);
+  protected final AtomicLong failedGroupCount = new AtomicLong(0);
+
+  /**
+   * Creates a new group-commit executor.
+   *
+   * @param _maxBatchSize - the max number of callers run in one transaction
+   * @param _maxWait      - how long to wait for more callers (in ms)
+   */
+  public OGoGroupCommitExecutor(final int _maxBatchSize, final long _maxWait) {
+    super();
+    this.maxBatchSize = _maxBatchSize > 0 ? _maxBatchSize : 1;
+    this.maxWaitInMS  = _maxWait > 0 ? _maxWait : 0;
+    this.queue        = new LinkedBlockingQueue<Request>();
+  }
+  public OGoGroupCommitExecutor() {
+    this(64 /* callers */, 2 /* ms */);
+  }
+
+
+  /* accessors */
+
+  public int maxBatchSize() {
+    return this.maxBatchSize;
+  }
+  public long maxWait() {
+    return this.maxWaitInMS;
+  }
+
+  public boolean isRunning() {
+    return this.isRunning;
+  }
+
+  /**
+   * Returns the number of batches waiting for the worker.
+   */
+  public int pendingCount() {
+    return this.queue.size();
+  }
+
+
+  /* start/stop */
+
+  /**
+   * Starts the worker thread of the executor.
+   */
+  public synchronized void start() {
+    if (this.worker != null)
+      return; /* already running */
+
+    this.isRunning = true;
+    this.worker = new Thread(this, "OGoGroupCommitExecutor");
+    this.worker.setDaemon(true);
+    this.worker.start();
+  }
+
+  /**
+   * Stops the executor. Batches which are already queued are still run, new
+   * batches are rejected. The method waits for the worker thread to finish.
+   */
+  public void shutdown() {
+    final Thread t;
+    synchronized (this) {
+      this.isRunning = false;
+      t = this.worker;
+      this.worker = null;
+    }
+    if (t == null)
+      return;
+
+    try { /* the worker polls, it notices the flag within 100ms */
+      t.join();
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+
+  /* submitting operations */
+
+  /**
+   * Queues the given operations for the next group transaction. The returned
+   * Future completes once the group got committed or rolled back, its value
+   * is the error of the operations, or null if they got committed.
+   *
+   * @param _oc  - the context of the user performing the operations
+   * @param _ops - the operations to perform
+   * @return a Future which returns the error of the operations (or null)
+   */
+  public Future<Exception> submit
+    (final OGoObjectContext _oc, final IOGoOperation... _ops)
+  {
+    final Request request = new Request(_oc, _ops);
+
+    if (_oc == null)
+      request.complete(new NSException("got no object context for ops"));
+    else if (_ops == null || _ops.length == 0)
+      request.complete(null); /* nothing to be done */
+    else if (!this.isRunning)
+      request.complete(new NSException("group-commit executor is stopped"));
+    else
+      this.queue.add(request);
+
+    return request;
+  }
+
+
+  /* worker */
+
+  public void run() {
+    final List<Request> batch = new ArrayList<Request>(this.maxBatchSize);
+
+    while (this.isRunning || !this.queue.isEmpty()) {
+      try {
+        if (!this.collectBatch(batch))
+          continue;
+      }
+      catch (final InterruptedException e) {
+        if (batch.isEmpty())
+          continue;
+      }
+
+      try {
+        this.runBatch(batch);
+      }
+      catch (final RuntimeException e) {
+        /* do not leave callers waiting if something unexpected happens */
+        log.error("group-commit batch failed unexpectedly", e);
+        for (final Request request: batch)
+          request.complete(e);
+      }
+      batch.clear();
+    }
+
+    /* requests which raced with shutdown() */
+    Request request;
+    while ((request = this.queue.poll()) != null) {
+      if (request.markRunning())
+        request.complete(new NSException("group-commit executor is stopped"));
+    }
+  }
+
+  /**
+   * Waits for the first request, then collects more requests until the
+   * batch is full or maxWait passed.
+   *
+   * @return true if requests got collected, false otherwise
+   */
+  protected boolean collectBatch(final List<Request> _batch)
+    throws InterruptedException
+  {
+    final Request first = this.isRunning
+      ? this.queue.poll(100, TimeUnit.MILLISECONDS)
+      : this.queue.poll();
+    if (first == null)
+      return false;
+    if (!first.markRunning())
+      return false; /* got cancelled */
+    _batch.add(first);
+
+    final long deadline = System.nanoTime() +
+      TimeUnit.MILLISECONDS.toNanos(this.maxWaitInMS);
+
+    while (_batch.size() < this.maxBatchSize) {
+      Request request = this.queue.poll();
+      if (request == null) {
+        final long remaining = deadline - System.nanoTime();
+        if (remaining <= 0 || !this.isRunning)
+          break;
+        if ((request = this.queue.poll(remaining, TimeUnit.NANOSECONDS)) == null)
+          break;
+      }
+      if (request.markRunning())
+        _batch.add(request);
+    }
+    return true;
+  }
+
+  /**
+   * Runs the given requests in one OGoMasterTransaction. Each request is run
+   * in an own OGoOperationTransaction, which joins the master transaction in
+   * a nested scope (guarded by a savepoint).
+   *
+   * @param _batch - the requests to run
+   */
+  protected void runBatch(final List<Request> _batch) {
+    final OGoMasterTransaction tx = new OGoMasterTransaction(_batch.get(0).oc);
+
+    Exception error = tx.begin();
+    if (error != null) {
+      this.failedGroupCount.incrementAndGet();
+      this.completeBatch(_batch, error);
+      return;
+    }
+
+    final List<Request> committed = new ArrayList<Request>(_batch.size());
+    try {
+      for (final Request request: _batch) {
+        final OGoOperationTransaction opTx =
+          new OGoOperationTransaction(tx, request.oc, request.ops);
+        opTx.setLockTimeout(request.oc.lockTimeout());
+
+        /* on errors, the tx rolled back the changes of this caller only */
+        if ((request.result = opTx.run()) == null)
+          committed.add(request);
+        else
+          this.rolledBackCount.incrementAndGet();
+      }
+    }
+    catch (final RuntimeException e) {
+      /* the group is lost */
+      error = e;
+    }
+
+    /* commit the group */
+
+    if (error == null && committed.size() > 0) {
+      if ((error = tx.commit()) != null)
+        log.error("group-commit failed: " + tx, error);
+    }
+    else if (error == null) { /* nothing to commit */
+      final Exception rerror = tx.rollback();
+      if (rerror != null)
+        log.warn("database rollback failed", rerror);
+    }
+
+    if (error != null) {
+      this.failedGroupCount.incrementAndGet();
+      if (tx.isInTransaction()) {
+        final Exception rerror = tx.rollback(error);
+        if (rerror != null)
+          log.warn("database rollback failed", rerror);
+      }
+      /* the committed callers, and those which did not run (or threw), are
+       * rolled back as well */
+      for (final Request request: _batch) {
+        if (request.result == null)
+          request.result = error;
+      }
+    }
+
+    this.groupCount.incrementAndGet();
+    for (final Request request: _batch)
+      request.complete(request.result);
+  }
+
+  protected void completeBatch(final List<Request> _batch, final Exception _e){
+    for (final Request request: _batch)
+      request.complete(_e);
+  }
+
+
+  /* statistics */
+
+  public long groupCount() {
+    return this.groupCount.get();
+  }
+  public long requestCount() {
+    return this.requestCount.get();
+  }
+  /**
+   * Returns the number of callers which got rolled back to their savepoint.
+   */
+  public long rolledBackCount() {
+    return this.rolledBackCount.get();
+  }
+  /**
+   * Returns the number of group transactions which failed as a whole.
+   */
+  public long failedGroupCount() {
+    return this.failedGroupCount.get();
+  }
+  public double averageGroupSize() {
+    final long groups = this.groupCount.get();
+    return groups > 0 ? ((double)this.requestCount.get() / groups) : 0.0;
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(this.isRunning ? " running" : " stopped");
+    _d.append(" max=");
+    _d.append(this.maxBatchSize);
+    _d.append("/");
+    _d.append(this.maxWaitInMS);
+    _d.append("ms #groups=");
+    _d.append(this.groupCount.get());
+    _d.append(" #requests=");
+    _d.append(this.requestCount.get());
+    if (this.rolledBackCount.get() > 0) {
+      _d.append(" #rolledback=");
+      _d.append(this.rolledBackCount.get());
+    }
+    if (!this.queue.isEmpty()) {
+      _d.append(" #pending=");
+      _d.append(this.queue.size());
+    }
+  }
+
+
+  /* request */
+
+  /**
+   * The operations of one caller, and the Future the caller waits on.
+   */
+  protected class Request extends Object implements Future<Exception> {
+    protected final OGoObjectContext oc;
+    protected final IOGoOperation[]  ops;
+    protected final CountDownLatch   done = new CountDownLatch(1);
+    protected Exception result;
+    protected int       state; /* 0: queued, 1: running, 2: cancelled */
+
+    public Request(final OGoObjectContext _oc, final IOGoOperation[] _ops) {
+      this.oc  = _oc;
+      this.ops = _ops;
+    }
+
+    protected synchronized boolean markRunning() {
+      if (this.state != 0)
+        return false;
+      this.state = 1;
+      return true;
+    }
+
+    protected void complete(final Exception _result) {
+      if (this.state == 1) {
+        OGoGroupCommitExecutor.this.requestCount.incrementAndGet();
+        
+        /* On commit the operation transaction invalidated the changed objects
+         * in the context. On errors the operations might have left modified
+         * objects in the context, so we need to clean it. */
+        if (_result != null)
+          this.oc.reset();
+      }
+      this.result = _result;
+      this.done.countDown();
+    }
+
+    /* Future */
+
+    public boolean cancel(final boolean _mayInterruptIfRunning) {
+      synchronized (this) {
+        if (this.state != 0)
+          return false;
+        this.state = 2;
+      }
+      OGoGroupCommitExecutor.this.queue.remove(this);
+      this.done.countDown();
+      return true;
+    }
+    public synchronized boolean isCancelled() {
+      return this.state == 2;
+    }
+    public boolean isDone() {
+      return this.done.getCount() == 0;
+    }
+
+    public Exception get() throws InterruptedException, ExecutionException {
+      this.done.await();
+      if (this.isCancelled())
+        throw new CancellationException();
+      return this.result;
+    }
+    public Exception get(final long _timeout, final TimeUnit _unit)
+      throws InterruptedException, ExecutionException, TimeoutException
+    {
+      if (!this.done.await(_timeout, _unit))
+        throw new TimeoutException();
+      if (this.isCancelled())
+        throw new CancellationException();
+      return this.result;
+    }
+  }
+}
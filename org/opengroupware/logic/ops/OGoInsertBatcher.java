@@ -0,0 +1,909 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.ops;
+
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.eoaccess.EOAdaptorChannel;
+import org.getobjects.eoaccess.EOAdaptorOperation;
+import org.getobjects.eoaccess.EOAttribute;
+import org.getobjects.eoaccess.EOEntity;
+import org.getobjects.eoaccess.EOSQLExpression;
+import org.getobjects.foundation.NSException;
+import org.getobjects.foundation.NSObject;
+
+/**
+ * OGoInsertBatcher
+ * <p>
+ * Executes a set of INSERT EOAdaptorOperation's using as few SQL roundtrips
+ * as possible.
+ * The operations are grouped by entity and by the set of columns they
+ * insert. Each group is then sent as a multi-row INSERT, eg:<pre>
+ *   INSERT INTO telephone (telephone_id, company_id, type, number)
+ *   VALUES (?, ?, ?, ?), (?, ?, ?, ?), (?, ?, ?, ?)</pre>
+ * If multi-row VALUES are disabled, the rows are sent as a JDBC batch of
+ * single-row INSERTs instead.
+ * <p>
+ * In bulk mode (setUseCopy()) the rows of a group are streamed using the
+ * PostgreSQL COPY protocol:<pre>
+ *   COPY telephone (telephone_id, company_id, type, number) FROM STDIN</pre>
+ * The PostgreSQL JDBC driver is accessed using reflection, so there is no
+ * compile time dependency on it. If the connection does not support COPY
+ * (eg other databases), the batcher falls back to multi-row INSERTs.
+ * COPY is only used for base tables. PostgreSQL rejects COPY into views, and
+ * some OGo 'tables' are views with rules or INSTEAD OF triggers (eg
+ * employment, company_hierarchy), those get multi-row INSERTs.
+ * <p>
+ * Operations which are not INSERTs, groups with just one row, and rows which
+ * contain values we cannot bind (eg raw SQL values), are passed on to
+ * EOAdaptorChannel.performAdaptorOperations(). Non-INSERT operations also
+ * act as a barrier, that is, the order of deletes/updates relative to the
+ * inserts is preserved.
+ * <p>
+ * Values are bound (or formatted for COPY) according to the JDBC type derived
+ * from the external type of their attribute, eg a Boolean stored in an INT
+ * column is sent as 1/0, like the regular adaptor operations do.
+ * <p>
+ * The SQL is run on the JDBC connection of the given channel, hence it is
+ * part of the transaction the channel is in.
+ *
+ * <p>
+ * Example:<pre>
+ *   Exception error = new OGoInsertBatcher(_ch).performAdaptorOperations(ops);</pre>
+ *
+ * @author helge
+ */
+public class OGoInsertBatcher extends NSObject {
+  protected static final Log log = LogFactory.getLog("OGoOperation");
+
+  /* PostgreSQL supports at most 32767 bind parameters per statement */
+  public static final int defaultMaxParameters = 30000;
+  public static final int defaultMaxRows       = 1000;
+
+  protected final EOAdaptorChannel channel;
+  protected boolean useMultiRowValues = true;
+  protected boolean useCopy;
+  protected Object  copyManager; /* org.postgresql.copy.CopyManager */
+  protected Method  copyInMethod;
+  protected int     maxRowsPerStatement = defaultMaxRows;
+  protected int     maxParameters       = defaultMaxParameters;
+
+  /* whether a table is a base table (relkind 'r'), shared by all batchers */
+  protected static final Map<String, Boolean> copyableTables =
+    new ConcurrentHashMap<String, Boolean>(32);
+
+  /* statistics */
+  protected int statementCount;
+  protected int batchedRowCount;
+
+  public OGoInsertBatcher(final EOAdaptorChannel _channel) {
+    super();
+    this.channel = _channel;
+  }
+
+
+  /* accessors */
+
+  /**
+   * Enables or disables the multi-row VALUES syntax. If disabled, the rows of
+   * a group are sent as a JDBC batch (addBatch/executeBatch).
+   *
+   * @param _flag - whether to generate multi-row INSERTs
+   */
+  public void setUseMultiRowValues(final boolean _flag) {
+    this.useMultiRowValues = _flag;
+  }
+  public boolean useMultiRowValues() {
+    return this.useMultiRowValues;
+  }
+
+  /**
+   * Enables the COPY based bulk mode. This is only used if the JDBC
+   * connection is a PostgreSQL one, otherwise the batcher silently falls back
+   * to multi-row INSERTs.
+   *
+   * @param _flag - whether to use COPY FROM STDIN for groups of rows
+   */
+  public void setUseCopy(final boolean _flag) {
+    this.useCopy = _flag;
+  }
+  public boolean useCopy() {
+    return this.useCopy;
+  }
+
+  public void setMaxRowsPerStatement(final int _count) {
+    this.maxRowsPerStatement = _count > 0 ? _count : defaultMaxRows;
+  }
+  public int maxRowsPerStatement() {
+    return this.maxRowsPerStatement;
+  }
+
+  /**
+   * Returns the number of batched SQL statements which got executed.
+   */
+  public int statementCount() {
+    return this.statementCount;
+  }
+  /**
+   * Returns the number of rows which got inserted using batched statements.
+   */
+  public int batchedRowCount() {
+    return this.batchedRowCount;
+  }
+
+
+  /* perform */
+
+  /**
+   * Executes the given adaptor operations. INSERTs are grouped and batched,
+   * other operations are passed to the channel.
+   *
+   * @param _ops - the adaptor operations to be performed
+   * @return null on success, the error otherwise
+   */
+  public Exception performAdaptorOperations(final EOAdaptorOperation[] _ops) {
+    if (_ops == null || _ops.length == 0)
+      return null;
+    return this.performAdaptorOperations(Arrays.asList(_ops));
+  }
+
+  /**
+   * Executes the given adaptor operations. INSERTs are grouped and batched,
+   * other operations are passed to the channel.
+   *
+   * @param _ops - the adaptor operations to be performed
+   * @return null on success, the error otherwise
+   */
+  public Exception performAdaptorOperations(final List<EOAdaptorOperation> _ops)
+  {
+    if (_ops == null || _ops.size() == 0)
+      return null;
+    if (this.channel == null)
+      return new NSException("batcher has no adaptor channel");
+
+    final Map<String, InsertGroup> groups =
+      new LinkedHashMap<String, InsertGroup>(8);
+    final List<EOAdaptorOperation> plainOps =
+      new ArrayList<EOAdaptorOperation>(4);
+    Exception error;
+
+    for (final EOAdaptorOperation op: _ops) {
+      if (op == null)
+        continue;
+
+      if (op.adaptorOperator() != EOAdaptorOperation.AdaptorInsertOperator) {
+        /* barrier, flush the pending inserts to preserve the order */
+        if ((error = this.flush(groups, plainOps)) != null)
+          return error;
+        plainOps.add(op);
+        continue;
+      }
+
+      final InsertGroup group = this.groupForOperation(groups, op);
+      if (group == null) {
+        /* eg contains raw SQL values, let the channel deal with it */
+        if ((error = this.flush(groups, null)) != null)
+          return error;
+        plainOps.add(op);
+      }
+      else {
+        if (plainOps.size() > 0) {
+          if ((error = this.performPlainOperations(plainOps)) != null)
+            return error;
+        }
+        group.rows.add(op.changedValues());
+      }
+    }
+
+    return this.flush(groups, plainOps);
+  }
+
+  /**
+   * Sends all pending groups and plain operations to the database.
+   */
+  protected Exception flush
+    (final Map<String, InsertGroup> _groups,
+     final List<EOAdaptorOperation> _plainOps)
+  {
+    Exception error;
+
+    if (_plainOps != null && _plainOps.size() > 0) {
+      if ((error = this.performPlainOperations(_plainOps)) != null)
+        return error;
+    }
+
+    for (final InsertGroup group: _groups.values()) {
+      if ((error = this.performGroup(group)) != null)
+        return error;
+    }
+    _groups.clear();
+    return null;
+  }
+
+  protected Exception performPlainOperations
+    (final List<EOAdaptorOperation> _ops)
+  {
+    final Exception error = this.channel.performAdaptorOperations(
+        _ops.toArray(new EOAdaptorOperation[_ops.size()]));
+    _ops.clear();
+    return error;
+  }
+
+  /**
+   * Returns the group for the entity and column set of the given INSERT, or
+   * null if the operation cannot be batched.
+   */
+  protected InsertGroup groupForOperation
+    (final Map<String, InsertGroup> _groups, final EOAdaptorOperation _op)
+  {
+    final EOEntity            entity = _op.entity();
+    final Map<String, Object> values = _op.changedValues();
+    if (entity == null || values == null || values.size() == 0)
+      return null;
+
+    /* collect the attributes which map to columns, sorted by name */
+
+    final List<String> keys = new ArrayList<String>(values.size());
+    for (final Map.Entry<String, Object> entry: values.entrySet()) {
+      final Object v = entry.getValue();
+      if (v != null && !isBindableValue(v))
+        return null;
+
+      final EOAttribute attr = entity.attributeNamed(entry.getKey());
+      if (attr == null || attr.columnName() == null)
+        continue; /* eg a relationship key */
+      keys.add(entry.getKey());
+    }
+    if (keys.size() == 0)
+      return null;
+    Collections.sort(keys);
+
+    final StringBuilder sb = new StringBuilder(128);
+    sb.append(entity.name());
+    for (final String key: keys) {
+      sb.append(',');
+      sb.append(key);
+    }
+    final String groupKey = sb.toString();
+
+    InsertGroup group = _groups.get(groupKey);
+    if (group == null) {
+      final EOAttribute[] attrs = new EOAttribute[keys.size()];
+      for (int i = 0; i < attrs.length; i++)
+        attrs[i] = entity.attributeNamed(keys.get(i));
+      group = new InsertGroup(entity, attrs);
+      _groups.put(groupKey, group);
+    }
+    return group;
+  }
+
+  protected static boolean isBindableValue(final Object _value) {
+    return _value instanceof Number || _value instanceof String ||
+           _value instanceof Date   || _value instanceof Boolean ||
+           _value instanceof byte[];
+  }
+
+
+  /* executing groups */
+
+  /**
+   * Inserts the rows of the given group. Single rows are passed to the
+   * channel, larger groups are split into chunks which fit the parameter
+   * limit.
+   */
+  protected Exception performGroup(final InsertGroup _group) {
+    final int rowCount = _group.rows.size();
+    if (rowCount == 0)
+      return null;
+
+    if (rowCount == 1) {
+      final EOAdaptorOperation op = new EOAdaptorOperation(_group.entity);
+      op.setAdaptorOperator(EOAdaptorOperation.AdaptorInsertOperator);
+      op.setChangedValues(_group.rows.get(0));
+      return this.channel.performAdaptorOperations(
+          new EOAdaptorOperation[] { op });
+    }
+
+    final Connection c = this.channel.connection();
+    if (c == null)
+      return new NSException("adaptor channel has no JDBC connection");
+
+    if (this.useCopy && this.setupCopyManager(c) &&
+        this.isCopyableTable(c, _group.tableName))
+      return this.performCopy(_group);
+
+    int chunkSize = this.maxParameters / _group.attributes.length;
+    if (chunkSize > this.maxRowsPerStatement)
+      chunkSize = this.maxRowsPerStatement;
+    if (chunkSize < 1)
+      chunkSize = 1;
+
+    for (int start = 0; start < rowCount; start += chunkSize) {
+      final int end = Math.min(start + chunkSize, rowCount);
+      final Exception error = this.useMultiRowValues
+        ? this.performMultiRowInsert(c, _group, start, end)
+        : this.performBatchInsert(c, _group, start, end);
+      if (error != null)
+        return error;
+    }
+    return null;
+  }
+
+  protected Exception performMultiRowInsert
+    (final Connection _c, final InsertGroup _group, final int _start,
+     final int _end)
+  {
+    final int    rowCount = _end - _start;
+    final String sql      = _group.insertSQL(this.channel, rowCount);
+    PreparedStatement stmt = null;
+    try {
+      stmt = _c.prepareStatement(sql);
+
+      int idx = 1;
+      for (int i = _start; i < _end; i++)
+        idx = bindRow(stmt, idx, _group, _group.rows.get(i));
+
+      final int affected = stmt.executeUpdate();
+      this.statementCount++;
+      if (affected != rowCount) {
+        return new NSException("multi-row INSERT into " + _group.tableName +
+            " affected " + affected + " of " + rowCount + " rows");
+      }
+      this.batchedRowCount += rowCount;
+      return null;
+    }
+    catch (final SQLException e) {
+      log.error("multi-row INSERT failed: " + sql, e);
+      return e;
+    }
+    finally {
+      closeStatement(stmt);
+    }
+  }
+
+  protected Exception performBatchInsert
+    (final Connection _c, final InsertGroup _group, final int _start,
+     final int _end)
+  {
+    final String sql = _group.insertSQL(this.channel, 1);
+    PreparedStatement stmt = null;
+    try {
+      stmt = _c.prepareStatement(sql);
+
+      for (int i = _start; i < _end; i++) {
+        bindRow(stmt, 1, _group, _group.rows.get(i));
+        stmt.addBatch();
+      }
+
+      final int[] results = stmt.executeBatch();
+      this.statementCount++;
+      for (final int affected: results) {
+        if (affected != 1 && affected != PreparedStatement.SUCCESS_NO_INFO) {
+          return new NSException("batched INSERT into " + _group.tableName +
+              " did not affect one row: " + affected);
+        }
+      }
+      this.batchedRowCount += (_end - _start);
+      return null;
+    }
+    catch (final SQLException e) {
+      log.error("batched INSERT failed: " + sql, e);
+      return e.getNextException() != null ? e.getNextException() : e;
+    }
+    finally {
+      closeStatement(stmt);
+    }
+  }
+
+  /* COPY */
+
+  /**
+   * Looks up the CopyManager of the PostgreSQL JDBC driver. If the
+   * connection is not a PostgreSQL one, COPY gets disabled.
+   *
+   * @param _c - the JDBC connection of the channel
+   * @return true if COPY can be used, false otherwise
+   */
+  protected boolean setupCopyManager(final Connection _c) {
+    if (this.copyInMethod != null)
+      return true;
+
+    try {
+      final Class<?> pgConClass = Class.forName("org.postgresql.PGConnection");
+      if (!_c.isWrapperFor(pgConClass)) {
+        log.info("JDBC connection does not support COPY, using INSERTs: " + _c);
+        this.useCopy = false;
+        return false;
+      }
+
+      final Object pgCon = _c.unwrap(pgConClass);
+      this.copyManager = pgConClass.getMethod("getCopyAPI").invoke(pgCon);
+      this.copyInMethod = this.copyManager.getClass()
+        .getMethod("copyIn", String.class, java.io.Reader.class);
+      return true;
+    }
+    catch (final Exception e) {
+      log.info("COPY is not available, using INSERTs: " + e);
+      this.useCopy = false;
+      return false;
+    }
+  }
+
+  /**
+   * Checks whether the table is a base table. COPY FROM does not work for
+   * views, even if they are updatable or have INSTEAD OF triggers.
+   *
+   * @param _c     - the JDBC connection of the channel
+   * @param _table - the name of the table
+   * @return true if COPY can be used for the table, false otherwise
+   */
+  protected boolean isCopyableTable(final Connection _c, final String _table) {
+    final Boolean cached = copyableTables.get(_table);
+    if (cached != null)
+      return cached.booleanValue();
+
+    boolean isTable = false;
+    PreparedStatement stmt = null;
+    try {
+      stmt = _c.prepareStatement("SELECT c.relkind FROM pg_catalog.pg_class c" +
+          " WHERE c.relname = ? AND pg_catalog.pg_table_is_visible(c.oid)");
+      stmt.setString(1, _table);
+      final ResultSet rs = stmt.executeQuery();
+      if (rs.next())
+        isTable = "r".equals(rs.getString(1));
+      rs.close();
+    }
+    catch (final SQLException e) {
+      log.warn("could not determine kind of table, using INSERTs: " + _table,
+          e);
+      return false; /* do not cache, might be a transient issue */
+    }
+    finally {
+      closeStatement(stmt);
+    }
+
+    if (!isTable)
+      log.info("not a base table, using INSERTs instead of COPY: " + _table);
+    copyableTables.put(_table, Boolean.valueOf(isTable));
+    return isTable;
+  }
+
+  /**
+   * Streams the rows of the group into the table using COPY FROM STDIN (in
+   * text format). The rows are formatted while the driver reads them (see
+   * CopyRowReader), the payload is never built as a whole.
+   */
+  protected Exception performCopy(final InsertGroup _group) {
+    final int    rowCount = _group.rows.size();
+    final String sql      = _group.copySQL(this.channel);
+
+    try {
+      final Object affected = this.copyInMethod.invoke(this.copyManager,
+          sql, new CopyRowReader(_group));
+      this.statementCount++;
+      if (affected instanceof Number &&
+          ((Number)affected).longValue() != rowCount)
+      {
+        return new NSException("COPY into " + _group.tableName +
+            " affected " + affected + " of " + rowCount + " rows");
+      }
+      this.batchedRowCount += rowCount;
+      return null;
+    }
+    catch (final java.lang.reflect.InvocationTargetException e) {
+      log.error("COPY failed: " + sql, e.getCause());
+      return e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+    }
+    catch (final IllegalAccessException e) {
+      log.error("could not invoke COPY: " + sql, e);
+      return e;
+    }
+  }
+  protected static final String copyDateFormat = "yyyy-MM-dd HH:mm:ss.SSSXXX";
+
+  /**
+   * A Reader which returns the rows of an InsertGroup in the COPY text
+   * format. Rows are formatted on demand, in chunks of about the size the
+   * driver asks for.
+   */
+  protected static class CopyRowReader extends Reader {
+    protected final InsertGroup      group;
+    protected final SimpleDateFormat df;
+    protected final StringBuilder    chunk;
+    protected int nextRow;
+    protected int chunkPos;
+
+    public CopyRowReader(final InsertGroup _group) {
+      this.group = _group;
+      this.df    = new SimpleDateFormat(copyDateFormat);
+      this.chunk = new StringBuilder(8192);
+    }
+
+    @Override
+    public int read(final char[] _buf, final int _off, final int _len) {
+      if (_len == 0)
+        return 0;
+
+      if (this.chunkPos >= this.chunk.length()) {
+        /* format the next rows, at least one */
+        this.chunk.setLength(0);
+        this.chunkPos = 0;
+        final List<Map<String, Object>> rows = this.group.rows;
+        while (this.nextRow < rows.size() && this.chunk.length() < _len)
+          this.appendRow(rows.get(this.nextRow++));
+        if (this.chunk.length() == 0)
+          return -1; /* EOF */
+      }
+
+      final int count = Math.min(_len, this.chunk.length() - this.chunkPos);
+      this.chunk.getChars(this.chunkPos, this.chunkPos + count, _buf, _off);
+      this.chunkPos += count;
+      return count;
+    }
+
+    protected void appendRow(final Map<String, Object> _row) {
+      final EOAttribute[] attrs = this.group.attributes;
+      for (int i = 0; i < attrs.length; i++) {
+        if (i > 0) this.chunk.append('\t');
+        appendCopyValue(this.chunk, this.group.jdbcTypes[i],
+            _row.get(attrs[i].name()), this.df);
+      }
+      this.chunk.append('\n');
+    }
+
+    @Override
+    public void close() {
+      this.nextRow = this.group.rows.size();
+      this.chunk.setLength(0);
+      this.chunkPos = 0;
+    }
+  }
+
+  /**
+   * Appends a value in the COPY text format. NULL is represented as \N,
+   * backslashes and control characters are escaped. Booleans are formatted
+   * as 1/0 for numeric columns, numbers as t/f for boolean columns.
+   */
+  protected static void appendCopyValue
+    (final StringBuilder _sb, final int _type, final Object _v,
+     final SimpleDateFormat _df)
+  {
+    if (_v == null)
+      _sb.append("\\N");
+    else if (_v instanceof Date)
+      _sb.append(_df.format((Date)_v));
+    else if (_v instanceof Boolean && isIntegerType(_type))
+      _sb.append(((Boolean)_v).booleanValue() ? '1' : '0');
+    else if (_v instanceof Boolean)
+      _sb.append(((Boolean)_v).booleanValue() ? 't' : 'f');
+    else if (_v instanceof Number && _type == Types.BOOLEAN)
+      _sb.append(((Number)_v).intValue() != 0 ? 't' : 'f');
+    else if (_v instanceof byte[]) {
+      /* bytea hex format, the backslash needs to be escaped in COPY */
+      _sb.append("\\\\x");
+      for (final byte b: (byte[])_v) {
+        _sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+        _sb.append(Character.forDigit(b & 0xF, 16));
+      }
+    }
+    else {
+      final String s = _v.toString();
+      for (int i = 0, len = s.length(); i < len; i++) {
+        final char c = s.charAt(i);
+        switch (c) {
+          case '\\': _sb.append("\\\\"); break;
+          case '\t': _sb.append("\\t");  break;
+          case '\n': _sb.append("\\n");  break;
+          case '\r': _sb.append("\\r");  break;
+          default:   _sb.append(c);     break;
+        }
+      }
+    }
+  }
+
+
+  /* binding */
+
+  protected static int bindRow
+    (final PreparedStatement _stmt, int _idx, final InsertGroup _group,
+     final Map<String, Object> _row) throws SQLException
+  {
+    for (int i = 0; i < _group.attributes.length; i++) {
+      bindValue(_stmt, _idx, _group.jdbcTypes[i],
+          _row.get(_group.attributes[i].name()));
+      _idx++;
+    }
+    return _idx;
+  }
+
+  /**
+   * Binds a value of the given attribute to a statement parameter, using the
+   * JDBC type of the attribute.
+   * Use isBindableValue() to check whether a value can be bound.
+   */
+  protected static void bindValue
+    (final PreparedStatement _stmt, final int _idx, final EOAttribute _attr,
+     final Object _v)
+    throws SQLException
+  {
+    bindValue(_stmt, _idx, jdbcTypeForAttribute(_attr), _v);
+  }
+
+  /**
+   * Binds a value to a statement parameter, converting it to the given JDBC
+   * type (see jdbcTypeForAttribute()). NULL is bound as a typed NULL.
+   * If the type is Types.OTHER (unknown), java.util.Date's are bound as
+   * Timestamp's and other values as-is.
+   */
+  protected static void bindValue
+    (final PreparedStatement _stmt, final int _idx, final int _type,
+     final Object _v)
+    throws SQLException
+  {
+    if (_v == null) {
+      _stmt.setNull(_idx, _type != Types.OTHER ? _type : Types.NULL);
+      return;
+    }
+
+    switch (_type) {
+      case Types.SMALLINT:
+      case Types.INTEGER:
+      case Types.BIGINT:
+        if (_v instanceof Boolean) {
+          _stmt.setInt(_idx, ((Boolean)_v).booleanValue() ? 1 : 0);
+          return;
+        }
+        if (_v instanceof Number) {
+          if (_type == Types.BIGINT)
+            _stmt.setLong(_idx, ((Number)_v).longValue());
+          else
+            _stmt.setInt(_idx, ((Number)_v).intValue());
+          return;
+        }
+        break;
+
+      case Types.BOOLEAN:
+        if (_v instanceof Boolean) {
+          _stmt.setBoolean(_idx, ((Boolean)_v).booleanValue());
+          return;
+        }
+        if (_v instanceof Number) {
+          _stmt.setBoolean(_idx, ((Number)_v).intValue() != 0);
+          return;
+        }
+        break;
+
+      case Types.VARCHAR:
+        if (_v instanceof String) {
+          _stmt.setString(_idx, (String)_v);
+          return;
+        }
+        break;
+
+      case Types.DATE:
+        if (_v instanceof Date) {
+          _stmt.setDate(_idx, new java.sql.Date(((Date)_v).getTime()));
+          return;
+        }
+        break;
+
+      case Types.TIMESTAMP:
+        if (_v instanceof Date) {
+          _stmt.setTimestamp(_idx, new Timestamp(((Date)_v).getTime()));
+          return;
+        }
+        break;
+
+      case Types.BINARY:
+        if (_v instanceof byte[]) {
+          _stmt.setBytes(_idx, (byte[])_v);
+          return;
+        }
+        break;
+    }
+
+    if (_type != Types.OTHER)
+      _stmt.setObject(_idx, _v, _type); /* let the driver convert it */
+    else if (_v instanceof Date && !(_v instanceof java.sql.Date))
+      _stmt.setTimestamp(_idx, new Timestamp(((Date)_v).getTime()));
+    else
+      _stmt.setObject(_idx, _v);
+  }
+
+  /**
+   * Returns the java.sql.Types constant for the external type of the
+   * attribute, eg Types.VARCHAR for 'VARCHAR' or Types.TIMESTAMP for
+   * 'TIMESTAMP WITH TIME ZONE'. Returns Types.OTHER if the attribute has no
+   * external type, or an unknown one.
+   */
+  public static int jdbcTypeForAttribute(final EOAttribute _attr) {
+    String t = _attr != null ? _attr.externalType() : null;
+    if (t == null)
+      return Types.OTHER;
+
+    t = t.trim().toUpperCase();
+    final int idx = t.indexOf('(');
+    if (idx > 0) t = t.substring(0, idx).trim(); /* eg VARCHAR(255) */
+
+    if (t.startsWith("TIMESTAMP"))
+      return Types.TIMESTAMP;
+    if (t.equals("INT") || t.equals("INTEGER") || t.equals("INT4") ||
+        t.equals("SERIAL"))
+      return Types.INTEGER;
+    if (t.equals("SMALLINT") || t.equals("INT2"))
+      return Types.SMALLINT;
+    if (t.equals("BIGINT") || t.equals("INT8") || t.equals("BIGSERIAL"))
+      return Types.BIGINT;
+    if (t.equals("VARCHAR") || t.equals("TEXT") || t.equals("CHAR") ||
+        t.startsWith("CHARACTER"))
+      return Types.VARCHAR;
+    if (t.equals("BOOL") || t.equals("BOOLEAN"))
+      return Types.BOOLEAN;
+    if (t.equals("DATE"))
+      return Types.DATE;
+    if (t.equals("BYTEA") || t.equals("BLOB"))
+      return Types.BINARY;
+    return Types.OTHER;
+  }
+
+  protected static boolean isIntegerType(final int _type) {
+    return _type == Types.SMALLINT || _type == Types.INTEGER ||
+           _type == Types.BIGINT;
+  }
+
+  protected static void closeStatement(final PreparedStatement _stmt) {
+    if (_stmt == null)
+      return;
+    try {
+      _stmt.close();
+    }
+    catch (final SQLException e) {
+      log.warn("could not close statement", e);
+    }
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    if (this.useCopy)
+      _d.append(" copy");
+    else if (!this.useMultiRowValues)
+      _d.append(" jdbc-batch");
+    _d.append(" #stmts=");
+    _d.append(this.statementCount);
+    _d.append(" #rows=");
+    _d.append(this.batchedRowCount);
+  }
+
+
+  /* insert group */
+
+  /**
+   * The rows to be inserted into an entity, all rows have the same set of
+   * columns.
+   */
+  protected static class InsertGroup extends Object {
+    protected final EOEntity      entity;
+    protected final EOAttribute[] attributes;
+    protected final int[]         jdbcTypes;
+    protected final String        tableName;
+    protected final List<Map<String, Object>> rows;
+    protected String columnList; /* cached */
+    protected String insertSQL;  /* cached for insertSQLRowCount rows */
+    protected int    insertSQLRowCount;
+
+    public InsertGroup(final EOEntity _entity, final EOAttribute[] _attrs) {
+      this.entity     = _entity;
+      this.attributes = _attrs;
+      this.jdbcTypes  = new int[_attrs.length];
+      this.tableName  = _entity.externalName();
+      for (int i = 0; i < _attrs.length; i++)
+        this.jdbcTypes[i] = jdbcTypeForAttribute(_attrs[i]);
+      this.rows       = new ArrayList<Map<String, Object>>(16);
+    }
+
+    /**
+     * Builds the COPY FROM STDIN statement for the columns of the group.
+     */
+    public String copySQL(final EOAdaptorChannel _ch) {
+      final EOSQLExpression e =
+        _ch.adaptor().expressionFactory().createExpression(this.entity);
+
+      final StringBuilder sb = new StringBuilder(256);
+      sb.append("COPY ");
+      sb.append(e.sqlStringForSchemaObjectName(this.tableName));
+      sb.append(" (");
+      for (int i = 0; i < this.attributes.length; i++) {
+        if (i > 0) sb.append(", ");
+        sb.append(e.sqlStringForSchemaObjectName(
+            this.attributes[i].columnName()));
+      }
+      sb.append(") FROM STDIN");
+      return sb.toString();
+    }
+
+    /**
+     * Builds an INSERT statement with _rowCount rows of parameter markers.
+     * The statement is cached, all chunks but the last one of a group have
+     * the same number of rows.
+     */
+    public String insertSQL(final EOAdaptorChannel _ch, final int _rowCount) {
+      if (this.insertSQL != null && this.insertSQLRowCount == _rowCount)
+        return this.insertSQL;
+
+      if (this.columnList == null) {
+        final EOSQLExpression e =
+          _ch.adaptor().expressionFactory().createExpression(this.entity);
+
+        final StringBuilder sb = new StringBuilder(256);
+        sb.append("INSERT INTO ");
+        sb.append(e.sqlStringForSchemaObjectName(this.tableName));
+        sb.append(" (");
+        for (int i = 0; i < this.attributes.length; i++) {
+          if (i > 0) sb.append(", ");
+          sb.append(e.sqlStringForSchemaObjectName(
+              this.attributes[i].columnName()));
+        }
+        sb.append(") VALUES ");
+        this.columnList = sb.toString();
+      }
+
+      final int colCount = this.attributes.length;
+      final StringBuilder sql =
+        new StringBuilder(this.columnList.length() + _rowCount * colCount * 3);
+      sql.append(this.columnList);
+      for (int r = 0; r < _rowCount; r++) {
+        if (r > 0) sql.append(", ");
+        sql.append('(');
+        for (int i = 0; i < colCount; i++) {
+          if (i > 0) sql.append(", ");
+          sql.append('?');
+        }
+        sql.append(')');
+      }
+      this.insertSQL         = sql.toString();
+      this.insertSQLRowCount = _rowCount;
+      return this.insertSQL;
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.ops;
+
+import java.util.Map;
+
+import org.getobjects.foundation.NSException;
+
+/**
+ * OGoMalformedRecordException
+ * <p>
+ * Thrown by an IOGoContactImportSource if a single record of the source could
+ * not be parsed (eg a CSV line with too many columns). Contrary to other
+ * exceptions, it does not abort the import. The record is reported as an
+ * ErrorRecord and the import continues with the next one.
+ *
+ * @author helge
+ */
+public class OGoMalformedRecordException extends NSException {
+  private static final long serialVersionUID = 1L;
+
+  protected final long lineNumber;
+  protected final Map<String, Object> record;
+
+  public OGoMalformedRecordException
+    (final String _reason, final long _line, final Map<String, Object> _record)
+  {
+    super(_reason);
+    this.lineNumber = _line;
+    this.record     = _record;
+  }
+
+  /* accessors */
+
+  /**
+   * Returns the (1-based) line in the source where the record starts.
+   */
+  public long lineNumber() {
+    return this.lineNumber;
+  }
+
+  /**
+   * Returns what could be parsed of the record, for the ErrorRecord.
+   */
+  public Map<String, Object> record() {
+    return this.record;
+  }
+}
@@ -20,6 +20,9 @@
 */
 package org.opengroupware.logic.ops;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -51,6 +54,19 @@ import org.opengroupware.logic.db.OGoDatabase;
  * The usual example is creating complex objects, eg contacts. In this case
  * you first need to create the 'contact' records, programatically retrieve the
  * new contact IDs and then create addresses, phone numbers etc using that ID.
+ * <p>
+ * Nested scopes: if begin() is called while the transaction is already
+ * running, a savepoint is set and a nested scope is opened. A commit() of
+ * a nested scope just releases the savepoint, a rollback() only rolls back
+ * to the savepoint. The enclosing transaction stays intact.
+ * This is what OGoOperationTransaction does if it joins a running master
+ * transaction, so a failing operation set doesn't break the outer tx (eg
+ * a bulk import can continue after a bad record).
+ * <p>
+ * Listeners are registered in the innermost scope. If the scope is rolled
+ * back, its listeners receive transactionWillRollback() right away. If it
+ * is committed, they are moved to the enclosing scope and receive
+ * transactionDidCommit() once the whole transaction got committed.
  */
 public class OGoMasterTransaction extends NSObject {
   protected static final Log log = LogFactory.getLog("OGoOperationTransaction");
@@ -64,13 +80,16 @@ public class OGoMasterTransaction extends NSObject {
   /* tx state */
   protected EOAdaptor        adaptor;
   protected EOAdaptorChannel adChannel; 
-  protected List<IOGoMasterTransactionListener> listeners;
+  protected List<Scope>      scopes; /* [0] is the outermost scope */
 
   public OGoMasterTransaction(final OGoObjectContext _oc) {
     super();
     
     this.oc  = _oc;
     this.db  = this.oc.oDatabase();
+    
+    this.scopes = new ArrayList<Scope>(4);
+    this.scopes.add(new Scope(null /* no savepoint */));
   }
 
   
@@ -108,17 +127,34 @@ public class OGoMasterTransaction extends NSObject {
     return this.adChannel;
   }
   
+  /**
+   * Returns the number of open scopes, 0 if no transaction is running, 1 if
+   * just the outermost transaction is running, 2+ if nested scopes (with
+   * savepoints) are open.
+   */
+  public int scopeDepth() {
+    return this.adChannel != null ? this.scopes.size() : 0;
+  }
+  public boolean isInNestedScope() {
+    return this.adChannel != null && this.scopes.size() > 1;
+  }
+  
   
   /* begin/end TX */
   
   /**
    * Retrieves a channel from the database' adaptor and starts a transaction
    * using begin().
+   * <p>
+   * If the transaction is already running, a savepoint is set and a nested
+   * scope is opened (see beginNestedScope()).
    * 
    * @return null if everything was awesome-O, an error otherwise
    */
   public Exception begin() {
-    if (this.adaptor != null || this.adChannel != null)
+    if (this.adChannel != null)
+      return this.beginNestedScope();
+    if (this.adaptor != null)
       return new NSException("TX already started: " + this.startDate);
     
     this.adaptor = this.db.adaptor();
@@ -142,11 +178,38 @@ public class OGoMasterTransaction extends NSObject {
     return null; /* everything is fine */
   }
   
+  /**
+   * Sets a savepoint in the running transaction and opens a new scope. The
+   * scope must be closed using commit() or rollback().
+   * 
+   * @return null if the savepoint got set, an error otherwise
+   */
+  protected Exception beginNestedScope() {
+    final Connection c = this.adChannel.connection();
+    if (c == null)
+      return new NSException("master-tx: got no connection for savepoint");
+    
+    final Savepoint sp;
+    try {
+      sp = c.setSavepoint("ogo_scope_" + this.scopes.size());
+    }
+    catch (final SQLException e) {
+      log.warn("master-tx: could not set savepoint: " + e.getMessage());
+      return e;
+    }
+    
+    this.scopes.add(new Scope(sp));
+    return null;
+  }
+  
   /**
    * Important: if the commit fails with an error, you should(/must) call
    * rollback() to properly teardown the transaction (release channels etc).
    * <p>
    * This method only teardowns the transaction if the commit() was successful.
+   * <p>
+   * If a nested scope is open, only that scope is committed (its savepoint
+   * gets released).
    * 
    * @return null if everything was fine, an error otherwise
    */
@@ -154,6 +217,9 @@ public class OGoMasterTransaction extends NSObject {
     if (this.adChannel == null)
       return new NSException("master-tx commit: no transaction in progress");
     
+    if (this.scopes.size() > 1)
+      return this.commitNestedScope();
+    
     Exception error = this.adChannel.commit();
     if (error != null)
       return error; // Note: the caller MUST call rollback to teardown!
@@ -168,30 +234,62 @@ public class OGoMasterTransaction extends NSObject {
     
     /* notify operations on commit (makes them throw away rollback state) */
     
-    if (this.listeners != null) {
-      for (IOGoMasterTransactionListener listener: this.listeners)
+    final Scope scope = this.scopes.get(0);
+    if (scope.listeners != null) {
+      final List<IOGoMasterTransactionListener> listeners = scope.listeners;
+      scope.listeners = null;
+      for (IOGoMasterTransactionListener listener: listeners)
         listener.transactionDidCommit(this);
-      this.listeners = null;
     }
     
     return error;
   }
   
+  /**
+   * Releases the savepoint of the innermost scope and moves its listeners to
+   * the enclosing scope. If the release fails, the scope stays open and the
+   * caller must call rollback().
+   * 
+   * @return null if everything was fine, an error otherwise
+   */
+  protected Exception commitNestedScope() {
+    final Scope scope = this.scopes.get(this.scopes.size() - 1);
+    try {
+      this.adChannel.connection().releaseSavepoint(scope.savepoint);
+    }
+    catch (final SQLException e) {
+      log.warn("master-tx: could not release savepoint: " + e.getMessage());
+      return e;
+    }
+    
+    this.scopes.remove(this.scopes.size() - 1);
+    if (scope.listeners != null)
+      this.scopes.get(this.scopes.size() - 1).addListeners(scope.listeners);
+    return null;
+  }
+  
   public Exception rollback() {
     return this.rollback(null /* regular rollback, no previous error */);
   }
   
+  /**
+   * Rolls back the transaction. If a nested scope is open, only the changes
+   * done since its savepoint are rolled back and the scope is closed, the
+   * enclosing transaction continues to run.
+   * 
+   * @param _causingError - the error which lead to the rollback, or null
+   * @return null if everything was fine, an error otherwise
+   */
   public Exception rollback(final Exception _causingError) {
     if (this.adChannel == null)
       return new NSException("master-tx rollback: no transaction in progress");
     
+    if (this.scopes.size() > 1)
+      return this.rollbackNestedScope();
+    
     /* finalize embedded operations */
     
-    if (this.listeners != null) {
-      for (final IOGoMasterTransactionListener listener: this.listeners)
-        listener.transactionWillRollback(this);
-      this.listeners = null;
-    }
+    this.scopes.get(0).notifyWillRollback(this);
     
     /* perform rollback */
     
@@ -212,14 +310,58 @@ public class OGoMasterTransaction extends NSObject {
     return error;
   }
   
+  /**
+   * Notifies the listeners of the innermost scope and rolls back to its
+   * savepoint. The scope is closed even if the rollback fails (in this case
+   * the enclosing transaction is likely broken anyways).
+   * 
+   * @return null if everything was fine, an error otherwise
+   */
+  protected Exception rollbackNestedScope() {
+    final Scope scope = this.scopes.get(this.scopes.size() - 1);
+    
+    scope.notifyWillRollback(this);
+    
+    Exception error = null;
+    try {
+      this.adChannel.connection().rollback(scope.savepoint);
+    }
+    catch (final SQLException e) {
+      log.warn("master-tx: could not rollback to savepoint: " + e.getMessage());
+      error = e;
+    }
+    
+    this.scopes.remove(this.scopes.size() - 1);
+    return error;
+  }
+  
+  /**
+   * Adds a listener to the innermost scope of the transaction.
+   */
   public void addListener(final IOGoMasterTransactionListener _listener) {
     if (_listener == null)
       return;
     
-    if (this.listeners == null)
-      this.listeners = new ArrayList<IOGoMasterTransactionListener>(16);
+    this.scopes.get(this.scopes.size() - 1).addListener(_listener);
+  }
+  
+  /**
+   * Removes a listener which got added using addListener(). This is used if
+   * a part of the transaction got undone (eg rolled back to a savepoint), the
+   * listener won't receive the commit/rollback notification.
+   * 
+   * @return true if the listener was registered, false otherwise
+   */
+  public boolean removeListener(final IOGoMasterTransactionListener _listener) {
+    if (_listener == null)
+      return false;
     
-    this.listeners.add(_listener);
+    for (int i = this.scopes.size() - 1; i >= 0; i--) {
+      final List<IOGoMasterTransactionListener> l = this.scopes.get(i).listeners;
+      if (l != null && l.remove(_listener))
+        return true;
+    }
+    return false;
   }
   
   
@@ -251,6 +393,48 @@ public class OGoMasterTransaction extends NSObject {
     if (this.adChannel != null) {
       _d.append(" ch=");
       _d.append(this.adChannel);
+      if (this.scopes.size() > 1) {
+        _d.append(" depth=");
+        _d.append(this.scopes.size());
+      }
+    }
+  }
+  
+  
+  /* scopes */
+  
+  /**
+   * A scope of the transaction, the outermost one or one guarded by a
+   * savepoint.
+   */
+  protected static class Scope extends Object {
+    protected final Savepoint savepoint; /* null for the outermost scope */
+    protected List<IOGoMasterTransactionListener> listeners;
+    
+    public Scope(final Savepoint _sp) {
+      this.savepoint = _sp;
+    }
+    
+    public void addListener(final IOGoMasterTransactionListener _listener) {
+      if (this.listeners == null)
+        this.listeners = new ArrayList<IOGoMasterTransactionListener>(16);
+      this.listeners.add(_listener);
+    }
+    public void addListeners(final List<IOGoMasterTransactionListener> _l) {
+      if (this.listeners == null)
+        this.listeners = new ArrayList<IOGoMasterTransactionListener>(_l);
+      else
+        this.listeners.addAll(_l);
+    }
+    
+    public void notifyWillRollback(final OGoMasterTransaction _tx) {
+      if (this.listeners == null)
+        return;
+      
+      final List<IOGoMasterTransactionListener> l = this.listeners;
+      this.listeners = null;
+      for (final IOGoMasterTransactionListener listener: l)
+        listener.transactionWillRollback(_tx);
     }
   }
 }
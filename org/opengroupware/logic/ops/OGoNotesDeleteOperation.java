@@ -20,7 +20,6 @@
 */
 package org.opengroupware.logic.ops;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -36,6 +35,8 @@ import org.getobjects.eocontrol.EOQualifier.ComparisonOperation;
 import org.getobjects.foundation.NSException;
 import org.getobjects.foundation.UObject;
 import org.opengroupware.logic.blobs.IOGoBlobStore;
+import org.opengroupware.logic.blobs.IOGoBlobTransaction;
+import org.opengroupware.logic.blobs.OGoBlobContentCache;
 import org.opengroupware.logic.core.OGoObjectContext;
 import org.opengroupware.logic.db.OGoNote;
 import org.opengroupware.logic.db.OGoResultSet;
@@ -62,7 +63,7 @@ public class OGoNotesDeleteOperation extends OGoOperation {
   
   /* transaction state */
   protected List<Number> delNoteIds;
-  protected Collection<OGoFileDeleteTransaction> fileDeletes;
+  protected Collection<IOGoBlobTransaction> fileDeletes;
   
 
   public OGoNotesDeleteOperation(final OGoObjectContext _oc) {
@@ -135,7 +136,7 @@ public class OGoNotesDeleteOperation extends OGoOperation {
     /* check for child objects, and request permissions */
     
     this.delNoteIds  = new ArrayList<Number>(notes.size());
-    this.fileDeletes = new ArrayList<OGoFileDeleteTransaction>(notes.size());
+    this.fileDeletes = new ArrayList<IOGoBlobTransaction>(notes.size());
     
     return this.prepareNotesForDeletion(_tx, _oc, notes);
   }
@@ -186,14 +187,15 @@ public class OGoNotesDeleteOperation extends OGoOperation {
       if (this.delNoteIds.contains(note.id()))
         continue; /* already in queue */
 
-      final File f = bs.blobFileForId(note.id(), null, (String)note.fileext);
-      if (f == null) {
-        log.warn("got no blob-file path for note: " + note);
-        return new NSException("got no blob-file path for note: " + note);
+      final IOGoBlobTransaction ftx =
+        bs.blobDeleteTransaction(note.id(), null, (String)note.fileext);
+      if (ftx == null) {
+        log.warn("got no blob location for note: " + note);
+        return new NSException("got no blob location for note: " + note);
       }
       
       this.delNoteIds.add(note.id());
-      this.fileDeletes.add(new OGoFileDeleteTransaction(f));
+      this.fileDeletes.add(ftx);
     }
     
     return null;
@@ -225,8 +227,8 @@ public class OGoNotesDeleteOperation extends OGoOperation {
     /* next delete the associated filesystem files */
     
     if (this.fileDeletes != null) {
-      for (final OGoFileDeleteTransaction tx: this.fileDeletes) {
-        if ((error = tx.performAtomicDelete()) != null)
+      for (final IOGoBlobTransaction tx: this.fileDeletes) {
+        if ((error = tx.perform()) != null)
           return error;
       }
     }
@@ -244,7 +246,7 @@ public class OGoNotesDeleteOperation extends OGoOperation {
 
     Exception lastError = null;
     if (this.fileDeletes != null) {
-      for (final OGoFileDeleteTransaction tx: this.fileDeletes) {
+      for (final IOGoBlobTransaction tx: this.fileDeletes) {
         final Exception error = tx.rollback();
         if (error != null) lastError = error;
       }
@@ -260,10 +262,16 @@ public class OGoNotesDeleteOperation extends OGoOperation {
     (final OGoOperationTransaction _tx, final OGoObjectContext _ctx)
   {
     if (this.fileDeletes != null) {
-      for (final OGoFileDeleteTransaction tx: this.fileDeletes) {
-        final Exception error = tx.commit();
-        if (error != null) return error;
+      Exception error = null;
+      for (final IOGoBlobTransaction tx: this.fileDeletes) {
+        if ((error = tx.commit()) != null)
+          break;
       }
+      
+      final OGoBlobContentCache cache = _ctx.oDatabase().contentCache();
+      for (final Number id: this.delNoteIds)
+        cache.invalidateId(id);
+      if (error != null) return error;
     }
     
     return super.transactionDidCommitInContext(_tx, _ctx);
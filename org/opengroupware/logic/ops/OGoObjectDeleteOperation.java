@@ -20,6 +20,11 @@
 */
 package org.opengroupware.logic.ops;
 
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -27,22 +32,45 @@ import java.util.List;
 import java.util.Map;
 
 import org.getobjects.eoaccess.EOAdaptorChannel;
-import org.getobjects.eoaccess.EOAdaptorOperation;
+import org.getobjects.eoaccess.EOAttribute;
 import org.getobjects.eoaccess.EOEntity;
-import org.getobjects.eocontrol.EOFetchSpecification;
-import org.getobjects.eocontrol.EOQualifier;
+import org.getobjects.eoaccess.EOSQLExpression;
 import org.getobjects.foundation.NSCompoundException;
 import org.getobjects.foundation.NSException;
 import org.opengroupware.logic.core.OGoObjectContext;
+import org.opengroupware.logic.db.OGoChangeRecord;
 import org.opengroupware.logic.db.OGoObject;
 
 /**
  * OGoObjectDeleteOperation
  * <p>
- * This OGoOperation deletes OGoObject objects.
+ * This OGoOperation deletes OGoObject objects, including the rows which
+ * depend on them.
+ * <p>
+ * The delete is set based, that is, the number of SQL statements does not
+ * depend on the number of objects being deleted. The primary keys are passed
+ * as a single array parameter (PostgreSQL '= ANY(?)'):
+ * <ol>
+ *   <li>the records are locked and their object_version is checked:<pre>
+ *     SELECT company_id, object_version FROM person
+ *     WHERE company_id = ANY(?) FOR UPDATE</pre>
+ *   <li>one DELETE per dependent table, eg<pre>
+ *     DELETE FROM telephone WHERE company_id = ANY(?)</pre>
+ *   <li>the DELETE of the records itself
+ * </ol>
+ * For contacts the dependent tables are company_value, telephone, address,
+ * company_info and company_assignment (employments, team memberships). For all
+ * objects the object_acl, obj_link and obj_info rows are deleted.
+ * <p>
+ * The objects are not fetched. The operation requests the 'd' permission on
+ * each object, which is checked by the OGoOperationTransaction.
  * 
  * <p>
- * TBD: implement me! :-)
+ * Example:<pre>
+ *   OGoObjectDeleteOperation op = new OGoObjectDeleteOperation(oc, "Persons");
+ *   for (Number id: staleIds)
+ *     op.deleteObject(id, null);
+ *   Exception error = oc.performOperations(op);</pre>
  * 
  * <p>
  * @author helge
@@ -55,6 +83,9 @@ public class OGoObjectDeleteOperation extends OGoOperation {
   protected Number actorId;
   
   protected Map<Number, Number> idToBaseVersion;
+  
+  /* transaction state */
+  protected int deletedCount;
 
   public OGoObjectDeleteOperation(OGoObjectContext _oc, final String _ename) {
     super(_oc);
@@ -64,6 +95,55 @@ public class OGoObjectDeleteOperation extends OGoOperation {
   }
   
   
+  /* dependent rows */
+  
+  /**
+   * The table/column pairs which refer to contact records.
+   */
+  protected static final String[][] contactDependents = {
+    { "company_value",      "company_id"     },
+    { "telephone",          "company_id"     },
+    { "address",            "company_id"     },
+    { "company_info",       "company_id"     },
+    { "company_assignment", "company_id"     },
+    { "company_assignment", "sub_company_id" }
+  };
+  
+  /**
+   * The table/column pairs which can refer to any OGo object.
+   */
+  protected static final String[][] objectDependents = {
+    { "object_acl", "object_id" },
+    { "obj_link",   "source_id" },
+    { "obj_link",   "target_id" },
+    { "obj_info",   "obj_id"    }
+  };
+  
+  /**
+   * Returns the table/column pairs of rows which need to be deleted along
+   * with the objects. Subclasses can override this to add more tables.
+   * 
+   * @return an array of { table, column } arrays
+   */
+  public String[][] dependentTablesAndColumns() {
+    if (this.isContactEntity()) {
+      final String[][] all =
+        new String[contactDependents.length + objectDependents.length][];
+      System.arraycopy(contactDependents, 0, all, 0, contactDependents.length);
+      System.arraycopy(objectDependents, 0, all, contactDependents.length,
+          objectDependents.length);
+      return all;
+    }
+    return objectDependents;
+  }
+  
+  protected boolean isContactEntity() {
+    final String en = this.baseEntity != null ? this.baseEntity.name() : null;
+    return "Persons".equals(en) || "Companies".equals(en) ||
+           "Teams".equals(en)   || "Accounts".equals(en);
+  }
+  
+  
   /* enqueue update request */
 
   /**
@@ -131,72 +211,24 @@ public class OGoObjectDeleteOperation extends OGoOperation {
   
   /* prepare */
 
-  @SuppressWarnings("unchecked")
   @Override
   public Exception prepareForTransactionInContext
     (final OGoOperationTransaction _tx, final OGoObjectContext _ctx)
   {
     if (this.idToBaseVersion == null || this.idToBaseVersion.size() == 0)
       return null; /* nothing to do */
+    if (this.baseEntity == null)
+      return new NSException("delete operation has no entity");
     
     this.now     = _tx.startDate();
     this.actorId = _ctx.actorID();
     
-    
-    /* fetch EO objects (eg OGoPerson's) which we want to delete */
-    
-    EOFetchSpecification fs = new EOFetchSpecification(this.baseEntity.name(),
-        EOQualifier.parse("id IN %@", this.idToBaseVersion.keySet()),
-        null);
-    // Note: locking makes no sense, we are not inside a transaction at this
-    //       stage. prepare is just for preliminary setup.
-    // fs.setLocksObjects(true); /* sure, why not? */
-    
-    final List<OGoObject> objects =
-      _tx.objectContext().objectsWithFetchSpecification(fs);
-    if (objects == null) {
-      Exception error = _tx.objectContext().consumeLastException();
-      return error != null ? error : new NSException("could not fetch objs");
-    }
-    
-    
-    /* check whether all objects were found */
-    
-    if (objects.size() < this.idToBaseVersion.size())
-      return new NSException("some objects could not be found"); // TBD
-    
-    
-    /* compare revisions, apply our changes and request permission */
-    
-    final List<Exception> revErrors = new ArrayList<Exception>(4);
-    for (OGoObject eo: objects) {
-      Number pkey = eo.id();
-      Number base = this.idToBaseVersion.get(pkey);
-      if (base == null)
-        continue;
-      
-      Number current = (Number)eo.valueForKey("objectVersion");
-      if (current == null) current = 0;
-      
-      if (!base.equals(current)) {
-        log.warn("object was modified: " + eo);
-        revErrors.add(new OGoVersionMismatchException(eo, current, base));
-      }
-      
-      /* request delete permission */
-      
-      _tx.requestPermissionOnId("d", this.baseEntity.name(), pkey);
-      
-      /* apply core deletes */
-
-    }
-    if (revErrors.size() > 0)
-      return NSCompoundException.exceptionForList("version mismatch",revErrors);
-
-    
-    /* prepare child deletes */
-    // TBD
-    
+    /* Request delete permissions. We do not fetch the objects, the versions
+     * are checked (and the records are locked) in runInContext.
+     */
+    final String ename = this.baseEntity.name();
+    for (final Number pkey: this.idToBaseVersion.keySet())
+      _tx.requestPermissionOnId("d", ename, pkey);
     
     return null /* everything is fine */;
   }
@@ -211,27 +243,193 @@ public class OGoObjectDeleteOperation extends OGoOperation {
     if (this.idToBaseVersion == null || this.idToBaseVersion.size() == 0)
       return null; /* Nuffin' to do */
     
+    final Connection c = _ch.connection();
+    if (c == null)
+      return new NSException("adaptor channel has no JDBC connection");
+    
+    final EOSQLExpression e =
+      _ch.adaptor().expressionFactory().createExpression(this.baseEntity);
+    final String table = e.sqlStringForSchemaObjectName(
+        this.baseEntity.externalName());
+    final String pkeyColumn = e.sqlStringForSchemaObjectName(
+        this.baseEntity.attributeNamed(
+            this.baseEntity.primaryKeyAttributeNames()[0]).columnName());
+    
+    final List<Number> ids = new ArrayList<Number>(this.idToBaseVersion.keySet());
+    final Integer[] idArray = new Integer[ids.size()];
+    for (int i = 0; i < idArray.length; i++)
+      idArray[i] = ids.get(i).intValue();
+    
+    try {
+      final Array sqlIds = c.createArrayOf("int4", idArray);
+      
+      /* lock the records and check their versions */
+      
+      Exception error = this.lockAndCheckVersions(c, e, table, pkeyColumn,
+          sqlIds);
+      if (error != null)
+        return error;
+      
+      /* delete dependent rows */
+      
+      for (final String[] dep: this.dependentTablesAndColumns()) {
+        final int count = this.deleteWhereIn(c,
+            e.sqlStringForSchemaObjectName(dep[0]),
+            e.sqlStringForSchemaObjectName(dep[1]), sqlIds);
+        if (childLog.isDebugEnabled())
+          childLog.debug("deleted " + count + " rows from " + dep[0]);
+      }
+      
+      /* delete the records */
+      
+      this.deletedCount = this.deleteWhereIn(c, table, pkeyColumn, sqlIds);
+      if (this.deletedCount != idArray.length) {
+        return new NSException("deleted " + this.deletedCount + " of " +
+            idArray.length + " records");
+      }
+    }
+    catch (final SQLException ex) {
+      log.error("bulk delete failed: " + this, ex);
+      return ex;
+    }
     
-    List<EOAdaptorOperation> ops    = new ArrayList<EOAdaptorOperation>(16);
-    List<EOAdaptorOperation> logOps = new ArrayList<EOAdaptorOperation>(16);
-    
-    /* create delete operations */
-    
-    // TBD
-    
-    ops.addAll(logOps);
-    
-    
-    /* perform core operations */
+    /* the object_acl rows are gone too, hence the permissions changed */
+    final String ename = this.baseEntity.name();
+    for (final Number id: ids) {
+      _tx.noteChange(OGoChangeRecord.DELETE, ename, id, null);
+      _tx.noteACLChangedId(ename, id);
+    }
+    return null; /* everything is fine */
+  }
+  
+  /**
+   * Deletes of contacts also drop their team/company assignments, which
+   * changes the relationships of other contacts. In this case the context is
+   * reset after the commit.
+   */
+  @Override
+  public boolean reportsChanges() {
+    /* ACL entries and project assignments protect other objects */
+    return !this.isContactEntity() && !isGrantEntity(this.baseEntity);
+  }
+  
+  /**
+   * Locks the records using SELECT ... FOR UPDATE and compares their
+   * object_version with the one the delete is based on.
+   * 
+   * @return null if all records are there and current, the error otherwise
+   */
+  protected Exception lockAndCheckVersions
+    (final Connection _c, final EOSQLExpression _e, final String _table,
+     final String _pkeyColumn, final Array _ids)
+    throws SQLException
+  {
+    final EOAttribute versionAttr =
+      this.baseEntity.attributeNamed("objectVersion");
+    
+    final StringBuilder sql = new StringBuilder(128);
+    sql.append("SELECT ");
+    sql.append(_pkeyColumn);
+    if (versionAttr != null) {
+      sql.append(", ");
+      sql.append(_e.sqlStringForSchemaObjectName(versionAttr.columnName()));
+    }
+    sql.append(" FROM ");
+    sql.append(_table);
+    sql.append(" WHERE ");
+    sql.append(_pkeyColumn);
+    sql.append(" = ANY(?) FOR UPDATE");
+    
+    final Map<Integer, Number> idToVersion =
+      new HashMap<Integer, Number>(this.idToBaseVersion.size());
+    final PreparedStatement stmt = _c.prepareStatement(sql.toString());
+    try {
+      stmt.setArray(1, _ids);
+      final ResultSet rs = stmt.executeQuery();
+      while (rs.next()) {
+        idToVersion.put(rs.getInt(1),
+            versionAttr != null ? Integer.valueOf(rs.getInt(2)) : null);
+      }
+      rs.close();
+    }
+    finally {
+      stmt.close();
+    }
     
-    Exception error = _ch.performAdaptorOperations(ops);
-    if (error != null)
-      return error;
+    final String ename = this.baseEntity.name();
+    List<Exception> errors = null;
+    for (final Map.Entry<Number, Number> entry:
+         this.idToBaseVersion.entrySet())
+    {
+      final Integer id = entry.getKey().intValue();
+      Exception error = null;
+      
+      if (!idToVersion.containsKey(id))
+        error = new NSException("object could not be found: "+ename+"/"+id);
+      else if (entry.getValue() != null) {
+        Number current = idToVersion.get(id);
+        if (current == null) current = 0;
+        
+        if (entry.getValue().intValue() != current.intValue()) {
+          log.warn("object was modified: " + ename + "/" + id);
+          error = new OGoVersionMismatchException(ename, id, current,
+              entry.getValue());
+        }
+      }
+      
+      if (error != null) {
+        if (errors == null) errors = new ArrayList<Exception>(4);
+        errors.add(error);
+      }
+    }
+    return errors != null
+      ? NSCompoundException.exceptionForList("version mismatch", errors)
+      : null;
+  }
+  
+  protected int deleteWhereIn
+    (final Connection _c, final String _table, final String _column,
+     final Array _ids)
+    throws SQLException
+  {
+    final PreparedStatement stmt = _c.prepareStatement(
+        "DELETE FROM " + _table + " WHERE " + _column + " = ANY(?)");
+    try {
+      stmt.setArray(1, _ids);
+      return stmt.executeUpdate();
+    }
+    finally {
+      stmt.close();
+    }
+  }
+  
+  
+  /* commit */
+  
+  @Override
+  public Exception transactionDidCommitInContext
+    (final OGoOperationTransaction _tx, final OGoObjectContext _ctx)
+  {
+    /* the company_assignment rows of the contacts are gone (deletes of the
+     * assignments themselves are reported, the index tracks those) */
+    if (this.deletedCount > 0 && this.isContactEntity() && _ctx != null)
+      _ctx.oDatabase().teamMembershipIndex().invalidate();
+    return null;
+  }
+  
+  
+  /* description */
 
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    if (this.baseEntity != null)
+      _d.append(" base=" + this.baseEntity.name());
     
-    /* perform child changes */
-    // TBD
+    if (this.idToBaseVersion != null)
+      _d.append(" #ids=" + this.idToBaseVersion.size());
+    if (this.deletedCount > 0)
+      _d.append(" #deleted=" + this.deletedCount);
     
-    return new NSException("not implemented");
+    super.appendAttributesToDescription(_d);
   }
 }
@@ -20,23 +20,37 @@
 */
 package org.opengroupware.logic.ops;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.getobjects.eoaccess.EOAdaptorChannel;
 import org.getobjects.eoaccess.EOAdaptorOperation;
+import org.getobjects.eoaccess.EOAttribute;
 import org.getobjects.eoaccess.EOEnterpriseObject;
 import org.getobjects.eoaccess.EOEntity;
 import org.getobjects.eoaccess.EORelationship;
+import org.getobjects.eoaccess.EOSQLExpression;
+import org.getobjects.eocontrol.EOAndQualifier;
 import org.getobjects.eocontrol.EOFetchSpecification;
+import org.getobjects.eocontrol.EOKeyValueQualifier;
 import org.getobjects.eocontrol.EOQualifier;
 import org.getobjects.foundation.NSCompoundException;
 import org.getobjects.foundation.NSException;
 import org.getobjects.foundation.UObject;
 import org.opengroupware.logic.core.OGoObjectContext;
+import org.opengroupware.logic.db.OGoChangeRecord;
 import org.opengroupware.logic.db.OGoObject;
 
 /**
@@ -67,6 +81,22 @@ import org.opengroupware.logic.db.OGoObject;
  * bulk updates.
  * 
  * <p>
+ * Direct mode: per default the operation fetches all objects to be changed
+ * into the context, compares their objectVersion and applies the changes on
+ * the EOs. If the direct mode is enabled (setDirectMode(true)) and the
+ * operation has no child changes, the objects are not fetched. Instead the
+ * changes are sent as JDBC batches of<pre>
+ *   UPDATE person SET name = ?, object_version = object_version + 1, ...
+ *   WHERE company_id = ? AND object_version = ?</pre>
+ * (one batch per set of changed columns). The restricting qualifier of the
+ * entity is added to the WHERE clause (eg Accounts and Persons share the
+ * person table). Rows which are not affected by their UPDATE are reported as
+ * OGoVersionMismatchException's (or as missing objects), rows without
+ * changed columns are not touched.
+ * If the restricting qualifier cannot be expressed in the direct UPDATE,
+ * the objects are fetched as usual.
+ * 
+ * <p>
  * @author helge
  */
 public class OGoObjectUpdateOperation extends OGoOperation {
@@ -83,6 +113,10 @@ public class OGoObjectUpdateOperation extends OGoOperation {
   protected List<OGoObject>                  changedObjects;
   
   protected Map<String, Object> relshipChanges;
+  
+  protected boolean directMode;
+  protected boolean runDirectUpdates; /* directMode was possible */
+  protected Set<Number> unchangedIds;  /* direct mode, nothing to update */
 
   public OGoObjectUpdateOperation(OGoObjectContext _oc, String _ename) {
     super(_oc);
@@ -97,6 +131,23 @@ public class OGoObjectUpdateOperation extends OGoOperation {
   }
   
   
+  /* accessors */
+  
+  /**
+   * Enables the direct mode, ie the objects are not fetched prior the update
+   * (see the class documentation). The direct mode is only used if the
+   * operation has no child changes.
+   * 
+   * @param _flag - whether to update the records without fetching them
+   */
+  public void setDirectMode(final boolean _flag) {
+    this.directMode = _flag;
+  }
+  public boolean isDirectMode() {
+    return this.directMode;
+  }
+  
+  
   /* enqueue update request */
 
   /**
@@ -232,6 +283,18 @@ public class OGoObjectUpdateOperation extends OGoOperation {
     
     this.now     = _tx.startDate();
     this.actorId = _ctx.actorID();
+    this.unchangedIds = null;
+    
+    this.runDirectUpdates = this.directMode &&
+      (this.childChanges == null || this.childChanges.size() == 0) &&
+      this.appendRestrictingSQL(
+          this.baseEntity.restrictingQualifier(), null, null, null, null);
+    if (this.runDirectUpdates) {
+      /* no fetch, the object versions are checked by the UPDATEs */
+      for (final Number pkey: this.idToChangeSet.keySet())
+        _tx.requestPermissionOnId("w", this.baseEntity.name(), pkey);
+      return null;
+    }
     
     
     /* fetch EO objects (eg OGoPerson's) we have changes for */
@@ -281,6 +344,13 @@ public class OGoObjectUpdateOperation extends OGoOperation {
       
       _tx.requestPermissionOnId("w", this.baseEntity.name(), pkey);
       
+      /* Lock the record for the transaction. This serializes concurrent
+       * edits of the same objects (in a deadlock free order), the version
+       * qualifier of the UPDATE detects changes done since the fetch.
+       */
+      if (base != null)
+        _tx.requestLockOnId(this.baseEntity.name(), pkey);
+      
       /* apply core changes */
       
       eo.takeValuesFromDictionary(this.idToChangeSet.get(pkey));
@@ -342,6 +412,13 @@ public class OGoObjectUpdateOperation extends OGoOperation {
   public Exception runInContext
     (OGoOperationTransaction _tx, EOAdaptorChannel _ch, OGoObjectContext _ctx)
   {
+    if (this.runDirectUpdates) {
+      final Exception error = this.runDirectUpdates(_ch);
+      if (error == null)
+        this.noteChangesInTransaction(_tx);
+      return error;
+    }
+    
     if (this.changedObjects == null || this.changedObjects.size() == 0) {
       log.info("detected no changed objects, not running any SQL ...");
       return null; /* Nuffin' to do */
@@ -379,8 +456,369 @@ public class OGoObjectUpdateOperation extends OGoOperation {
       }
     }
     
+    this.noteChangesInTransaction(_tx);
     return null; /* everything is excellent */
   }
+  
+  
+  /* change tracking */
+  
+  /**
+   * Keys which are used by the permission handlers. If one of those changes,
+   * the permissions of the object (and of objects deriving their permissions
+   * from it) need to be refetched.
+   */
+  protected static final String[] permissionKeys = {
+    "ownerId", "isPrivate", "isReadOnlyFlag", "projectId", "companyId",
+    "teamId", "parentId", "creatorId", "permissions", "hasAccess"
+  };
+  
+  /**
+   * Reports the updated objects to the transaction. Objects with changes in
+   * permission relevant keys (eg ownerId) are reported as ACL changes.
+   * 
+   * @param _tx - the OGoOperationTransaction
+   */
+  protected void noteChangesInTransaction(final OGoOperationTransaction _tx) {
+    final String ename = this.baseEntity.name();
+    
+    for (final Map.Entry<Number, Map<String, Object>> entry:
+         this.idToChangeSet.entrySet())
+    {
+      if (this.unchangedIds != null &&
+          this.unchangedIds.contains(entry.getKey()))
+        continue; /* direct mode, the record was not touched */
+      
+      final Number baseVersion = this.idToBaseVersion.get(entry.getKey());
+      _tx.noteChange(OGoChangeRecord.UPDATE, ename, entry.getKey(),
+          baseVersion != null ? Integer.valueOf(baseVersion.intValue() + 1) : null);
+      
+      final Map<String, Object> changes = entry.getValue();
+      if (changes == null)
+        continue;
+      for (final String key: permissionKeys) {
+        if (changes.containsKey(key)) {
+          _tx.noteACLChangedId(ename, entry.getKey());
+          break;
+        }
+      }
+    }
+  }
+  
+  @Override
+  public boolean reportsChanges() {
+    if (isGrantEntity(this.baseEntity))
+      return false; /* changes permissions of other objects */
+    if (this.childChanges != null) {
+      for (final IOGoObjectChildChange change: this.childChanges) {
+        if (!operationReportsChanges(change))
+          return false;
+      }
+    }
+    return true;
+  }
+
+  
+  /* direct updates */
+  
+  /**
+   * Updates the records without having fetched them. The changes are grouped
+   * by the set of changed attributes, each group is sent as a JDBC batch.
+   * The objectVersion is bumped in SQL and checked in the WHERE clause (if
+   * a base version was given).
+   * 
+   * @param _ch - the channel of the transaction
+   * @return null if all records got updated, the error otherwise
+   */
+  protected Exception runDirectUpdates(final EOAdaptorChannel _ch) {
+    final Connection c = _ch.connection();
+    if (c == null)
+      return new NSException("adaptor channel has no JDBC connection");
+    
+    final EOAttribute pkeyAttr = this.baseEntity.attributeNamed(
+        this.baseEntity.primaryKeyAttributeNames()[0]);
+    final EOAttribute versionAttr =
+      this.baseEntity.attributeNamed("objectVersion");
+    final EOAttribute statusAttr = this.baseEntity.attributeNamed("dbStatus");
+    final EOSQLExpression e =
+      _ch.adaptor().expressionFactory().createExpression(this.baseEntity);
+    
+    /* eg 'is_account = ?', the values are bound after the pkey/version */
+    final StringBuilder     restrictSQL   = new StringBuilder(64);
+    final List<EOAttribute> restrictAttrs = new ArrayList<EOAttribute>(2);
+    final List<Object>      restrictBinds = new ArrayList<Object>(2);
+    if (!this.appendRestrictingSQL(this.baseEntity.restrictingQualifier(),
+           e, restrictSQL, restrictAttrs, restrictBinds))
+      return new NSException("restricting qualifier not supported: " + this);
+    
+    /* group the ids by the keys they change */
+    
+    this.unchangedIds = new HashSet<Number>(4);
+    final Map<List<String>, List<Number>> keysToIds =
+      new LinkedHashMap<List<String>, List<Number>>(4);
+    for (final Map.Entry<Number, Map<String, Object>> entry:
+         this.idToChangeSet.entrySet())
+    {
+      final List<String> keys = new ArrayList<String>(entry.getValue().size());
+      for (final Map.Entry<String, Object> change:
+           entry.getValue().entrySet())
+      {
+        final String      key  = change.getKey();
+        final EOAttribute attr = this.baseEntity.attributeNamed(key);
+        if (attr == null || attr == pkeyAttr || attr == versionAttr ||
+            attr == statusAttr)
+          continue; /* eg relationships or tracking attributes */
+        
+        final Object v = change.getValue();
+        if (v != null && !OGoInsertBatcher.isBindableValue(v))
+          return new NSException("cannot update '" + key + "' directly: " + v);
+        keys.add(key);
+      }
+      if (keys.size() == 0) {
+        /* do not bump the version of records which did not change */
+        this.unchangedIds.add(entry.getKey());
+        continue;
+      }
+      Collections.sort(keys);
+      
+      /* the version check is part of the statement */
+      keys.add(this.idToBaseVersion.containsKey(entry.getKey())
+          ? "#versioned" : "#unversioned");
+      
+      List<Number> ids = keysToIds.get(keys);
+      if (ids == null) keysToIds.put(keys, ids = new ArrayList<Number>(16));
+      ids.add(entry.getKey());
+    }
+    
+    /* run the batches */
+    
+    final List<Number> unaffectedIds = new ArrayList<Number>(4);
+    
+    for (final Map.Entry<List<String>, List<Number>> group:
+         keysToIds.entrySet())
+    {
+      final List<String> groupKey  = group.getKey();
+      final int          keyCount  = groupKey.size() - 1;
+      final boolean      versioned = "#versioned".equals(groupKey.get(keyCount));
+      final List<String> keys      = groupKey.subList(0, keyCount);
+      
+      final StringBuilder sql = new StringBuilder(256);
+      sql.append("UPDATE ");
+      sql.append(e.sqlStringForSchemaObjectName(
+          this.baseEntity.externalName()));
+      sql.append(" SET ");
+      boolean isFirst = true;
+      for (final String key: keys) {
+        if (isFirst) isFirst = false; else sql.append(", ");
+        sql.append(e.sqlStringForSchemaObjectName(
+            this.baseEntity.attributeNamed(key).columnName()));
+        sql.append(" = ?");
+      }
+      if (versionAttr != null) {
+        final String vcol =
+          e.sqlStringForSchemaObjectName(versionAttr.columnName());
+        if (isFirst) isFirst = false; else sql.append(", ");
+        sql.append(vcol);
+        sql.append(" = ");
+        sql.append(vcol);
+        sql.append(" + 1");
+      }
+      if (statusAttr != null) {
+        if (isFirst) isFirst = false; else sql.append(", ");
+        sql.append(e.sqlStringForSchemaObjectName(statusAttr.columnName()));
+        sql.append(" = 'updated'");
+      }
+      if (isFirst)
+        continue; /* nothing to update (entity w/o tracking columns) */
+      
+      sql.append(" WHERE ");
+      sql.append(e.sqlStringForSchemaObjectName(pkeyAttr.columnName()));
+      sql.append(" = ?");
+      if (versioned && versionAttr != null) {
+        sql.append(" AND ");
+        sql.append(e.sqlStringForSchemaObjectName(versionAttr.columnName()));
+        sql.append(" = ?");
+      }
+      if (restrictSQL.length() > 0) {
+        sql.append(" AND (");
+        sql.append(restrictSQL);
+        sql.append(")");
+      }
+      
+      final List<Number> ids = group.getValue();
+      PreparedStatement stmt = null;
+      try {
+        stmt = c.prepareStatement(sql.toString());
+        for (final Number id: ids) {
+          final Map<String, Object> changes = this.idToChangeSet.get(id);
+          int idx = 1;
+          for (final String key: keys) {
+            OGoInsertBatcher.bindValue(stmt, idx++,
+                this.baseEntity.attributeNamed(key), changes.get(key));
+          }
+          OGoInsertBatcher.bindValue(stmt, idx++, pkeyAttr, id);
+          if (versioned && versionAttr != null) {
+            OGoInsertBatcher.bindValue(stmt, idx++, versionAttr,
+                this.idToBaseVersion.get(id));
+          }
+          for (int i = 0; i < restrictBinds.size(); i++) {
+            OGoInsertBatcher.bindValue(stmt, idx++, restrictAttrs.get(i),
+                restrictBinds.get(i));
+          }
+          stmt.addBatch();
+        }
+        
+        final int[] results = stmt.executeBatch();
+        for (int i = 0; i < results.length && i < ids.size(); i++) {
+          if (results[i] == 0)
+            unaffectedIds.add(ids.get(i));
+        }
+      }
+      catch (final SQLException ex) {
+        log.error("direct UPDATE failed: " + sql, ex);
+        return ex.getNextException() != null ? ex.getNextException() : ex;
+      }
+      finally {
+        OGoInsertBatcher.closeStatement(stmt);
+      }
+    }
+    
+    if (unaffectedIds.size() == 0)
+      return null; /* everything is fine */
+    
+    return this.errorForUnaffectedIds(c, e, pkeyAttr, versionAttr,
+        unaffectedIds);
+  }
+  
+  /**
+   * Appends the SQL of a restricting qualifier to the given buffer, the values
+   * are added to the _binds, their attributes to the _bindAttrs. Only ANDed
+   * key/value qualifiers with the =, != and LIKE operations are supported.
+   * If _sql is null, the method just checks whether the qualifier is
+   * supported.
+   * 
+   * @param _q         - the qualifier, eg 'isAccount = 1', can be null
+   * @param _e         - the expression used to quote the column names
+   * @param _sql       - the buffer to add the SQL to, or null
+   * @param _bindAttrs - the attributes of the '?' placeholders
+   * @param _binds     - the values for the '?' placeholders
+   * @return true if the qualifier is supported, false otherwise
+   */
+  protected boolean appendRestrictingSQL
+    (final EOQualifier _q, final EOSQLExpression _e, final StringBuilder _sql,
+     final List<EOAttribute> _bindAttrs, final List<Object> _binds)
+  {
+    if (_q == null)
+      return true;
+    
+    if (_q instanceof EOAndQualifier) {
+      boolean isFirst = true;
+      for (final EOQualifier q: ((EOAndQualifier)_q).qualifiers()) {
+        if (_sql != null) {
+          if (isFirst) isFirst = false; else _sql.append(" AND ");
+        }
+        if (!this.appendRestrictingSQL(q, _e, _sql, _bindAttrs, _binds))
+          return false;
+      }
+      return true;
+    }
+    if (!(_q instanceof EOKeyValueQualifier))
+      return false;
+    
+    final EOKeyValueQualifier kvq  = (EOKeyValueQualifier)_q;
+    final EOAttribute         attr = this.baseEntity.attributeNamed(kvq.key());
+    Object v = kvq.value();
+    if (attr == null || v == null || !OGoInsertBatcher.isBindableValue(v))
+      return false;
+    
+    final String op;
+    switch (kvq.operation()) {
+      case EQUAL_TO:     op = " = ";  break;
+      case NOT_EQUAL_TO: op = " <> "; break;
+      case LIKE:
+        op = " LIKE ";
+        v  = v.toString().replace('*', '%');
+        break;
+      default:
+        return false;
+    }
+    
+    if (_sql != null) {
+      _sql.append(_e.sqlStringForSchemaObjectName(attr.columnName()));
+      _sql.append(op);
+      _sql.append('?');
+      _bindAttrs.add(attr);
+      _binds.add(v);
+    }
+    return true;
+  }
+  
+  /**
+   * Fetches the current versions of the records which were not affected by
+   * their UPDATE and builds an OGoVersionMismatchException (or a 'not found'
+   * error) for each of them.
+   */
+  protected Exception errorForUnaffectedIds
+    (final Connection _c, final EOSQLExpression _e,
+     final EOAttribute _pkeyAttr, final EOAttribute _versionAttr,
+     final List<Number> _ids)
+  {
+    final Map<Number, Number> idToVersion =
+      new HashMap<Number, Number>(_ids.size());
+    
+    if (_versionAttr != null) {
+      final StringBuilder sql = new StringBuilder(128);
+      sql.append("SELECT ");
+      sql.append(_e.sqlStringForSchemaObjectName(_pkeyAttr.columnName()));
+      sql.append(", ");
+      sql.append(_e.sqlStringForSchemaObjectName(_versionAttr.columnName()));
+      sql.append(" FROM ");
+      sql.append(_e.sqlStringForSchemaObjectName(
+          this.baseEntity.externalName()));
+      sql.append(" WHERE ");
+      sql.append(_e.sqlStringForSchemaObjectName(_pkeyAttr.columnName()));
+      sql.append(" IN (");
+      for (int i = 0; i < _ids.size(); i++) {
+        if (i > 0) sql.append(", ");
+        sql.append(_ids.get(i).longValue());
+      }
+      sql.append(")");
+      
+      Statement stmt = null;
+      try {
+        stmt = _c.createStatement();
+        final ResultSet rs = stmt.executeQuery(sql.toString());
+        while (rs.next())
+          idToVersion.put(rs.getInt(1), rs.getInt(2));
+        rs.close();
+      }
+      catch (final SQLException ex) {
+        log.error("could not fetch versions of conflicting objects", ex);
+        return ex;
+      }
+      finally {
+        if (stmt != null) {
+          try { stmt.close(); } catch (final SQLException ex) {}
+        }
+      }
+    }
+    
+    final String ename = this.baseEntity.name();
+    final List<Exception> errors = new ArrayList<Exception>(_ids.size());
+    for (final Number id: _ids) {
+      final Number current = idToVersion.get(id.intValue());
+      if (current == null) {
+        errors.add(new NSException("object could not be found: " + 
+            ename + "/" + id));
+      }
+      else {
+        log.warn("object was modified: " + ename + "/" + id);
+        errors.add(new OGoVersionMismatchException(ename, id, current,
+            this.idToBaseVersion.get(id)));
+      }
+    }
+    return NSCompoundException.exceptionForList("version mismatch", errors);
+  }
 
   
   /* description */
@@ -21,10 +21,13 @@
 package org.opengroupware.logic.ops;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -134,6 +137,55 @@ public abstract class OGoOperation extends NSObject implements IOGoOperation {
   }
   
   
+  /* change tracking */
+  
+  /**
+   * Returns true if the operation reports all objects it modified to the
+   * OGoOperationTransaction (using noteChangedGlobalID() and
+   * noteACLChangedGlobalID()).
+   * If all operations of a transaction report their changes, only the
+   * reported objects and permissions are invalidated in the OGoObjectContext
+   * after the commit. Otherwise the whole context is reset.
+   * <p>
+   * The default implementation returns false.
+   * 
+   * @return true if the changes are reported, false otherwise
+   */
+  public boolean reportsChanges() {
+    return false;
+  }
+  
+  /**
+   * Returns true if the given operation reports its changes, see
+   * reportsChanges().
+   */
+  public static boolean operationReportsChanges(final IOGoOperation _op) {
+    if (_op == null)
+      return true; /* no changes ;-) */
+    return _op instanceof OGoOperation && ((OGoOperation)_op).reportsChanges();
+  }
+  
+  /**
+   * The entities whose rows grant permissions on other objects (ACL entries
+   * and project assignments). A change to such a row only carries its own
+   * id, not the one of the protected object, hence operations on those
+   * entities do not report their changes (all permissions get dropped).
+   */
+  protected static final Set<String> grantEntityNames =
+    new HashSet<String>(Arrays.asList(new String[] {
+      "ACLEntries", "ProjectsToCompany",
+      "ProjectTeams", "ProjectPersons", "ProjectCompanies"
+    }));
+  
+  /**
+   * Returns true if rows of the given entity grant permissions on other
+   * objects, see grantEntityNames.
+   */
+  public static boolean isGrantEntity(final EOEntity _entity) {
+    return _entity != null && grantEntityNames.contains(_entity.name());
+  }
+  
+  
   /* helper */
 
   /**
@@ -20,17 +20,26 @@
 */
 package org.opengroupware.logic.ops;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.getobjects.eoaccess.EOAdaptorChannel;
+import org.getobjects.eoaccess.EOEntity;
+import org.getobjects.eoaccess.EOSQLExpression;
 import org.getobjects.eocontrol.EOGlobalID;
 import org.getobjects.eocontrol.EOKeyGlobalID;
 import org.getobjects.foundation.NSCompoundException;
@@ -40,6 +49,8 @@ import org.getobjects.foundation.UString;
 import org.opengroupware.logic.authz.OGoAccessDeniedException;
 import org.opengroupware.logic.core.IOGoOperation;
 import org.opengroupware.logic.core.OGoObjectContext;
+import org.opengroupware.logic.db.OGoChangeBus;
+import org.opengroupware.logic.db.OGoChangeRecord;
 import org.opengroupware.logic.db.OGoDatabase;
 
 /**
@@ -66,23 +77,50 @@ public class OGoOperationTransaction extends NSObject
   
   /* processing state */
   protected Map<EOGlobalID, String> requestedPermissions;
-  protected Map<String, Number>     requestedLocks;
+  protected Map<String, Set<Number>> requestedLocks; /* sorted by table */
+  protected Map<String, EOEntity>    lockEntities;   /* table => entity */
+  protected int lockTimeoutInMS = -1; /* -1: wait, 0: NOWAIT */
+  
+  /* change tracking (reported by the operations, see noteChangedGlobalID) */
+  protected Set<EOGlobalID> changedGlobalIDs;
+  protected Set<EOGlobalID> aclChangedGlobalIDs;
+  protected List<OGoChangeRecord> changeRecords;
   
   public OGoOperationTransaction(OGoObjectContext _oc, IOGoOperation[] _ops) {
     this(new OGoMasterTransaction(_oc), _ops);
   }
   public OGoOperationTransaction
     (final OGoMasterTransaction _tx, final IOGoOperation[] _ops)
+  {
+    this(_tx, _tx != null ? _tx.objectContext() : null, _ops);
+  }
+  /**
+   * Creates an operation transaction which runs in the given master
+   * transaction, but checks permissions using a different object context.
+   * This is used to run operations of different users in one database
+   * transaction (see OGoGroupCommitExecutor).
+   * 
+   * @param _tx  - the master transaction
+   * @param _oc  - the object context of the user of the operations
+   * @param _ops - the operations to run
+   */
+  public OGoOperationTransaction
+    (final OGoMasterTransaction _tx, final OGoObjectContext _oc,
+     final IOGoOperation[] _ops)
   {
     super();
 
     this.tx  = _tx;
-    this.oc  = _tx != null ? _tx.objectContext() : null;
+    this.oc  = _oc;
     this.ops = _ops;
     this.db  = this.oc != null ? this.oc.oDatabase() : null;
     
     this.requestedPermissions = new HashMap<EOGlobalID, String>(16);
-    this.requestedLocks       = new HashMap<String, Number>(16);
+    this.requestedLocks       = new TreeMap<String, Set<Number>>();
+    this.lockEntities         = new HashMap<String, EOEntity>(4);
+    this.changedGlobalIDs     = new HashSet<EOGlobalID>(16);
+    this.aclChangedGlobalIDs  = new HashSet<EOGlobalID>(4);
+    this.changeRecords        = new ArrayList<OGoChangeRecord>(16);
   }
   
   /* accessors */
@@ -95,6 +133,24 @@ public class OGoOperationTransaction extends NSObject
     return this.ops;
   }
   
+  /**
+   * Configures how long acquireLocks() waits for rows locked by other
+   * transactions:
+   * <ul>
+   *   <li>-1 - wait until the lock is available (default)
+   *   <li>0  - do not wait, fail immediately (FOR UPDATE NOWAIT)
+   *   <li>&gt;0 - wait at most the given number of milliseconds
+   * </ul>
+   * 
+   * @param _ms - the lock timeout in milliseconds, see above
+   */
+  public void setLockTimeout(final int _ms) {
+    this.lockTimeoutInMS = _ms < 0 ? -1 : _ms;
+  }
+  public int lockTimeout() {
+    return this.lockTimeoutInMS;
+  }
+  
   public Date startDate() {
     return this.startDate;
   }
@@ -130,6 +186,14 @@ public class OGoOperationTransaction extends NSObject
    *   <code>transactionDidCommitInContext()</code>
    * or
    *   <code>transactionWillRollbackInContext()</code.
+   * <p>
+   * If the master transaction is already running, the operations are run in
+   * a nested scope (a savepoint). On errors only the changes of this
+   * operation transaction are rolled back, the master transaction continues.
+   * The commit notifications are sent once the master transaction commits.
+   * <p>
+   * After the commit, the objects and permissions reported by the operations
+   * are invalidated in the OGoObjectContext (see invalidateObjectContext()).
    * 
    * @return null on success or the Exception on error
    */
@@ -152,16 +216,13 @@ public class OGoOperationTransaction extends NSObject
       return error;
     
     
-    /* open transaction when necessary */
+    /* open transaction, or a nested scope if the master tx is running */
     
-    boolean didBegin = false;
-    if (!this.tx.isInTransaction()) {
-      error = this.tx.begin();
-      if (error != null)
-        return error;
-      didBegin = true;
-    }
-    tx.addListener(this);
+    final boolean isNested = this.tx.isInTransaction();
+    if ((error = this.tx.begin()) != null)
+      return error;
+    final int scopeDepth = this.tx.scopeDepth();
+    this.tx.addListener(this);
     
     final EOAdaptorChannel ac = this.tx.adaptorChannel();
     if (ac == null) { // cannot happen
@@ -170,6 +231,10 @@ public class OGoOperationTransaction extends NSObject
     }
     
     try {
+      /* lock the rows requested by the operations */
+      
+      error = this.acquireLocks(ac);
+      
       /* let operations know that the SQL transaction started */
 
       if (error == null) {
@@ -193,19 +258,17 @@ public class OGoOperationTransaction extends NSObject
       /* commit on no-errors */
 
       if (error == null) {
-        /* no error so far, try to commit */
+        /* no error so far, try to commit (or release the savepoint) */
 
-        if (didBegin) {
-          if ((error = this.tx.commit()) != null) {
-            /* failed to commit */
-            log.error("tx commit failed: " + this, error);
-          }
+        if ((error = this.tx.commit()) != null) {
+          /* failed to commit */
+          log.error("tx commit failed: " + this, error);
         }
       }
       
       /* catch failed ops or failed commit */
 
-      if (error != null && didBegin) {
+      if (error != null && this.tx.scopeDepth() >= scopeDepth) {
         Exception rerror = this.tx.rollback();
         if (rerror != null)
           log.warn("database rollback failed", rerror);
@@ -213,7 +276,7 @@ public class OGoOperationTransaction extends NSObject
     }
     finally {
       /* this only kicks in on unexpected exceptions */
-      if (this.tx.isInTransaction() && didBegin) {
+      if (this.tx.scopeDepth() >= scopeDepth) {
         Exception rerror = this.tx.rollback(error);
         if (error == null)
           error = rerror;
@@ -223,10 +286,10 @@ public class OGoOperationTransaction extends NSObject
     }
     
     
-    /* after commits, notify the operations */
+    /* after errors, clean the context (on commit see transactionDidCommit) */
     
-    if (didBegin && this.oc != null) {
-      /* our operations modify the context, so we need to clean it */
+    if (error != null && !isNested && this.oc != null) {
+      /* our operations might have modified objects of the context */
       this.oc.reset();
     }
     
@@ -244,6 +307,64 @@ public class OGoOperationTransaction extends NSObject
         op.transactionDidCommitInContext(this, this.oc);
       }
     }
+    
+    this.invalidateObjectContext();
+    this.publishChanges();
+  }
+  
+  /**
+   * Publishes the reported changes on the OGoChangeBus of the database. If
+   * not all operations report their changes, an 'unknown changes' record is
+   * added.
+   */
+  protected void publishChanges() {
+    final OGoChangeBus bus = this.db != null ? this.db.changeBus() : null;
+    if (bus == null || !bus.hasReceivers())
+      return;
+    
+    if (this.operationsReportChanges())
+      bus.publish(this.changeRecords);
+    else if (this.changeRecords.size() == 0)
+      bus.publish(Collections.singletonList(OGoChangeRecord.unknownChanges));
+    else {
+      final List<OGoChangeRecord> records =
+        new ArrayList<OGoChangeRecord>(this.changeRecords);
+      records.add(OGoChangeRecord.unknownChanges);
+      bus.publish(records);
+    }
+  }
+  
+  /**
+   * Called after the transaction got committed. If all operations reported
+   * their changes (see OGoOperation.reportsChanges()), only the changed
+   * objects and permissions are dropped from the OGoObjectContext. Otherwise
+   * the context is reset and all cached permissions are dropped.
+   */
+  protected void invalidateObjectContext() {
+    if (this.oc == null)
+      return;
+    
+    if (!this.operationsReportChanges()) {
+      this.oc.reset();
+      this.oc.invalidatePermissions();
+      return;
+    }
+    
+    this.oc.invalidateGlobalIDs(this.changedGlobalIDs,this.aclChangedGlobalIDs);
+  }
+  
+  /**
+   * Returns true if all operations of the transaction report their changes.
+   */
+  public boolean operationsReportChanges() {
+    if (this.ops == null)
+      return true;
+    
+    for (IOGoOperation op: this.ops) {
+      if (!OGoOperation.operationReportsChanges(op))
+        return false;
+    }
+    return true;
   }
   
   public void transactionWillRollback(final OGoMasterTransaction _tx) {
@@ -389,18 +510,125 @@ public class OGoOperationTransaction extends NSObject
    * <code>requestLockOnGlobalID()</code>
    * method.
    * <p>
-   * Note: currently not implemented.
+   * The rows are locked using one SELECT per table, eg:<pre>
+   *   SELECT company_id FROM person WHERE company_id = ANY(?)
+   *   ORDER BY company_id FOR UPDATE</pre>
+   * The tables are processed in the order of their names, the rows in the
+   * order of their primary keys. That is, all transactions acquire their locks
+   * in the same global order, which avoids deadlocks between them.
+   * Requests for entities which share a table (eg Persons and Accounts) are
+   * merged, ordering by entity name would not be a global order for them.
+   * <p>
+   * See setLockTimeout() for the NOWAIT/timeout options. If a lock cannot be
+   * acquired, the SQLException of the database is returned (SQLState 55P03).
    * 
+   * @param _ch - the channel of the running database transaction
    * @return null if everything went fine, the error otherwise
    */
-  public Exception acquireLocks() {
+  public Exception acquireLocks(final EOAdaptorChannel _ch) {
     if (this.requestedLocks == null || this.requestedLocks.size() == 0)
       return null; /* nothing to be done */
     
-    // TBD: explicit locking not implemented yet
+    final Connection c = _ch != null ? _ch.connection() : null;
+    if (c == null)
+      return new NSException("got no database connection to acquire locks");
+    
+    try {
+      if (this.lockTimeoutInMS > 0)
+        this.executeSQL(c, "SET LOCAL lock_timeout = " + this.lockTimeoutInMS);
+      
+      for (final Map.Entry<String, Set<Number>> entry:
+           this.requestedLocks.entrySet())
+      {
+        final Exception error = this.lockRows(c, _ch,
+            this.lockEntities.get(entry.getKey()), entry.getValue());
+        if (error != null)
+          return error;
+      }
+      
+      if (this.lockTimeoutInMS > 0)
+        this.executeSQL(c, "SET LOCAL lock_timeout = DEFAULT");
+    }
+    catch (final SQLException e) {
+      log.warn("could not acquire locks: " + e.getMessage());
+      return e;
+    }
+    
+    this.requestedLocks.clear();
+    this.lockEntities.clear();
+    return null;
+  }
+  
+  /**
+   * Locks the rows of the table of the given entity in ascending primary key
+   * order.
+   * 
+   * @return null if all rows got locked, an error if rows are missing
+   */
+  protected Exception lockRows
+    (final Connection _c, final EOAdaptorChannel _ch, final EOEntity _entity,
+     final Set<Number> _ids)
+    throws SQLException
+  {
+    if (_entity == null)
+      return new NSException("cannot lock rows of unknown entity");
+    
+    final Integer[] ids = new Integer[_ids.size()];
+    int i = 0;
+    for (final Number id: _ids)
+      ids[i++] = id.intValue();
+    
+    final EOSQLExpression e =
+      _ch.adaptor().expressionFactory().createExpression(_entity);
+    final String pkeyColumn = e.sqlStringForSchemaObjectName(
+        _entity.attributeNamed(_entity.primaryKeyAttributeNames()[0])
+          .columnName());
+    
+    final StringBuilder sql = new StringBuilder(128);
+    sql.append("SELECT ");
+    sql.append(pkeyColumn);
+    sql.append(" FROM ");
+    sql.append(e.sqlStringForSchemaObjectName(_entity.externalName()));
+    sql.append(" WHERE ");
+    sql.append(pkeyColumn);
+    sql.append(" = ANY(?) ORDER BY ");
+    sql.append(pkeyColumn);
+    sql.append(" FOR UPDATE");
+    if (this.lockTimeoutInMS == 0)
+      sql.append(" NOWAIT");
+    
+    int lockCount = 0;
+    final PreparedStatement stmt = _c.prepareStatement(sql.toString());
+    try {
+      stmt.setArray(1, _c.createArrayOf("int4", ids));
+      final ResultSet rs = stmt.executeQuery();
+      while (rs.next())
+        lockCount++;
+      rs.close();
+    }
+    finally {
+      stmt.close();
+    }
+    
+    if (lockCount < ids.length) {
+      return new NSException("could not lock all " + _entity.name() +
+          " objects, some are missing: " + lockCount + "/" + ids.length);
+    }
     return null;
   }
   
+  protected void executeSQL(final Connection _c, final String _sql)
+    throws SQLException
+  {
+    final Statement stmt = _c.createStatement();
+    try {
+      stmt.execute(_sql);
+    }
+    finally {
+      stmt.close();
+    }
+  }
+  
   
   /* requests */
   
@@ -443,16 +671,141 @@ public class OGoOperationTransaction extends NSObject
   /**
    * Usually called by IOGoOperation objects to request an explicit database
    * LOCK on the given object. The LOCK will be valid for the transaction.
+   * <p>
+   * The locks are collected per table and acquired by acquireLocks() after
+   * the database transaction got started, before the operations are run.
    * 
-   * @param _perm - necessary permission set, eg 'e' or 'de'
    * @param _gid  - global-id of the object
    */
   public void requestLockOnGlobalID(final EOKeyGlobalID _gid) {
     if (_gid == null)
       return;
     
-    // TBD: improve error handling for invalid input GIDs
-    this.requestedLocks.put(_gid.entityName(), _gid.toNumber());
+    this.requestLockOnId(_gid.entityName(), _gid.toNumber());
+  }
+  
+  /**
+   * Usually called by IOGoOperation objects to request an explicit database
+   * LOCK on the given object. The LOCK will be valid for the transaction.
+   * 
+   * @param _entity - entity of object
+   * @param _id     - primary key of the object
+   */
+  public void requestLockOnId(final String _entity, final Number _id) {
+    if (_entity == null || _id == null) {
+      log.warn("got invalid lock request: " + _entity + "/" + _id);
+      return;
+    }
+    
+    /* group by table, entities can share one (eg Persons and Accounts) */
+    final EOEntity entity =
+      this.db != null ? this.db.entityNamed(_entity) : null;
+    final String table = entity != null ? entity.externalName() : null;
+    if (table == null) {
+      log.warn("cannot lock rows of unknown entity: " + _entity);
+      this.requestedLocks.put("?" + _entity, new HashSet<Number>(1));
+      return; /* acquireLocks() fails on the missing entity */
+    }
+    
+    Set<Number> ids = this.requestedLocks.get(table);
+    if (ids == null) {
+      this.requestedLocks.put(table, ids = new HashSet<Number>(16));
+      this.lockEntities.put(table, entity);
+    }
+    ids.add(Integer.valueOf(_id.intValue()));
+  }
+  
+  
+  /* change tracking */
+  
+  /**
+   * Called by IOGoOperation objects to report an object they inserted,
+   * updated or deleted. After the commit, the object is dropped from the
+   * OGoObjectContext (so that it gets refetched on the next access).
+   * 
+   * @param _gid - global-id of the changed object
+   */
+  public void noteChangedGlobalID(final EOGlobalID _gid) {
+    if (_gid instanceof EOKeyGlobalID) {
+      final EOKeyGlobalID kgid = (EOKeyGlobalID)_gid;
+      this.noteChange(OGoChangeRecord.UPDATE, kgid.entityName(),
+          kgid.toNumber(), null);
+    }
+    else if (_gid != null)
+      this.changedGlobalIDs.add(_gid);
+  }
+  public void noteChangedId(final String _entity, final Number _id) {
+    this.noteChange(OGoChangeRecord.UPDATE, _entity, _id, null);
+  }
+  
+  /**
+   * Reports a change to the transaction, including the kind of the change and
+   * the new objectVersion of the object. Besides invalidating the object in
+   * the context, this information is published on the OGoChangeBus of the
+   * database after the commit.
+   * 
+   * @param _kind    - the kind of change, eg OGoChangeRecord.INSERT
+   * @param _entity  - the entity of the object
+   * @param _id      - the primary key of the object
+   * @param _version - the objectVersion after the change, or null
+   */
+  public void noteChange
+    (final char _kind, final String _entity, final Number _id,
+     final Number _version)
+  {
+    if (_entity == null || _id == null)
+      return;
+    
+    final Integer id = Integer.valueOf(_id.intValue());
+    final EOGlobalID gid = EOKeyGlobalID.globalIDWithEntityName(_entity, id);
+    if (_kind == OGoChangeRecord.ACL)
+      this.aclChangedGlobalIDs.add(gid);
+    else
+      this.changedGlobalIDs.add(gid);
+    
+    this.changeRecords.add(new OGoChangeRecord(_kind, _entity, id, _version));
+  }
+  
+  /**
+   * Called by IOGoOperation objects to report an object whose permissions
+   * might have changed (eg the owner or the ACL got modified, or the object
+   * got deleted). After the commit, the cached permissions of the object
+   * (and of objects which derive their permissions from it) are dropped.
+   * 
+   * @param _gid - global-id of the object
+   */
+  public void noteACLChangedGlobalID(final EOGlobalID _gid) {
+    if (_gid instanceof EOKeyGlobalID) {
+      final EOKeyGlobalID kgid = (EOKeyGlobalID)_gid;
+      this.noteChange(OGoChangeRecord.ACL, kgid.entityName(),
+          kgid.toNumber(), null);
+    }
+    else if (_gid != null)
+      this.aclChangedGlobalIDs.add(_gid);
+  }
+  public void noteACLChangedId(final String _entity, final Number _id) {
+    this.noteChange(OGoChangeRecord.ACL, _entity, _id, null);
+  }
+  
+  /**
+   * Returns the global-ids of the objects reported by the operations.
+   */
+  public Set<EOGlobalID> changedGlobalIDs() {
+    return this.changedGlobalIDs;
+  }
+  /**
+   * Returns the global-ids of the objects whose permissions might have
+   * changed, as reported by the operations.
+   */
+  public Set<EOGlobalID> aclChangedGlobalIDs() {
+    return this.aclChangedGlobalIDs;
+  }
+  /**
+   * Returns the change records reported by the operations, in the order they
+   * got reported.
+   */
+  public List<OGoChangeRecord> changeRecords() {
+    return this.changeRecords;
   }
   
   
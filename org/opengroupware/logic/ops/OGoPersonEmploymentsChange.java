@@ -211,6 +211,19 @@ public class OGoPersonEmploymentsChange extends OGoOperation {
     
     Exception error;
     
+    /* The transaction might be a retry, start over. The rows get modified
+     * below, hence we work on copies of the requests. */
+    this.objectsToProcess.clear();
+    this.companyNameToObjects.clear();
+    final Map<Number, Map<String, Object>> pendingUpdates =
+      new HashMap<Number, Map<String, Object>>(this.updates.size());
+    for (final Map.Entry<Number, Map<String, Object>> entry:
+         this.updates.entrySet())
+    {
+      pendingUpdates.put(entry.getKey(),
+          new HashMap<String, Object>(entry.getValue()));
+    }
+    
     /* fetch child objects for all contacts */
     
     final List<Number> fetchIds = new ArrayList<Number>(16);
@@ -289,7 +302,7 @@ public class OGoPersonEmploymentsChange extends OGoOperation {
           continue;
         }
         
-        final Map<String, Object> row = this.updates.remove(child.id());
+        final Map<String, Object> row = pendingUpdates.remove(child.id());
         if (row == null) {
           log.warn("fetched unrequested child: " + child);
           continue; // TBD: did not find child?
@@ -370,7 +383,8 @@ public class OGoPersonEmploymentsChange extends OGoOperation {
     /* request insert permissions */
     
     if (this.inserts != null) {
-      for (Map<String, Object> row: this.inserts) {
+      for (final Map<String, Object> request: this.inserts) {
+        final Map<String, Object> row = new HashMap<String, Object>(request);
         /* Note: ID is generated when the request gets run */
         OGoEmployment child = this.createObject();
         
@@ -211,11 +211,22 @@ public class OGoTasksStateChange extends OGoOperation {
     if (error != null)
       return error;
     
+    for (final List<EOGlobalID> gids: this.stateToTasks.values()) {
+      if (gids == null) continue;
+      for (final EOGlobalID gid: gids)
+        _tx.noteChangedGlobalID(gid);
+    }
+    
     // TBD: comments/logs?!
     
     return null /* everything is fine */;
   }
   
+  @Override
+  public boolean reportsChanges() {
+    return true;
+  }
+  
   private static final Integer int0   = Integer.valueOf(0);
   private static final Integer int100 = Integer.valueOf(100);
 }
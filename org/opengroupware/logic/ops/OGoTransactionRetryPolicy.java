@@ -0,0 +1,293 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.logic.ops;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.getobjects.foundation.NSObject;
+import org.opengroupware.logic.core.IOGoOperation;
+
+/**
+ * OGoTransactionRetryPolicy
+ * <p>
+ * Decides whether a failed OGoOperationTransaction should be run again, and
+ * how long to wait before doing so. Only errors caused by concurrent
+ * transactions are retried, that is, errors with the SQLState
+ * <ul>
+ *   <li>40001 - serialization_failure
+ *   <li>40P01 - deadlock_detected
+ *   <li>55P03 - lock_not_available (only if setRetryLockTimeouts(true))
+ * </ul>
+ * The delay grows exponentially with each attempt, a random 'full jitter' is
+ * applied so that colliding transactions do not retry in lockstep.
+ * <p>
+ * The policy tracks how often transactions got retried, per SQLState and per
+ * operation class. This shows where the contention happens.
+ * <p>
+ * Example:<pre>
+ *   oc.setRetryPolicy(new OGoTransactionRetryPolicy(4, 20, 1000));</pre>
+ * OGoObjectContext.performOperations() then re-runs the whole transaction,
+ * including prepareOperations() and the permission checks.
+ *
+ * <p>
+ * THREAD: the policy is thread safe and can be shared between contexts.
+ *
+ * @author helge
+ */
+public class OGoTransactionRetryPolicy extends NSObject {
+  protected static final Log log = LogFactory.getLog("OGoOperationTransaction");
+
+  protected final int  maxAttempts;
+  protected final long baseDelayInMS;
+  protected final long maxDelayInMS;
+  protected volatile boolean retryLockTimeouts;
+
+  /* statistics */
+  protected final AtomicLong retryCount     = new AtomicLong(0);
+  protected final AtomicLong exhaustedCount = new AtomicLong(0);
+  protected final ConcurrentHashMap<String, AtomicLong> retriesBySQLState =
+    new ConcurrentHashMap<String, AtomicLong>(4);
+  protected final ConcurrentHashMap<String, AtomicLong> retriesByOperation =
+    new ConcurrentHashMap<String, AtomicLong>(16);
+
+  /**
+   * Creates a new retry policy.
+   *
+   * @param _maxAttempts - the number of runs, including the first one
+   * @param _baseDelay   - the delay after the first failure (in ms)
+   * @param _maxDelay    - the upper bound of the delay (in ms)
+   */
+  public OGoTransactionRetryPolicy
+    (final int _maxAttempts, final long _baseDelay, final long _maxDelay)
+  {
+    super();
+    this.maxAttempts   = _maxAttempts > 0 ? _maxAttempts : 1;
+    this.baseDelayInMS = _baseDelay > 0 ? _baseDelay : 1;
+    this.maxDelayInMS  = _maxDelay >= this.baseDelayInMS
+      ? _maxDelay : this.baseDelayInMS;
+  }
+  public OGoTransactionRetryPolicy() {
+    this(3 /* attempts */, 20 /* ms */, 1000 /* ms */);
+  }
+
+
+  /* accessors */
+
+  public int maxAttempts() {
+    return this.maxAttempts;
+  }
+
+  /**
+   * Whether lock timeouts (eg FOR UPDATE NOWAIT, see
+   * OGoOperationTransaction.setLockTimeout()) should be retried.
+   */
+  public void setRetryLockTimeouts(final boolean _flag) {
+    this.retryLockTimeouts = _flag;
+  }
+  public boolean retryLockTimeouts() {
+    return this.retryLockTimeouts;
+  }
+
+
+  /* classification */
+
+  /**
+   * Returns the SQLState of the given error if it denotes a transaction
+   * conflict which can be resolved by running the transaction again. The
+   * cause chain of the exception is scanned.
+   *
+   * @param _error - the error returned by the transaction
+   * @return the SQLState, or null if the error is not retryable
+   */
+  public String retryableSQLState(final Throwable _error) {
+    int depth = 0;
+    for (Throwable t = _error; t != null && depth < 16; depth++) {
+      if (t instanceof SQLException) {
+        for (SQLException e = (SQLException)t; e != null;
+             e = e.getNextException())
+        {
+          final String state = e.getSQLState();
+          if (this.isRetryableSQLState(state))
+            return state;
+        }
+      }
+      if (t.getCause() == t)
+        break;
+      t = t.getCause();
+    }
+    return null;
+  }
+
+  public boolean isRetryableSQLState(final String _state) {
+    if (_state == null)
+      return false;
+    if (_state.equals("40001") || _state.equals("40P01"))
+      return true;
+    return this.retryLockTimeouts && _state.equals("55P03");
+  }
+
+
+  /* retry decision */
+
+  /**
+   * Called after a transaction failed. If the error is retryable and the
+   * attempt count is not exhausted, the method records the retry, sleeps for
+   * the backoff delay and returns true.
+   *
+   * @param _error   - the error returned by the transaction
+   * @param _attempt - the number of the attempt which failed (1-based)
+   * @param _ops     - the operations of the transaction (for statistics)
+   * @return true if the transaction should be run again, false otherwise
+   */
+  public boolean shouldRetry
+    (final Exception _error, final int _attempt, final IOGoOperation[] _ops)
+  {
+    if (_error == null)
+      return false;
+
+    final String state = this.retryableSQLState(_error);
+    if (state == null)
+      return false;
+
+    if (_attempt >= this.maxAttempts) {
+      this.exhaustedCount.incrementAndGet();
+      log.warn("giving up transaction after " + _attempt + " attempts (" +
+          state + "): " + _error.getMessage());
+      return false;
+    }
+
+    this.recordRetry(state, _ops);
+
+    final long delay = this.delayForAttempt(_attempt);
+    if (log.isInfoEnabled()) {
+      log.info("retrying transaction in " + delay + "ms, attempt " +
+          (_attempt + 1) + "/" + this.maxAttempts + " (" + state + ")");
+    }
+    try {
+      Thread.sleep(delay);
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the backoff delay for the given attempt, a random value between
+   * 0 and min(maxDelay, baseDelay * 2^(attempt-1)).
+   *
+   * @param _attempt - the number of the attempt which failed (1-based)
+   * @return the delay in milliseconds
+   */
+  public long delayForAttempt(final int _attempt) {
+    final int  shift = Math.min(Math.max(_attempt - 1, 0), 20);
+    final long cap   = Math.min(this.maxDelayInMS, this.baseDelayInMS << shift);
+    return ThreadLocalRandom.current().nextLong(cap + 1);
+  }
+
+
+  /* statistics */
+
+  protected void recordRetry(final String _state, final IOGoOperation[] _ops) {
+    this.retryCount.incrementAndGet();
+    increment(this.retriesBySQLState, _state);
+
+    if (_ops != null) {
+      for (final IOGoOperation op: _ops) {
+        if (op != null)
+          increment(this.retriesByOperation, op.getClass().getSimpleName());
+      }
+    }
+  }
+
+  protected static void increment
+    (final ConcurrentHashMap<String, AtomicLong> _map, final String _key)
+  {
+    AtomicLong counter = _map.get(_key);
+    if (counter == null) {
+      counter = new AtomicLong(0);
+      final AtomicLong existing = _map.putIfAbsent(_key, counter);
+      if (existing != null) counter = existing;
+    }
+    counter.incrementAndGet();
+  }
+
+  public long retryCount() {
+    return this.retryCount.get();
+  }
+  /**
+   * Returns the number of transactions which still failed after the maximum
+   * number of attempts.
+   */
+  public long exhaustedCount() {
+    return this.exhaustedCount.get();
+  }
+
+  /**
+   * Returns the number of retries per SQLState, eg { 40P01 = 12; }.
+   */
+  public Map<String, Long> retriesBySQLState() {
+    return snapshot(this.retriesBySQLState);
+  }
+  /**
+   * Returns the number of retries per operation class, eg
+   * { OGoContactChange = 10; OGoTasksStateChange = 2; }.
+   */
+  public Map<String, Long> retriesByOperation() {
+    return snapshot(this.retriesByOperation);
+  }
+
+  protected static Map<String, Long> snapshot(final Map<String,AtomicLong> _m) {
+    final Map<String, Long> result = new HashMap<String, Long>(_m.size());
+    for (final Map.Entry<String, AtomicLong> entry: _m.entrySet())
+      result.put(entry.getKey(), entry.getValue().get());
+    return result;
+  }
+
+
+  /* description */
+
+  @Override
+  public void appendAttributesToDescription(final StringBuilder _d) {
+    super.appendAttributesToDescription(_d);
+
+    _d.append(" attempts=");
+    _d.append(this.maxAttempts);
+    _d.append(" delay=");
+    _d.append(this.baseDelayInMS);
+    _d.append("-");
+    _d.append(this.maxDelayInMS);
+    _d.append("ms #retries=");
+    _d.append(this.retryCount.get());
+    if (this.exhaustedCount.get() > 0) {
+      _d.append(" #exhausted=");
+      _d.append(this.exhaustedCount.get());
+    }
+  }
+}
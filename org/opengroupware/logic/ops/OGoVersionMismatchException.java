@@ -27,6 +27,10 @@ import org.opengroupware.logic.db.OGoObject;
  * OGoVersionMismatchException
  * <p>
  * Created if the 'object_version' of an OGo object changed in the database. 
+ * <p>
+ * Operations which update objects without fetching them first only know the
+ * entity name and the primary key of the object, in this case object()
+ * returns null.
  * 
  * @author helge
  */
@@ -34,6 +38,8 @@ public class OGoVersionMismatchException extends NSException {
   private static final long serialVersionUID = 1L;
   
   protected OGoObject object;
+  protected String    entityName;
+  protected Number    objectId;
   protected Number    databaseVersion;
   protected Number    cacheVersion;
 
@@ -44,6 +50,22 @@ public class OGoVersionMismatchException extends NSException {
     this.object          = _object;
     this.databaseVersion = _databaseVersion;
     this.cacheVersion    = _cacheVersion;
+    if (_object != null) {
+      this.objectId   = _object.id();
+      this.entityName = _object.entity() != null
+        ? _object.entity().name() : null;
+    }
+  }
+  
+  public OGoVersionMismatchException
+    (final String _entityName, final Number _id,
+     final Number _databaseVersion, final Number _cacheVersion)
+  {
+    super("version mismatch");
+    this.entityName      = _entityName;
+    this.objectId        = _id;
+    this.databaseVersion = _databaseVersion;
+    this.cacheVersion    = _cacheVersion;
   }
   
   /* accessors */
@@ -52,6 +74,14 @@ public class OGoVersionMismatchException extends NSException {
     return this.object;
   }
   
+  public String entityName() {
+    return this.entityName;
+  }
+  
+  public Number objectId() {
+    return this.objectId;
+  }
+  
   public Number databaseVersion() {
     return this.databaseVersion;
   }
@@ -71,7 +101,15 @@ public class OGoVersionMismatchException extends NSException {
     _d.append(this.databaseVersion);
     _d.append(" cache=");
     _d.append(this.cacheVersion);
-    _d.append(" object=");
-    _d.append(this.object);
+    if (this.object != null) {
+      _d.append(" object=");
+      _d.append(this.object);
+    }
+    else {
+      _d.append(" object=");
+      _d.append(this.entityName);
+      _d.append("/");
+      _d.append(this.objectId);
+    }
   }
 }
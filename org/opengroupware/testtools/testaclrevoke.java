@@ -0,0 +1,131 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.testtools;
+
+import java.util.List;
+
+import javax.security.auth.login.LoginContext;
+
+import org.getobjects.eocontrol.EOFetchSpecification;
+import org.getobjects.eocontrol.EOGlobalID;
+import org.getobjects.eocontrol.EOKeyValueQualifier;
+import org.opengroupware.logic.auth.OGoLoginModule;
+import org.opengroupware.logic.core.OGoObjectContext;
+import org.opengroupware.logic.core.OGoObjectContextPool;
+import org.opengroupware.logic.db.OGoACLEntry;
+import org.opengroupware.logic.db.OGoDatabase;
+import org.opengroupware.logic.db.OGoDocument;
+import org.opengroupware.logic.ops.OGoEOInsertOperation;
+import org.opengroupware.logic.ops.OGoObjectDeleteOperation;
+
+/**
+ * Revokes an ACL entry of the 'test' account and checks that the cached
+ * permissions of the protected document are dropped, in the context which
+ * performed the delete and in a pooled one. The entry is restored afterwards.
+ */
+public class testaclrevoke {
+
+  static String dburl = "jdbc:postgresql://127.0.0.1/OGo?user=OGo&password=OGo";
+
+  public static void main(String[] args) {
+    OGoDatabase  db = OGoDatabase.databaseForURL(dburl, null);
+    LoginContext lc = OGoLoginModule.jaasLogin(db, "test", "abc123");
+    if (lc == null || lc.getSubject() == null) {
+      System.err.println("could not login: " + dburl);
+      System.exit(1);
+    }
+
+    OGoObjectContextPool pool = new OGoObjectContextPool();
+    OGoObjectContext pooled = pool.checkout(db, lc);
+    OGoObjectContext oc     = pool.checkout(db, lc);
+
+    OGoACLEntry entry = findDocumentEntry(oc);
+    if (entry == null) {
+      System.err.println("found no ACL entry of the actor on a document");
+      System.exit(2);
+    }
+    System.out.println("revoking: " + entry);
+
+    /* cache the permissions in both contexts */
+    OGoDocument doc = fetchDocument(oc, entry.objectId());
+    fetchDocument(pooled, entry.objectId());
+    EOGlobalID gid = oc.globalIDForObject(doc);
+    System.out.println("  before: '" + oc.permissionsForGlobalID(gid) + "'");
+    pool.checkin(pooled);
+
+    OGoObjectDeleteOperation op =
+      new OGoObjectDeleteOperation(oc, "ACLEntries");
+    op.deleteObject(entry.id(), null);
+    Exception error = oc.performOperations(op);
+    if (error != null) {
+      System.err.println("could not delete ACL entry: " + error);
+      System.exit(3);
+    }
+
+    check("same context", oc, gid);
+    pooled = pool.checkout(db, lc);
+    check("pooled context", pooled, gid);
+    pool.checkin(pooled);
+
+    /* restore the entry */
+    OGoEOInsertOperation ins = new OGoEOInsertOperation(oc, "ACLEntries");
+    OGoACLEntry restored = new OGoACLEntry(db.entityNamed("ACLEntries"));
+    restored.setObjectId(entry.objectId());
+    restored.setPrincipalId(entry.principalId());
+    restored.takeValueForKey(entry.valueForKey("action"),   "action");
+    restored.takeValueForKey(entry.valueForKey("priority"), "priority");
+    restored.takeValueForKey(entry.permissions,             "permissions");
+    ins.add(restored);
+    if ((error = oc.performOperations(ins)) != null)
+      System.err.println("could not restore ACL entry: " + error);
+    pool.checkin(oc);
+  }
+
+  static void check(String _label, OGoObjectContext _oc, EOGlobalID _gid) {
+    String perms = _oc.permissionsForGlobalID(_gid);
+    if (perms != null)
+      System.err.println("FAIL " + _label + ": still cached '" + perms + "'");
+    else
+      System.out.println("OK   " + _label + ": permissions got dropped");
+  }
+
+  @SuppressWarnings("unchecked")
+  static OGoACLEntry findDocumentEntry(OGoObjectContext _oc) {
+    EOFetchSpecification fs = new EOFetchSpecification("ACLEntries",
+        new EOKeyValueQualifier("principalId", _oc.actorID()), null);
+    List<OGoACLEntry> entries = _oc.objectsWithFetchSpecification(fs);
+    if (entries == null)
+      return null;
+    for (OGoACLEntry entry: entries) {
+      if (fetchDocument(_oc, entry.objectId()) != null)
+        return entry;
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  static OGoDocument fetchDocument(OGoObjectContext _oc, Number _id) {
+    EOFetchSpecification fs = new EOFetchSpecification("Documents",
+        new EOKeyValueQualifier("id", _id), null);
+    List<OGoDocument> docs = _oc.objectsWithFetchSpecification(fs);
+    return docs != null && docs.size() > 0 ? docs.get(0) : null;
+  }
+}
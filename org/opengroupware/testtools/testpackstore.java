@@ -0,0 +1,212 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.testtools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.opengroupware.logic.blobs.IOGoBlobTransaction;
+import org.opengroupware.logic.blobs.OGoPackBlobStore;
+
+/**
+ * Exercises the index replay and the compaction of an OGoPackBlobStore in a
+ * temporary directory:
+ * <ul>
+ *   <li>BLOBs written and deleted before a close are restored on reopen
+ *   <li>a torn record at the end of the index log is cut off
+ *   <li>a second store object cannot open the same directory
+ *   <li>compaction keeps all live BLOBs, also after a reopen
+ *   <li>an index entry which does not match the segment data is rejected
+ * </ul>
+ */
+public class testpackstore {
+
+  static int failures = 0;
+
+  public static void main(String[] args) throws IOException {
+    File root = Files.createTempDirectory("testpackstore").toFile();
+
+    OGoPackBlobStore store = new OGoPackBlobStore(root);
+    store.setMaxSegmentSize(4096);
+    for (int i = 1; i <= 100; i++)
+      write(store, i, content(i, 0));
+    for (int i = 1; i <= 100; i += 2)
+      delete(store, i);
+    write(store, 2, content(2, 1)); /* replace */
+    store.close();
+
+    /* replay */
+    store = reopen(root);
+    check("replay: count", store.count() == 50);
+    check("replay: deleted BLOB", !exists(store, 1));
+    check("replay: replaced BLOB", content(2, 1).equals(read(store, 2)));
+    check("replay: kept BLOB", content(100, 0).equals(read(store, 100)));
+    store.close();
+
+    /* torn record at the end of the index */
+    RandomAccessFile log = new RandomAccessFile(new File(root, "index.log"),
+        "rw");
+    long validLength = log.length();
+    log.seek(validLength);
+    log.writeInt(64);
+    log.writeInt(0xCAFE);
+    log.write(new byte[10]);
+    log.close();
+    store = reopen(root);
+    check("torn record: count", store.count() == 50);
+    check("torn record: truncated",
+        new File(root, "index.log").length() == validLength);
+
+    /* exclusive lock */
+    OGoPackBlobStore other = new OGoPackBlobStore(root);
+    check("lock: second open refused", other.open() != null);
+
+    /* compaction */
+    int segmentCount = segmentFiles(root);
+    store.setCompactionThreshold(0.3);
+    check("compact: no error", store.compact() == null);
+    check("compact: segments removed", segmentFiles(root) < segmentCount);
+    for (int i = 2; i <= 100; i += 2) {
+      String expected = content(i, i == 2 ? 1 : 0);
+      if (!expected.equals(read(store, i))) {
+        check("compact: content of BLOB " + i, false);
+        break;
+      }
+    }
+    store.close();
+
+    store = reopen(root);
+    check("compact+replay: count", store.count() == 50);
+    check("compact+replay: content", content(42, 0).equals(read(store, 42)));
+    store.close();
+
+    /* broken index entry: write one BLOB, then damage its header */
+    File root2 = Files.createTempDirectory("testpackstore").toFile();
+    store = new OGoPackBlobStore(root2);
+    write(store, 7, content(7, 0));
+    store.close();
+    RandomAccessFile seg = new RandomAccessFile(
+        new File(root2, "segment-00000001.pack"), "rw");
+    seg.seek(0);
+    seg.writeInt(0);
+    seg.close();
+    store = reopen(root2);
+    try {
+      read(store, 7);
+      check("broken entry: rejected", false);
+    }
+    catch (IOException e) {
+      check("broken entry: rejected", true);
+    }
+    store.close();
+
+    delete(root);
+    delete(root2);
+    System.out.println(failures == 0 ? "OK   all checks passed"
+        : "FAIL " + failures + " checks failed");
+    System.exit(failures == 0 ? 0 : 1);
+  }
+
+  static OGoPackBlobStore reopen(File _root) {
+    OGoPackBlobStore store = new OGoPackBlobStore(_root);
+    Exception error = store.open();
+    if (error != null) {
+      System.err.println("FAIL could not open store: " + error);
+      System.exit(2);
+    }
+    return store;
+  }
+
+  static void check(String _label, boolean _ok) {
+    if (_ok)
+      System.out.println("OK   " + _label);
+    else {
+      System.err.println("FAIL " + _label);
+      failures++;
+    }
+  }
+
+  static String content(int _id, int _version) {
+    StringBuilder sb = new StringBuilder(256);
+    for (int i = 0; i < 10; i++)
+      sb.append("BLOB " + _id + " version " + _version + "\n");
+    return sb.toString();
+  }
+
+  static void write(OGoPackBlobStore _store, int _id, String _content) {
+    IOGoBlobTransaction tx =
+      _store.blobWriteTransaction(_id, null, "txt", _content);
+    Exception error = tx.perform();
+    if (error == null) error = tx.commit();
+    if (error != null) {
+      System.err.println("FAIL could not write BLOB " + _id + ": " + error);
+      System.exit(3);
+    }
+  }
+
+  static void delete(OGoPackBlobStore _store, int _id) {
+    IOGoBlobTransaction tx = _store.blobDeleteTransaction(_id, null, "txt");
+    Exception error = tx.perform();
+    if (error == null) error = tx.commit();
+    if (error != null) {
+      System.err.println("FAIL could not delete BLOB " + _id + ": " + error);
+      System.exit(3);
+    }
+  }
+
+  static boolean exists(OGoPackBlobStore _store, int _id) {
+    return _store.blobSizeForId(_id, null, "txt") >= 0;
+  }
+
+  static String read(OGoPackBlobStore _store, int _id) throws IOException {
+    InputStream in = _store.openStreamForId(_id, null, "txt");
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+      byte[] buf = new byte[1024];
+      int len;
+      while ((len = in.read(buf)) > 0)
+        bytes.write(buf, 0, len);
+      return new String(bytes.toByteArray(), "utf-8");
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  static int segmentFiles(File _root) {
+    int count = 0;
+    for (String name: _root.list()) {
+      if (name.endsWith(".pack"))
+        count++;
+    }
+    return count;
+  }
+
+  static void delete(File _dir) {
+    for (File f: _dir.listFiles())
+      f.delete();
+    _dir.delete();
+  }
+}
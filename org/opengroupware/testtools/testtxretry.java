@@ -0,0 +1,128 @@
+/*
+  Copyright (C) 2026 Helge Hess
+
+  This file is part of OpenGroupware.org (OGo)
+
+  OGo is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the
+  Free Software Foundation; either version 2, or (at your option) any
+  later version.
+
+  OGo is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public
+  License along with OGo; see the file COPYING.  If not, write to the
+  Free Software Foundation, 59 Temple Place - Suite 330, Boston, MA
+  02111-1307, USA.
+*/
+package org.opengroupware.testtools;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.getobjects.eoaccess.EOAdaptorChannel;
+import org.getobjects.eocontrol.EOFetchSpecification;
+import org.getobjects.eocontrol.EOQualifier;
+import org.getobjects.foundation.UMap;
+import org.opengroupware.logic.core.OGoObjectContext;
+import org.opengroupware.logic.db.OGoPhoneNumber;
+import org.opengroupware.logic.ops.OGoOperation;
+import org.opengroupware.logic.ops.OGoOperationTransaction;
+import org.opengroupware.logic.ops.OGoPhoneNumberChange;
+import org.opengroupware.logic.ops.OGoTransactionRetryPolicy;
+
+/**
+ * Inserts a phone number of the 'test' account in a transaction which fails
+ * once with a serialization failure. The retry must still insert the phone.
+ * The phone is deleted afterwards.
+ */
+public class testtxretry {
+
+  static String dburl = "jdbc:postgresql://127.0.0.1/OGo?user=OGo&password=OGo";
+
+  public static void main(String[] args) {
+    OGoObjectContext oc =
+      OGoObjectContext.objectContextForURL(dburl, "test", "abc123", null);
+    if (oc == null) {
+      System.err.println("could not login: " + dburl);
+      System.exit(1);
+    }
+    oc.setRetryPolicy(new OGoTransactionRetryPolicy(3, 1, 10));
+
+    String number = "+49-391-" + System.currentTimeMillis();
+    List<Map<String, Object>> inserts = new ArrayList<Map<String, Object>>(1);
+    inserts.add(UMap.create("key", "05_tel_private", "value", number));
+
+    FailOnceOperation failer = new FailOnceOperation(oc);
+    Exception error = oc.performOperations(
+        OGoPhoneNumberChange.changePerson(oc, oc.actorID(), null, null,
+            inserts),
+        failer);
+    if (error != null) {
+      System.err.println("FAIL transaction failed: " + error);
+      System.exit(2);
+    }
+    if (failer.runCount != 2)
+      System.err.println("FAIL expected two runs, got: " + failer.runCount);
+
+    oc.reset();
+    List<OGoPhoneNumber> phones = fetchPhones(oc, number);
+    if (phones == null || phones.size() != 1) {
+      System.err.println("FAIL phone got lost in the retry: " + phones);
+      System.exit(3);
+    }
+    System.out.println("OK   phone got inserted by the retry: " +
+        phones.get(0));
+
+    /* cleanup */
+    List<Number> deletes = new ArrayList<Number>(1);
+    deletes.add(phones.get(0).id());
+    error = oc.performOperations(
+        OGoPhoneNumberChange.changePerson(oc, oc.actorID(), null, deletes,
+            null));
+    if (error != null)
+      System.err.println("could not delete test phone: " + error);
+  }
+
+  @SuppressWarnings("unchecked")
+  static List<OGoPhoneNumber> fetchPhones(OGoObjectContext _oc, String _n) {
+    EOFetchSpecification fs = new EOFetchSpecification("PersonPhones",
+        EOQualifier.parse("companyId = %@ AND value = %@",
+            _oc.actorID(), _n),
+        null);
+    return _oc.objectsWithFetchSpecification(fs);
+  }
+
+  /**
+   * Fails the first run of the transaction like a concurrent transaction
+   * would (SQLState 40001).
+   */
+  static class FailOnceOperation extends OGoOperation {
+    int runCount = 0;
+
+    public FailOnceOperation(OGoObjectContext _oc) {
+      super(_oc);
+    }
+
+    @Override
+    public Exception runInContext
+      (OGoOperationTransaction _tx, EOAdaptorChannel _ch,
+       OGoObjectContext _ctx)
+    {
+      this.runCount++;
+      if (this.runCount == 1)
+        return new SQLException("forced serialization failure", "40001");
+      return null;
+    }
+
+    @Override
+    public boolean reportsChanges() {
+      return true;
+    }
+  }
+}
@@ -80,8 +80,10 @@ public class OGoContext extends WOContext {
 
   public Object loginId() {
     // FIXME: should this be attached to 'activeUser'?
-    OGoAccount acc = this.loginAccount();
-    return acc != null ? acc.id : null;
+    if (!this.hasSession())
+      return null;
+    
+    return this.oSession().loginId(); /* principal lookup, no fetch */
   }
 
   /* accessors */
@@ -97,6 +99,10 @@ public class OGoContext extends WOContext {
   
   /**
    * Returns the OGoObjectContext for this transaction.
+   * <p>
+   * If the request has a session, the context is checked out from the
+   * session's OGoObjectContextPool and returned to it at the end of the
+   * request. Do not keep references to it beyond the request.
    * 
    * @return an OGoObjecContext or null if none could be created
    */
@@ -104,6 +110,16 @@ public class OGoContext extends WOContext {
     if (this.objectContext != null)
       return this.objectContext;
     
+    /* reuse a pooled context of the session */
+    
+    final OGoSession sn = this.oSession();
+    if (sn != null) {
+      this.objectContext =
+        sn.checkoutObjectContext(this.db(), this.loginContext());
+      if (this.objectContext != null)
+        return this.objectContext;
+    }
+    
     /* setup database context */
     
     final EODatabaseContext dc = new EODatabaseContext(this.db());
@@ -20,6 +20,11 @@
 */
 package org.opengroupware.web;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import javax.security.auth.Subject;
 import javax.security.auth.login.LoginContext;
 
@@ -28,9 +33,32 @@ import org.apache.commons.logging.LogFactory;
 import org.getobjects.appserver.core.WOSession;
 import org.getobjects.eoaccess.EODatabaseContext;
 import org.opengroupware.logic.auth.OGoAccountPrincipal;
+import org.opengroupware.logic.core.OGoObjectContext;
+import org.opengroupware.logic.core.OGoObjectContextPool;
+import org.opengroupware.logic.db.IOGoChangeListener;
 import org.opengroupware.logic.db.OGoAccount;
+import org.opengroupware.logic.db.OGoChangeBus;
+import org.opengroupware.logic.db.OGoChangeRecord;
 import org.opengroupware.logic.db.OGoDatabase;
 
+/**
+ * OGoSession
+ * <p>
+ * Keeps the JAAS LoginContext of a logged in OGo user.
+ * <p>
+ * The OGoAccount of the login user is cached in the session. The session
+ * subscribes to the OGoChangeBus of the database and drops the cached object
+ * when the account (or the person row backing it) gets updated or deleted,
+ * or when a transaction did not report its changes. Checking the cache does
+ * not hit the database.
+ * Call invalidateLoginAccount() if you know that the account changed.
+ * loginId() and loginName() are served from the OGoAccountPrincipal which is
+ * looked up once per LoginContext.
+ * <p>
+ * The session also maintains a small OGoObjectContextPool. Contexts checked
+ * out during a request are returned to the pool in sleep(), so that the next
+ * request can reuse them (including their cached permissions).
+ */
 public class OGoSession extends WOSession {
   // TBD: logout when 'terminate' is called? would be nice I guess
   protected static final Log log = LogFactory.getLog("OGoSession");
@@ -38,13 +66,43 @@ public class OGoSession extends WOSession {
   transient protected OGoDatabase       database;
   transient protected EODatabaseContext dbCtx;
   protected LoginContext loginContext;
+  
+  /* caches */
+  transient protected OGoAccountPrincipal loginPrincipal;
+  transient protected OGoAccount          loginAccount;
+  transient protected LoginAccountListener loginAccountListener;
+  
+  /* object contexts */
+  transient protected OGoObjectContextPool   objectContextPool;
+  transient protected List<OGoObjectContext> activeObjectContexts;
 
   public OGoSession() {
   }
   
+  /* notifications */
+  
+  @Override
+  public void sleep() {
+    this.checkinObjectContexts(); /* request is done */
+    super.sleep();
+  }
+  
+  @Override
+  public void terminate() {
+    this.stopListeningForLoginAccountChanges();
+    super.terminate();
+  }
+  
   /* accessors */
   
   public void setLoginContext(LoginContext _lc) {
+    if (this.loginContext != _lc) {
+      this.loginPrincipal = null;
+      this.loginAccount   = null;
+      this.stopListeningForLoginAccountChanges();
+      if (this.objectContextPool != null)
+        this.objectContextPool.clear(); /* contexts are bound to the login */
+    }
     this.loginContext = _lc;
   }
   public LoginContext loginContext() {
@@ -58,6 +116,11 @@ public class OGoSession extends WOSession {
   // TBD: DB is conceptually attached to the application object?
   // except: we want to provide access to multiple OGo DBs from one app-object? 
   public void setDatabase(final OGoDatabase _db) {
+    if (this.database != _db) {
+      this.loginAccount = null;
+      this.stopListeningForLoginAccountChanges();
+    }
+    
     this.database = _db;
     this.dbCtx    = _db != null ? new EODatabaseContext(_db) : null;
   }
@@ -69,38 +132,206 @@ public class OGoSession extends WOSession {
     return this.dbCtx;
   }
   
-  public OGoAccount loginAccount() {
-    final Subject subject = this.loginSubject();
-    if (subject == null)
+  /* object contexts */
+  
+  /**
+   * Returns an OGoObjectContext for the current request. The context is taken
+   * from a per-session pool and is automatically returned to the pool when
+   * the session goes to sleep (at the end of the request).
+   * 
+   * @param _db - the OGoDatabase to work on
+   * @param _lc - the LoginContext of the request
+   * @return an OGoObjectContext, or null if there is no database
+   */
+  public OGoObjectContext checkoutObjectContext
+    (final OGoDatabase _db, final LoginContext _lc)
+  {
+    if (_db == null)
       return null;
     
+    if (this.objectContextPool == null)
+      this.objectContextPool = new OGoObjectContextPool();
+    
+    final OGoObjectContext oc = this.objectContextPool.checkout(_db, _lc);
+    if (oc != null) {
+      if (this.activeObjectContexts == null)
+        this.activeObjectContexts = new ArrayList<OGoObjectContext>(2);
+      this.activeObjectContexts.add(oc);
+    }
+    return oc;
+  }
+  
+  /**
+   * Returns all OGoObjectContexts checked out for the current request to the
+   * pool. Called by sleep().
+   */
+  public void checkinObjectContexts() {
+    if (this.activeObjectContexts == null || this.objectContextPool == null)
+      return;
+    
+    for (final OGoObjectContext oc: this.activeObjectContexts)
+      this.objectContextPool.checkin(oc);
+    this.activeObjectContexts.clear();
+  }
+  
+  /**
+   * Returns the OGoAccount object of the login user. The object is cached in
+   * the session until a change notification for the account arrives.
+   * 
+   * @return the OGoAccount of the login user, or null if there is none
+   */
+  public OGoAccount loginAccount() {
     /* find uid */
     final Number uid = this.loginId();
-    if (uid == null)
+    if (uid == null || this.database == null)
       return null;
-
-    // TBD: cache this?
-    return (OGoAccount)this.database.accounts().findById(uid);
+    
+    LoginAccountListener listener = this.loginAccountListener;
+    if (listener == null || !listener.isListeningFor(this.database, uid)) {
+      this.stopListeningForLoginAccountChanges();
+      listener = new LoginAccountListener(this, this.database, uid);
+      this.database.changeBus().addListener(listener);
+      this.loginAccountListener = listener;
+      this.loginAccount         = null;
+    }
+    
+    /* reset the flag prior fetching, a change during the fetch is kept */
+    if (!listener.resetDidChange() && this.loginAccount != null)
+      return this.loginAccount;
+    
+    if (log.isDebugEnabled() && this.loginAccount != null)
+      log.debug("login account changed, refetching: " + uid);
+    
+    final OGoAccount account =
+      (OGoAccount)this.database.accounts().findById(uid);
+    this.loginAccount = account;
+    return account;
   }
   
-  public Number loginId() {
+  /**
+   * Drops the cached OGoAccount of the login user, the next loginAccount()
+   * call will refetch it. Call this if you know that the account was changed.
+   */
+  public void invalidateLoginAccount() {
+    this.loginAccount = null;
+  }
+  
+  /**
+   * Unsubscribes the session from the OGoChangeBus. Called when the login or
+   * the database changes, and when the session terminates.
+   */
+  protected void stopListeningForLoginAccountChanges() {
+    final LoginAccountListener listener = this.loginAccountListener;
+    if (listener == null)
+      return;
+    
+    this.loginAccountListener = null;
+    listener.stopListening();
+  }
+  
+  /**
+   * Returns the OGoAccountPrincipal contained in the subject of the
+   * LoginContext. The principal is cached, so repeated calls do not scan the
+   * Subject.
+   * 
+   * @return the OGoAccountPrincipal of the login user, or null
+   */
+  public OGoAccountPrincipal loginPrincipal() {
+    if (this.loginPrincipal != null)
+      return this.loginPrincipal;
+    
     final Subject subject = this.loginSubject();
     if (subject == null) return null;
     
     /* find uid */
     for (OGoAccountPrincipal p:subject.getPrincipals(OGoAccountPrincipal.class))
-      return p.id();
+      return (this.loginPrincipal = p);
     
     return null;
   }
+  
+  public Number loginId() {
+    final OGoAccountPrincipal p = this.loginPrincipal();
+    return p != null ? p.id() : null;
+  }
   public String loginName() {
-    final Subject subject = this.loginSubject();
-    if (subject == null) return null;
+    final OGoAccountPrincipal p = this.loginPrincipal();
+    return p != null ? p.getName() : null;
+  }
+  
+  
+  /* change listener */
+  
+  /**
+   * Flags the login account as changed if an OGoChangeRecord for it arrives.
+   * <p>
+   * The listener only keeps a weak reference to the session, if the session
+   * got collected without being terminated, the listener removes itself from
+   * the bus on the next change.
+   * <p>
+   * THREAD: called by the thread which committed the change, the flag is
+   *         atomic.
+   */
+  protected static class LoginAccountListener implements IOGoChangeListener {
     
-    /* find uid */
-    for (OGoAccountPrincipal p:subject.getPrincipals(OGoAccountPrincipal.class))
-      return p.getName();
+    protected final WeakReference<OGoSession> session;
+    protected final OGoDatabase   database;
+    protected final int           accountId;
+    protected final AtomicBoolean didChange;
     
-    return null;
+    public LoginAccountListener
+      (final OGoSession _sn, final OGoDatabase _db, final Number _accountId)
+    {
+      this.session   = new WeakReference<OGoSession>(_sn);
+      this.database  = _db;
+      this.accountId = _accountId.intValue();
+      this.didChange = new AtomicBoolean(true);
+    }
+    
+    public boolean isListeningFor(final OGoDatabase _db, final Number _uid) {
+      return this.database == _db && this.accountId == _uid.intValue();
+    }
+    
+    /**
+     * Returns whether the account changed since the last call.
+     */
+    public boolean resetDidChange() {
+      return this.didChange.getAndSet(false);
+    }
+    
+    public void stopListening() {
+      this.database.changeBus().removeListener(this);
+    }
+    
+    public void objectsDidChange
+      (final OGoChangeBus _bus, final List<OGoChangeRecord> _changes,
+       final boolean _isRemote)
+    {
+      if (this.session.get() == null) {
+        _bus.removeListener(this); /* session is gone */
+        return;
+      }
+      
+      for (final OGoChangeRecord change: _changes) {
+        if (this.affectsAccount(change)) {
+          this.didChange.set(true);
+          return;
+        }
+      }
+    }
+    
+    protected boolean affectsAccount(final OGoChangeRecord _change) {
+      if (_change.isUnknownChange())
+        return true;
+      if (_change.kind() != OGoChangeRecord.UPDATE &&
+          _change.kind() != OGoChangeRecord.DELETE)
+        return false;
+      if (_change.id() == null || _change.id().intValue() != this.accountId)
+        return false;
+      
+      /* Accounts and Persons are both stored in the person table */
+      final String ename = _change.entityName();
+      return "Accounts".equals(ename) || "Persons".equals(ename);
+    }
   }
 }